@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.heartbeat.StampyHeartbeatContainer;
+import asia.stampy.common.timer.TimingWheel;
+
+/**
+ * Guards the outbound buffers of connections against slow consumers. Messages
+ * are written directly while the connection is writable; once its outbound
+ * buffer exceeds the high water mark the {@link SlowConsumerPolicy} of the
+ * connection is applied until the buffer drains below the low water mark, at
+ * which point held messages are written in order. Changes in writability are
+ * passed to the gateway's {@link StampyWritabilityListener}s. Heartbeats are
+ * written regardless of writability, so that a slow consumer is not mistaken
+ * for a dead one.<br>
+ * <br>
+ * Subclasses adapt the connection type of the underlying technology.
+ * 
+ * @param <C>
+ *          the connection type
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public abstract class AbstractOutboundThrottle<C> {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** The default high water mark of 64kB. */
+  public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+  /** The default low water mark of 32kB. */
+  public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+
+  private ConcurrentMap<HostPort, Outbound> connections = new ConcurrentHashMap<HostPort, Outbound>();
+
+  private ConcurrentMap<HostPort, SlowConsumerPolicy> policies = new ConcurrentHashMap<HostPort, SlowConsumerPolicy>();
+
+  private SlowConsumerPolicy policy = SlowConsumerPolicy.BLOCK;
+
+  private int maxHeldMessages = 1000;
+
+  private long blockTimeoutMillis = 30000;
+
+  private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+  private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+
+  private AtomicLong dropped = new AtomicLong();
+
+  private AbstractStampyMessageGateway gateway;
+
+  /**
+   * Writes the message to the connection, applying the
+   * {@link SlowConsumerPolicy} should the connection not be writable.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param connection
+   *          the connection
+   * @param message
+   *          the message
+   */
+  public void write(HostPort hostPort, C connection, Object message) {
+    if (isHeartbeat(message)) {
+      write(connection, message);
+      return;
+    }
+
+    Outbound outbound = getOutbound(hostPort);
+
+    boolean close;
+    synchronized (outbound) {
+      flush(connection, outbound);
+      if (outbound.held.isEmpty() && isWritable(connection)) {
+        write(connection, message);
+        close = false;
+      } else {
+        close = !throttle(hostPort, connection, outbound, message);
+        if (close) discarded(message);
+      }
+    }
+
+    updateWritability(hostPort, connection, outbound);
+
+    if (close) {
+      log.warn("{} is not consuming, closing the connection", hostPort);
+      close(connection);
+    }
+  }
+
+  /**
+   * Invoked by the underlying technology when the writability of the
+   * connection may have changed, writing held messages and releasing blocked
+   * senders once writable.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param connection
+   *          the connection
+   */
+  public void writabilityChanged(HostPort hostPort, C connection) {
+    Outbound outbound = connections.get(hostPort);
+    if (outbound == null) return;
+
+    synchronized (outbound) {
+      flush(connection, outbound);
+      outbound.notifyAll();
+    }
+
+    updateWritability(hostPort, connection, outbound);
+  }
+
+  /**
+   * Discards the held messages and per connection policy of the specified
+   * {@link HostPort}, releasing blocked senders. Invoked on session
+   * termination.
+   * 
+   * @param hostPort
+   *          the host port
+   */
+  public void remove(HostPort hostPort) {
+    policies.remove(hostPort);
+
+    Outbound outbound = connections.remove(hostPort);
+    if (outbound == null) return;
+
+    synchronized (outbound) {
+      outbound.closed = true;
+      while (!outbound.held.isEmpty()) {
+        discarded(outbound.held.poll());
+      }
+      outbound.notifyAll();
+    }
+  }
+
+  private boolean throttle(HostPort hostPort, C connection, Outbound outbound, Object message) {
+    switch (getPolicy(hostPort)) {
+    case DISCONNECT:
+      return false;
+    case DROP_NEWEST:
+      if (outbound.held.size() < getMaxHeldMessages()) {
+        outbound.held.add(message);
+      } else {
+        dropped(hostPort, message);
+      }
+      return true;
+    case DROP_OLDEST:
+      if (outbound.held.size() >= getMaxHeldMessages()) dropped(hostPort, outbound.held.poll());
+      outbound.held.add(message);
+      return true;
+    default:
+      return block(hostPort, connection, outbound, message);
+    }
+  }
+
+  /**
+   * Blocks the sender awaiting writability, unless the sender is the thread of
+   * a {@link TimingWheel}, which is shared by many connections; the message is
+   * then held as per {@link SlowConsumerPolicy#DROP_NEWEST}.
+   */
+  private boolean block(HostPort hostPort, C connection, Outbound outbound, Object message) {
+    if (TimingWheel.isWheelThread()) {
+      if (outbound.held.size() < getMaxHeldMessages()) {
+        outbound.held.add(message);
+      } else {
+        dropped(hostPort, message);
+      }
+      return true;
+    }
+
+    long deadline = System.currentTimeMillis() + getBlockTimeoutMillis();
+    try {
+      while (!outbound.closed && !isWritable(connection)) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return false;
+
+        outbound.wait(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("Interrupted awaiting writability of {}, message not sent", hostPort);
+      discarded(message);
+      return true;
+    }
+
+    if (outbound.closed) {
+      discarded(message);
+      return true;
+    }
+
+    outbound.held.add(message);
+    flush(connection, outbound);
+
+    return true;
+  }
+
+  private void flush(C connection, Outbound outbound) {
+    while (!outbound.held.isEmpty() && isWritable(connection)) {
+      write(connection, outbound.held.poll());
+    }
+  }
+
+  private void dropped(HostPort hostPort, Object message) {
+    long count = dropped.incrementAndGet();
+    log.warn("{} is not writable, message dropped ({} dropped in total)", hostPort, count);
+    discarded(message);
+  }
+
+  private void updateWritability(HostPort hostPort, C connection, Outbound outbound) {
+    boolean writable = isWritable(connection);
+    synchronized (outbound) {
+      if (outbound.writable == writable) return;
+      outbound.writable = writable;
+    }
+
+    log.debug("{} writable: {}", hostPort, writable);
+    if (getGateway() != null) getGateway().notifyWritabilityListeners(hostPort, writable);
+  }
+
+  private Outbound getOutbound(HostPort hostPort) {
+    Outbound outbound = connections.get(hostPort);
+    if (outbound != null) return outbound;
+
+    outbound = new Outbound();
+    Outbound existing = connections.putIfAbsent(hostPort, outbound);
+
+    return existing == null ? outbound : existing;
+  }
+
+  /**
+   * Checks if the message is a heartbeat, written without throttling. The
+   * default implementation compares the message to
+   * {@link StampyHeartbeatContainer#HB1}.
+   * 
+   * @param message
+   *          the message
+   * @return true, if is heartbeat
+   */
+  protected boolean isHeartbeat(Object message) {
+    return StampyHeartbeatContainer.HB1.equals(message);
+  }
+
+  /**
+   * Checks if the connection's outbound buffer is below its high water mark,
+   * or has drained below its low water mark having exceeded the high.
+   * 
+   * @param connection
+   *          the connection
+   * @return true, if writable
+   */
+  protected abstract boolean isWritable(C connection);
+
+  /**
+   * Writes the message to the connection without blocking.
+   * 
+   * @param connection
+   *          the connection
+   * @param message
+   *          the message
+   */
+  protected abstract void write(C connection, Object message);
+
+  /**
+   * Closes the connection.
+   * 
+   * @param connection
+   *          the connection
+   */
+  protected abstract void close(C connection);
+
+  /**
+   * Invoked when a message is discarded without having been written, allowing
+   * implementations to release any resources it holds. The default
+   * implementation does nothing.
+   * 
+   * @param message
+   *          the message
+   */
+  protected void discarded(Object message) {
+  }
+
+  /**
+   * Gets the number of messages held for the specified {@link HostPort}.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return the held messages
+   */
+  public int getHeldMessages(HostPort hostPort) {
+    Outbound outbound = connections.get(hostPort);
+    if (outbound == null) return 0;
+
+    synchronized (outbound) {
+      return outbound.held.size();
+    }
+  }
+
+  /**
+   * Gets the number of messages dropped since startup.
+   * 
+   * @return the dropped messages
+   */
+  public long getDroppedMessages() {
+    return dropped.get();
+  }
+
+  /**
+   * Gets the policy of the specified {@link HostPort}.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return the policy
+   */
+  public SlowConsumerPolicy getPolicy(HostPort hostPort) {
+    SlowConsumerPolicy p = policies.get(hostPort);
+    return p == null ? getPolicy() : p;
+  }
+
+  /**
+   * Sets the policy of the specified {@link HostPort}, overriding the default
+   * until the connection is terminated.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param policy
+   *          the policy, null to revert to the default
+   */
+  public void setPolicy(HostPort hostPort, SlowConsumerPolicy policy) {
+    if (policy == null) {
+      policies.remove(hostPort);
+    } else {
+      policies.put(hostPort, policy);
+    }
+  }
+
+  /**
+   * Gets the default policy.
+   * 
+   * @return the policy
+   */
+  public SlowConsumerPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Sets the default policy. Defaults to {@link SlowConsumerPolicy#BLOCK},
+   * which stalls the sending thread rather than losing messages; the dropping
+   * policies suit messages sent from I/O threads, logging each message dropped
+   * and counting them in {@link #getDroppedMessages()}.
+   * 
+   * @param policy
+   *          the new policy
+   */
+  public void setPolicy(SlowConsumerPolicy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Gets the max held messages.
+   * 
+   * @return the max held messages
+   */
+  public int getMaxHeldMessages() {
+    return maxHeldMessages;
+  }
+
+  /**
+   * Sets the maximum number of messages held per connection by the drop
+   * policies. Defaults to 1000.
+   * 
+   * @param maxHeldMessages
+   *          the new max held messages
+   */
+  public void setMaxHeldMessages(int maxHeldMessages) {
+    this.maxHeldMessages = maxHeldMessages;
+  }
+
+  /**
+   * Gets the block timeout millis.
+   * 
+   * @return the block timeout millis
+   */
+  public long getBlockTimeoutMillis() {
+    return blockTimeoutMillis;
+  }
+
+  /**
+   * Sets the time a sender blocks awaiting writability before the connection
+   * is closed. Defaults to 30 seconds (30000).
+   * 
+   * @param blockTimeoutMillis
+   *          the new block timeout millis
+   */
+  public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+    this.blockTimeoutMillis = blockTimeoutMillis;
+  }
+
+  /**
+   * Gets the high water mark.
+   * 
+   * @return the high water mark
+   */
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Sets the number of outbound bytes above which a connection is not
+   * writable. Defaults to {@link #DEFAULT_HIGH_WATER_MARK}.
+   * 
+   * @param highWaterMark
+   *          the new high water mark
+   */
+  public void setHighWaterMark(int highWaterMark) {
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Gets the low water mark.
+   * 
+   * @return the low water mark
+   */
+  public int getLowWaterMark() {
+    return lowWaterMark;
+  }
+
+  /**
+   * Sets the number of outbound bytes below which a connection which was not
+   * writable becomes writable again. Defaults to {@link #DEFAULT_LOW_WATER_MARK}.
+   * 
+   * @param lowWaterMark
+   *          the new low water mark
+   */
+  public void setLowWaterMark(int lowWaterMark) {
+    this.lowWaterMark = lowWaterMark;
+  }
+
+  /**
+   * Gets the gateway.
+   * 
+   * @return the gateway
+   */
+  public AbstractStampyMessageGateway getGateway() {
+    return gateway;
+  }
+
+  /**
+   * Sets the gateway notified of changes in writability.
+   * 
+   * @param gateway
+   *          the new gateway
+   */
+  public void setGateway(AbstractStampyMessageGateway gateway) {
+    this.gateway = gateway;
+  }
+
+  private static class Outbound {
+    private final Queue<Object> held = new ArrayDeque<Object>();
+    private boolean writable = true;
+    private boolean closed;
+  }
+}
@@ -19,10 +19,13 @@
 package asia.stampy.common.gateway;
 
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -38,6 +41,7 @@ import asia.stampy.common.message.StompMessageType;
 import asia.stampy.common.message.interceptor.InterceptException;
 import asia.stampy.common.message.interceptor.StampyOutgoingMessageInterceptor;
 import asia.stampy.common.message.interceptor.StampyOutgoingTextInterceptor;
+import asia.stampy.common.parsing.StompMessageParser;
 
 /**
  * A StampyMessageGateway is the interface between the technology used to
@@ -58,6 +62,12 @@ public abstract class AbstractStampyMessageGateway {
 
   private List<StampyMessageListener> listeners = Collections.synchronizedList(new ArrayList<StampyMessageListener>());
 
+  private volatile Map<StompMessageType, StampyMessageListener[]> dispatch = Collections.emptyMap();
+
+  private Queue<StampyWritabilityListener> writabilityListeners = new ConcurrentLinkedQueue<StampyWritabilityListener>();
+
+  private Queue<StampyShutdownListener> shutdownListeners = new ConcurrentLinkedQueue<StampyShutdownListener>();
+
   private Lock stampyInterceptorLock = new ReentrantLock(true);
   private Lock textInterceptorLock = new ReentrantLock(true);
 
@@ -74,6 +84,7 @@ public abstract class AbstractStampyMessageGateway {
   /**
    * Broadcasts a {@link StampyMessage} to all connected clients from the server
    * or to the server from a client. Use this method for all STOMP messages.
+   * The message is encoded once into a heap buffer shared by all connections.
    * 
    * @param message
    *          the message
@@ -82,7 +93,7 @@ public abstract class AbstractStampyMessageGateway {
    */
   public void broadcastMessage(StampyMessage<?> message) throws InterceptException {
     interceptOutgoingMessage(message);
-    broadcastMessage(message.toStompMessage(true));
+    broadcastMessage(message.toStompBuffer(true));
   }
 
   /**
@@ -164,7 +175,7 @@ public abstract class AbstractStampyMessageGateway {
    */
   public void sendMessage(StampyMessage<?> message, HostPort hostPort) throws InterceptException {
     interceptOutgoingMessage(message, hostPort);
-    sendMessage(message.toStompMessage(true), hostPort);
+    sendMessage(message.toStompBuffer(true), hostPort);
   }
 
   /**
@@ -230,6 +241,33 @@ public abstract class AbstractStampyMessageGateway {
     }
   }
 
+  /**
+   * Intercept outgoing message. The buffer is only decoded should text
+   * interceptors exist; its position is unchanged.
+   * 
+   * @param message
+   *          the message
+   * @throws InterceptException
+   *           the intercept exception
+   */
+  protected final void interceptOutgoingMessage(ByteBuffer message) throws InterceptException {
+    if (textInterceptors.isEmpty()) return;
+
+    interceptOutgoingMessage(decode(message));
+  }
+
+  /**
+   * Decodes the UTF-8 encoded STOMP frame, leaving the buffer's position
+   * unchanged.
+   * 
+   * @param stompMessage
+   *          the stomp message
+   * @return the string
+   */
+  protected String decode(ByteBuffer stompMessage) {
+    return StompMessageParser.UTF_8.decode(stompMessage.duplicate()).toString();
+  }
+
   /**
    * Checks if is for type.
    * 
@@ -250,7 +288,10 @@ public abstract class AbstractStampyMessageGateway {
   }
 
   /**
-   * Notify listeners of received {@link StampyMessage}s.
+   * Notify listeners of received {@link StampyMessage}s. Only the listeners
+   * for the message's type are evaluated, in the order they were added.
+   * Evaluation stops once a {@link StampyConsumingMessageListener} has consumed
+   * the message.
    * 
    * @param sm
    *          the sm
@@ -260,26 +301,66 @@ public abstract class AbstractStampyMessageGateway {
    *           the exception
    */
   public void notifyMessageListeners(StampyMessage<?> sm, HostPort hostPort) throws Exception {
-    for (StampyMessageListener listener : listeners) {
-      if (isForType(listener.getMessageTypes(), sm.getMessageType()) && listener.isForMessage(sm)) {
-        log.trace("Evaluating message {} with listener {}", sm, listener);
+    notifyMessageListeners(sm, hostPort, null);
+  }
+
+  /**
+   * As per {@link #notifyMessageListeners(StampyMessage, HostPort)}, evaluating
+   * only the listeners following the specified listener. Used to pass on
+   * messages held back by a listener without evaluating the listeners
+   * preceding it a second time.
+   * 
+   * @param sm
+   *          the sm
+   * @param hostPort
+   *          the host port
+   * @param after
+   *          the listener after which evaluation starts, or null for all
+   * @throws Exception
+   *           the exception
+   */
+  public void notifyMessageListeners(StampyMessage<?> sm, HostPort hostPort, StampyMessageListener after)
+      throws Exception {
+    StampyMessageListener[] forType = dispatch.get(sm.getMessageType());
+    if (forType == null) return;
+
+    int start = 0;
+    if (after != null) {
+      while (start < forType.length && forType[start] != after) {
+        start++;
+      }
+      start = start == forType.length ? 0 : start + 1;
+    }
+
+    for (int i = start; i < forType.length; i++) {
+      StampyMessageListener listener = forType[i];
+      if (!listener.isForMessage(sm)) continue;
+
+      log.trace("Evaluating message {} with listener {}", sm, listener);
+      if (listener instanceof StampyConsumingMessageListener) {
+        if (((StampyConsumingMessageListener) listener).consume(sm, hostPort)) return;
+      } else {
         listener.messageReceived(sm, hostPort);
       }
     }
   }
 
   /**
-   * Adds the message listener.
+   * Adds the message listener. The listener's message types are read once, on
+   * addition.
    * 
    * @param listener
    *          the listener
    */
   public final void addMessageListener(StampyMessageListener listener) {
-    if (listeners.size() == 0 && !(listener instanceof SecurityMessageListener)) {
-      throw new StampySecurityException();
-    }
+    synchronized (listeners) {
+      if (listeners.size() == 0 && !(listener instanceof SecurityMessageListener)) {
+        throw new StampySecurityException();
+      }
 
-    listeners.add(listener);
+      listeners.add(listener);
+      rebuildDispatch();
+    }
   }
   
   public final void addMessageListener(StampyMessageListener listener, int idx) {
@@ -287,7 +368,10 @@ public abstract class AbstractStampyMessageGateway {
       throw new StampySecurityException();
     }
     
-    listeners.add(idx, listener);
+    synchronized (listeners) {
+      listeners.add(idx, listener);
+      rebuildDispatch();
+    }
   }
 
   /**
@@ -297,14 +381,20 @@ public abstract class AbstractStampyMessageGateway {
    *          the listener
    */
   public void removeMessageListener(StampyMessageListener listener) {
-    listeners.remove(listener);
+    synchronized (listeners) {
+      listeners.remove(listener);
+      rebuildDispatch();
+    }
   }
 
   /**
    * Clear message listeners.
    */
   public void clearMessageListeners() {
-    listeners.clear();
+    synchronized (listeners) {
+      listeners.clear();
+      rebuildDispatch();
+    }
   }
 
   /**
@@ -314,7 +404,42 @@ public abstract class AbstractStampyMessageGateway {
    *          the new listeners
    */
   public void setListeners(Collection<StampyMessageListener> listeners) {
-    this.listeners.addAll(listeners);
+    synchronized (this.listeners) {
+      this.listeners.addAll(listeners);
+      rebuildDispatch();
+    }
+  }
+
+  /**
+   * Rebuilds the copy-on-write table of listeners by message type, preserving
+   * the order of addition. Invoked with the listeners' monitor held.
+   */
+  private void rebuildDispatch() {
+    Map<StompMessageType, List<StampyMessageListener>> byType = new EnumMap<StompMessageType, List<StampyMessageListener>>(
+        StompMessageType.class);
+    for (StampyMessageListener listener : listeners) {
+      StompMessageType[] types = listener.getMessageTypes();
+      if (types == null) continue;
+
+      for (StompMessageType type : types) {
+        if (type == null) continue;
+
+        List<StampyMessageListener> forType = byType.get(type);
+        if (forType == null) {
+          forType = new ArrayList<StampyMessageListener>();
+          byType.put(type, forType);
+        }
+        if (forType.isEmpty() || forType.get(forType.size() - 1) != listener) forType.add(listener);
+      }
+    }
+
+    Map<StompMessageType, StampyMessageListener[]> table = new EnumMap<StompMessageType, StampyMessageListener[]>(
+        StompMessageType.class);
+    for (Map.Entry<StompMessageType, List<StampyMessageListener>> entry : byType.entrySet()) {
+      table.put(entry.getKey(), entry.getValue().toArray(new StampyMessageListener[entry.getValue().size()]));
+    }
+
+    dispatch = table;
   }
 
   /**
@@ -343,6 +468,40 @@ public abstract class AbstractStampyMessageGateway {
    */
   public abstract void sendMessage(String stompMessage, HostPort hostPort) throws InterceptException;
 
+  /**
+   * Broadcasts the specified pre-encoded STOMP frame, as returned by
+   * {@link StampyMessage#toStompBuffer(boolean)}, to all connections. The
+   * default implementation decodes the frame and invokes
+   * {@link #broadcastMessage(String)}; gateways which can write the bytes
+   * directly override.
+   * 
+   * @param stompMessage
+   *          the UTF-8 encoded stomp message
+   * @throws InterceptException
+   *           the intercept exception
+   */
+  public void broadcastMessage(ByteBuffer stompMessage) throws InterceptException {
+    broadcastMessage(decode(stompMessage));
+  }
+
+  /**
+   * Sends the specified pre-encoded STOMP frame, as returned by
+   * {@link StampyMessage#toStompBuffer(boolean)}, to the specified
+   * {@link HostPort}. The default implementation decodes the frame and invokes
+   * {@link #sendMessage(String, HostPort)}; gateways which can write the bytes
+   * directly override.
+   * 
+   * @param stompMessage
+   *          the UTF-8 encoded stomp message
+   * @param hostPort
+   *          the host port
+   * @throws InterceptException
+   *           the intercept exception
+   */
+  public void sendMessage(ByteBuffer stompMessage, HostPort hostPort) throws InterceptException {
+    sendMessage(decode(stompMessage), hostPort);
+  }
+
   /**
    * Closes the connection to the STOMP server or client.
    * 
@@ -360,7 +519,8 @@ public abstract class AbstractStampyMessageGateway {
   public abstract void connect() throws Exception;
 
   /**
-   * Shuts down the underlying connection technology.
+   * Shuts down the underlying connection technology. Implementations invoke
+   * {@link #notifyShutdownListeners()} once shut down.
    * 
    * @throws Exception
    *           the exception
@@ -383,6 +543,94 @@ public abstract class AbstractStampyMessageGateway {
    */
   public abstract Set<HostPort> getConnectedHostPorts();
 
+  /**
+   * Returns true if messages can be sent to the connection without being
+   * buffered beyond its high water mark. The default implementation returns
+   * {@link #isConnected(HostPort)}; gateways observing the writability of their
+   * connections override.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return true, if is writable
+   * @see AbstractOutboundThrottle
+   */
+  public boolean isWritable(HostPort hostPort) {
+    return isConnected(hostPort);
+  }
+
+  /**
+   * Adds the writability listener.
+   * 
+   * @param listener
+   *          the listener
+   */
+  public void addWritabilityListener(StampyWritabilityListener listener) {
+    writabilityListeners.add(listener);
+  }
+
+  /**
+   * Removes the writability listener.
+   * 
+   * @param listener
+   *          the listener
+   */
+  public void removeWritabilityListener(StampyWritabilityListener listener) {
+    writabilityListeners.remove(listener);
+  }
+
+  /**
+   * Notifies the {@link StampyWritabilityListener}s of a change in the
+   * writability of the connection.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param writable
+   *          the writable
+   */
+  public void notifyWritabilityListeners(HostPort hostPort, boolean writable) {
+    for (StampyWritabilityListener listener : writabilityListeners) {
+      try {
+        listener.writabilityChanged(hostPort, writable);
+      } catch (RuntimeException e) {
+        log.error("Unexpected exception notifying " + listener + " of writability", e);
+      }
+    }
+  }
+
+  /**
+   * Adds the shutdown listener.
+   * 
+   * @param listener
+   *          the listener
+   */
+  public void addShutdownListener(StampyShutdownListener listener) {
+    shutdownListeners.add(listener);
+  }
+
+  /**
+   * Removes the shutdown listener.
+   * 
+   * @param listener
+   *          the listener
+   */
+  public void removeShutdownListener(StampyShutdownListener listener) {
+    shutdownListeners.remove(listener);
+  }
+
+  /**
+   * Notifies the {@link StampyShutdownListener}s that the gateway has been shut
+   * down.
+   */
+  protected void notifyShutdownListeners() {
+    for (StampyShutdownListener listener : shutdownListeners) {
+      try {
+        listener.gatewayShutdown();
+      } catch (RuntimeException e) {
+        log.error("Unexpected exception notifying " + listener + " of shutdown", e);
+      }
+    }
+  }
+
   /**
    * If true the gateway will shut down when all sessions are terminated.
    * Typically clients will be set to true, servers to false (the default).
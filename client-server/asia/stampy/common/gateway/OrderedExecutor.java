@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Executes tasks for the same {@link HostPort} in the order they were
+ * submitted while tasks for different {@link HostPort}s proceed in parallel.
+ * Each {@link HostPort} hashes onto one of a fixed number of serial queues, or
+ * stripes, which are drained by a shared pool. At most one thread drains a
+ * stripe at any time; a stripe yields its thread after a batch of tasks so
+ * that busy connections do not starve the others.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class OrderedExecutor implements Executor {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final int BATCH_SIZE = 64;
+
+  private static final int VIRTUAL_STRIPES = 1024;
+
+  private final Executor pool;
+  private final SerialQueue[] stripes;
+
+  /**
+   * Instantiates a new ordered executor with a fixed pool of one thread per
+   * available processor and four stripes per thread.
+   */
+  public OrderedExecutor() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Returns an ordered executor draining each stripe on its own virtual thread
+   * while the stripe has work. With virtual threads blocking is cheap, so the
+   * number of stripes is large enough that a blocking listener delays few, if
+   * any, other connections.
+   * 
+   * @return the ordered executor
+   * @throws UnsupportedOperationException
+   *           if virtual threads are not available
+   * @see VirtualThreads#isAvailable()
+   */
+  public static OrderedExecutor newVirtualThreadExecutor() {
+    return new OrderedExecutor(VirtualThreads.newThreadPerTaskExecutor("Stampy Dispatch"), VIRTUAL_STRIPES);
+  }
+
+  private OrderedExecutor(int threads) {
+    this(Executors.newFixedThreadPool(threads, new StampyThreadFactory("Stampy Dispatch")), threads * 4);
+  }
+
+  /**
+   * Instantiates a new ordered executor.
+   * 
+   * @param pool
+   *          the pool draining the stripes
+   * @param stripes
+   *          the number of serial queues
+   */
+  public OrderedExecutor(Executor pool, int stripes) {
+    if (stripes <= 0) throw new IllegalArgumentException("Number of stripes must be positive: " + stripes);
+
+    this.pool = pool;
+    this.stripes = new SerialQueue[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new SerialQueue();
+    }
+  }
+
+  /**
+   * Executes the task after all tasks previously submitted for the specified
+   * {@link HostPort}.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param task
+   *          the task
+   */
+  public void execute(HostPort hostPort, Runnable task) {
+    if (hostPort == null) {
+      execute(task);
+      return;
+    }
+
+    int hash = hostPort.hashCode();
+    hash ^= (hash >>> 16);
+    stripes[(hash & Integer.MAX_VALUE) % stripes.length].execute(task);
+  }
+
+  /**
+   * Executes the task on the pool, unordered.
+   * 
+   * @param task
+   *          the task
+   */
+  @Override
+  public void execute(Runnable task) {
+    pool.execute(task);
+  }
+
+  /**
+   * Shuts down the pool, should it be an {@link ExecutorService}.
+   */
+  public void shutdown() {
+    if (pool instanceof ExecutorService) ((ExecutorService) pool).shutdown();
+  }
+
+  /**
+   * Shuts down the specified executor should it be an {@link OrderedExecutor}.
+   * 
+   * @param executor
+   *          the executor
+   */
+  public static void shutdown(Executor executor) {
+    if (executor instanceof OrderedExecutor) ((OrderedExecutor) executor).shutdown();
+  }
+
+  /**
+   * Executes the task on the specified executor, in order for the
+   * {@link HostPort} should the executor be an {@link OrderedExecutor}.
+   * 
+   * @param executor
+   *          the executor
+   * @param hostPort
+   *          the host port
+   * @param task
+   *          the task
+   */
+  public static void execute(Executor executor, HostPort hostPort, Runnable task) {
+    if (executor instanceof OrderedExecutor) {
+      ((OrderedExecutor) executor).execute(hostPort, task);
+    } else {
+      executor.execute(task);
+    }
+  }
+
+  private class SerialQueue implements Runnable {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    void execute(Runnable task) {
+      tasks.add(task);
+      schedule();
+    }
+
+    private void schedule() {
+      if (!scheduled.compareAndSet(false, true)) return;
+
+      try {
+        pool.execute(this);
+      } catch (RuntimeException e) {
+        scheduled.set(false);
+        throw e;
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+          Runnable task = tasks.poll();
+          if (task == null) break;
+
+          try {
+            task.run();
+          } catch (Exception e) {
+            log.error("Unexpected exception executing task", e);
+          }
+        }
+      } finally {
+        scheduled.set(false);
+        if (!tasks.isEmpty()) schedule();
+      }
+    }
+  }
+
+  private static class StampyThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    private final String name;
+
+    StampyThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, name + "-" + count.incrementAndGet());
+    }
+  }
+}
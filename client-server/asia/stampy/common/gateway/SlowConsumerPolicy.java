@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * The action taken by an {@link AbstractOutboundThrottle} when a message is to
+ * be sent to a connection which is not writable, ie. whose outbound buffer has
+ * exceeded its high water mark.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public enum SlowConsumerPolicy {
+  /**
+   * The sending thread waits until the connection is writable. Should it not
+   * become writable within the block timeout the connection is closed. Not
+   * suitable should messages be sent from I/O threads; the threads of timing
+   * wheels never block, holding the message as per {@link #DROP_NEWEST}. The
+   * default.
+   */
+  BLOCK,
+  /**
+   * The message is held; should the maximum number of held messages be
+   * reached the oldest held message is discarded.
+   */
+  DROP_OLDEST,
+  /**
+   * The message is held; should the maximum number of held messages be
+   * reached the message is discarded.
+   */
+  DROP_NEWEST,
+  /** The connection is closed. */
+  DISCONNECT;
+}
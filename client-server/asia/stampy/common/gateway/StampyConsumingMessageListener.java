@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.message.StampyMessage;
+
+/**
+ * A {@link StampyMessageListener} which may consume the messages it processes.
+ * Listeners added to the gateway after the consuming listener are not notified
+ * of consumed messages.
+ * 
+ * @see AbstractStampyMessageGateway#notifyMessageListeners(StampyMessage,
+ *      HostPort)
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface StampyConsumingMessageListener extends StampyMessageListener {
+
+  /**
+   * Invoked instead of {@link #messageReceived(StampyMessage, HostPort)} when
+   * the type and the message are to be processed by the implementation.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   * @return true, if the message has been consumed
+   * @throws Exception
+   *           the exception
+   */
+  boolean consume(StampyMessage<?> message, HostPort hostPort) throws Exception;
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Implementations are notified when the outbound buffer of a connection
+ * crosses its high or low water mark. Add to the
+ * {@link AbstractStampyMessageGateway} to pause and resume publication to slow
+ * consumers.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface StampyWritabilityListener {
+
+  /**
+   * Invoked when the writability of the connection has changed. May be invoked
+   * on an I/O thread; implementations must not block.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param writable
+   *          true if messages may again be written without buffering
+   */
+  void writabilityChanged(HostPort hostPort, boolean writable);
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Access to the virtual threads of Java 21 and later. Stampy is compiled for
+ * earlier Java versions so the virtual thread API is obtained reflectively;
+ * use {@link #isAvailable()} to determine if the running JVM supports virtual
+ * threads.<br>
+ * <br>
+ * Virtual threads make blocking cheap. Handlers configured with
+ * {@link OrderedExecutor#newVirtualThreadExecutor()} and a
+ * {@link asia.stampy.common.heartbeat.HeartbeatContainer} configured with
+ * {@link #newThreadPerTaskExecutor(String)} allow listeners to block, ie. on
+ * database writes, without stalling the processing of other connections.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class VirtualThreads {
+
+  private static final Method OF_VIRTUAL = getMethod(Thread.class, "ofVirtual");
+
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR = getMethod(Executors.class, "newThreadPerTaskExecutor",
+      ThreadFactory.class);
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Checks if virtual threads are available in the running JVM.
+   * 
+   * @return true, if available
+   */
+  public static boolean isAvailable() {
+    return OF_VIRTUAL != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Returns a factory creating virtual threads named by the specified prefix
+   * and a counter.
+   * 
+   * @param name
+   *          the thread name prefix
+   * @return the thread factory
+   * @throws UnsupportedOperationException
+   *           if virtual threads are not available
+   */
+  public static ThreadFactory newThreadFactory(String name) {
+    checkAvailable();
+
+    try {
+      Object builder = OF_VIRTUAL.invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (InvocationTargetException e) {
+      throw rethrow(e, "Could not create virtual thread factory");
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not create virtual thread factory", e);
+    }
+  }
+
+  /**
+   * Returns an executor starting a new virtual thread for each task.
+   * 
+   * @param name
+   *          the thread name prefix
+   * @return the executor service
+   * @throws UnsupportedOperationException
+   *           if virtual threads are not available
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String name) {
+    ThreadFactory factory = newThreadFactory(name);
+
+    try {
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+    } catch (InvocationTargetException e) {
+      throw rethrow(e, "Could not create virtual thread executor");
+    } catch (Exception e) {
+      throw new IllegalStateException("Could not create virtual thread executor", e);
+    }
+  }
+
+  private static void checkAvailable() {
+    if (!isAvailable()) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running "
+          + System.getProperty("java.version"));
+    }
+  }
+
+  private static RuntimeException rethrow(InvocationTargetException e, String message) {
+    if (e.getCause() instanceof RuntimeException) return (RuntimeException) e.getCause();
+
+    return new IllegalStateException(message, e.getCause());
+  }
+
+  private static Method getMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+    try {
+      return clazz.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -21,6 +21,7 @@ package asia.stampy.common.heartbeat;
 import java.lang.invoke.MethodHandles;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Resource;
 
@@ -42,15 +43,21 @@ public class HeartbeatContainer implements StampyHeartbeatContainer {
 
   private Map<HostPort, PaceMaker> paceMakers = new ConcurrentHashMap<HostPort, PaceMaker>();
 
+  private HeartbeatWheel wheel = HeartbeatWheel.getInstance();
+
+  private Executor executor;
+
   /* (non-Javadoc)
    * @see asia.stampy.common.heartbeat.StampyHeartbeatContainer#start(asia.stampy.common.gateway.HostPort, asia.stampy.common.gateway.AbstractStampyMessageGateway, int)
    */
   @Override
   public void start(HostPort hostPort, AbstractStampyMessageGateway gateway, int timeMillis) {
-    PaceMaker paceMaker = new PaceMaker(timeMillis);
+    PaceMaker paceMaker = new PaceMaker(timeMillis, getWheel());
     paceMaker.setHostPort(hostPort);
     paceMaker.setGateway(gateway);
+    paceMaker.setExecutor(getExecutor());
     paceMaker.start();
+    getWheel().register(gateway);
 
     add(hostPort, paceMaker);
   }
@@ -101,4 +108,48 @@ public class HeartbeatContainer implements StampyHeartbeatContainer {
     PaceMaker paceMaker = paceMakers.get(hostPort);
     if (paceMaker != null) paceMaker.reset();
   }
+
+  /**
+   * Gets the wheel driving the {@link PaceMaker}s.
+   * 
+   * @return the wheel
+   */
+  public HeartbeatWheel getWheel() {
+    return wheel;
+  }
+
+  /**
+   * Sets the wheel driving the {@link PaceMaker}s. Defaults to the shared
+   * {@link HeartbeatWheel#getInstance()}.
+   * 
+   * @param wheel
+   *          the new wheel
+   */
+  public void setWheel(HeartbeatWheel wheel) {
+    this.wheel = wheel;
+  }
+
+  /**
+   * Gets the executor sending the heartbeats.
+   * 
+   * @return the executor
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Sets the executor sending the heartbeats. If null, the default, heartbeats
+   * are sent from the wheel's thread, which is appropriate when sending does
+   * not block. Heartbeats sent to slow connections can be moved off the wheel
+   * with an executor such as
+   * {@link asia.stampy.common.gateway.VirtualThreads#newThreadPerTaskExecutor(String)}
+   * .
+   * 
+   * @param executor
+   *          the new executor
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
 }
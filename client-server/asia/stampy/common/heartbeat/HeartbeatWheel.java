@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.heartbeat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.AbstractStampyMessageGateway;
+import asia.stampy.common.gateway.StampyShutdownListener;
+import asia.stampy.common.timer.TimingWheel;
+
+/**
+ * The {@link TimingWheel} driving {@link PaceMaker}s. {@link PaceMaker#reset()}
+ * only records the time of the last activity; heartbeats are sent up to one
+ * tick early, never late.<br>
+ * <br>
+ * {@link HeartbeatContainer}s share the {@link #getInstance()} wheel by
+ * default, keeping the number of heartbeat threads constant regardless of the
+ * number of connections. The wheel is stopped once every gateway registered
+ * with {@link #register(AbstractStampyMessageGateway)} has shut down.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class HeartbeatWheel extends TimingWheel {
+
+  private static final HeartbeatWheel INSTANCE = new HeartbeatWheel();
+
+  private Set<AbstractStampyMessageGateway> gateways = new HashSet<AbstractStampyMessageGateway>();
+
+  /**
+   * Gets the shared wheel.
+   * 
+   * @return the instance
+   */
+  public static HeartbeatWheel getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Instantiates a new heartbeat wheel using the default tick duration and
+   * wheel size.
+   */
+  public HeartbeatWheel() {
+    this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * Instantiates a new heartbeat wheel.
+   * 
+   * @param tickMillis
+   *          the tick duration in milliseconds
+   * @param wheelSize
+   *          the number of buckets, rounded up to a power of two
+   */
+  public HeartbeatWheel(int tickMillis, int wheelSize) {
+    super("Stampy Heartbeat Wheel", tickMillis, wheelSize);
+  }
+
+  /**
+   * Registers the gateway whose heartbeats the wheel drives, stopping the wheel
+   * once all registered gateways have shut down.
+   * 
+   * @param gateway
+   *          the gateway
+   */
+  public void register(final AbstractStampyMessageGateway gateway) {
+    synchronized (gateways) {
+      if (!gateways.add(gateway)) return;
+    }
+
+    gateway.addShutdownListener(new StampyShutdownListener() {
+
+      @Override
+      public void gatewayShutdown() {
+        deregister(gateway);
+      }
+    });
+  }
+
+  private void deregister(AbstractStampyMessageGateway gateway) {
+    synchronized (gateways) {
+      if (!gateways.remove(gateway) || !gateways.isEmpty()) return;
+
+      stop();
+    }
+  }
+}
@@ -19,8 +19,8 @@
 package asia.stampy.common.heartbeat;
 
 import java.lang.invoke.MethodHandles;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,86 +28,147 @@ import org.slf4j.LoggerFactory;
 import asia.stampy.common.StampyLibrary;
 import asia.stampy.common.gateway.AbstractStampyMessageGateway;
 import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.timer.TimingWheelTask;
 
 /**
  * Sends heartbeats to a remote connection as specified by the STOMP
- * specification.
+ * specification. Timing is driven by a {@link HeartbeatWheel}.
  */
 @StampyLibrary(libraryName="stampy-client-server")
-class PaceMaker {
+class PaceMaker implements TimingWheelTask {
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
   private long timeInMillis;
-  private TimerTask stopwatch;
-  private Timer timer = new Timer("Stampy PaceMaker", true);
+  private HeartbeatWheel wheel;
+
+  private volatile long lastActivity;
+  private volatile boolean stopped = true;
 
   private AbstractStampyMessageGateway gateway;
 
   private HostPort hostPort;
 
-  private int heartbeatCount;
+  private volatile int heartbeatCount;
+
+  private Executor executor;
+
+  private final AtomicBoolean sending = new AtomicBoolean();
 
   /**
-   * Instantiates a new pace maker.
+   * Instantiates a new pace maker driven by the shared {@link HeartbeatWheel}.
    * 
    * @param timeInMillis
    *          the time in millis
    */
   public PaceMaker(int timeInMillis) {
+    this(timeInMillis, HeartbeatWheel.getInstance());
+  }
+
+  /**
+   * Instantiates a new pace maker.
+   * 
+   * @param timeInMillis
+   *          the time in millis
+   * @param wheel
+   *          the wheel
+   */
+  public PaceMaker(int timeInMillis, HeartbeatWheel wheel) {
     this.timeInMillis = timeInMillis;
+    this.wheel = wheel;
   }
 
   /**
-   * Reset.
+   * Reset. Records the time of the activity only; the deadline is evaluated by
+   * the {@link HeartbeatWheel}.
    */
-  public synchronized void reset() {
-    log.trace("PaceMaker reset invoked");
-    setHeartbeatCount(0);
-    stop();
-    start();
+  public void reset() {
+    heartbeatCount = 0;
+    lastActivity = System.currentTimeMillis();
   }
 
   /**
-   * Stop.
+   * Stop. The {@link HeartbeatWheel} discards the pace maker when next
+   * encountered.
    */
   public void stop() {
     log.trace("PaceMaker stop invoked");
-    if (stopwatch != null) {
-      stopwatch.cancel();
-      timer.purge();
-    }
+    stopped = true;
   }
 
   /**
-   * Start.
+   * Start. To be invoked once only.
    */
   public void start() {
     log.trace("PaceMaker start invoked for sleep time of {} ms", getSleepTime());
-    stopwatch = new TimerTask() {
+    lastActivity = System.currentTimeMillis();
+    stopped = false;
+    wheel.schedule(this);
+  }
 
-      @Override
-      public void run() {
-        executeHeartbeat();
-      }
-    };
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.timer.TimingWheelTask#isCancelled()
+   */
+  @Override
+  public boolean isCancelled() {
+    return stopped;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.timer.TimingWheelTask#getDeadline()
+   */
+  @Override
+  public long getDeadline() {
+    return lastActivity + timeInMillis;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.timer.TimingWheelTask#expire()
+   */
+  @Override
+  public boolean expire() {
+    if (executor == null) {
+      executeHeartbeat();
+    } else if (sending.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
 
-    timer.schedule(stopwatch, getSleepTime());
+        @Override
+        public void run() {
+          try {
+            executeHeartbeat();
+          } finally {
+            sending.set(false);
+          }
+        }
+      });
+    }
+
+    return !stopped;
   }
 
   private void executeHeartbeat() {
     if (heartbeatCount >= 2) {
       log.warn("No response after 2 heartbeats, closing connection");
+      stop();
       gateway.closeConnection(getHostPort());
     } else {
       try {
         if (gateway.isConnected(getHostPort())) {
           gateway.sendMessage(StampyHeartbeatContainer.HB1, getHostPort());
           log.debug("Sent heartbeat");
-          start();
+          lastActivity = System.currentTimeMillis();
           heartbeatCount++;
+        } else {
+          stop();
         }
       } catch (Exception e) {
         log.error("Could not send heartbeat", e);
+        lastActivity = System.currentTimeMillis();
       }
     }
   }
@@ -140,6 +201,26 @@ class PaceMaker {
     this.gateway = gateway;
   }
 
+  /**
+   * Gets the executor sending the heartbeats.
+   * 
+   * @return the executor
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Sets the executor sending the heartbeats. If null, the default, heartbeats
+   * are sent from the {@link HeartbeatWheel}'s thread.
+   * 
+   * @param executor
+   *          the new executor
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
   /**
    * Gets the host port.
    * 
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.timer;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * A hashed timing wheel executing {@link TimingWheelTask}s from a single
+ * daemon thread, started on first use. Scheduling is a lock-free enqueue and
+ * cancellation is a flag on the task; deadlines are evaluated lazily when a
+ * task's bucket is reached, at which point the task either expires or is moved
+ * to the bucket of its current deadline. Tasks expire up to one tick early,
+ * never late.<br>
+ * <br>
+ * Invoke {@link #stop()} to stop the thread and discard the scheduled tasks;
+ * the wheel is restarted should a task subsequently be scheduled.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class TimingWheel {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** The default tick duration in milliseconds. */
+  public static final int DEFAULT_TICK_MILLIS = 100;
+
+  /** The default number of buckets in the wheel. */
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private final String name;
+  private final long tickMillis;
+  private final int mask;
+  private final List<List<TimingWheelTask>> wheel;
+
+  private final Queue<TimingWheelTask> pending = new ConcurrentLinkedQueue<TimingWheelTask>();
+
+  private volatile Thread thread;
+
+  private Thread previous;
+
+  private long tick;
+
+  /**
+   * Instantiates a new timing wheel using the default tick duration and wheel
+   * size.
+   * 
+   * @param name
+   *          the name of the wheel's thread
+   */
+  public TimingWheel(String name) {
+    this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * Instantiates a new timing wheel.
+   * 
+   * @param name
+   *          the name of the wheel's thread
+   * @param tickMillis
+   *          the tick duration in milliseconds
+   * @param wheelSize
+   *          the number of buckets, rounded up to a power of two
+   */
+  public TimingWheel(String name, int tickMillis, int wheelSize) {
+    if (tickMillis <= 0) throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+    if (wheelSize <= 0 || wheelSize > 1 << 30) throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize) size <<= 1;
+
+    this.name = name;
+    this.tickMillis = tickMillis;
+    this.mask = size - 1;
+
+    wheel = new ArrayList<List<TimingWheelTask>>(size);
+    for (int i = 0; i < size; i++) {
+      wheel.add(new ArrayList<TimingWheelTask>());
+    }
+  }
+
+  /**
+   * Schedules the task, starting the wheel's thread if necessary. The task
+   * remains on the wheel until it is cancelled or has expired.
+   * 
+   * @param task
+   *          the task
+   */
+  public void schedule(TimingWheelTask task) {
+    pending.add(task);
+    startIfNecessary();
+  }
+
+  /**
+   * Stops the wheel's thread, discarding the scheduled tasks. Waits for the
+   * thread to terminate unless invoked by an expiring task, in which case the
+   * wheel stops once the task has returned.
+   */
+  public void stop() {
+    Thread stopping;
+    synchronized (this) {
+      stopping = thread;
+      if (stopping == null) return;
+
+      thread = null;
+      pending.clear();
+      stopping.interrupt();
+    }
+
+    if (stopping == Thread.currentThread()) {
+      discard();
+    } else {
+      awaitTermination(stopping);
+    }
+  }
+
+  /**
+   * Checks if the current thread is the thread of a timing wheel, which must not
+   * block.
+   * 
+   * @return true, if is wheel thread
+   */
+  public static boolean isWheelThread() {
+    return Thread.currentThread() instanceof WheelThread;
+  }
+
+  /**
+   * Checks if the wheel's thread is running.
+   * 
+   * @return true, if is running
+   */
+  public boolean isRunning() {
+    return thread != null;
+  }
+
+  private void awaitTermination(Thread stopping) {
+    try {
+      stopping.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized void startIfNecessary() {
+    if (thread != null) return;
+
+    if (previous == Thread.currentThread()) {
+      // restarted by the task which stopped the wheel
+      Thread.interrupted();
+      thread = previous;
+      return;
+    }
+
+    if (previous != null) awaitTermination(previous);
+
+    Runnable runnable = new Runnable() {
+
+      @Override
+      public void run() {
+        turn();
+      }
+    };
+
+    thread = new WheelThread(runnable, name);
+    thread.setDaemon(true);
+    previous = thread;
+    thread.start();
+  }
+
+  private void turn() {
+    long startTime = System.currentTimeMillis();
+    while (thread == Thread.currentThread()) {
+      try {
+        long now = waitForNextTick(startTime);
+        addPending(now);
+        expire(now);
+        tick++;
+      } catch (InterruptedException e) {
+        if (thread == Thread.currentThread()) log.warn("{} interrupted, continuing", name);
+      } catch (Exception e) {
+        log.error("Unexpected exception in " + name, e);
+      }
+    }
+
+    discard();
+    log.debug("{} stopped", name);
+  }
+
+  private void discard() {
+    for (int i = 0; i < wheel.size(); i++) {
+      wheel.set(i, new ArrayList<TimingWheelTask>());
+    }
+    tick = 0;
+  }
+
+  private long waitForNextTick(long startTime) throws InterruptedException {
+    long deadline = startTime + (tick + 1) * tickMillis;
+    long now = System.currentTimeMillis();
+    while (now < deadline) {
+      Thread.sleep(deadline - now);
+      now = System.currentTimeMillis();
+    }
+
+    return now;
+  }
+
+  private void addPending(long now) {
+    TimingWheelTask task = pending.poll();
+    while (task != null) {
+      place(task, now);
+      task = pending.poll();
+    }
+  }
+
+  private void expire(long now) {
+    int idx = (int) (tick & mask);
+    List<TimingWheelTask> bucket = wheel.get(idx);
+    if (bucket.isEmpty()) return;
+
+    wheel.set(idx, new ArrayList<TimingWheelTask>());
+
+    for (TimingWheelTask task : bucket) {
+      if (task.isCancelled()) continue;
+
+      if (task.getDeadline() - now < tickMillis && !expire(task)) continue;
+
+      if (!task.isCancelled()) place(task, now);
+    }
+  }
+
+  private boolean expire(TimingWheelTask task) {
+    try {
+      return task.expire();
+    } catch (Exception e) {
+      log.error("Unexpected exception expiring " + task, e);
+      return false;
+    }
+  }
+
+  private void place(TimingWheelTask task, long now) {
+    long ticks = Math.max(1, (task.getDeadline() - now) / tickMillis);
+    long target = tick + Math.min(ticks, mask);
+
+    wheel.get((int) (target & mask)).add(task);
+  }
+
+  private static class WheelThread extends Thread {
+
+    WheelThread(Runnable runnable, String name) {
+      super(runnable, name);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.timer;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * A task scheduled on a {@link TimingWheel}. The deadline may change after
+ * scheduling; it is evaluated lazily as the wheel turns.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface TimingWheelTask {
+
+  /**
+   * Gets the time, in milliseconds since the epoch, at which the task expires.
+   * 
+   * @return the deadline
+   */
+  long getDeadline();
+
+  /**
+   * Returns true if the task is to be discarded from the wheel without
+   * expiring.
+   * 
+   * @return true, if is cancelled
+   */
+  boolean isCancelled();
+
+  /**
+   * Invoked by the wheel's thread when the deadline has been reached.
+   * 
+   * @return true if the task is to remain on the wheel, having moved its
+   *         deadline
+   */
+  boolean expire();
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * A durable, append-only journal of records stored in a directory of
+ * memory-mapped segment files. Each record is identified by a sequence
+ * number, ascending from zero, and is located via an in-memory offset index
+ * rebuilt from the segments when the journal is opened.<br>
+ * <br>
+ * {@link #append(ByteBuffer)} writes to the mapped segment and returns
+ * immediately; {@link #commit(long)} blocks until the record is on disk.
+ * Concurrent commits are grouped: one caller forces the segments on behalf of
+ * every record appended so far while the others wait, so the number of fsyncs
+ * does not grow with the number of committers.<br>
+ * <br>
+ * Segments roll over once full. A segment other than the one being appended to
+ * is deleted once all of its records have been {@link #release(long)}d.
+ * Releases are not themselves journaled; after a restart records of
+ * partially released segments are read again, giving at-least-once delivery.
+ * Should a few unreleased records keep a segment alive,
+ * {@link #compact(JournalRelocationListener)} copies them to the end of the
+ * journal so that the segment can be deleted.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class Journal {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** The default segment size of 64 MB. */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /** The default ratio of unreleased records at or below which a segment is compacted. */
+  public static final double DEFAULT_COMPACTION_RATIO = 0.25;
+
+  private final File directory;
+  private final int segmentSize;
+
+  private final ConcurrentNavigableMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<Long, JournalSegment>();
+
+  private final Object commitLock = new Object();
+
+  private JournalSegment active;
+  private volatile long nextSequence;
+  private volatile long durableSequence = -1;
+  private volatile boolean closed;
+
+  private volatile double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+  /**
+   * Opens the journal in the specified directory using the default segment
+   * size, creating the directory if necessary.
+   * 
+   * @param directory
+   *          the directory
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public Journal(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens the journal in the specified directory, creating the directory if
+   * necessary. Records of existing segments are recovered up to the first
+   * incomplete or corrupt record.
+   * 
+   * @param directory
+   *          the directory
+   * @param segmentSize
+   *          the size of new segment files in bytes
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public Journal(File directory, int segmentSize) throws IOException {
+    if (segmentSize <= JournalSegment.RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+    }
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+
+    recover();
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(JournalSegment.SUFFIX);
+      }
+    });
+    Arrays.sort(files);
+
+    for (File file : files) {
+      JournalSegment segment = JournalSegment.open(file);
+      segments.put(segment.getBaseSequence(), segment);
+      log.debug("Recovered {} records from {}", segment.getRecordCount(), file);
+    }
+
+    if (segments.isEmpty()) {
+      active = createSegment(0);
+    } else {
+      active = segments.lastEntry().getValue();
+    }
+
+    nextSequence = active.getBaseSequence() + active.getRecordCount();
+    durableSequence = nextSequence - 1;
+  }
+
+  private JournalSegment createSegment(long baseSequence) throws IOException {
+    JournalSegment segment = JournalSegment.create(directory, baseSequence, segmentSize);
+    segments.put(baseSequence, segment);
+
+    return segment;
+  }
+
+  /**
+   * Appends the remaining bytes of the record, returning its sequence number.
+   * The record is not durable until {@link #commit(long)} returns.
+   * 
+   * @param record
+   *          the record
+   * @return the sequence
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public synchronized long append(ByteBuffer record) throws IOException {
+    if (closed) throw new IOException("Journal is closed");
+    if (record.remaining() > segmentSize - JournalSegment.RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Record of " + record.remaining() + " bytes exceeds the segment size");
+    }
+
+    if (!active.append(record)) {
+      JournalSegment full = active;
+      active = createSegment(nextSequence);
+      if (!active.append(record)) throw new IllegalStateException("Could not append to a new segment");
+      deleteIfReleased(full);
+    }
+
+    return nextSequence++;
+  }
+
+  /**
+   * Blocks until the record with the specified sequence, and all records
+   * before it, have been forced to disk.
+   * 
+   * @param sequence
+   *          the sequence
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void commit(long sequence) throws IOException {
+    if (durableSequence >= sequence) return;
+
+    synchronized (commitLock) {
+      if (durableSequence >= sequence) return;
+
+      long target;
+      List<JournalSegment> dirty = new ArrayList<JournalSegment>();
+      synchronized (this) {
+        if (closed) throw new IOException("Journal is closed");
+        target = nextSequence - 1;
+        Long from = segments.floorKey(durableSequence + 1);
+        dirty.addAll(from == null ? segments.values() : segments.tailMap(from, true).values());
+      }
+
+      for (JournalSegment segment : dirty) {
+        segment.force();
+      }
+
+      durableSequence = target;
+    }
+  }
+
+  /**
+   * Reads the record with the specified sequence. The returned buffer is a
+   * read-only view of the mapped segment; the bytes are not copied.
+   * 
+   * @param sequence
+   *          the sequence
+   * @return the record, or null if the record does not exist or its segment
+   *         has been deleted
+   */
+  public ByteBuffer read(long sequence) {
+    Entry<Long, JournalSegment> entry = segments.floorEntry(sequence);
+    if (entry == null) return null;
+
+    return entry.getValue().read((int) (sequence - entry.getKey()));
+  }
+
+  /**
+   * Releases the record with the specified sequence, deleting its segment
+   * should all records of the segment be released and the segment is no
+   * longer appended to.
+   * 
+   * @param sequence
+   *          the sequence
+   */
+  public void release(long sequence) {
+    Entry<Long, JournalSegment> entry = segments.floorEntry(sequence);
+    if (entry == null) return;
+
+    JournalSegment segment = entry.getValue();
+    if (!segment.release((int) (sequence - entry.getKey()))) return;
+
+    synchronized (this) {
+      if (segment != active) deleteIfReleased(segment);
+    }
+  }
+
+  private void deleteIfReleased(JournalSegment segment) {
+    if (!segment.isReleased() || !segments.remove(segment.getBaseSequence(), segment)) return;
+
+    segment.delete();
+    log.debug("Deleted released segment {}", segment);
+  }
+
+  /**
+   * Compacts the segments, other than the one being appended to, whose ratio of
+   * unreleased records is at or below the {@link #getCompactionRatio()}. The
+   * unreleased records of each segment are appended again and committed
+   * together, then the listener notified of each record's new sequence and the
+   * original released, deleting the segment once all of its records have been
+   * moved.
+   * 
+   * @param listener
+   *          the listener
+   * @return the number of records moved
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public int compact(JournalRelocationListener listener) throws IOException {
+    List<JournalSegment> compactable = new ArrayList<JournalSegment>();
+    synchronized (this) {
+      for (JournalSegment segment : segments.values()) {
+        if (segment != active && segment.getUnreleasedCount() <= segment.getRecordCount() * compactionRatio) {
+          compactable.add(segment);
+        }
+      }
+    }
+
+    int moved = 0;
+    for (JournalSegment segment : compactable) {
+      int[] unreleased = segment.getUnreleased();
+      long[] relocated = new long[unreleased.length];
+      int count = 0;
+      for (int idx : unreleased) {
+        ByteBuffer record = segment.read(idx);
+        if (record == null) break;
+
+        relocated[count++] = append(record);
+      }
+
+      if (count > 0) commit(relocated[count - 1]);
+
+      for (int i = 0; i < count; i++) {
+        long from = segment.getBaseSequence() + unreleased[i];
+        listener.relocated(from, relocated[i]);
+        release(from);
+      }
+      moved += count;
+
+      synchronized (this) {
+        if (segment != active) deleteIfReleased(segment);
+      }
+    }
+
+    if (moved > 0) log.debug("Compacted {} records from {} segments", moved, compactable.size());
+
+    return moved;
+  }
+
+  /**
+   * Gets the compaction ratio.
+   * 
+   * @return the compaction ratio
+   */
+  public double getCompactionRatio() {
+    return compactionRatio;
+  }
+
+  /**
+   * Sets the ratio of unreleased to total records at or below which
+   * {@link #compact(JournalRelocationListener)} moves the unreleased records of
+   * a segment. Defaults to {@value #DEFAULT_COMPACTION_RATIO}.
+   * 
+   * @param compactionRatio
+   *          the new compaction ratio
+   */
+  public void setCompactionRatio(double compactionRatio) {
+    this.compactionRatio = compactionRatio;
+  }
+
+  /**
+   * Gets the sequence of the first record held by the journal.
+   * 
+   * @return the first sequence
+   */
+  public long getFirstSequence() {
+    Entry<Long, JournalSegment> first = segments.firstEntry();
+
+    return first == null ? nextSequence : first.getKey();
+  }
+
+  /**
+   * Gets the sequence the next record appended will be assigned.
+   * 
+   * @return the next sequence
+   */
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  /**
+   * Gets the sequence of the last record forced to disk, -1 if none.
+   * 
+   * @return the durable sequence
+   */
+  public long getDurableSequence() {
+    return durableSequence;
+  }
+
+  /**
+   * Gets the number of segment files.
+   * 
+   * @return the segment count
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Gets the directory.
+   * 
+   * @return the directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Forces all appended records to disk and closes the segment files.
+   * 
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public void close() throws IOException {
+    commit(nextSequence - 1);
+
+    synchronized (this) {
+      closed = true;
+      for (JournalSegment segment : segments.values()) {
+        segment.close();
+      }
+    }
+  }
+}
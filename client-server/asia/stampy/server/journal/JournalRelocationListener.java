@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.journal;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Notified by {@link Journal#compact(JournalRelocationListener)} as each
+ * unreleased record is copied out of a segment being compacted, so that
+ * holders of the record's sequence may track its new location.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface JournalRelocationListener {
+
+  /**
+   * Invoked once the copy of the record has been committed and before the
+   * original is released. Should the record no longer be required the
+   * implementation releases the new sequence.
+   * 
+   * @param from
+   *          the original sequence
+   * @param to
+   *          the sequence of the copy
+   */
+  void relocated(long from, long to);
+}
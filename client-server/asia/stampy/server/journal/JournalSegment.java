@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * A memory-mapped segment file of a {@link Journal}. Each record is preceded
+ * by its length plus one and the CRC32 of its bytes; a zero length marks the
+ * end of the records. Appends are made by the {@link Journal} while holding
+ * its lock, reads are lock-free.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+class JournalSegment {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** The segment file suffix. */
+  static final String SUFFIX = ".journal";
+
+  /** The size of the length and checksum preceding each record. */
+  static final int RECORD_HEADER_SIZE = 8;
+
+  private final File file;
+  private final long baseSequence;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+
+  private volatile int[] positions = new int[1024];
+  private volatile int count;
+  private volatile boolean deleted;
+
+  private int writePosition;
+
+  private final BitSet released = new BitSet();
+  private int releasedCount;
+
+  private JournalSegment(File file, long baseSequence, int size) throws IOException {
+    this.file = file;
+    this.baseSequence = baseSequence;
+
+    raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() < size) raf.setLength(size);
+      buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a new segment file.
+   * 
+   * @param directory
+   *          the directory
+   * @param baseSequence
+   *          the sequence of the segment's first record
+   * @param size
+   *          the size of the file
+   * @return the journal segment
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  static JournalSegment create(File directory, long baseSequence, int size) throws IOException {
+    File file = new File(directory, String.format("%020d%s", baseSequence, SUFFIX));
+
+    return new JournalSegment(file, baseSequence, size);
+  }
+
+  /**
+   * Opens an existing segment file, indexing its valid records.
+   * 
+   * @param file
+   *          the file
+   * @return the journal segment
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  static JournalSegment open(File file) throws IOException {
+    String name = file.getName();
+    long baseSequence;
+    try {
+      baseSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      throw new IOException("Not a journal segment: " + file);
+    }
+
+    JournalSegment segment = new JournalSegment(file, baseSequence, 0);
+    segment.scan();
+
+    return segment;
+  }
+
+  private void scan() {
+    int pos = 0;
+    int capacity = buffer.capacity();
+    byte[] bytes = new byte[0];
+    while (pos + RECORD_HEADER_SIZE <= capacity) {
+      int length = buffer.getInt(pos) - 1;
+      if (length < 0 || pos + RECORD_HEADER_SIZE + length > capacity) break;
+
+      if (bytes.length < length) bytes = new byte[length];
+      ByteBuffer record = buffer.duplicate();
+      record.position(pos + RECORD_HEADER_SIZE);
+      record.get(bytes, 0, length);
+
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, length);
+      if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+        log.warn("Corrupt record at position {} of {}, discarding the remainder", pos, file);
+        break;
+      }
+
+      index(pos);
+      pos += RECORD_HEADER_SIZE + length;
+    }
+
+    writePosition = pos;
+  }
+
+  /**
+   * Appends the remaining bytes of the record.
+   * 
+   * @param record
+   *          the record
+   * @return true, if appended; false if the segment is full
+   */
+  boolean append(ByteBuffer record) {
+    int length = record.remaining();
+    if (writePosition + RECORD_HEADER_SIZE + length > buffer.capacity()) return false;
+
+    byte[] bytes = new byte[length];
+    record.duplicate().get(bytes);
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    ByteBuffer target = buffer.duplicate();
+    target.position(writePosition + RECORD_HEADER_SIZE);
+    target.put(bytes);
+    buffer.putInt(writePosition + 4, (int) crc.getValue());
+    buffer.putInt(writePosition, length + 1);
+
+    index(writePosition);
+    writePosition += RECORD_HEADER_SIZE + length;
+
+    return true;
+  }
+
+  private void index(int position) {
+    int[] current = positions;
+    if (count == current.length) {
+      int[] grown = new int[current.length * 2];
+      System.arraycopy(current, 0, grown, 0, count);
+      positions = grown;
+      current = grown;
+    }
+
+    current[count] = position;
+    count++;
+  }
+
+  /**
+   * Returns a read-only view of the record at the specified index.
+   * 
+   * @param idx
+   *          the index of the record in this segment
+   * @return the record, or null
+   */
+  ByteBuffer read(int idx) {
+    if (deleted || idx < 0 || idx >= count) return null;
+
+    int position = positions[idx];
+    int length = buffer.getInt(position) - 1;
+
+    ByteBuffer record = buffer.duplicate();
+    record.position(position + RECORD_HEADER_SIZE);
+    record.limit(position + RECORD_HEADER_SIZE + length);
+
+    return record.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Releases the record at the specified index.
+   * 
+   * @param idx
+   *          the index of the record in this segment
+   * @return true, if the record was not already released
+   */
+  synchronized boolean release(int idx) {
+    if (idx < 0 || idx >= count || released.get(idx)) return false;
+
+    released.set(idx);
+    releasedCount++;
+
+    return true;
+  }
+
+  /**
+   * Gets the indices of the records which have not been released.
+   * 
+   * @return the unreleased indices
+   */
+  synchronized int[] getUnreleased() {
+    int[] unreleased = new int[count - releasedCount];
+    int i = 0;
+    for (int idx = released.nextClearBit(0); idx < count; idx = released.nextClearBit(idx + 1)) {
+      unreleased[i++] = idx;
+    }
+
+    return unreleased;
+  }
+
+  /**
+   * Gets the number of records which have not been released.
+   * 
+   * @return the unreleased count
+   */
+  synchronized int getUnreleasedCount() {
+    return count - releasedCount;
+  }
+
+  /**
+   * Checks if all records of this segment have been released.
+   * 
+   * @return true, if released
+   */
+  synchronized boolean isReleased() {
+    return releasedCount == count;
+  }
+
+  /**
+   * Forces the mapped records to disk.
+   */
+  void force() {
+    if (!deleted) buffer.force();
+  }
+
+  /**
+   * Closes and deletes the segment file.
+   */
+  void delete() {
+    deleted = true;
+    close();
+    if (!file.delete()) log.warn("Could not delete journal segment {}", file);
+  }
+
+  /**
+   * Closes the segment file. The mapping remains valid until garbage
+   * collected.
+   */
+  void close() {
+    try {
+      raf.close();
+    } catch (IOException e) {
+      log.error("Could not close journal segment " + file, e);
+    }
+  }
+
+  /**
+   * Gets the sequence of the segment's first record.
+   * 
+   * @return the base sequence
+   */
+  long getBaseSequence() {
+    return baseSequence;
+  }
+
+  /**
+   * Gets the number of records.
+   * 
+   * @return the record count
+   */
+  int getRecordCount() {
+    return count;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return file.getName();
+  }
+}
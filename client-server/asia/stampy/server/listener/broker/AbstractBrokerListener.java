@@ -0,0 +1,1432 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.client.message.ClientMessageHeader;
+import asia.stampy.client.message.commit.CommitMessage;
+import asia.stampy.client.message.send.SendHeader;
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.client.message.subscribe.SubscribeHeader;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.client.message.unsubscribe.UnsubscribeMessage;
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.AbstractStampyMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.gateway.StampyMessageListener;
+import asia.stampy.common.gateway.StampyShutdownListener;
+import asia.stampy.common.message.AbstractMessageHeader;
+import asia.stampy.common.message.StampyMessage;
+import asia.stampy.common.message.StompMessageType;
+import asia.stampy.common.parsing.StompMessageParser;
+import asia.stampy.common.parsing.UnparseableException;
+import asia.stampy.common.timer.TimingWheel;
+import asia.stampy.common.timer.TimingWheelTask;
+import asia.stampy.server.journal.Journal;
+import asia.stampy.server.journal.JournalRelocationListener;
+import asia.stampy.server.listener.receipt.ReceiptBatcher;
+import asia.stampy.server.listener.transaction.StampyTransactionHandler;
+import asia.stampy.server.message.message.MessageHeader;
+import asia.stampy.server.message.message.MessageMessage;
+import asia.stampy.server.message.receipt.ReceiptMessage;
+
+/**
+ * An in-memory broker. {@link StompMessageType#SUBSCRIBE} and
+ * {@link StompMessageType#UNSUBSCRIBE} messages maintain a
+ * {@link SubscriptionRegistry} and each {@link StompMessageType#SEND} message
+ * is routed as a {@link StompMessageType#MESSAGE} to every subscriber of its
+ * destination. Messages to subscriptions which are not {@link SubscribeHeader.Ack#auto}
+ * carry an ack header, for use with an
+ * {@link asia.stampy.server.listener.subscription.AbstractAcknowledgementListenerAndInterceptor}
+ * .<br>
+ * <br>
+ * Should a {@link Journal} be set, messages sent with the header
+ * {@value #PERSISTENT}:true are journaled and committed to disk before being
+ * routed; add the broker ahead of the receipt listener so that the RECEIPT
+ * confirms the message is durable. Should a {@link ReceiptBatcher} also be
+ * set, messages are routed once journaled and the broker sends their RECEIPTs
+ * once the batcher's group commit has made them durable, messages without a
+ * RECEIPT being committed with the next batch. The journaled message is released once
+ * each subscriber requiring acknowledgement has acknowledged it, see
+ * {@link BrokerAcknowledgementHandler}. A persistent message sent to a queue
+ * without subscribers, or to a topic without subscribers requiring
+ * acknowledgement, is retained and delivered to the next subscriber of its
+ * destination. Messages journaled before a restart are replayed when the
+ * journal is set and retained until subscribed to; those acknowledged but not
+ * yet released at the time of the restart are delivered again. The journal is
+ * compacted every {@link #getCompactionInterval()} milliseconds so that
+ * long unacknowledged messages do not keep its segments alive.<br>
+ * <br>
+ * Set the broker as the {@link StampyTransactionHandler} of the transaction
+ * listener to journal the persistent messages of a transaction as a single
+ * record on commit.<br>
+ * <br>
+ * Each message sent to a queue, a destination beginning with
+ * {@value #QUEUE_PREFIX}, is delivered to a single subscriber chosen by the
+ * {@link StampyDispatchStrategy} from those with prefetch credit. Should none
+ * have credit the message is held by the queue, in order, until credit is
+ * returned or another subscriber arrives. Should the message be negatively
+ * acknowledged, its acknowledgement expire or its subscriber disconnect before
+ * acknowledging, it is redelivered to another subscriber of the queue. Other
+ * messages requiring acknowledgement are redelivered to the same subscriber.
+ * Redeliveries are delayed by the exponential backoff of the
+ * {@link RedeliveryPolicy}, scheduled on a {@link TimingWheel}, carry the
+ * {@value #DELIVERY_COUNT} header and are dead lettered once the policy's
+ * maximum number of deliveries has been made.<br>
+ * <br>
+ * Subscriptions requiring acknowledgement may be limited by a prefetch window,
+ * the default set by {@link #setPrefetch(int)} or requested by the subscriber
+ * with the SUBSCRIBE header {@value #PREFETCH}. Once the window is full
+ * messages for the subscription are held by the broker until an ACK or NACK,
+ * or the expiry of an acknowledgement, returns credit; the
+ * {@link BrokerAcknowledgementHandler} must be in use.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public abstract class AbstractBrokerListener<SVR extends AbstractStampyMessageGateway> implements
+    StampyMessageListener, StampyTransactionHandler {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static StompMessageType[] TYPES = { StompMessageType.SEND, StompMessageType.SUBSCRIBE,
+      StompMessageType.UNSUBSCRIBE };
+
+  /** The header marking a message to be journaled. */
+  public static final String PERSISTENT = "persistent";
+
+  /** The SUBSCRIBE header requesting a prefetch window. */
+  public static final String PREFETCH = "prefetch-count";
+
+  /** The prefix of queue destinations. */
+  public static final String QUEUE_PREFIX = "/queue/";
+
+  /** The header of a redelivered message carrying the number of deliveries. */
+  public static final String DELIVERY_COUNT = "delivery-count";
+
+  /** The header of a dead lettered message carrying its original destination. */
+  public static final String ORIGINAL_DESTINATION = "original-destination";
+
+  /** The default interval between journal compactions in milliseconds. */
+  public static final long DEFAULT_COMPACTION_INTERVAL = 60000;
+
+  private static final Subscription[] NO_SUBSCRIBERS = new Subscription[0];
+
+  /** The subscription registry. */
+  protected SubscriptionRegistry registry = new SubscriptionRegistry();
+
+  private Journal journal;
+
+  private ReceiptBatcher receiptBatcher;
+
+  private ConcurrentMap<String, JournaledMessage> journaledMessages = new ConcurrentHashMap<String, JournaledMessage>();
+
+  private Map<SendMessage, JournaledMessage> preparedMessages = Collections
+      .synchronizedMap(new IdentityHashMap<SendMessage, JournaledMessage>());
+
+  private ConcurrentMap<Long, JournalRecord> unacknowledged = new ConcurrentHashMap<Long, JournalRecord>();
+
+  private ConcurrentMap<String, Queue<Retained>> retained = new ConcurrentHashMap<String, Queue<Retained>>();
+
+  private StompMessageParser parser = new StompMessageParser();
+
+  private long compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+
+  private AtomicLong messageIds = new AtomicLong();
+
+  private ConcurrentMap<Subscription, PrefetchWindow> windows = new ConcurrentHashMap<Subscription, PrefetchWindow>();
+
+  private ConcurrentMap<String, PrefetchWindow> inFlight = new ConcurrentHashMap<String, PrefetchWindow>();
+
+  private ConcurrentMap<String, Delivery> deliveries = new ConcurrentHashMap<String, Delivery>();
+
+  private RedeliveryPolicy redeliveryPolicy = new RedeliveryPolicy();
+
+  private TimingWheel redeliveryWheel = new TimingWheel("Stampy Redelivery Wheel");
+
+  private StampyDispatchStrategy dispatchStrategy = new RoundRobinDispatchStrategy();
+
+  private int prefetch;
+
+  private int maxPrefetch;
+
+  private SVR gateway;
+
+  private JournalRelocationListener relocationListener = new JournalRelocationListener() {
+
+    @Override
+    public void relocated(long from, long to) {
+      relocate(from, to);
+    }
+  };
+
+  {
+    parser.setLazyHeaders(true);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.gateway.StampyMessageListener#getMessageTypes()
+   */
+  @Override
+  public StompMessageType[] getMessageTypes() {
+    return TYPES;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.StampyMessageListener#isForMessage(asia.stampy
+   * .common.message.StampyMessage)
+   */
+  @Override
+  public boolean isForMessage(StampyMessage<?> message) {
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.gateway.StampyMessageListener#messageReceived(asia.
+   * stampy.common.message.StampyMessage, asia.stampy.common.HostPort)
+   */
+  @Override
+  public void messageReceived(StampyMessage<?> message, HostPort hostPort) throws Exception {
+    switch (message.getMessageType()) {
+    case SEND:
+      route((SendMessage) message, hostPort);
+      break;
+    case SUBSCRIBE:
+      subscribe((SubscribeMessage) message, hostPort);
+      break;
+    case UNSUBSCRIBE:
+      unsubscribe((UnsubscribeMessage) message, hostPort);
+      break;
+    default:
+      break;
+    }
+  }
+
+  private void subscribe(SubscribeMessage message, HostPort hostPort) {
+    SubscribeHeader header = message.getHeader();
+    Subscription subscription = new Subscription(hostPort, header.getId(), header.getDestination(), header.getAck(),
+        getPrefetch(header));
+
+    if (subscription.isAckRequired()) windows.put(subscription, new PrefetchWindow(subscription));
+
+    Subscription replaced = registry.subscribe(subscription);
+    if (replaced != null) {
+      removed(replaced);
+      log.warn("{} replaced {}", subscription, replaced);
+    }
+    log.debug("Added {}", subscription);
+
+    dispatchRetained(subscription);
+  }
+
+  private int getPrefetch(SubscribeHeader header) {
+    int requested = getPrefetch();
+
+    String value = header.getHeaderValue(PREFETCH);
+    if (value != null) {
+      try {
+        requested = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        log.warn("Ignoring invalid {} header {}", PREFETCH, value);
+      }
+    }
+
+    if (requested < 0) requested = 0;
+    if (getMaxPrefetch() > 0 && (requested == 0 || requested > getMaxPrefetch())) requested = getMaxPrefetch();
+
+    return requested;
+  }
+
+  private void unsubscribe(UnsubscribeMessage message, HostPort hostPort) {
+    String id = message.getHeader().getId();
+    Subscription subscription = registry.unsubscribe(hostPort, id);
+    if (subscription == null) {
+      log.warn("No subscription with id {} for {}", id, hostPort);
+    } else {
+      removed(subscription);
+      log.debug("Removed {}", subscription);
+      drainQueues(null);
+    }
+  }
+
+  /**
+   * Removes all subscriptions of the specified {@link HostPort}, discarding any
+   * messages held for them. Unacknowledged queue messages are redelivered to
+   * the remaining subscribers. Invoked on session termination.
+   * 
+   * @param hostPort
+   *          the host port
+   */
+  protected void cleanup(HostPort hostPort) {
+    List<Subscription> subscriptions = new ArrayList<Subscription>(registry.getSubscriptions(hostPort));
+    registry.remove(hostPort);
+
+    for (Subscription subscription : subscriptions) {
+      removed(subscription);
+    }
+    if (!subscriptions.isEmpty()) drainQueues(null);
+  }
+
+  private void removed(Subscription subscription) {
+    closeWindow(subscription);
+    getDispatchStrategy().unsubscribed(subscription);
+  }
+
+  private void closeWindow(Subscription subscription) {
+    PrefetchWindow window = windows.remove(subscription);
+    if (window == null) return;
+
+    for (String messageId : window.close()) {
+      inFlight.remove(messageId, window);
+
+      Delivery delivery = deliveries.remove(messageId);
+      if (delivery != null) abandon(messageId, delivery);
+    }
+  }
+
+  /**
+   * Redelivers the unacknowledged queue message of a closed subscription, or
+   * releases the topic message.
+   */
+  private void abandon(String messageId, Delivery delivery) {
+    if (isQueue(delivery.subscription.getDestination())) {
+      redeliver(messageId, delivery);
+    } else {
+      JournaledMessage journaled = journaledMessages.remove(messageId);
+      if (journaled != null) release(journaled);
+    }
+  }
+
+  /**
+   * Routes the message to the subscribers of its destination, or to one of
+   * them should the destination be a queue.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port of the sender
+   * @throws IOException
+   *           should the message be persistent and could not be journaled
+   */
+  protected void route(SendMessage message, HostPort hostPort) throws IOException {
+    JournaledMessage journaled = preparedMessages.remove(message);
+
+    Subscription[] subscribers;
+    if (journaled == null) {
+      subscribers = getRecipients(message);
+      if (isPersistent(message)) journaled = journal(message, subscribers, hostPort);
+    } else {
+      subscribers = journaled.subscribers;
+    }
+
+    dispatch(message, journaled, subscribers);
+  }
+
+  private void dispatch(SendMessage message, JournaledMessage journaled, Subscription[] subscribers) {
+    String destination = message.getHeader().getDestination();
+
+    for (Subscription subscription : subscribers) {
+      dispatch(message, journaled, subscription, 1);
+    }
+
+    if (isQueue(destination) && subscribers.length == 0) {
+      enqueue(destination, message, journaled, 1);
+    } else if (journaled != null && isRetained(destination, subscribers)) {
+      retain(destination, new Retained(null, journaled, 1));
+    }
+  }
+
+  /**
+   * A persistent message is retained should it be sent to a queue without
+   * subscribers or to a topic without subscribers requiring acknowledgement.
+   */
+  private boolean isRetained(String destination, Subscription[] subscribers) {
+    return isQueue(destination) ? subscribers.length == 0 : countAckRequired(subscribers) == 0;
+  }
+
+  private int getAcks(String destination, Subscription[] subscribers) {
+    return countAckRequired(subscribers) + (isRetained(destination, subscribers) ? 1 : 0);
+  }
+
+  /**
+   * Holds a queue message until one of the queue's subscribers has prefetch
+   * credit. Non-persistent messages are discarded should the queue have no
+   * subscribers.
+   */
+  private void enqueue(String destination, SendMessage message, JournaledMessage journaled, int deliveryCount) {
+    if (journaled == null && registry.getSubscribers(destination).length == 0) {
+      log.debug("No subscribers for {}", destination);
+      return;
+    }
+
+    retain(destination, new Retained(journaled == null ? message : null, journaled, deliveryCount));
+    drain(destination);
+  }
+
+  private void retain(String destination, Retained message) {
+    while (true) {
+      Queue<Retained> queue = retained.get(destination);
+      if (queue == null) {
+        queue = new ConcurrentLinkedQueue<Retained>();
+        Queue<Retained> existing = retained.putIfAbsent(destination, queue);
+        if (existing != null) queue = existing;
+      }
+
+      synchronized (queue) {
+        if (retained.get(destination) == queue) {
+          queue.add(message);
+          log.debug("Retained message for {}", destination);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Dispatches the messages held for the queue, in order, for as long as the
+   * {@link StampyDispatchStrategy} selects a subscriber with prefetch credit.
+   */
+  private void drain(String destination) {
+    Queue<Retained> queue = retained.get(destination);
+    if (queue == null) return;
+
+    synchronized (queue) {
+      Retained next = queue.peek();
+      while (next != null) {
+        SendMessage message = next.getMessage();
+        if (message == null) {
+          queue.poll();
+          release(next.journaled);
+        } else {
+          Subscription selected = select(destination, message, withCredit(registry.getSubscribers(destination)));
+          if (selected == null) return;
+
+          queue.poll();
+          dispatch(message, next.journaled, selected, next.deliveryCount);
+          if (next.journaled != null && !selected.isAckRequired()) release(next.journaled);
+        }
+        next = queue.peek();
+      }
+
+      retained.remove(destination, queue);
+    }
+  }
+
+  /**
+   * Drains the queues held for the subscription, or all queues should the
+   * subscription be null.
+   */
+  private void drainQueues(Subscription subscription) {
+    if (retained.isEmpty()) return;
+
+    for (String destination : retained.keySet()) {
+      if (!isQueue(destination)) continue;
+      if (subscription == null || contains(registry.getSubscribers(destination), subscription)) drain(destination);
+    }
+  }
+
+  private void dispatchRetained(Subscription subscription) {
+    if (retained.isEmpty()) return;
+
+    for (Entry<String, Queue<Retained>> entry : retained.entrySet()) {
+      String destination = entry.getKey();
+      if (!contains(registry.getSubscribers(destination), subscription)) continue;
+
+      if (isQueue(destination)) {
+        drain(destination);
+        continue;
+      }
+
+      Queue<Retained> queue = entry.getValue();
+      Retained next = queue.poll();
+      while (next != null) {
+        SendMessage message = next.getMessage();
+        if (message == null) {
+          release(next.journaled);
+        } else {
+          dispatch(message, next.journaled, subscription, next.deliveryCount);
+          if (!subscription.isAckRequired()) release(next.journaled);
+        }
+        next = queue.poll();
+      }
+
+      synchronized (queue) {
+        if (queue.isEmpty()) retained.remove(destination, queue);
+      }
+    }
+  }
+
+  private boolean contains(Subscription[] subscribers, Subscription subscription) {
+    for (Subscription s : subscribers) {
+      if (s == subscription) return true;
+    }
+
+    return false;
+  }
+
+  private void dispatch(SendMessage message, JournaledMessage journaled, Subscription subscription, int deliveryCount) {
+    try {
+      MessageMessage msg = createMessage(message, subscription);
+      if (deliveryCount > 1) msg.getHeader().addHeader(DELIVERY_COUNT, Integer.toString(deliveryCount));
+
+      if (!subscription.isAckRequired()) {
+        getGateway().sendMessage(msg, subscription.getHostPort());
+        return;
+      }
+
+      String messageId = msg.getHeader().getMessageId();
+      if (journaled != null) journaledMessages.put(messageId, journaled);
+      Delivery delivery = new Delivery(journaled == null ? message : null, journaled, subscription, deliveryCount);
+      deliveries.put(messageId, delivery);
+
+      PrefetchWindow window = windows.get(subscription);
+      if (window != null && window.offer(msg)) {
+        deliver(window, msg);
+      } else if ((window == null || window.isClosed()) && deliveries.remove(messageId, delivery)) {
+        abandon(messageId, delivery);
+      }
+    } catch (Exception e) {
+      log.error("Could not send message to " + subscription, e);
+    }
+  }
+
+  /**
+   * Gets the subscribers of a topic, or the subscriber of a queue with prefetch
+   * credit chosen by the {@link StampyDispatchStrategy}. No subscribers are
+   * returned should none of the queue's subscribers have credit or messages
+   * already be held for the queue, the message then being held in turn.
+   */
+  private Subscription[] getRecipients(SendMessage message) {
+    String destination = message.getHeader().getDestination();
+    Subscription[] subscribers = registry.getSubscribers(destination);
+    if (!isQueue(destination)) return subscribers;
+    if (retained.containsKey(destination)) return NO_SUBSCRIBERS;
+
+    Subscription selected = select(destination, message, withCredit(subscribers));
+
+    return selected == null ? NO_SUBSCRIBERS : new Subscription[] { selected };
+  }
+
+  private Subscription select(String destination, SendMessage message, Subscription[] candidates) {
+    return candidates.length == 0 ? null : getDispatchStrategy().select(destination, message, candidates, this);
+  }
+
+  private Subscription[] withCredit(Subscription[] subscribers) {
+    List<Subscription> credited = new ArrayList<Subscription>(subscribers.length);
+    for (Subscription subscription : subscribers) {
+      if (hasCredit(subscription)) credited.add(subscription);
+    }
+
+    return credited.size() == subscribers.length ? subscribers : credited.toArray(new Subscription[credited.size()]);
+  }
+
+  private boolean hasCredit(Subscription subscription) {
+    if (!subscription.isAckRequired()) return true;
+
+    PrefetchWindow window = windows.get(subscription);
+    return window != null && window.hasCredit();
+  }
+
+  private void redeliver(String messageId, Delivery delivery) {
+    journaledMessages.remove(messageId);
+
+    if (getRedeliveryPolicy().isExhausted(delivery.deliveryCount)) {
+      deadLetter(messageId, delivery);
+      return;
+    }
+
+    long delay = getRedeliveryPolicy().getDelay(delivery.deliveryCount);
+    if (delay <= 0) {
+      redeliver(delivery);
+    } else {
+      log.debug("Redelivering message {} in {}ms", messageId, delay);
+      redeliveryWheel.schedule(new Redelivery(delivery, System.currentTimeMillis() + delay));
+    }
+  }
+
+  private void redeliver(Delivery delivery) {
+    SendMessage message = delivery.getMessage();
+    if (message == null) {
+      release(delivery.journaled);
+      return;
+    }
+    String destination = message.getHeader().getDestination();
+
+    Subscription next = null;
+    if (!isQueue(destination)) {
+      if (windows.containsKey(delivery.subscription)) next = delivery.subscription;
+    } else if (!retained.containsKey(destination)) {
+      Subscription[] candidates = exclude(registry.getSubscribers(destination), delivery.subscription);
+      next = select(destination, message, withCredit(candidates));
+    }
+
+    if (next == null) {
+      if (isQueue(destination)) {
+        enqueue(destination, message, delivery.journaled, delivery.deliveryCount + 1);
+      } else {
+        log.warn("No subscriber to redeliver message for {}", destination);
+        if (delivery.journaled != null) release(delivery.journaled);
+      }
+      return;
+    }
+
+    log.debug("Redelivering message to {}", next);
+    dispatch(message, delivery.journaled, next, delivery.deliveryCount + 1);
+    if (delivery.journaled != null && !next.isAckRequired()) release(delivery.journaled);
+  }
+
+  private void deadLetter(String messageId, Delivery delivery) {
+    SendMessage message = delivery.getMessage();
+    if (delivery.journaled != null) release(delivery.journaled);
+    if (message == null) return;
+
+    String destination = message.getHeader().getDestination();
+    String deadLetterDestination = getRedeliveryPolicy().getDeadLetterDestination();
+    if (deadLetterDestination == null) {
+      log.warn("Discarding message {} for {} after {} deliveries", messageId, destination, delivery.deliveryCount);
+      return;
+    }
+
+    SendMessage dead = new SendMessage();
+    dead.getHeader().setDestination(deadLetterDestination);
+    copyHeaders(message.getHeader(), dead.getHeader());
+    dead.getHeader().addHeader(ORIGINAL_DESTINATION, destination);
+    dead.getHeader().addHeader(DELIVERY_COUNT, Integer.toString(delivery.deliveryCount));
+    dead.setBody(message.getBody());
+
+    log.info("Dead lettering message {} for {} to {}", messageId, destination, deadLetterDestination);
+    try {
+      route(dead, delivery.subscription.getHostPort());
+    } catch (Exception e) {
+      log.error("Could not dead letter message " + messageId, e);
+    }
+  }
+
+  private Subscription[] exclude(Subscription[] subscribers, Subscription subscription) {
+    List<Subscription> others = new ArrayList<Subscription>(subscribers.length);
+    for (Subscription s : subscribers) {
+      if (s != subscription) others.add(s);
+    }
+
+    return others.isEmpty() ? subscribers : others.toArray(new Subscription[others.size()]);
+  }
+
+  /**
+   * Checks if the destination is a queue, each message of which is delivered to
+   * a single subscriber chosen by the {@link StampyDispatchStrategy}. The
+   * default implementation returns true for destinations beginning with
+   * {@value #QUEUE_PREFIX}. Override as necessary.
+   * 
+   * @param destination
+   *          the destination
+   * @return true, if is queue
+   */
+  protected boolean isQueue(String destination) {
+    return destination != null && destination.startsWith(QUEUE_PREFIX);
+  }
+
+  /**
+   * Gets the number of messages delivered to the subscription which have yet
+   * to be acknowledged.
+   * 
+   * @param subscription
+   *          the subscription
+   * @return the outstanding messages
+   */
+  public int getOutstanding(Subscription subscription) {
+    PrefetchWindow window = windows.get(subscription);
+    return window == null ? 0 : window.getOutstanding();
+  }
+
+  /**
+   * Gets the number of messages held for the subscription by its prefetch
+   * window.
+   * 
+   * @param subscription
+   *          the subscription
+   * @return the pending messages
+   */
+  public int getPending(Subscription subscription) {
+    PrefetchWindow window = windows.get(subscription);
+    return window == null ? 0 : window.getPending();
+  }
+
+  private void deliver(PrefetchWindow window, MessageMessage msg) {
+    while (msg != null) {
+      String messageId = msg.getHeader().getMessageId();
+      inFlight.put(messageId, window);
+      try {
+        getGateway().sendMessage(msg, window.getSubscription().getHostPort());
+        return;
+      } catch (Exception e) {
+        log.error("Could not send message to " + window.getSubscription(), e);
+        inFlight.remove(messageId);
+        msg = window.release(null);
+      }
+    }
+  }
+
+  private void returnCredit(String messageId) {
+    PrefetchWindow window = inFlight.remove(messageId);
+    if (window == null) return;
+
+    deliver(window, window.release(messageId));
+    drainQueues(window.getSubscription());
+  }
+
+  /**
+   * Checks if the message is to be journaled. The default implementation
+   * returns true if a {@link Journal} has been set and the message has the
+   * header {@value #PERSISTENT}:true. Override as necessary.
+   * 
+   * @param message
+   *          the message
+   * @return true, if persistent
+   */
+  protected boolean isPersistent(SendMessage message) {
+    return getJournal() != null && Boolean.parseBoolean(message.getHeader().getHeaderValue(PERSISTENT));
+  }
+
+  /**
+   * Journals the message as its frame preceded by its length.
+   */
+  private JournaledMessage journal(SendMessage message, Subscription[] subscribers, HostPort hostPort)
+      throws IOException {
+    ByteBuffer frame = message.toStompBuffer(false);
+    int length = frame.remaining();
+
+    ByteBuffer entry = ByteBuffer.allocate(4 + length);
+    entry.putInt(length);
+    entry.put(frame);
+    entry.flip();
+
+    long sequence = journal.append(entry);
+    makeDurable(sequence, message, hostPort);
+    JournalRecord record = hold(sequence, getAcks(message.getHeader().getDestination(), subscribers));
+
+    return new JournaledMessage(record, 4, length, subscribers);
+  }
+
+  /**
+   * Journals the persistent {@link StompMessageType#SEND} messages of a
+   * committed transaction as a single record, each frame preceded by its
+   * length. The messages are routed to the subscribers of their destinations at
+   * the time of the commit.
+   * 
+   * @param commit
+   *          the commit message
+   * @param messages
+   *          the messages
+   * @param hostPort
+   *          the host port
+   * @throws Exception
+   *           the exception
+   */
+  @Override
+  public void committing(CommitMessage commit, List<StampyMessage<?>> messages, HostPort hostPort) throws Exception {
+    List<SendMessage> persistent = new ArrayList<SendMessage>();
+    List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+    int size = 0;
+    for (StampyMessage<?> message : messages) {
+      if (message.getMessageType() != StompMessageType.SEND || !isPersistent((SendMessage) message)) continue;
+
+      ByteBuffer frame = message.toStompBuffer(false);
+      persistent.add((SendMessage) message);
+      frames.add(frame);
+      size += 4 + frame.remaining();
+    }
+
+    if (persistent.isEmpty()) return;
+
+    ByteBuffer batch = ByteBuffer.allocate(size);
+    for (ByteBuffer frame : frames) {
+      batch.putInt(frame.remaining());
+      batch.put(frame.duplicate());
+    }
+    batch.flip();
+
+    long sequence = journal.append(batch);
+    makeDurable(sequence, commit, hostPort);
+
+    List<Subscription[]> recipients = new ArrayList<Subscription[]>(persistent.size());
+    int acks = 0;
+    for (SendMessage message : persistent) {
+      Subscription[] subscribers = getRecipients(message);
+      recipients.add(subscribers);
+      acks += getAcks(message.getHeader().getDestination(), subscribers);
+    }
+
+    JournalRecord record = hold(sequence, acks);
+
+    int offset = 0;
+    for (int i = 0; i < persistent.size(); i++) {
+      SendMessage message = persistent.get(i);
+      int length = frames.get(i).remaining();
+
+      preparedMessages.put(message, new JournaledMessage(record, offset + 4, length, recipients.get(i)));
+      if (getReceiptBatcher() != null) deferReceipt(sequence, message, hostPort);
+      offset += 4 + length;
+    }
+  }
+
+  private void makeDurable(long sequence, StampyMessage<?> message, HostPort hostPort) throws IOException {
+    if (getReceiptBatcher() == null) {
+      journal.commit(sequence);
+    } else if (!deferReceipt(sequence, message, hostPort)) {
+      getReceiptBatcher().commitLater(sequence);
+    }
+  }
+
+  /**
+   * Hands the RECEIPT requested by the message to the batcher, removing the
+   * receipt header so that the receipt listener does not send it before the
+   * message is durable.
+   */
+  private boolean deferReceipt(long sequence, StampyMessage<?> message, HostPort hostPort) {
+    String receipt = message.getHeader().getHeaderValue(ClientMessageHeader.RECEIPT);
+    if (StringUtils.isEmpty(receipt)) return false;
+
+    message.getHeader().removeHeader(ClientMessageHeader.RECEIPT);
+    getReceiptBatcher().defer(sequence, new DeferredReceipt(receipt, hostPort));
+
+    return true;
+  }
+
+  private int countAckRequired(Subscription[] subscribers) {
+    int count = 0;
+    for (Subscription subscription : subscribers) {
+      if (subscription.isAckRequired()) count++;
+    }
+
+    return count;
+  }
+
+  private JournalRecord hold(long sequence, int acks) {
+    JournalRecord record = new JournalRecord(sequence, acks);
+    if (acks == 0) {
+      journal.release(sequence);
+    } else {
+      unacknowledged.put(sequence, record);
+    }
+
+    return record;
+  }
+
+  /**
+   * Invoked when the message with the specified id has been acknowledged,
+   * releasing its journaled copy once all subscribers requiring acknowledgement
+   * have acknowledged.
+   * 
+   * @param messageId
+   *          the message id
+   */
+  public void acknowledged(String messageId) {
+    returnCredit(messageId);
+    deliveries.remove(messageId);
+
+    JournaledMessage journaled = journaledMessages.remove(messageId);
+    if (journaled != null) release(journaled);
+  }
+
+  private void release(JournaledMessage journaled) {
+    JournalRecord record = journaled.record;
+    synchronized (record) {
+      if (record.acks <= 0 || --record.acks > 0) return;
+
+      unacknowledged.remove(record.sequence);
+      journal.release(record.sequence);
+    }
+  }
+
+  private void relocate(long from, long to) {
+    JournalRecord record = unacknowledged.get(from);
+    if (record == null) {
+      journal.release(to);
+      return;
+    }
+
+    synchronized (record) {
+      if (record.acks <= 0 || record.sequence != from) {
+        journal.release(to);
+        return;
+      }
+
+      unacknowledged.remove(from);
+      record.sequence = to;
+      unacknowledged.put(to, record);
+    }
+  }
+
+  private void compact() {
+    try {
+      journal.compact(relocationListener);
+    } catch (IOException e) {
+      log.error("Could not compact the journal", e);
+    }
+  }
+
+  /**
+   * Replays the records of the journal which have not been released, routing
+   * each journaled message to the current subscribers of its destination or
+   * retaining it until subscribed to.
+   */
+  private void replay() {
+    int replayed = 0;
+    for (long sequence = journal.getFirstSequence(); sequence < journal.getNextSequence(); sequence++) {
+      ByteBuffer entries = journal.read(sequence);
+      if (entries == null) continue;
+
+      List<SendMessage> messages = new ArrayList<SendMessage>();
+      List<int[]> locations = new ArrayList<int[]>();
+      List<Subscription[]> recipients = new ArrayList<Subscription[]>();
+      int acks = 0;
+      int pos = 0;
+      while (pos + 4 <= entries.limit()) {
+        int length = entries.getInt(pos);
+        if (length <= 0 || pos + 4 + length > entries.limit()) break;
+
+        SendMessage message = parse(frame(entries, pos + 4, length));
+        if (message != null) {
+          Subscription[] subscribers = getRecipients(message);
+          messages.add(message);
+          locations.add(new int[] { pos + 4, length });
+          recipients.add(subscribers);
+          acks += getAcks(message.getHeader().getDestination(), subscribers);
+        }
+        pos += 4 + length;
+      }
+
+      JournalRecord record = hold(sequence, acks);
+      for (int i = 0; i < messages.size(); i++) {
+        int[] location = locations.get(i);
+        dispatch(messages.get(i), new JournaledMessage(record, location[0], location[1], recipients.get(i)),
+            recipients.get(i));
+      }
+      replayed += messages.size();
+    }
+
+    if (replayed > 0) log.info("Replayed {} journaled messages", replayed);
+  }
+
+  private ByteBuffer frame(ByteBuffer entries, int offset, int length) {
+    ByteBuffer frame = entries.duplicate();
+    frame.position(offset);
+    frame.limit(offset + length);
+
+    return frame.slice();
+  }
+
+  private ByteBuffer readFrame(JournaledMessage journaled) {
+    ByteBuffer entries;
+    synchronized (journaled.record) {
+      entries = journal.read(journaled.record.sequence);
+    }
+
+    return entries == null ? null : frame(entries, journaled.offset, journaled.length);
+  }
+
+  private SendMessage readMessage(JournaledMessage journaled) {
+    ByteBuffer frame = readFrame(journaled);
+
+    return frame == null ? null : parse(frame);
+  }
+
+  private SendMessage parse(ByteBuffer frame) {
+    try {
+      StampyMessage<?> message = parser.parseMessage(frame);
+      if (message.getMessageType() == StompMessageType.SEND) return (SendMessage) message;
+
+      log.error("Journaled message is not a SEND: {}", message.getMessageType());
+    } catch (UnparseableException e) {
+      log.error("Could not parse journaled message", e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Invoked when the message with the specified id has been negatively
+   * acknowledged or its acknowledgement has expired, returning its credit to
+   * the subscription's prefetch window. The message is redelivered as per the
+   * {@link RedeliveryPolicy}; a queue message to another subscriber of the
+   * queue, should there be one.
+   * 
+   * @param messageId
+   *          the message id
+   */
+  public void rejected(String messageId) {
+    returnCredit(messageId);
+
+    Delivery delivery = deliveries.remove(messageId);
+    if (delivery != null) redeliver(messageId, delivery);
+  }
+
+  /**
+   * Gets the journaled {@link StompMessageType#SEND} frame from which the
+   * message with the specified id was created, for redelivery. The returned
+   * buffer is a read-only view of the journal; the bytes are not copied.
+   * 
+   * @param messageId
+   *          the message id
+   * @return the frame, or null if the message was not journaled or has been
+   *         released
+   */
+  public ByteBuffer getJournaledMessage(String messageId) {
+    JournaledMessage journaled = journaledMessages.get(messageId);
+
+    return journaled == null ? null : readFrame(journaled);
+  }
+
+  /**
+   * Creates the {@link MessageMessage} for the subscription, copying the body
+   * and the headers of the sent message other than the transaction and receipt
+   * headers. Message id, subscription and ack headers supplied by the sender
+   * are discarded in favour of the broker's own.
+   * 
+   * @param message
+   *          the sent message
+   * @param subscription
+   *          the subscription
+   * @return the message
+   */
+  protected MessageMessage createMessage(SendMessage message, Subscription subscription) {
+    String messageId = createMessageId();
+    MessageMessage msg = new MessageMessage(message.getHeader().getDestination(), messageId,
+        subscription.getId());
+
+    copyHeaders(message.getHeader(), msg.getHeader());
+
+    if (subscription.isAckRequired()) msg.getHeader().setAck(messageId);
+
+    msg.setBody(message.getBody());
+
+    return msg;
+  }
+
+  /**
+   * Copies the headers other than those consumed by routing or set by the
+   * broker. Headers parsed lazily are copied as their original bytes, without
+   * being decoded.
+   */
+  private void copyHeaders(AbstractMessageHeader from, AbstractMessageHeader to) {
+    for (int i = 0; i < from.getHeaderCount(); i++) {
+      if (!isRoutedHeader(from, i)) to.addHeader(from, i);
+    }
+  }
+
+  private boolean isRoutedHeader(AbstractMessageHeader header, int idx) {
+    return header.isHeaderKey(idx, SendHeader.DESTINATION) || header.isHeaderKey(idx, SendHeader.TRANSACTION)
+        || header.isHeaderKey(idx, ClientMessageHeader.RECEIPT) || header.isHeaderKey(idx, MessageHeader.MESSAGE_ID)
+        || header.isHeaderKey(idx, MessageHeader.SUBSCRIPTION) || header.isHeaderKey(idx, MessageHeader.ACK);
+  }
+
+  /**
+   * Creates a message id, unique for the lifetime of the broker. Override as
+   * necessary.
+   * 
+   * @return the message id
+   */
+  protected String createMessageId() {
+    return Long.toString(messageIds.incrementAndGet());
+  }
+
+  /**
+   * Gets the subscription registry.
+   * 
+   * @return the registry
+   */
+  public SubscriptionRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Gets the journal.
+   * 
+   * @return the journal
+   */
+  public Journal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Sets the journal for persistent messages. Messages are not journaled
+   * should no journal be set, the default. The unreleased records of the
+   * journal are replayed and its compaction scheduled.
+   * 
+   * @param journal
+   *          the new journal
+   */
+  public void setJournal(Journal journal) {
+    this.journal = journal;
+    if (journal == null) return;
+
+    replay();
+    if (getCompactionInterval() > 0) {
+      redeliveryWheel.schedule(new Compaction(journal, System.currentTimeMillis() + getCompactionInterval()));
+    }
+  }
+
+  /**
+   * Gets the compaction interval.
+   * 
+   * @return the compaction interval
+   */
+  public long getCompactionInterval() {
+    return compactionInterval;
+  }
+
+  /**
+   * Sets the interval in milliseconds between compactions of the journal, set
+   * before the journal. Defaults to {@value #DEFAULT_COMPACTION_INTERVAL}, 0
+   * disables compaction.
+   * 
+   * @param compactionInterval
+   *          the new compaction interval
+   */
+  public void setCompactionInterval(long compactionInterval) {
+    this.compactionInterval = compactionInterval;
+  }
+
+  /**
+   * Gets the parser of journaled messages.
+   * 
+   * @return the parser
+   */
+  public StompMessageParser getParser() {
+    return parser;
+  }
+
+  /**
+   * Sets the parser of journaled messages, which should be configured with the
+   * same {@link asia.stampy.common.serialization.BodyCodec}s as the gateway's.
+   * 
+   * @param parser
+   *          the new parser
+   */
+  public void setParser(StompMessageParser parser) {
+    this.parser = parser;
+  }
+
+  /**
+   * Gets the default prefetch.
+   * 
+   * @return the prefetch
+   */
+  public int getPrefetch() {
+    return prefetch;
+  }
+
+  /**
+   * Sets the maximum number of unacknowledged messages outstanding to a
+   * subscription which does not specify the {@value #PREFETCH} header.
+   * Defaults to 0, no limit.
+   * 
+   * @param prefetch
+   *          the new prefetch
+   */
+  public void setPrefetch(int prefetch) {
+    this.prefetch = prefetch;
+  }
+
+  /**
+   * Gets the max prefetch.
+   * 
+   * @return the max prefetch
+   */
+  public int getMaxPrefetch() {
+    return maxPrefetch;
+  }
+
+  /**
+   * Sets the upper bound of the prefetch window a subscriber may request, also
+   * applied to subscribers requesting no limit. Defaults to 0, unbounded.
+   * 
+   * @param maxPrefetch
+   *          the new max prefetch
+   */
+  public void setMaxPrefetch(int maxPrefetch) {
+    this.maxPrefetch = maxPrefetch;
+  }
+
+  /**
+   * Gets the dispatch strategy.
+   * 
+   * @return the dispatch strategy
+   */
+  public StampyDispatchStrategy getDispatchStrategy() {
+    return dispatchStrategy;
+  }
+
+  /**
+   * Sets the strategy choosing the subscriber of a queue to which each message
+   * is delivered. Defaults to {@link RoundRobinDispatchStrategy}.
+   * 
+   * @param dispatchStrategy
+   *          the new dispatch strategy
+   */
+  public void setDispatchStrategy(StampyDispatchStrategy dispatchStrategy) {
+    this.dispatchStrategy = dispatchStrategy;
+  }
+
+  /**
+   * Gets the redelivery policy.
+   * 
+   * @return the redelivery policy
+   */
+  public RedeliveryPolicy getRedeliveryPolicy() {
+    return redeliveryPolicy;
+  }
+
+  /**
+   * Sets the policy for the redelivery of negatively acknowledged and expired
+   * messages.
+   * 
+   * @param redeliveryPolicy
+   *          the new redelivery policy
+   */
+  public void setRedeliveryPolicy(RedeliveryPolicy redeliveryPolicy) {
+    this.redeliveryPolicy = redeliveryPolicy;
+  }
+
+  /**
+   * Gets the receipt batcher.
+   * 
+   * @return the receipt batcher
+   */
+  public ReceiptBatcher getReceiptBatcher() {
+    return receiptBatcher;
+  }
+
+  /**
+   * Sets the receipt batcher, committing journaled messages in groups rather
+   * than individually. Defaults to null. The RECEIPTs of journaled messages
+   * are then sent by the broker once the batcher has committed them; the broker
+   * must be added to the gateway ahead of the receipt listener, which would
+   * otherwise send them before the messages are durable.
+   * 
+   * @param receiptBatcher
+   *          the new receipt batcher
+   */
+  public void setReceiptBatcher(ReceiptBatcher receiptBatcher) {
+    this.receiptBatcher = receiptBatcher;
+  }
+
+  /**
+   * Gets the gateway.
+   * 
+   * @return the gateway
+   */
+  public SVR getGateway() {
+    return gateway;
+  }
+
+  /**
+   * Inject the {@link AbstractStampyMessageGateway} on system startup. Pending
+   * redeliveries are discarded and the {@link ReceiptBatcher} shut down on
+   * gateway shutdown.
+   * 
+   * @param gateway
+   *          the new gateway
+   */
+  public void setGateway(SVR gateway) {
+    this.gateway = gateway;
+    ensureCleanup();
+
+    gateway.addShutdownListener(new StampyShutdownListener() {
+
+      @Override
+      public void gatewayShutdown() {
+        redeliveryWheel.stop();
+        if (getReceiptBatcher() != null) getReceiptBatcher().shutdown();
+      }
+    });
+  }
+
+  /**
+   * Configure the gateway to remove the subscriptions of a client on session
+   * termination.
+   */
+  protected abstract void ensureCleanup();
+
+  /**
+   * A journal record and the number of acknowledgements outstanding before it
+   * is released. The sequence changes should the record be moved by
+   * compaction; both are guarded by the record's monitor.
+   */
+  private static class JournalRecord {
+    long sequence;
+    int acks;
+
+    JournalRecord(long sequence, int acks) {
+      this.sequence = sequence;
+      this.acks = acks;
+    }
+  }
+
+  private static class JournaledMessage {
+    final JournalRecord record;
+    final int offset;
+    final int length;
+    final Subscription[] subscribers;
+
+    JournaledMessage(JournalRecord record, int offset, int length, Subscription[] subscribers) {
+      this.record = record;
+      this.offset = offset;
+      this.length = length;
+      this.subscribers = subscribers;
+    }
+  }
+
+  private class DeferredReceipt implements Runnable {
+    private final String receipt;
+    private final HostPort hostPort;
+
+    DeferredReceipt(String receipt, HostPort hostPort) {
+      this.receipt = receipt;
+      this.hostPort = hostPort;
+    }
+
+    @Override
+    public void run() {
+      try {
+        getGateway().sendMessage(new ReceiptMessage(receipt), hostPort);
+        log.debug("Sent deferred RECEIPT message to {}", hostPort);
+      } catch (Exception e) {
+        log.error("Could not send RECEIPT message to " + hostPort, e);
+      }
+    }
+  }
+
+  /**
+   * A message held for a destination, journaled messages being read back from
+   * the {@link Journal} when dispatched.
+   */
+  private class Retained {
+    final SendMessage message;
+    final JournaledMessage journaled;
+    final int deliveryCount;
+
+    Retained(SendMessage message, JournaledMessage journaled, int deliveryCount) {
+      this.message = message;
+      this.journaled = journaled;
+      this.deliveryCount = deliveryCount;
+    }
+
+    SendMessage getMessage() {
+      return message == null ? readMessage(journaled) : message;
+    }
+  }
+
+  /**
+   * A message awaiting acknowledgement. Journaled messages are read back from
+   * the {@link Journal} for redelivery rather than kept in memory.
+   */
+  private class Delivery {
+    final SendMessage message;
+    final JournaledMessage journaled;
+    final Subscription subscription;
+    final int deliveryCount;
+
+    Delivery(SendMessage message, JournaledMessage journaled, Subscription subscription, int deliveryCount) {
+      this.message = message;
+      this.journaled = journaled;
+      this.subscription = subscription;
+      this.deliveryCount = deliveryCount;
+    }
+
+    SendMessage getMessage() {
+      return message == null ? readMessage(journaled) : message;
+    }
+  }
+
+  private class Redelivery implements TimingWheelTask {
+    private final Delivery delivery;
+    private final long deadline;
+
+    Redelivery(Delivery delivery, long deadline) {
+      this.delivery = delivery;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public long getDeadline() {
+      return deadline;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean expire() {
+      redeliver(delivery);
+      return false;
+    }
+  }
+
+  private class Compaction implements TimingWheelTask {
+    private final Journal compacted;
+    private long deadline;
+
+    Compaction(Journal compacted, long deadline) {
+      this.compacted = compacted;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public long getDeadline() {
+      return deadline;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return compacted != getJournal() || getCompactionInterval() <= 0;
+    }
+
+    @Override
+    public boolean expire() {
+      compact();
+      deadline = System.currentTimeMillis() + getCompactionInterval();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.util.List;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.server.listener.subscription.StampyAcknowledgementHandler;
+import asia.stampy.server.listener.subscription.StampyBulkAcknowledgementHandler;
+
+/**
+ * Informs an {@link AbstractBrokerListener} of acknowledged, negatively
+ * acknowledged and expired messages before delegating to the application's
+ * {@link StampyAcknowledgementHandler}. Set as the handler of the
+ * {@link asia.stampy.server.listener.subscription.AbstractAcknowledgementListenerAndInterceptor}
+ * so that journaled messages are released once acknowledged and prefetch
+ * windows are replenished.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class BrokerAcknowledgementHandler implements StampyBulkAcknowledgementHandler {
+  private AbstractBrokerListener<?> broker;
+  private StampyAcknowledgementHandler delegate;
+
+  /**
+   * Instantiates a new broker acknowledgement handler.
+   * 
+   * @param broker
+   *          the broker
+   * @param delegate
+   *          the application's handler, may be null
+   */
+  public BrokerAcknowledgementHandler(AbstractBrokerListener<?> broker, StampyAcknowledgementHandler delegate) {
+    this.broker = broker;
+    this.delegate = delegate;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.subscription.StampyAcknowledgementHandler#ackReceived
+   * (java.lang.String, java.lang.String, java.lang.String)
+   */
+  @Override
+  public void ackReceived(String id, String receipt, String transaction) throws Exception {
+    broker.acknowledged(id);
+    if (delegate != null) delegate.ackReceived(id, receipt, transaction);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.server.listener.subscription.StampyBulkAcknowledgementHandler#
+   * acksReceived(java.util.List, java.lang.String, java.lang.String)
+   */
+  @Override
+  public void acksReceived(List<String> ids, String receipt, String transaction) throws Exception {
+    for (String id : ids) {
+      broker.acknowledged(id);
+    }
+
+    if (delegate instanceof StampyBulkAcknowledgementHandler) {
+      ((StampyBulkAcknowledgementHandler) delegate).acksReceived(ids, receipt, transaction);
+    } else if (delegate != null) {
+      for (String id : ids) {
+        delegate.ackReceived(id, receipt, transaction);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.subscription.StampyAcknowledgementHandler#nackReceived
+   * (java.lang.String, java.lang.String, java.lang.String)
+   */
+  @Override
+  public void nackReceived(String id, String receipt, String transaction) throws Exception {
+    broker.rejected(id);
+    if (delegate != null) delegate.nackReceived(id, receipt, transaction);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.server.listener.subscription.StampyAcknowledgementHandler#
+   * noAcknowledgementReceived(java.lang.String)
+   */
+  @Override
+  public void noAcknowledgementReceived(String id) {
+    broker.rejected(id);
+    if (delegate != null) delegate.noAcknowledgementReceived(id);
+  }
+
+  /**
+   * Gets the application's handler.
+   * 
+   * @return the delegate
+   */
+  public StampyAcknowledgementHandler getDelegate() {
+    return delegate;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Delivers each message to the subscriber with the fewest unacknowledged or
+ * held messages, favouring faster consumers. Ties are broken in turn.
+ * Subscribers not requiring acknowledgement have none outstanding.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class LeastOutstandingDispatchStrategy extends RoundRobinDispatchStrategy {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.broker.RoundRobinDispatchStrategy#select(java
+   * .lang.String, asia.stampy.client.message.send.SendMessage,
+   * asia.stampy.server.listener.broker.Subscription[],
+   * asia.stampy.server.listener.broker.AbstractBrokerListener)
+   */
+  @Override
+  public Subscription select(String destination, SendMessage message, Subscription[] subscribers,
+      AbstractBrokerListener<?> broker) {
+    int start = next(destination, subscribers.length);
+
+    Subscription least = null;
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < subscribers.length; i++) {
+      Subscription subscription = subscribers[(start + i) % subscribers.length];
+      int outstanding = broker.getOutstanding(subscription) + broker.getPending(subscription);
+      if (outstanding < min) {
+        least = subscription;
+        min = outstanding;
+      }
+    }
+
+    return least;
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Delivers all messages of a queue with the same {@value #MESSAGE_GROUP}
+ * header to the same subscriber, preserving their order of processing. The
+ * subscriber of a group is chosen by the delegate strategy when the first
+ * message of the group is sent, or once its subscriber has unsubscribed.
+ * Messages of a group are held while its subscriber has no prefetch credit.
+ * Messages without the header are dispatched by the delegate.<br>
+ * <br>
+ * At most {@link #getMaxGroups()} groups are remembered, the least recently
+ * used being forgotten and reassigned should another message be sent to it.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class MessageGroupDispatchStrategy implements StampyDispatchStrategy {
+
+  /** The header identifying the group of a message. */
+  public static final String MESSAGE_GROUP = "message-group";
+
+  /** The default maximum number of groups remembered. */
+  public static final int DEFAULT_MAX_GROUPS = 10000;
+
+  private int maxGroups = DEFAULT_MAX_GROUPS;
+
+  private Map<Group, Subscription> owners = new LinkedHashMap<Group, Subscription>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Group, Subscription> eldest) {
+      if (size() <= getMaxGroups()) return false;
+
+      disown(eldest.getValue(), eldest.getKey());
+      return true;
+    }
+  };
+
+  private Map<Subscription, Set<Group>> owned = new HashMap<Subscription, Set<Group>>();
+
+  private StampyDispatchStrategy delegate = new RoundRobinDispatchStrategy();
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.broker.StampyDispatchStrategy#select(java.lang
+   * .String, asia.stampy.client.message.send.SendMessage,
+   * asia.stampy.server.listener.broker.Subscription[],
+   * asia.stampy.server.listener.broker.AbstractBrokerListener)
+   */
+  @Override
+  public Subscription select(String destination, SendMessage message, Subscription[] subscribers,
+      AbstractBrokerListener<?> broker) {
+    String name = message.getHeader().getHeaderValue(MESSAGE_GROUP);
+    if (name == null) return delegate.select(destination, message, subscribers, broker);
+
+    Group group = new Group(destination, name);
+    synchronized (this) {
+      Subscription owner = owners.get(group);
+      if (owner != null) return contains(subscribers, owner) ? owner : null;
+
+      Subscription selected = delegate.select(destination, message, subscribers, broker);
+      if (selected == null) return null;
+
+      owners.put(group, selected);
+      Set<Group> groups = owned.get(selected);
+      if (groups == null) {
+        groups = new HashSet<Group>();
+        owned.put(selected, groups);
+      }
+      groups.add(group);
+
+      return selected;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.broker.StampyDispatchStrategy#unsubscribed(asia
+   * .stampy.server.listener.broker.Subscription)
+   */
+  @Override
+  public void unsubscribed(Subscription subscription) {
+    delegate.unsubscribed(subscription);
+
+    synchronized (this) {
+      Set<Group> groups = owned.remove(subscription);
+      if (groups == null) return;
+
+      for (Group group : groups) {
+        owners.remove(group);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of groups remembered.
+   * 
+   * @return the groups
+   */
+  public synchronized int getGroupCount() {
+    return owners.size();
+  }
+
+  private void disown(Subscription subscription, Group group) {
+    Set<Group> groups = owned.get(subscription);
+    if (groups == null) return;
+
+    groups.remove(group);
+    if (groups.isEmpty()) owned.remove(subscription);
+  }
+
+  private boolean contains(Subscription[] subscribers, Subscription subscription) {
+    for (Subscription s : subscribers) {
+      if (s == subscription) return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Gets the maximum number of groups remembered.
+   * 
+   * @return the max groups
+   */
+  public int getMaxGroups() {
+    return maxGroups;
+  }
+
+  /**
+   * Sets the maximum number of groups remembered. Defaults to
+   * {@value #DEFAULT_MAX_GROUPS}.
+   * 
+   * @param maxGroups
+   *          the new max groups
+   */
+  public void setMaxGroups(int maxGroups) {
+    this.maxGroups = maxGroups;
+  }
+
+  /**
+   * Gets the delegate.
+   * 
+   * @return the delegate
+   */
+  public StampyDispatchStrategy getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Sets the strategy assigning groups to subscribers and dispatching messages
+   * without a group. Defaults to {@link RoundRobinDispatchStrategy}.
+   * 
+   * @param delegate
+   *          the new delegate
+   */
+  public void setDelegate(StampyDispatchStrategy delegate) {
+    this.delegate = delegate;
+  }
+
+  private static class Group {
+    final String destination;
+    final String name;
+
+    Group(String destination, String name) {
+      this.destination = destination;
+      this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Group)) return false;
+
+      Group group = (Group) o;
+      return destination.equals(group.destination) && name.equals(group.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return destination.hashCode() * 31 + name.hashCode();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.server.message.message.MessageMessage;
+
+/**
+ * The unacknowledged messages of a {@link Subscription} requiring
+ * acknowledgement. Should the subscription be prefetch limited a message is
+ * delivered only while fewer than {@link Subscription#getPrefetch()} messages
+ * are unacknowledged; otherwise it is held, in order, until an acknowledgement
+ * returns credit. The ids of the messages offered and not yet acknowledged are
+ * tracked so that closing the window visits only its own messages.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+class PrefetchWindow {
+  private final Subscription subscription;
+  private final int limit;
+  private final Queue<MessageMessage> pending = new ArrayDeque<MessageMessage>();
+  private final Set<String> messageIds = new HashSet<String>();
+  private int outstanding;
+  private boolean closed;
+
+  /**
+   * Instantiates a new prefetch window.
+   * 
+   * @param subscription
+   *          the subscription
+   */
+  PrefetchWindow(Subscription subscription) {
+    this.subscription = subscription;
+    this.limit = subscription.isPrefetchLimited() ? subscription.getPrefetch() : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Offers the message for delivery.
+   * 
+   * @param message
+   *          the message
+   * @return true if credit was taken and the message is to be sent, false if
+   *         it has been held
+   */
+  synchronized boolean offer(MessageMessage message) {
+    if (closed) return false;
+
+    messageIds.add(message.getHeader().getMessageId());
+
+    if (pending.isEmpty() && outstanding < limit) {
+      outstanding++;
+      return true;
+    }
+
+    pending.add(message);
+    return false;
+  }
+
+  /**
+   * Returns the credit of an acknowledged message.
+   * 
+   * @param messageId
+   *          the id of the acknowledged message, or null should the message
+   *          remain tracked
+   * @return the next held message, for which credit has been taken, or null
+   */
+  synchronized MessageMessage release(String messageId) {
+    if (messageId != null) messageIds.remove(messageId);
+    if (outstanding > 0) outstanding--;
+    if (closed || outstanding >= limit) return null;
+
+    MessageMessage next = pending.poll();
+    if (next != null) outstanding++;
+
+    return next;
+  }
+
+  /**
+   * Closes the window, discarding held messages.
+   * 
+   * @return the ids of the messages offered and not acknowledged
+   */
+  synchronized List<String> close() {
+    closed = true;
+    pending.clear();
+
+    List<String> unacknowledged = new ArrayList<String>(messageIds);
+    messageIds.clear();
+
+    return unacknowledged;
+  }
+
+  /**
+   * Checks if a message offered now would be sent rather than held.
+   * 
+   * @return true, if the window has credit
+   */
+  synchronized boolean hasCredit() {
+    return !closed && pending.isEmpty() && outstanding < limit;
+  }
+
+  /**
+   * Checks if the window has been closed.
+   * 
+   * @return true, if is closed
+   */
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Gets the subscription.
+   * 
+   * @return the subscription
+   */
+  Subscription getSubscription() {
+    return subscription;
+  }
+
+  /**
+   * Gets the number of unacknowledged messages.
+   * 
+   * @return the outstanding
+   */
+  synchronized int getOutstanding() {
+    return outstanding;
+  }
+
+  /**
+   * Gets the number of held messages.
+   * 
+   * @return the pending
+   */
+  synchronized int getPending() {
+    return pending.size();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Determines when a negatively acknowledged or expired message is redelivered
+ * by the {@link AbstractBrokerListener}. Redeliveries are delayed by an
+ * exponential backoff; once the maximum number of deliveries has been made the
+ * message is sent to the dead letter destination, or discarded should there be
+ * none.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class RedeliveryPolicy {
+  private long initialDelayMillis = 1000;
+
+  private double multiplier = 2;
+
+  private long maxDelayMillis = 60000;
+
+  private int maxDeliveries;
+
+  private String deadLetterDestination;
+
+  /**
+   * Gets the delay before the next delivery of a message.
+   * 
+   * @param deliveryCount
+   *          the number of deliveries made
+   * @return the delay in milliseconds
+   */
+  public long getDelay(int deliveryCount) {
+    double delay = getInitialDelayMillis() * Math.pow(getMultiplier(), Math.max(0, deliveryCount - 1));
+
+    return (long) Math.min(delay, getMaxDelayMillis());
+  }
+
+  /**
+   * Checks if no further deliveries are to be made.
+   * 
+   * @param deliveryCount
+   *          the number of deliveries made
+   * @return true, if exhausted
+   */
+  public boolean isExhausted(int deliveryCount) {
+    return getMaxDeliveries() > 0 && deliveryCount >= getMaxDeliveries();
+  }
+
+  /**
+   * Gets the initial delay millis.
+   * 
+   * @return the initial delay millis
+   */
+  public long getInitialDelayMillis() {
+    return initialDelayMillis;
+  }
+
+  /**
+   * Sets the delay before the first redelivery. Defaults to one second (1000);
+   * 0 redelivers immediately.
+   * 
+   * @param initialDelayMillis
+   *          the new initial delay millis
+   */
+  public void setInitialDelayMillis(long initialDelayMillis) {
+    this.initialDelayMillis = initialDelayMillis;
+  }
+
+  /**
+   * Gets the multiplier.
+   * 
+   * @return the multiplier
+   */
+  public double getMultiplier() {
+    return multiplier;
+  }
+
+  /**
+   * Sets the factor by which the delay grows with each redelivery. Defaults to
+   * 2.
+   * 
+   * @param multiplier
+   *          the new multiplier
+   */
+  public void setMultiplier(double multiplier) {
+    this.multiplier = multiplier;
+  }
+
+  /**
+   * Gets the max delay millis.
+   * 
+   * @return the max delay millis
+   */
+  public long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  /**
+   * Sets the upper bound of the delay. Defaults to one minute (60000).
+   * 
+   * @param maxDelayMillis
+   *          the new max delay millis
+   */
+  public void setMaxDelayMillis(long maxDelayMillis) {
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Gets the max deliveries.
+   * 
+   * @return the max deliveries
+   */
+  public int getMaxDeliveries() {
+    return maxDeliveries;
+  }
+
+  /**
+   * Sets the number of deliveries after which a message is dead lettered.
+   * Defaults to 0, redelivering indefinitely.
+   * 
+   * @param maxDeliveries
+   *          the new max deliveries
+   */
+  public void setMaxDeliveries(int maxDeliveries) {
+    this.maxDeliveries = maxDeliveries;
+  }
+
+  /**
+   * Gets the dead letter destination.
+   * 
+   * @return the dead letter destination
+   */
+  public String getDeadLetterDestination() {
+    return deadLetterDestination;
+  }
+
+  /**
+   * Sets the destination to which messages are sent once the maximum number
+   * of deliveries has been made. Defaults to null, discarding such messages.
+   * 
+   * @param deadLetterDestination
+   *          the new dead letter destination
+   */
+  public void setDeadLetterDestination(String deadLetterDestination) {
+    this.deadLetterDestination = deadLetterDestination;
+  }
+}
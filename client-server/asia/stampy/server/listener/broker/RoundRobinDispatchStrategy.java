@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Delivers the messages of each queue to its subscribers in turn.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class RoundRobinDispatchStrategy implements StampyDispatchStrategy {
+  private ConcurrentMap<String, AtomicInteger> counters = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.broker.StampyDispatchStrategy#select(java.lang
+   * .String, asia.stampy.client.message.send.SendMessage,
+   * asia.stampy.server.listener.broker.Subscription[],
+   * asia.stampy.server.listener.broker.AbstractBrokerListener)
+   */
+  @Override
+  public Subscription select(String destination, SendMessage message, Subscription[] subscribers,
+      AbstractBrokerListener<?> broker) {
+    return subscribers[next(destination, subscribers.length)];
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.server.listener.broker.StampyDispatchStrategy#unsubscribed(asia
+   * .stampy.server.listener.broker.Subscription)
+   */
+  @Override
+  public void unsubscribed(Subscription subscription) {
+  }
+
+  /**
+   * Returns the next index for the destination.
+   * 
+   * @param destination
+   *          the destination
+   * @param count
+   *          the number of subscribers
+   * @return the index
+   */
+  protected int next(String destination, int count) {
+    AtomicInteger counter = counters.get(destination);
+    if (counter == null) {
+      counter = new AtomicInteger();
+      AtomicInteger existing = counters.putIfAbsent(destination, counter);
+      if (existing != null) counter = existing;
+    }
+
+    return (counter.getAndIncrement() & Integer.MAX_VALUE) % count;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Chooses the subscriber of a queue to which a message is delivered. Invoked
+ * concurrently; implementations must be thread safe.
+ * 
+ * @see AbstractBrokerListener#setDispatchStrategy(StampyDispatchStrategy)
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface StampyDispatchStrategy {
+
+  /**
+   * Selects the subscriber to which the message is to be delivered.
+   * 
+   * @param destination
+   *          the queue
+   * @param message
+   *          the message
+   * @param subscribers
+   *          the candidate subscribers with prefetch credit, at least one; must
+   *          not be modified
+   * @param broker
+   *          the broker
+   * @return the subscriber, or null to hold the message until credit is
+   *         returned or the subscriptions change
+   */
+  Subscription select(String destination, SendMessage message, Subscription[] subscribers,
+      AbstractBrokerListener<?> broker);
+
+  /**
+   * Invoked once the subscription has been removed, allowing any state kept
+   * for it to be discarded.
+   * 
+   * @param subscription
+   *          the subscription
+   */
+  void unsubscribed(Subscription subscription);
+}
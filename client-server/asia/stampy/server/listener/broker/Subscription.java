@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+
+/**
+ * An immutable subscription of a connection to a destination, as specified by
+ * a {@link asia.stampy.common.message.StompMessageType#SUBSCRIBE} message.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class Subscription {
+  private final HostPort hostPort;
+  private final String id;
+  private final String destination;
+  private final Ack ack;
+  private final int prefetch;
+
+  /**
+   * Instantiates a new subscription.
+   * 
+   * @param hostPort
+   *          the host port of the subscriber
+   * @param id
+   *          the subscription id, unique per connection
+   * @param destination
+   *          the destination
+   * @param ack
+   *          the ack mode, null for {@link Ack#auto}
+   */
+  public Subscription(HostPort hostPort, String id, String destination, Ack ack) {
+    this(hostPort, id, destination, ack, 0);
+  }
+
+  /**
+   * Instantiates a new subscription with a prefetch window.
+   * 
+   * @param hostPort
+   *          the host port of the subscriber
+   * @param id
+   *          the subscription id, unique per connection
+   * @param destination
+   *          the destination
+   * @param ack
+   *          the ack mode, null for {@link Ack#auto}
+   * @param prefetch
+   *          the maximum number of unacknowledged messages outstanding, 0 for
+   *          no limit
+   */
+  public Subscription(HostPort hostPort, String id, String destination, Ack ack, int prefetch) {
+    this.hostPort = hostPort;
+    this.id = id;
+    this.destination = destination;
+    this.ack = ack == null ? Ack.auto : ack;
+    this.prefetch = prefetch;
+  }
+
+  /**
+   * Gets the host port of the subscriber.
+   * 
+   * @return the host port
+   */
+  public HostPort getHostPort() {
+    return hostPort;
+  }
+
+  /**
+   * Gets the subscription id.
+   * 
+   * @return the id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the destination.
+   * 
+   * @return the destination
+   */
+  public String getDestination() {
+    return destination;
+  }
+
+  /**
+   * Gets the ack mode.
+   * 
+   * @return the ack
+   */
+  public Ack getAck() {
+    return ack;
+  }
+
+  /**
+   * Gets the maximum number of unacknowledged messages outstanding to the
+   * subscriber. Applies only should acknowledgement be required.
+   * 
+   * @return the prefetch, 0 for no limit
+   */
+  public int getPrefetch() {
+    return prefetch;
+  }
+
+  /**
+   * Checks if delivery to the subscriber is limited by a prefetch window.
+   * 
+   * @return true, if acknowledgement is required and the prefetch is positive
+   */
+  public boolean isPrefetchLimited() {
+    return isAckRequired() && prefetch > 0;
+  }
+
+  /**
+   * Checks if the subscriber must acknowledge messages.
+   * 
+   * @return true, if the ack mode is not {@link Ack#auto}
+   */
+  public boolean isAckRequired() {
+    return ack != Ack.auto;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "Subscription [hostPort=" + hostPort + ", id=" + id + ", destination=" + destination + ", ack=" + ack
+        + ", prefetch=" + prefetch + "]";
+  }
+}
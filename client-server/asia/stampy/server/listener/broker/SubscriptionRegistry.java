@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+
+/**
+ * A concurrent registry of {@link Subscription}s. Subscribers of a destination
+ * are held in an immutable array replaced by compare-and-set on each change,
+ * so routing a message is a single map lookup without locks or copying.
+ * Subscriptions are also indexed by connection for
+ * {@link #unsubscribe(HostPort, String)} and {@link #remove(HostPort)}.<br>
+ * <br>
+ * Subscriptions to destination patterns are held in a {@link TopicTrie}. The
+ * subscribers matching a destination are cached until the next change to the
+ * registry; the cache is cleared should it exceed
+ * {@link #getMaxCachedDestinations()}.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class SubscriptionRegistry {
+  private static final Subscription[] NONE = new Subscription[0];
+
+  /** The default maximum number of cached destinations. */
+  public static final int DEFAULT_MAX_CACHED_DESTINATIONS = 100000;
+
+  private ConcurrentMap<String, Subscription[]> destinations = new ConcurrentHashMap<String, Subscription[]>();
+
+  private ConcurrentMap<HostPort, ConcurrentMap<String, Subscription>> connections = new ConcurrentHashMap<HostPort, ConcurrentMap<String, Subscription>>();
+
+  private TopicTrie patterns = new TopicTrie();
+
+  private ConcurrentMap<String, Match> matches = new ConcurrentHashMap<String, Match>();
+
+  private AtomicLong generation = new AtomicLong();
+
+  private int maxCachedDestinations = DEFAULT_MAX_CACHED_DESTINATIONS;
+
+  /**
+   * Adds the subscription, replacing any subscription of the same connection
+   * with the same id.
+   * 
+   * @param subscription
+   *          the subscription
+   * @return the replaced subscription, or null
+   */
+  public Subscription subscribe(Subscription subscription) {
+    ConcurrentMap<String, Subscription> ids = getIds(subscription.getHostPort());
+
+    Subscription replaced = ids.put(subscription.getId(), subscription);
+    if (replaced != null) removeSubscriber(replaced);
+
+    addSubscriber(subscription);
+
+    return replaced;
+  }
+
+  /**
+   * Removes the subscription of the specified connection with the specified
+   * id.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param id
+   *          the subscription id
+   * @return the subscription removed, or null
+   */
+  public Subscription unsubscribe(HostPort hostPort, String id) {
+    ConcurrentMap<String, Subscription> ids = connections.get(hostPort);
+    if (ids == null) return null;
+
+    Subscription subscription = ids.remove(id);
+    if (subscription != null) removeSubscriber(subscription);
+
+    return subscription;
+  }
+
+  /**
+   * Removes all subscriptions of the specified connection.
+   * 
+   * @param hostPort
+   *          the host port
+   */
+  public void remove(HostPort hostPort) {
+    ConcurrentMap<String, Subscription> ids = connections.remove(hostPort);
+    if (ids == null) return;
+
+    for (Subscription subscription : ids.values()) {
+      removeSubscriber(subscription);
+    }
+  }
+
+  /**
+   * Gets the subscribers of the specified destination. The returned array must
+   * not be modified.
+   * 
+   * @param destination
+   *          the destination
+   * @return the subscribers, never null
+   */
+  public Subscription[] getSubscribers(String destination) {
+    if (destination == null) return NONE;
+
+    if (patterns.isEmpty()) return getExactSubscribers(destination);
+
+    long current = generation.get();
+    Match match = matches.get(destination);
+    if (match != null && match.generation == current) return match.subscribers;
+
+    Set<Subscription> matched = Collections.newSetFromMap(new IdentityHashMap<Subscription, Boolean>());
+    Collections.addAll(matched, getExactSubscribers(destination));
+    patterns.match(destination, matched);
+
+    Subscription[] subscribers = matched.isEmpty() ? NONE : matched.toArray(new Subscription[matched.size()]);
+
+    if (matches.size() >= getMaxCachedDestinations()) matches.clear();
+    matches.put(destination, new Match(current, subscribers));
+
+    return subscribers;
+  }
+
+  private Subscription[] getExactSubscribers(String destination) {
+    Subscription[] subscribers = destinations.get(destination);
+
+    return subscribers == null ? NONE : subscribers;
+  }
+
+  /**
+   * Gets the subscriptions of the specified connection.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return the subscriptions
+   */
+  public Collection<Subscription> getSubscriptions(HostPort hostPort) {
+    ConcurrentMap<String, Subscription> ids = connections.get(hostPort);
+    if (ids == null) return Collections.emptyList();
+
+    return Collections.unmodifiableCollection(ids.values());
+  }
+
+  /**
+   * Checks for subscriptions of the specified connection.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return true, if the connection has subscriptions
+   */
+  public boolean hasSubscriptions(HostPort hostPort) {
+    return connections.containsKey(hostPort);
+  }
+
+  private ConcurrentMap<String, Subscription> getIds(HostPort hostPort) {
+    ConcurrentMap<String, Subscription> ids = connections.get(hostPort);
+    if (ids == null) {
+      ids = new ConcurrentHashMap<String, Subscription>();
+      ConcurrentMap<String, Subscription> existing = connections.putIfAbsent(hostPort, ids);
+      if (existing != null) ids = existing;
+    }
+
+    return ids;
+  }
+
+  /**
+   * Gets the maximum number of destinations for which matching subscribers are
+   * cached.
+   * 
+   * @return the max cached destinations
+   */
+  public int getMaxCachedDestinations() {
+    return maxCachedDestinations;
+  }
+
+  /**
+   * Sets the maximum number of destinations for which matching subscribers are
+   * cached. Defaults to {@link #DEFAULT_MAX_CACHED_DESTINATIONS}.
+   * 
+   * @param maxCachedDestinations
+   *          the new max cached destinations
+   */
+  public void setMaxCachedDestinations(int maxCachedDestinations) {
+    this.maxCachedDestinations = maxCachedDestinations;
+  }
+
+  private void addSubscriber(Subscription subscription) {
+    try {
+      if (TopicTrie.isPattern(subscription.getDestination())) {
+        patterns.add(subscription);
+      } else {
+        addExactSubscriber(subscription);
+      }
+    } finally {
+      invalidate();
+    }
+  }
+
+  private void removeSubscriber(Subscription subscription) {
+    try {
+      if (TopicTrie.isPattern(subscription.getDestination())) {
+        patterns.remove(subscription);
+      } else {
+        removeExactSubscriber(subscription);
+      }
+    } finally {
+      invalidate();
+    }
+  }
+
+  private void invalidate() {
+    generation.incrementAndGet();
+    if (patterns.isEmpty()) matches.clear();
+  }
+
+  private void addExactSubscriber(Subscription subscription) {
+    String destination = subscription.getDestination();
+    while (true) {
+      Subscription[] current = destinations.get(destination);
+      if (current == null) {
+        if (destinations.putIfAbsent(destination, new Subscription[] { subscription }) == null) return;
+        continue;
+      }
+
+      Subscription[] next = new Subscription[current.length + 1];
+      System.arraycopy(current, 0, next, 0, current.length);
+      next[current.length] = subscription;
+
+      if (destinations.replace(destination, current, next)) return;
+    }
+  }
+
+  private void removeExactSubscriber(Subscription subscription) {
+    String destination = subscription.getDestination();
+    while (true) {
+      Subscription[] current = destinations.get(destination);
+      if (current == null) return;
+
+      int idx = indexOf(current, subscription);
+      if (idx < 0) return;
+
+      if (current.length == 1) {
+        if (destinations.remove(destination, current)) return;
+        continue;
+      }
+
+      Subscription[] next = new Subscription[current.length - 1];
+      System.arraycopy(current, 0, next, 0, idx);
+      System.arraycopy(current, idx + 1, next, idx, next.length - idx);
+
+      if (destinations.replace(destination, current, next)) return;
+    }
+  }
+
+  private int indexOf(Subscription[] subscriptions, Subscription subscription) {
+    for (int i = 0; i < subscriptions.length; i++) {
+      if (subscriptions[i] == subscription) return i;
+    }
+
+    return -1;
+  }
+
+  private static class Match {
+    final long generation;
+    final Subscription[] subscribers;
+
+    Match(long generation, Subscription[] subscribers) {
+      this.generation = generation;
+      this.subscribers = subscribers;
+    }
+  }
+}
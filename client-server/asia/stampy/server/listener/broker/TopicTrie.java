@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * A trie of {@link Subscription}s to destination patterns. Destinations are
+ * split into segments on '.'; in a pattern the segment '*' matches exactly one
+ * segment and the segment '#' matches zero or more segments, ie.
+ * <code>/topic/prices.*.EUR</code> matches <code>/topic/prices.FX.EUR</code>
+ * and <code>/topic/orders.#</code> matches <code>/topic/orders</code> and
+ * <code>/topic/orders.new.42</code>.<br>
+ * <br>
+ * Matching visits only the nodes along the segments of the destination and
+ * the wildcard branches beside them, so its cost depends on the depth of the
+ * destination rather than the number of subscriptions. Matching is lock-free;
+ * changes are serialized.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class TopicTrie {
+  /** The segment separator. */
+  public static final char SEPARATOR = '.';
+
+  /** The segment matching exactly one segment. */
+  public static final String ONE = "*";
+
+  /** The segment matching zero or more segments. */
+  public static final String ANY = "#";
+
+  private static final Subscription[] NONE = new Subscription[0];
+
+  private final Node root = new Node();
+
+  /**
+   * Checks if the destination contains a wildcard segment.
+   * 
+   * @param destination
+   *          the destination
+   * @return true, if the destination is a pattern
+   */
+  public static boolean isPattern(String destination) {
+    if (destination == null) return false;
+
+    for (String segment : split(destination)) {
+      if (ONE.equals(segment) || ANY.equals(segment)) return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Adds the subscription for its destination pattern.
+   * 
+   * @param subscription
+   *          the subscription
+   */
+  public synchronized void add(Subscription subscription) {
+    Node node = root;
+    for (String segment : split(subscription.getDestination())) {
+      Node child = node.children.get(segment);
+      if (child == null) {
+        child = new Node();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+
+    Subscription[] current = node.subscribers;
+    Subscription[] next = new Subscription[current.length + 1];
+    System.arraycopy(current, 0, next, 0, current.length);
+    next[current.length] = subscription;
+    node.subscribers = next;
+  }
+
+  /**
+   * Removes the subscription, pruning nodes left empty.
+   * 
+   * @param subscription
+   *          the subscription
+   * @return true, if removed
+   */
+  public synchronized boolean remove(Subscription subscription) {
+    String[] segments = split(subscription.getDestination());
+    Node[] path = new Node[segments.length + 1];
+    path[0] = root;
+    for (int i = 0; i < segments.length; i++) {
+      path[i + 1] = path[i].children.get(segments[i]);
+      if (path[i + 1] == null) return false;
+    }
+
+    Node node = path[segments.length];
+    Subscription[] current = node.subscribers;
+    int idx = -1;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == subscription) {
+        idx = i;
+        break;
+      }
+    }
+    if (idx < 0) return false;
+
+    Subscription[] next = NONE;
+    if (current.length > 1) {
+      next = new Subscription[current.length - 1];
+      System.arraycopy(current, 0, next, 0, idx);
+      System.arraycopy(current, idx + 1, next, idx, next.length - idx);
+    }
+    node.subscribers = next;
+
+    for (int i = segments.length; i > 0 && path[i].isEmpty(); i--) {
+      path[i - 1].children.remove(segments[i - 1]);
+    }
+
+    return true;
+  }
+
+  /**
+   * Checks if the trie has no subscriptions.
+   * 
+   * @return true, if empty
+   */
+  public boolean isEmpty() {
+    return root.isEmpty();
+  }
+
+  /**
+   * Adds the subscriptions whose pattern matches the destination to the
+   * results. A subscription is added once for each of its matching paths;
+   * supply a set to remove duplicates.
+   * 
+   * @param destination
+   *          the destination
+   * @param results
+   *          the results
+   */
+  public void match(String destination, Collection<Subscription> results) {
+    match(root, split(destination), 0, results);
+  }
+
+  private void match(Node node, String[] segments, int idx, Collection<Subscription> results) {
+    Node any = node.children.get(ANY);
+    if (any != null) {
+      for (int i = idx; i <= segments.length; i++) {
+        match(any, segments, i, results);
+      }
+    }
+
+    if (idx == segments.length) {
+      add(node.subscribers, results);
+      return;
+    }
+
+    Node child = node.children.get(segments[idx]);
+    if (child != null) match(child, segments, idx + 1, results);
+
+    Node one = node.children.get(ONE);
+    if (one != null) match(one, segments, idx + 1, results);
+  }
+
+  private void add(Subscription[] subscribers, Collection<Subscription> results) {
+    for (Subscription subscription : subscribers) {
+      results.add(subscription);
+    }
+  }
+
+  private static String[] split(String destination) {
+    List<String> segments = new ArrayList<String>();
+    int start = 0;
+    int end = destination.indexOf(SEPARATOR);
+    while (end >= 0) {
+      segments.add(destination.substring(start, end));
+      start = end + 1;
+      end = destination.indexOf(SEPARATOR, start);
+    }
+    segments.add(destination.substring(start));
+
+    return segments.toArray(new String[segments.size()]);
+  }
+
+  private static class Node {
+    final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+
+    volatile Subscription[] subscribers = NONE;
+
+    boolean isEmpty() {
+      return subscribers.length == 0 && children.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.receipt;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.server.journal.Journal;
+
+/**
+ * Defers RECEIPTs for journaled messages until the {@link Journal} has
+ * committed them, releasing the RECEIPTs in batches so that a single fsync
+ * confirms many messages. A batch is committed once it reaches
+ * {@link #getMaxBatchSize()} RECEIPTs or its first RECEIPT has waited
+ * {@link #getMaxLingerMillis()}, whichever comes first.<br>
+ * <br>
+ * Instead of committing each journaled message the broker hands its RECEIPT
+ * to {@link #defer(long, Runnable)}, or registers messages without a RECEIPT
+ * with {@link #commitLater(long)} to be committed with the next batch.<br>
+ * <br>
+ * {@link #shutdown()} stops the batcher's thread, committing and releasing the
+ * outstanding RECEIPTs.
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class ReceiptBatcher {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** The default max batch size. */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+  /** The default max linger millis. */
+  public static final long DEFAULT_MAX_LINGER_MILLIS = 2;
+
+  private final Journal journal;
+
+  private final BlockingQueue<PendingReceipt> pending = new LinkedBlockingQueue<PendingReceipt>();
+
+  private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+  private long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+
+  private volatile Thread thread;
+
+  /**
+   * Instantiates a new receipt batcher.
+   * 
+   * @param journal
+   *          the journal
+   */
+  public ReceiptBatcher(Journal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Defers the RECEIPT for a journaled message until the journal has been
+   * committed up to the message's sequence. The RECEIPT is sent immediately
+   * should the sequence already be durable.
+   * 
+   * @param sequence
+   *          the journal sequence of the message
+   * @param receipt
+   *          sends the RECEIPT
+   */
+  public void defer(long sequence, Runnable receipt) {
+    if (journal.getDurableSequence() >= sequence) {
+      receipt.run();
+      return;
+    }
+
+    pending.add(new PendingReceipt(sequence, receipt));
+    startIfNecessary();
+  }
+
+  /**
+   * Commits the journal up to the sequence with the next batch, for journaled
+   * messages without a RECEIPT.
+   * 
+   * @param sequence
+   *          the journal sequence of the message
+   */
+  public void commitLater(long sequence) {
+    if (journal.getDurableSequence() >= sequence) return;
+
+    pending.add(new PendingReceipt(sequence, null));
+    startIfNecessary();
+  }
+
+  /**
+   * Stops the batcher's thread, committing the journal and releasing the
+   * RECEIPTs outstanding. The batcher is restarted should a RECEIPT
+   * subsequently be deferred.
+   */
+  public void shutdown() {
+    Thread stopping;
+    synchronized (this) {
+      stopping = thread;
+      thread = null;
+    }
+
+    if (stopping != null) {
+      stopping.interrupt();
+      try {
+        stopping.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    List<PendingReceipt> batch = new ArrayList<PendingReceipt>();
+    pending.drainTo(batch);
+    if (!batch.isEmpty()) commit(batch);
+  }
+
+  private synchronized void startIfNecessary() {
+    if (thread != null) return;
+
+    Runnable runnable = new Runnable() {
+
+      @Override
+      public void run() {
+        while (thread == Thread.currentThread()) {
+          try {
+            commitBatch();
+          } catch (InterruptedException e) {
+            if (thread == Thread.currentThread()) log.warn("Receipt batcher interrupted, continuing");
+          } catch (Exception e) {
+            log.error("Unexpected exception committing receipts", e);
+          }
+        }
+      }
+    };
+
+    thread = new Thread(runnable, "Stampy Receipt Batcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void commitBatch() throws InterruptedException {
+    List<PendingReceipt> batch = new ArrayList<PendingReceipt>();
+    batch.add(pending.take());
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getMaxLingerMillis());
+    try {
+      while (batch.size() < getMaxBatchSize()) {
+        long remaining = deadline - System.nanoTime();
+        PendingReceipt next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+        if (next == null) break;
+        batch.add(next);
+      }
+    } catch (InterruptedException e) {
+      // commit the batch taken before exiting
+      Thread.currentThread().interrupt();
+    }
+
+    commit(batch);
+  }
+
+  private void commit(List<PendingReceipt> batch) {
+    long sequence = batch.get(0).sequence;
+    for (PendingReceipt receipt : batch) {
+      sequence = Math.max(sequence, receipt.sequence);
+    }
+
+    try {
+      journal.commit(sequence);
+    } catch (Exception e) {
+      log.error("Could not commit the journal, withholding " + batch.size() + " receipts", e);
+      return;
+    }
+
+    log.debug("Committed journal to sequence {}, releasing {} receipts", sequence, batch.size());
+    for (PendingReceipt receipt : batch) {
+      if (receipt.receipt == null) continue;
+      try {
+        receipt.receipt.run();
+      } catch (Exception e) {
+        log.error("Could not send receipt", e);
+      }
+    }
+  }
+
+  /**
+   * Gets the max batch size.
+   * 
+   * @return the max batch size
+   */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Sets the maximum number of RECEIPTs released by a single commit. Defaults
+   * to {@link #DEFAULT_MAX_BATCH_SIZE}.
+   * 
+   * @param maxBatchSize
+   *          the new max batch size
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Gets the max linger millis.
+   * 
+   * @return the max linger millis
+   */
+  public long getMaxLingerMillis() {
+    return maxLingerMillis;
+  }
+
+  /**
+   * Sets the maximum time the first RECEIPT of a batch waits for others before
+   * the batch is committed. Defaults to {@link #DEFAULT_MAX_LINGER_MILLIS}.
+   * 
+   * @param maxLingerMillis
+   *          the new max linger millis
+   */
+  public void setMaxLingerMillis(long maxLingerMillis) {
+    this.maxLingerMillis = maxLingerMillis;
+  }
+
+  /**
+   * Gets the journal.
+   * 
+   * @return the journal
+   */
+  public Journal getJournal() {
+    return journal;
+  }
+
+  private static class PendingReceipt {
+    final long sequence;
+    final Runnable receipt;
+
+    PendingReceipt(long sequence, Runnable receipt) {
+      this.sequence = sequence;
+      this.receipt = receipt;
+    }
+  }
+}
@@ -18,12 +18,13 @@
  */
 package asia.stampy.server.listener.subscription;
 
-import java.util.Map;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -31,14 +32,20 @@ import asia.stampy.client.message.ack.AckHeader;
 import asia.stampy.client.message.ack.AckMessage;
 import asia.stampy.client.message.nack.NackHeader;
 import asia.stampy.client.message.nack.NackMessage;
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.client.message.unsubscribe.UnsubscribeMessage;
 import asia.stampy.common.StampyLibrary;
 import asia.stampy.common.gateway.AbstractStampyMessageGateway;
 import asia.stampy.common.gateway.HostPort;
 import asia.stampy.common.gateway.StampyMessageListener;
+import asia.stampy.common.gateway.StampyShutdownListener;
 import asia.stampy.common.message.StampyMessage;
 import asia.stampy.common.message.StompMessageType;
 import asia.stampy.common.message.interceptor.AbstractOutgoingMessageInterceptor;
 import asia.stampy.common.message.interceptor.InterceptException;
+import asia.stampy.common.timer.TimingWheel;
+import asia.stampy.common.timer.TimingWheelTask;
 import asia.stampy.server.message.message.MessageMessage;
 
 /**
@@ -46,20 +53,35 @@ import asia.stampy.server.message.message.MessageMessage;
  * messages for a subscription. If confirmation of the publication is requested
  * a timer is created to await receipt of the confirmation, and the appropriate
  * methods of the {@link StampyAcknowledgementHandler} implementation are
- * invoked.
+ * invoked.<br>
+ * <br>
+ * Pending acknowledgements are indexed by ack id per connection and expired by
+ * a {@link TimingWheel}, making acknowledgement and timeout constant time
+ * regardless of the number outstanding.<br>
+ * <br>
+ * For subscriptions with {@link Ack#client} acknowledgement the delivery order
+ * is tracked and an ACK is cumulative, acknowledging all earlier messages of the
+ * subscription. Should the handler implement
+ * {@link StampyBulkAcknowledgementHandler} the acknowledged ids are passed in a
+ * single invocation.
  */
 @StampyLibrary(libraryName = "stampy-client-server")
 public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends AbstractStampyMessageGateway> extends
     AbstractOutgoingMessageInterceptor<SVR> implements StampyMessageListener {
   private static final StompMessageType[] TYPES = { StompMessageType.ACK, StompMessageType.NACK,
-      StompMessageType.MESSAGE };
+      StompMessageType.MESSAGE, StompMessageType.SUBSCRIBE, StompMessageType.UNSUBSCRIBE };
 
   private StampyAcknowledgementHandler handler;
 
-  /** The messages. */
-  protected Map<HostPort, Queue<String>> messages = new ConcurrentHashMap<HostPort, Queue<String>>();
+  /** The pending acknowledgements, keyed by ack id per connection. */
+  protected ConcurrentMap<HostPort, ConcurrentMap<String, PendingAck>> messages =
+      new ConcurrentHashMap<HostPort, ConcurrentMap<String, PendingAck>>();
 
-  private Timer ackTimer = new Timer("Stampy Acknowledgement Timer", true);
+  /** The {@link Ack#client} subscriptions, keyed by subscription id per connection. */
+  protected ConcurrentMap<HostPort, ConcurrentMap<String, ClientSubscription>> clientSubscriptions =
+      new ConcurrentHashMap<HostPort, ConcurrentMap<String, ClientSubscription>>();
+
+  private TimingWheel ackWheel = new TimingWheel("Stampy Acknowledgement Wheel");
 
   private long ackTimeoutMillis = 60000;
 
@@ -85,8 +107,11 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
     switch (message.getMessageType()) {
     case MESSAGE:
       return StringUtils.isNotEmpty(((MessageMessage) message).getHeader().getAck());
+    case SUBSCRIBE:
+      return Ack.client == ((SubscribeMessage) message).getHeader().getAck();
     case ACK:
     case NACK:
+    case UNSUBSCRIBE:
       return true;
     default:
       return false;
@@ -108,6 +133,12 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
     case NACK:
       evaluateNack(((NackMessage) message).getHeader(), hostPort);
       break;
+    case SUBSCRIBE:
+      addClientSubscription(((SubscribeMessage) message).getHeader().getId(), hostPort);
+      break;
+    case UNSUBSCRIBE:
+      removeClientSubscription(((UnsubscribeMessage) message).getHeader().getId(), hostPort);
+      break;
     default:
       break;
 
@@ -124,40 +155,63 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
    */
   @Override
   public void interceptMessage(StampyMessage<?> message, HostPort hostPort) throws InterceptException {
+    if (message.getMessageType() != StompMessageType.MESSAGE) return;
+
     MessageMessage msg = (MessageMessage) message;
 
     String ack = msg.getHeader().getAck();
 
-    Queue<String> queue = messages.get(hostPort);
-    if (queue == null) {
-      queue = new ConcurrentLinkedQueue<String>();
-      messages.put(hostPort, queue);
+    ConcurrentMap<String, PendingAck> pending = messages.get(hostPort);
+    if (pending == null) {
+      pending = new ConcurrentHashMap<String, PendingAck>();
+      ConcurrentMap<String, PendingAck> existing = messages.putIfAbsent(hostPort, pending);
+      if (existing != null) pending = existing;
     }
 
-    queue.add(ack);
-    startTimerTask(hostPort, ack);
+    PendingAck task = new PendingAck(hostPort, ack, System.currentTimeMillis() + getAckTimeoutMillis());
+
+    ConcurrentMap<String, ClientSubscription> subscriptions = clientSubscriptions.get(hostPort);
+    String id = msg.getHeader().getSubscription();
+    if (subscriptions != null && id != null) task.setSubscription(subscriptions.get(id));
+
+    pending.put(ack, task);
+    if (task.getSubscription() != null) task.getSubscription().add(task);
+    ackWheel.schedule(task);
   }
 
-  private void startTimerTask(final HostPort hostPort, final String ack) {
-    TimerTask task = new TimerTask() {
+  private void addClientSubscription(String id, HostPort hostPort) {
+    if (id == null) return;
 
-      @Override
-      public void run() {
-        Queue<String> q = messages.get(hostPort);
-        if (q == null || !q.contains(ack)) return;
+    ConcurrentMap<String, ClientSubscription> subscriptions = clientSubscriptions.get(hostPort);
+    if (subscriptions == null) {
+      subscriptions = new ConcurrentHashMap<String, ClientSubscription>();
+      ConcurrentMap<String, ClientSubscription> existing = clientSubscriptions.putIfAbsent(hostPort, subscriptions);
+      if (existing != null) subscriptions = existing;
+    }
 
-        getHandler().noAcknowledgementReceived(ack);
-        q.remove(ack);
-      }
-    };
+    subscriptions.put(id, new ClientSubscription());
+  }
 
-    ackTimer.schedule(task, getAckTimeoutMillis());
+  private void removeClientSubscription(String id, HostPort hostPort) {
+    ConcurrentMap<String, ClientSubscription> subscriptions = clientSubscriptions.get(hostPort);
+    if (subscriptions != null && id != null) subscriptions.remove(id);
+  }
+
+  /**
+   * Removes all pending acknowledgements and subscriptions for the specified
+   * {@link HostPort}. Invoked on session termination.
+   * 
+   * @param hostPort
+   *          the host port
+   */
+  protected void cleanup(HostPort hostPort) {
+    messages.remove(hostPort);
+    clientSubscriptions.remove(hostPort);
   }
 
   private void evaluateNack(NackHeader header, HostPort hostPort) throws Exception {
     String id = header.getId();
-    if (hasMessageAck(id, hostPort)) {
-      clearMessageAck(id, hostPort);
+    if (clearMessageAck(id, hostPort) != null) {
       getHandler().nackReceived(id, header.getReceipt(), header.getTransaction());
     } else {
       throw new UnexpectedAcknowledgementException("No NACK message expected, yet received id " + id + " from "
@@ -167,27 +221,58 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
 
   private void evaluateAck(AckHeader header, HostPort hostPort) throws Exception {
     String id = header.getId();
-    if (hasMessageAck(id, hostPort)) {
-      clearMessageAck(id, hostPort);
-      getHandler().ackReceived(id, header.getReceipt(), header.getTransaction());
-    } else {
+    PendingAck pending = clearMessageAck(id, hostPort);
+    if (pending == null) {
       throw new UnexpectedAcknowledgementException("No ACK message expected, yet received id " + id + " from "
           + hostPort);
     }
+
+    if (pending.getSubscription() == null) {
+      getHandler().ackReceived(id, header.getReceipt(), header.getTransaction());
+    } else {
+      acksReceived(clearEarlierMessageAcks(pending, hostPort), header.getReceipt(), header.getTransaction());
+    }
   }
 
-  private boolean hasMessageAck(String messageId, HostPort hostPort) {
-    Queue<String> ids = messages.get(hostPort);
-    if (ids == null || ids.isEmpty()) return false;
+  private void acksReceived(List<String> ids, String receipt, String transaction) throws Exception {
+    if (getHandler() instanceof StampyBulkAcknowledgementHandler) {
+      ((StampyBulkAcknowledgementHandler) getHandler()).acksReceived(ids, receipt, transaction);
+    } else {
+      for (String id : ids) {
+        getHandler().ackReceived(id, receipt, transaction);
+      }
+    }
+  }
+
+  private PendingAck clearMessageAck(String messageId, HostPort hostPort) {
+    ConcurrentMap<String, PendingAck> ids = messages.get(hostPort);
+    if (ids == null || messageId == null) return null;
+
+    PendingAck pending = ids.remove(messageId);
+    if (pending == null) return null;
 
-    return ids.contains(messageId);
+    pending.cancel();
+    if (pending.getSubscription() != null) pending.getSubscription().remove(pending);
+
+    return pending;
   }
 
-  private void clearMessageAck(String messageId, HostPort hostPort) {
-    Queue<String> ids = messages.get(hostPort);
-    if (ids == null) return;
+  private List<String> clearEarlierMessageAcks(PendingAck pending, HostPort hostPort) {
+    List<PendingAck> earlier = pending.getSubscription().removeBefore(pending);
+    if (earlier.isEmpty()) return Collections.singletonList(pending.getAck());
+
+    ConcurrentMap<String, PendingAck> ids = messages.get(hostPort);
+
+    List<String> acked = new ArrayList<String>(earlier.size() + 1);
+    for (PendingAck p : earlier) {
+      if (ids != null && ids.remove(p.getAck(), p)) {
+        p.cancel();
+        acked.add(p.getAck());
+      }
+    }
+    acked.add(pending.getAck());
 
-    ids.remove(messageId);
+    return acked;
   }
 
   /**
@@ -211,7 +296,8 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
   }
 
   /**
-   * Sets the gateway.
+   * Sets the gateway. The acknowledgement timers are stopped on gateway
+   * shutdown.
    * 
    * @param gateway
    *          the new gateway
@@ -219,6 +305,14 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
   public void setGateway(SVR gateway) {
     super.setGateway(gateway);
     ensureCleanup();
+
+    gateway.addShutdownListener(new StampyShutdownListener() {
+
+      @Override
+      public void gatewayShutdown() {
+        ackWheel.stop();
+      }
+    });
   }
 
   /**
@@ -247,4 +341,157 @@ public abstract class AbstractAcknowledgementListenerAndInterceptor<SVR extends
     this.handler = handler;
   }
 
+  /**
+   * An acknowledgement awaited from a connection, expired by the wheel should
+   * it not be received in time.
+   */
+  protected class PendingAck implements TimingWheelTask {
+    private final HostPort hostPort;
+    private final String ack;
+    private final long deadline;
+    private volatile boolean cancelled;
+    private ClientSubscription subscription;
+    private long sequence;
+
+    /**
+     * Instantiates a new pending ack.
+     * 
+     * @param hostPort
+     *          the host port
+     * @param ack
+     *          the ack
+     * @param deadline
+     *          the deadline
+     */
+    protected PendingAck(HostPort hostPort, String ack, long deadline) {
+      this.hostPort = hostPort;
+      this.ack = ack;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Gets the ack id.
+     * 
+     * @return the ack
+     */
+    public String getAck() {
+      return ack;
+    }
+
+    /**
+     * Gets the {@link Ack#client} subscription the message was delivered to.
+     * 
+     * @return the subscription, null if not applicable
+     */
+    public ClientSubscription getSubscription() {
+      return subscription;
+    }
+
+    /**
+     * Sets the subscription.
+     * 
+     * @param subscription
+     *          the new subscription
+     */
+    protected void setSubscription(ClientSubscription subscription) {
+      this.subscription = subscription;
+    }
+
+    /**
+     * Cancels the timeout.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see asia.stampy.common.timer.TimingWheelTask#getDeadline()
+     */
+    @Override
+    public long getDeadline() {
+      return deadline;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see asia.stampy.common.timer.TimingWheelTask#isCancelled()
+     */
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see asia.stampy.common.timer.TimingWheelTask#expire()
+     */
+    @Override
+    public boolean expire() {
+      ConcurrentMap<String, PendingAck> ids = messages.get(hostPort);
+      if (ids == null || !ids.remove(ack, this)) return false;
+
+      if (subscription != null) subscription.remove(this);
+      getHandler().noAcknowledgementReceived(ack);
+
+      return false;
+    }
+  }
+
+  /**
+   * The acknowledgements pending for an {@link Ack#client} subscription, in
+   * delivery order.
+   */
+  protected class ClientSubscription {
+    private LinkedHashMap<String, PendingAck> pending = new LinkedHashMap<String, PendingAck>();
+    private long sequence;
+
+    /**
+     * Adds the pending acknowledgement.
+     * 
+     * @param ack
+     *          the ack
+     */
+    public synchronized void add(PendingAck ack) {
+      ack.sequence = sequence++;
+      pending.put(ack.getAck(), ack);
+    }
+
+    /**
+     * Removes the pending acknowledgement.
+     * 
+     * @param ack
+     *          the ack
+     */
+    public synchronized void remove(PendingAck ack) {
+      if (pending.get(ack.getAck()) == ack) pending.remove(ack.getAck());
+    }
+
+    /**
+     * Removes and returns, in delivery order, the pending acknowledgements
+     * delivered before the specified acknowledgement.
+     * 
+     * @param ack
+     *          the ack
+     * @return the earlier acknowledgements
+     */
+    public synchronized List<PendingAck> removeBefore(PendingAck ack) {
+      List<PendingAck> earlier = new ArrayList<PendingAck>();
+
+      Iterator<PendingAck> it = pending.values().iterator();
+      while (it.hasNext()) {
+        PendingAck next = it.next();
+        if (next.sequence >= ack.sequence) break;
+
+        earlier.add(next);
+        it.remove();
+      }
+
+      return earlier;
+    }
+  }
+
 }
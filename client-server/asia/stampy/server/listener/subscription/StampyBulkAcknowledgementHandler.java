@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.subscription;
+
+import java.util.List;
+
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.message.StompMessageType;
+
+/**
+ * A {@link StampyAcknowledgementHandler} receiving the messages acknowledged by
+ * a cumulative {@link StompMessageType#ACK} of an {@link Ack#client}
+ * subscription in a single invocation.
+ * 
+ * @see AbstractAcknowledgementListenerAndInterceptor#setHandler(StampyAcknowledgementHandler)
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface StampyBulkAcknowledgementHandler extends StampyAcknowledgementHandler {
+
+  /**
+   * Invoked when a cumulative {@link StompMessageType#ACK} message has been
+   * received, acknowledging the published {@link StompMessageType#MESSAGE}s
+   * specified.
+   * 
+   * @param ids
+   *          the ids, in delivery order
+   * @param receipt
+   *          the receipt
+   * @param transaction
+   *          the transaction
+   * @throws Exception
+   *           the exception
+   */
+  void acksReceived(List<String> ids, String receipt, String transaction) throws Exception;
+
+}
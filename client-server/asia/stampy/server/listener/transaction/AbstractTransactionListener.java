@@ -19,21 +19,28 @@
 package asia.stampy.server.listener.transaction;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import asia.stampy.client.message.abort.AbortMessage;
+import asia.stampy.client.message.ack.AckMessage;
 import asia.stampy.client.message.begin.BeginMessage;
 import asia.stampy.client.message.commit.CommitMessage;
+import asia.stampy.client.message.nack.NackMessage;
+import asia.stampy.client.message.send.SendMessage;
 import asia.stampy.common.StampyLibrary;
 import asia.stampy.common.gateway.AbstractStampyMessageGateway;
 import asia.stampy.common.gateway.HostPort;
-import asia.stampy.common.gateway.StampyMessageListener;
+import asia.stampy.common.gateway.StampyConsumingMessageListener;
 import asia.stampy.common.message.StampyMessage;
 import asia.stampy.common.message.StompMessageType;
 
@@ -41,18 +48,34 @@ import asia.stampy.common.message.StompMessageType;
  * This class manages transactional boundaries, ensuring that a transaction has
  * been started prior to an {@link StompMessageType#ABORT} or.
  * 
- * {@link StompMessageType#COMMIT} and that a transaction is began only once.
+ * {@link StompMessageType#COMMIT} and that a transaction is began only once.<br>
+ * <br>
+ * {@link StompMessageType#SEND}, {@link StompMessageType#ACK} and
+ * {@link StompMessageType#NACK} messages of a transaction are consumed and
+ * buffered; listeners added to the gateway after this listener receive them
+ * on {@link StompMessageType#COMMIT}, in the order received, and not at all
+ * should the transaction be aborted. The messages are first passed as one batch to the
+ * {@link StampyTransactionHandler}, if set. The bytes buffered per connection
+ * are limited by {@link #getMaxBufferedBytes()}.
  */
 @StampyLibrary(libraryName = "stampy-client-server")
-public abstract class AbstractTransactionListener<SVR extends AbstractStampyMessageGateway> implements StampyMessageListener {
+public abstract class AbstractTransactionListener<SVR extends AbstractStampyMessageGateway> implements
+    StampyConsumingMessageListener {
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+  /** The default maximum number of bytes buffered per connection, 1 MB. */
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 1024 * 1024;
+
   /** The active transactions. */
-  protected Map<HostPort, Queue<String>> activeTransactions = new ConcurrentHashMap<HostPort, Queue<String>>();
+  protected ConcurrentMap<HostPort, TransactionBuffer> activeTransactions = new ConcurrentHashMap<HostPort, TransactionBuffer>();
   private SVR gateway;
 
+  private StampyTransactionHandler handler;
+
+  private int maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
   private static StompMessageType[] TYPES = { StompMessageType.ABORT, StompMessageType.BEGIN, StompMessageType.COMMIT,
-      StompMessageType.DISCONNECT };
+      StompMessageType.DISCONNECT, StompMessageType.SEND, StompMessageType.ACK, StompMessageType.NACK };
 
   /*
    * (non-Javadoc)
@@ -73,7 +96,14 @@ public abstract class AbstractTransactionListener<SVR extends AbstractStampyMess
    */
   @Override
   public boolean isForMessage(StampyMessage<?> message) {
-    return true;
+    switch (message.getMessageType()) {
+    case SEND:
+    case ACK:
+    case NACK:
+      return StringUtils.isNotEmpty(getTransaction(message));
+    default:
+      return true;
+    }
   }
 
   /*
@@ -84,6 +114,18 @@ public abstract class AbstractTransactionListener<SVR extends AbstractStampyMess
    */
   @Override
   public void messageReceived(StampyMessage<?> message, HostPort hostPort) throws Exception {
+    consume(message, hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.StampyConsumingMessageListener#consume(asia.stampy
+   * .common.message.StampyMessage, asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public boolean consume(StampyMessage<?> message, HostPort hostPort) throws Exception {
     switch (message.getMessageType()) {
     case ABORT:
       abort(hostPort, ((AbortMessage) message).getHeader().getTransaction());
@@ -92,76 +134,112 @@ public abstract class AbstractTransactionListener<SVR extends AbstractStampyMess
       begin(hostPort, ((BeginMessage) message).getHeader().getTransaction());
       break;
     case COMMIT:
-      commit(hostPort, ((CommitMessage) message).getHeader().getTransaction());
+      commit(hostPort, (CommitMessage) message);
       break;
     case DISCONNECT:
       logOutstandingTransactions(hostPort);
       break;
+    case SEND:
+    case ACK:
+    case NACK:
+      return buffer(hostPort, getTransaction(message), message);
     default:
       break;
 
     }
 
+    return false;
+  }
+
+  private String getTransaction(StampyMessage<?> message) {
+    switch (message.getMessageType()) {
+    case SEND:
+      return ((SendMessage) message).getHeader().getTransaction();
+    case ACK:
+      return ((AckMessage) message).getHeader().getTransaction();
+    case NACK:
+      return ((NackMessage) message).getHeader().getTransaction();
+    default:
+      return null;
+    }
   }
 
   private void logOutstandingTransactions(HostPort hostPort) {
-    Queue<String> q = getTransactions(hostPort);
-    if (q.isEmpty()) return;
+    TransactionBuffer buffer = activeTransactions.remove(hostPort);
+    if (buffer == null) return;
 
-    for (String transaction : q) {
+    for (String transaction : buffer.getTransactions()) {
       log.warn("Disconnect received, discarding outstanding transaction {}", transaction);
     }
   }
 
-  private void commit(HostPort hostPort, String transaction) throws TransactionNotStartedException {
-    removeActiveTransaction(hostPort, transaction, "committed");
+  private boolean buffer(HostPort hostPort, String transaction, StampyMessage<?> message) throws Exception {
+    TransactionBuffer buffer = getTransactions(hostPort);
+    if (buffer.isCommitting(transaction)) return false;
+
+    isTransactionStarted(hostPort, transaction);
+
+    int size = message.getEncodedLength();
+    if (!buffer.add(transaction, message, size, getMaxBufferedBytes())) {
+      buffer.remove(transaction);
+      String error = "Transaction " + transaction + " exceeds " + getMaxBufferedBytes() + " buffered bytes, aborted";
+      log.error(error);
+      throw new TransactionBufferExceededException(error);
+    }
+
+    return true;
+  }
+
+  private void commit(HostPort hostPort, CommitMessage commit) throws Exception {
+    String transaction = commit.getHeader().getTransaction();
+    isTransactionStarted(hostPort, transaction);
+
+    TransactionBuffer buffer = getTransactions(hostPort);
+    List<StampyMessage<?>> messages = buffer.startCommit(transaction);
+    try {
+      if (getHandler() != null && !messages.isEmpty()) getHandler().committing(commit, messages, hostPort);
+
+      for (StampyMessage<?> message : messages) {
+        getGateway().notifyMessageListeners(message, hostPort, this);
+      }
+    } finally {
+      removeActiveTransaction(hostPort, transaction, "committed");
+    }
   }
 
   private void abort(HostPort hostPort, String transaction) throws TransactionNotStartedException {
+    isTransactionStarted(hostPort, transaction);
     removeActiveTransaction(hostPort, transaction, "aborted");
   }
 
   private void begin(HostPort hostPort, String transaction) throws TransactionAlreadyStartedException {
-    if (isNoTransaction(hostPort, transaction)) {
-      log.info("Starting transaction {} for {}", transaction, hostPort);
-      Queue<String> q = getTransactions(hostPort);
-      q.add(transaction);
-    }
-  }
-
-  private boolean isNoTransaction(HostPort hostPort, String transaction) throws TransactionAlreadyStartedException {
-    Queue<String> q = getTransactions(hostPort);
-    if (q.contains(transaction)) {
+    if (!getTransactions(hostPort).begin(transaction)) {
       String error = "Transaction already started";
       throw new TransactionAlreadyStartedException(error);
     }
 
-    return true;
+    log.info("Starting transaction {} for {}", transaction, hostPort);
   }
 
-  private void removeActiveTransaction(HostPort hostPort, String transaction, String function)
-      throws TransactionNotStartedException {
-    if (isTransactionStarted(hostPort, transaction)) {
-      Object[] parms = { transaction, hostPort, function };
-      log.info("Transaction id {} for {} {}", parms);
-      Queue<String> q = getTransactions(hostPort);
-      q.remove(transaction);
-    }
+  private void removeActiveTransaction(HostPort hostPort, String transaction, String function) {
+    Object[] parms = { transaction, hostPort, function };
+    log.info("Transaction id {} for {} {}", parms);
+    getTransactions(hostPort).remove(transaction);
   }
 
-  private Queue<String> getTransactions(HostPort hostPort) {
-    Queue<String> transactions = activeTransactions.get(hostPort);
+  private TransactionBuffer getTransactions(HostPort hostPort) {
+    TransactionBuffer transactions = activeTransactions.get(hostPort);
     if (transactions == null) {
-      transactions = new ConcurrentLinkedQueue<String>();
-      activeTransactions.put(hostPort, transactions);
+      transactions = new TransactionBuffer();
+      TransactionBuffer existing = activeTransactions.putIfAbsent(hostPort, transactions);
+      if (existing != null) transactions = existing;
     }
 
     return transactions;
   }
 
   private boolean isTransactionStarted(HostPort hostPort, String transaction) throws TransactionNotStartedException {
-    Queue<String> q = getTransactions(hostPort);
-    if (!q.contains(transaction)) {
+    if (!getTransactions(hostPort).contains(transaction)) {
       String error = "Transaction not started";
       log.error(error);
       throw new TransactionNotStartedException(error);
@@ -170,6 +248,46 @@ public abstract class AbstractTransactionListener<SVR extends AbstractStampyMess
     return true;
   }
 
+  /**
+   * Gets the handler.
+   * 
+   * @return the handler
+   */
+  public StampyTransactionHandler getHandler() {
+    return handler;
+  }
+
+  /**
+   * Sets the handler preparing the messages of committed transactions. Defaults
+   * to null.
+   * 
+   * @param handler
+   *          the new handler
+   */
+  public void setHandler(StampyTransactionHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Gets the max buffered bytes.
+   * 
+   * @return the max buffered bytes
+   */
+  public int getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  /**
+   * Sets the maximum number of bytes of transactional messages buffered per
+   * connection. Defaults to {@link #DEFAULT_MAX_BUFFERED_BYTES}.
+   * 
+   * @param maxBufferedBytes
+   *          the new max buffered bytes
+   */
+  public void setMaxBufferedBytes(int maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
   /**
    * Gets the gateway.
    * 
@@ -195,4 +313,63 @@ public abstract class AbstractTransactionListener<SVR extends AbstractStampyMess
    */
   protected abstract void ensureCleanup();
 
+  /**
+   * The active transactions of a connection and their buffered messages.
+   */
+  protected static class TransactionBuffer {
+    private Map<String, List<StampyMessage<?>>> transactions = new HashMap<String, List<StampyMessage<?>>>();
+    private Map<String, Integer> sizes = new HashMap<String, Integer>();
+    private int bytes;
+    private String committing;
+
+    synchronized boolean begin(String transaction) {
+      if (transactions.containsKey(transaction)) return false;
+
+      transactions.put(transaction, new ArrayList<StampyMessage<?>>());
+      sizes.put(transaction, 0);
+
+      return true;
+    }
+
+    synchronized boolean contains(String transaction) {
+      return transactions.containsKey(transaction);
+    }
+
+    synchronized boolean add(String transaction, StampyMessage<?> message, int size, int maxBytes) {
+      if (bytes + size > maxBytes) return false;
+
+      transactions.get(transaction).add(message);
+      sizes.put(transaction, sizes.get(transaction) + size);
+      bytes += size;
+
+      return true;
+    }
+
+    synchronized List<StampyMessage<?>> startCommit(String transaction) {
+      committing = transaction;
+
+      return transactions.get(transaction);
+    }
+
+    synchronized boolean isCommitting(String transaction) {
+      return transaction.equals(committing);
+    }
+
+    synchronized void remove(String transaction) {
+      if (transaction.equals(committing)) committing = null;
+
+      transactions.remove(transaction);
+      Integer size = sizes.remove(transaction);
+      if (size != null) bytes -= size;
+    }
+
+    synchronized List<String> getTransactions() {
+      return Collections.unmodifiableList(new ArrayList<String>(transactions.keySet()));
+    }
+
+    synchronized int getBufferedBytes() {
+      return bytes;
+    }
+  }
+
 }
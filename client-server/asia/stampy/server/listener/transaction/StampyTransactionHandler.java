@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.transaction;
+
+import java.util.List;
+
+import asia.stampy.client.message.commit.CommitMessage;
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.message.StampyMessage;
+
+/**
+ * Implement to prepare the messages of a committed transaction as one batch,
+ * ie. to write them to a store in a single operation, before they are
+ * dispatched to the gateway's listeners.
+ * 
+ * @see AbstractTransactionListener#setHandler(StampyTransactionHandler)
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public interface StampyTransactionHandler {
+
+  /**
+   * Invoked when a transaction is committed, prior to the dispatch of its
+   * messages. Throwing an exception aborts the transaction.
+   * 
+   * @param commit
+   *          the commit message
+   * @param messages
+   *          the messages of the transaction, in the order received
+   * @param hostPort
+   *          the host port
+   * @throws Exception
+   *           the exception
+   */
+  void committing(CommitMessage commit, List<StampyMessage<?>> messages, HostPort hostPort) throws Exception;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.transaction;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Thrown when buffering a message of a transaction would exceed the maximum
+ * number of bytes buffered for the connection. The transaction is aborted.
+ * 
+ * @see AbstractTransactionListener#setMaxBufferedBytes(int)
+ */
+@StampyLibrary(libraryName = "stampy-client-server")
+public class TransactionBufferExceededException extends Exception {
+
+  private static final long serialVersionUID = 4476512096214763419L;
+
+  /**
+   * Instantiates a new transaction buffer exceeded exception.
+   * 
+   * @param message
+   *          the message
+   */
+  public TransactionBufferExceededException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.examples.loadtest.executor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.gateway.OrderedExecutor;
+import asia.stampy.common.gateway.VirtualThreads;
+
+/**
+ * Compares the executors available to the Netty and MINA handlers when
+ * listeners block, ie. on database writes. Each simulated connection submits
+ * messages as the handlers do; each message sleeps for the configured time.
+ * The single thread executor was Stampy's original default, the platform
+ * {@link OrderedExecutor} is the current default and the virtual thread
+ * {@link OrderedExecutor} is run when the JVM supports virtual threads.<br>
+ * <br>
+ * Arguments, all optional: number of connections (default 100), messages per
+ * connection (default 20) and blocking time per message in milliseconds
+ * (default 5).
+ */
+@StampyLibrary(libraryName = "stampy-examples")
+public class ExecutorBenchmark {
+  private int connections;
+  private int messages;
+  private long blockMillis;
+
+  /**
+   * Instantiates a new executor benchmark.
+   * 
+   * @param connections
+   *          the number of connections
+   * @param messages
+   *          the messages per connection
+   * @param blockMillis
+   *          the blocking time per message
+   */
+  public ExecutorBenchmark(int connections, int messages, long blockMillis) {
+    this.connections = connections;
+    this.messages = messages;
+    this.blockMillis = blockMillis;
+  }
+
+  /**
+   * Runs the benchmark for the executors available.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  public void run() throws Exception {
+    System.out.println("Connections: " + connections + ", messages per connection: " + messages
+        + ", blocking time per message: " + blockMillis + " ms");
+
+    ExecutorService single = Executors.newSingleThreadExecutor();
+    run("Single thread executor", single);
+    single.shutdown();
+
+    OrderedExecutor platform = new OrderedExecutor();
+    run("Ordered executor, platform threads", platform);
+    platform.shutdown();
+
+    if (VirtualThreads.isAvailable()) {
+      OrderedExecutor virtual = OrderedExecutor.newVirtualThreadExecutor();
+      run("Ordered executor, virtual threads", virtual);
+      virtual.shutdown();
+    } else {
+      System.out.println("Virtual threads are not available in Java " + System.getProperty("java.version"));
+    }
+  }
+
+  private void run(String name, Executor executor) throws Exception {
+    final CountDownLatch latch = new CountDownLatch(connections * messages);
+    final AtomicInteger outOfOrder = new AtomicInteger();
+    final int[] lastReceived = new int[connections];
+
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      for (int j = 0; j < connections; j++) {
+        final int connection = j;
+        final int sequence = i;
+        OrderedExecutor.execute(executor, new HostPort("localhost", 10000 + j), new Runnable() {
+
+          @Override
+          public void run() {
+            block();
+            synchronized (lastReceived) {
+              if (lastReceived[connection] != sequence) outOfOrder.incrementAndGet();
+              lastReceived[connection] = sequence + 1;
+            }
+            latch.countDown();
+          }
+        });
+      }
+    }
+
+    latch.await(1, TimeUnit.HOURS);
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    System.out.println(name + ": " + millis + " ms, " + ((connections * messages * 1000L) / Math.max(1, millis))
+        + " messages/sec, " + outOfOrder.get() + " out of order");
+  }
+
+  private void block() {
+    try {
+      Thread.sleep(blockMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The main method.
+   * 
+   * @param args
+   *          the arguments
+   */
+  public static void main(String[] args) {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+    try {
+      new ExecutorBenchmark(connections, messages, blockMillis).run();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
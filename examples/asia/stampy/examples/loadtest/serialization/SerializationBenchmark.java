@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.examples.loadtest.serialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.serialization.SerializationUtils;
+
+/**
+ * Measures the throughput of object body serialization as the number of
+ * threads increases. Each operation serializes and Base64 encodes a list of
+ * {@link HostPort}s, then decodes and deserializes it. The lock free
+ * {@link SerializationUtils} is compared to the same calls made under the fair
+ * global locks Stampy used to hold, which limit serialization to one thread at
+ * a time.<br>
+ * <br>
+ * Arguments, all optional: maximum number of threads (default twice the
+ * number of processors), operations per thread (default 20000) and elements
+ * in the serialized list (default 10).
+ */
+@StampyLibrary(libraryName = "stampy-examples")
+public class SerializationBenchmark {
+  private static final Lock SERIALIZE_LOCK = new ReentrantLock(true);
+  private static final Lock DESERIALIZE_LOCK = new ReentrantLock(true);
+
+  private int maxThreads;
+  private int operations;
+  private List<HostPort> body = new ArrayList<HostPort>();
+
+  /**
+   * Instantiates a new serialization benchmark.
+   * 
+   * @param maxThreads
+   *          the maximum number of threads
+   * @param operations
+   *          the operations per thread
+   * @param elements
+   *          the elements in the serialized list
+   */
+  public SerializationBenchmark(int maxThreads, int operations, int elements) {
+    this.maxThreads = maxThreads;
+    this.operations = operations;
+    for (int i = 0; i < elements; i++) {
+      body.add(new HostPort("host" + i + ".stampy.asia", 10000 + i));
+    }
+  }
+
+  /**
+   * Runs the benchmark, doubling the number of threads up to the maximum.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  public void run() throws Exception {
+    System.out.println("Processors: " + Runtime.getRuntime().availableProcessors() + ", operations per thread: "
+        + operations + ", body size: " + SerializationUtils.serializeBase64(body).length() + " bytes");
+
+    // warm up
+    run(maxThreads, true);
+    run(maxThreads, false);
+
+    for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+      long locked = run(threads, true);
+      long lockFree = run(threads, false);
+
+      System.out.println(threads + " threads: global locks " + locked + " ops/sec, lock free " + lockFree
+          + " ops/sec");
+    }
+  }
+
+  private long run(int threads, final boolean locked) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(threads);
+
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < operations; j++) {
+              if (locked) {
+                roundTripLocked();
+              } else {
+                roundTrip();
+              }
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          } finally {
+            finish.countDown();
+          }
+        }
+      }, "Serialization benchmark " + i);
+      thread.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    finish.await(1, TimeUnit.HOURS);
+    long nanos = System.nanoTime() - begin;
+
+    return (threads * (long) operations * TimeUnit.SECONDS.toNanos(1)) / Math.max(1, nanos);
+  }
+
+  private void roundTrip() throws IOException, ClassNotFoundException {
+    SerializationUtils.deserializeBase64(SerializationUtils.serializeBase64(body));
+  }
+
+  private void roundTripLocked() throws IOException, ClassNotFoundException {
+    String encoded;
+    SERIALIZE_LOCK.lock();
+    try {
+      encoded = SerializationUtils.serializeBase64(body);
+    } finally {
+      SERIALIZE_LOCK.unlock();
+    }
+
+    DESERIALIZE_LOCK.lock();
+    try {
+      SerializationUtils.deserializeBase64(encoded);
+    } finally {
+      DESERIALIZE_LOCK.unlock();
+    }
+  }
+
+  /**
+   * The main method.
+   * 
+   * @param args
+   *          the arguments
+   */
+  public static void main(String[] args) {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+    int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int elements = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    try {
+      new SerializationBenchmark(maxThreads, operations, elements).run();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -20,6 +20,7 @@ package asia.stampy.client.mina;
 
 import java.lang.invoke.MethodHandles;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import javax.annotation.Resource;
 
@@ -37,6 +38,7 @@ import asia.stampy.common.gateway.HostPort;
 import asia.stampy.common.message.StampyMessage;
 import asia.stampy.common.message.interceptor.InterceptException;
 import asia.stampy.common.mina.AbstractStampyMinaMessageGateway;
+import asia.stampy.common.mina.StampyMinaHandler;
 
 /**
  * This class is the reference implementation of a Stampy <a
@@ -139,6 +141,7 @@ public class ClientMinaMessageGateway extends AbstractStampyMinaMessageGateway {
   @Override
   public void shutdown() throws Exception {
     closeConnection(null);
+    notifyShutdownListeners();
   }
 
   /**
@@ -175,10 +178,54 @@ public class ClientMinaMessageGateway extends AbstractStampyMinaMessageGateway {
 
     interceptOutgoingMessage(message);
 
+    broadcast(StampyMinaHandler.CHARSET.encode(message));
+  }
+
+  /**
+   * Send message. Use
+   * {@link ClientMinaMessageGateway#broadcastMessage(StampyMessage)} in
+   * preference.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   * @throws InterceptException
+   *           the intercept exception
+   */
+  @Override
+  public void sendMessage(ByteBuffer message, HostPort hostPort) throws InterceptException {
+    broadcastMessage(message);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#broadcastMessage
+   * (java.nio.ByteBuffer)
+   */
+  @Override
+  public void broadcastMessage(ByteBuffer message) throws InterceptException {
+    if (!connector.isActive()) {
+      log.warn("Attempting to send message when the connector is not active");
+      throw new IllegalStateException("The connector is not active, cannot send message");
+    }
+
+    interceptOutgoingMessage(message);
+
+    broadcast(message);
+  }
+
+  /**
+   * Encodes the message once; each session is written a duplicate of a
+   * read-only view of the resulting buffer.
+   */
+  private void broadcast(ByteBuffer message) {
     for (HostPort hostPort : serviceAdapter.getHostPorts()) {
       getHandler().getHeartbeatContainer().reset(hostPort);
     }
-    connector.broadcast(message);
+    connector.broadcast(getHandler().toIoBuffer(message).asReadOnlyBuffer());
   }
 
   /*
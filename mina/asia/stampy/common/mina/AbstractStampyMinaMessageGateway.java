@@ -99,4 +99,25 @@ public abstract class AbstractStampyMinaMessageGateway extends AbstractStampyMes
     return serviceAdapter.getHostPorts();
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#isWritable(asia
+   * .stampy.common.gateway.HostPort)
+   */
+  @Override
+  public boolean isWritable(HostPort hostPort) {
+    return serviceAdapter.isWritable(hostPort);
+  }
+
+  /**
+   * Gets the service adapter tracking the sessions of the gateway.
+   * 
+   * @return the service adapter
+   */
+  public StampyServiceAdapter getServiceAdapter() {
+    return serviceAdapter;
+  }
+
 }
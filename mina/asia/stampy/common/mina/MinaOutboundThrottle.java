@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.mina;
+
+import org.apache.mina.core.session.IoSession;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.AbstractOutboundThrottle;
+
+/**
+ * Throttles writes to MINA {@link IoSession}s. A session is not writable once
+ * its {@link IoSession#getScheduledWriteBytes()} reaches the high water mark,
+ * and becomes writable again once they drain to the low water mark.
+ */
+@StampyLibrary(libraryName = "stampy-MINA-client-server-RI")
+public class MinaOutboundThrottle extends AbstractOutboundThrottle<IoSession> {
+  private static final String UNWRITABLE = MinaOutboundThrottle.class.getName() + ".unwritable";
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#isWritable(java.lang
+   * .Object)
+   */
+  @Override
+  protected boolean isWritable(IoSession connection) {
+    long scheduled = connection.getScheduledWriteBytes();
+
+    if (connection.containsAttribute(UNWRITABLE)) {
+      if (scheduled > getLowWaterMark()) return false;
+
+      connection.removeAttribute(UNWRITABLE);
+      return true;
+    }
+
+    if (scheduled < getHighWaterMark()) return true;
+
+    connection.setAttribute(UNWRITABLE, Boolean.TRUE);
+    return false;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#write(java.lang.Object,
+   * java.lang.Object)
+   */
+  @Override
+  protected void write(IoSession connection, Object message) {
+    connection.write(message);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#close(java.lang.Object)
+   */
+  @Override
+  protected void close(IoSession connection) {
+    connection.close(true);
+  }
+}
@@ -20,14 +20,14 @@ package asia.stampy.common.mina;
 
 import java.lang.invoke.MethodHandles;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
-import org.apache.mina.filter.codec.prefixedstring.PrefixedStringCodecFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,27 +36,22 @@ import asia.stampy.common.gateway.AbstractStampyMessageGateway;
 import asia.stampy.common.gateway.DefaultUnparseableMessageHandler;
 import asia.stampy.common.gateway.HostPort;
 import asia.stampy.common.gateway.MessageListenerHaltException;
+import asia.stampy.common.gateway.OrderedExecutor;
 import asia.stampy.common.gateway.StampyHandlerHelper;
+import asia.stampy.common.gateway.StampyShutdownListener;
 import asia.stampy.common.gateway.UnparseableMessageHandler;
 import asia.stampy.common.heartbeat.StampyHeartbeatContainer;
 import asia.stampy.common.message.StampyMessage;
-import asia.stampy.common.mina.raw.StampyRawStringHandler;
 import asia.stampy.common.parsing.StompMessageParser;
 import asia.stampy.common.parsing.UnparseableException;
 
 /**
  * This class is an abstract implementation of a MINA IoHandler for the receipt
- * of STOMP messages. It uses a MINA prefixed message payload to determine
- * message start and end, and as such violates the STOMP 1.2 specification.
- * Subclasses must only be used in an all-Stampy environment.<br>
- * <br>
- * As the MINA framework performs a much better job at parsing messages of which
- * it understands, subclasses of this class are recommended to be used in an
- * all-Stampy environment.<br>
+ * of STOMP messages. Frames in the STOMP 1.2 wire format are split from the
+ * received bytes by the {@link StompFrameDecoder}, which accumulates partial
+ * frames per session, and are parsed directly from their bytes.<br>
  * <br>
  * Subclasses are singletons, wire in appropriately.
- * 
- * @see StampyRawStringHandler
  */
 @StampyLibrary(libraryName = "stampy-MINA-client-server-RI")
 public abstract class StampyMinaHandler extends IoHandlerAdapter {
@@ -70,7 +65,7 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
 
   private static final String ILLEGAL_ACCESS_ATTEMPT = "Illegal access attempt";
 
-  private Executor executor = Executors.newSingleThreadExecutor();
+  private Executor executor = new OrderedExecutor();
 
   /** <i>The default encoding for STOMP is UTF-8</i>. */
   public static Charset CHARSET = Charset.forName("UTF-8");
@@ -93,6 +88,11 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
 
     helper.resetHeartbeat(hostPort);
 
+    if (message instanceof ByteBuffer) {
+      frameReceived(hostPort, (ByteBuffer) message);
+      return;
+    }
+
     if (!helper.isValidObject(message)) {
       log.error("Object {} is not a valid STOMP message, closing connection {}", message, hostPort);
       illegalAccess(session);
@@ -114,29 +114,68 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
       }
     };
 
-    getExecutor().execute(runnable);
+    OrderedExecutor.execute(getExecutor(), hostPort, runnable);
+  }
+
+  private void frameReceived(final HostPort hostPort, final ByteBuffer frame) {
+    if (isHeartbeat(frame)) {
+      log.trace("Received heartbeat");
+      return;
+    }
+
+    Runnable runnable = new Runnable() {
+
+      @Override
+      public void run() {
+        asyncProcessing(hostPort, frame);
+      }
+    };
+
+    OrderedExecutor.execute(getExecutor(), hostPort, runnable);
+  }
+
+  private boolean isHeartbeat(ByteBuffer frame) {
+    int idx = frame.position();
+    switch (frame.remaining()) {
+    case 1:
+      return frame.get(idx) == '\n';
+    case 2:
+      return frame.get(idx) == '\r' && frame.get(idx + 1) == '\n';
+    default:
+      return false;
+    }
   }
 
   /**
-   * Returns a PrefixedStringCodecFactory allowing messages of maxMessageSize.
+   * Returns a {@link StompCodecFactory} allowing messages of maxMessageSize.
    * 
    * @param maxMessageSize
    *          the max message size
    * @return the factory
    */
   public ProtocolCodecFactory getFactory(int maxMessageSize) {
-    PrefixedStringCodecFactory factory = new PrefixedStringCodecFactory(CHARSET);
-    factory.setDecoderMaxDataLength(maxMessageSize);
-    factory.setEncoderMaxDataLength(maxMessageSize);
+    return new StompCodecFactory(maxMessageSize);
+  }
 
-    return factory;
+  /**
+   * Prepares a pre-encoded STOMP frame for writing. MINA passes
+   * {@link IoBuffer}s straight through the codec, so the buffer returned must
+   * already be in the wire format of the {@link #getFactory(int)} encoder; this
+   * implementation wraps the frame without copying.
+   * 
+   * @param stompMessage
+   *          the UTF-8 encoded stomp message
+   * @return the io buffer
+   */
+  public IoBuffer toIoBuffer(ByteBuffer stompMessage) {
+    return IoBuffer.wrap(stompMessage);
   }
 
   /**
    * Once simple validation has been performed on the received message a
-   * Runnable is executed by a single thread executor. This pulls the messages
-   * off the thread MINA uses and ensures the messages are processed in the
-   * order they are received.
+   * Runnable is executed by the {@link OrderedExecutor}. This pulls the
+   * messages off the thread MINA uses and ensures the messages from each
+   * connection are processed in the order they are received.
    * 
    * @param hostPort
    *          the host port
@@ -158,6 +197,35 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
     }
   }
 
+  /**
+   * Parses a frame emitted by the {@link StompFrameDecoder} directly from its
+   * bytes, avoiding the intermediate string. Executed by the executor as per
+   * {@link #asyncProcessing(HostPort, String)}.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param frame
+   *          the frame
+   */
+  protected void asyncProcessing(HostPort hostPort, ByteBuffer frame) {
+    StampyMessage<?> sm = null;
+    try {
+      sm = getParser().parseMessage(frame.duplicate());
+
+      getGateway().notifyMessageListeners(sm, hostPort);
+    } catch (UnparseableException e) {
+      helper.handleUnparseableMessage(hostPort, toString(frame), e);
+    } catch (MessageListenerHaltException e) {
+      // halting
+    } catch (Exception e) {
+      helper.handleUnexpectedError(hostPort, toString(frame), sm, e);
+    }
+  }
+
+  private String toString(ByteBuffer frame) {
+    return CHARSET.decode(frame.duplicate()).toString();
+  }
+
   /**
    * Writes a context-less error to the session and terminates the session.
    * 
@@ -227,6 +295,14 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
   public void setGateway(AbstractStampyMessageGateway gateway) {
     this.gateway = gateway;
     helper.setGateway(gateway);
+
+    gateway.addShutdownListener(new StampyShutdownListener() {
+
+      @Override
+      public void gatewayShutdown() {
+        OrderedExecutor.shutdown(getExecutor());
+      }
+    });
   }
 
   /**
@@ -239,7 +315,9 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
   }
 
   /**
-   * Sets the executor.
+   * Sets the executor. Defaults to an {@link OrderedExecutor}; other
+   * executors do not preserve the order of messages from a connection unless
+   * single threaded. An {@link OrderedExecutor} is shut down with the gateway.
    * 
    * @param executor
    *          the new executor
@@ -270,6 +348,19 @@ public abstract class StampyMinaHandler extends IoHandlerAdapter {
     helper.setUnparseableMessageHandler(unparseableMessageHandler);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.apache.mina.core.service.IoHandlerAdapter#messageSent(org.apache.mina
+   * .core.session.IoSession, java.lang.Object)
+   */
+  public void messageSent(IoSession session, Object message) throws Exception {
+    if (getGateway() instanceof AbstractStampyMinaMessageGateway) {
+      ((AbstractStampyMinaMessageGateway) getGateway()).getServiceAdapter().messageSent(session);
+    }
+  }
+
   /*
    * (non-Javadoc)
    * 
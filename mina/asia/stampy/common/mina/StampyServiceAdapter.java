@@ -27,6 +27,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Resource;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.future.CloseFuture;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
@@ -50,6 +51,8 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
 
   private AbstractStampyMinaMessageGateway gateway;
 
+  private MinaOutboundThrottle throttle = new MinaOutboundThrottle();
+
   /*
    * (non-Javadoc)
    * 
@@ -78,6 +81,7 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
     log.info("Stampy MINA session destroyed for {}", hostPort);
 
     sessions.remove(hostPort);
+    throttle.remove(hostPort);
 
     if (sessions.isEmpty() && isAutoShutdown()) {
       log.info("No more sessions and auto shutdown is true, shutting down gateway");
@@ -85,6 +89,18 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
     }
   }
 
+  /**
+   * Invoked by the {@link StampyMinaHandler} once a message has been written,
+   * writing messages held by the {@link MinaOutboundThrottle} should the
+   * session have drained.
+   * 
+   * @param session
+   *          the session
+   */
+  public void messageSent(IoSession session) {
+    throttle.writabilityChanged(createHostPort(session), session);
+  }
+
   public void closeAllSessions() {
     for (IoSession session : sessions.values()) {
       CloseFuture cf = session.close(true);
@@ -116,6 +132,18 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
     return sessions.containsKey(hostPort);
   }
 
+  /**
+   * Checks if the session of the specified {@link HostPort} is writable.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return true, if is writable
+   */
+  public boolean isWritable(HostPort hostPort) {
+    IoSession session = sessions.get(hostPort);
+    return session != null && session.getScheduledWriteBytes() < throttle.getHighWaterMark();
+  }
+
   /**
    * Gets the session.
    * 
@@ -149,6 +177,23 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
    *          the host port
    */
   public void sendMessage(String stompMessage, HostPort hostPort) {
+    write(stompMessage, hostPort);
+  }
+
+  /**
+   * Sends the pre-encoded message, bypassing the protocol encoder.
+   * 
+   * @param stompMessage
+   *          the stomp message
+   * @param hostPort
+   *          the host port
+   * @see StampyMinaHandler#toIoBuffer(java.nio.ByteBuffer)
+   */
+  public void sendMessage(IoBuffer stompMessage, HostPort hostPort) {
+    write(stompMessage, hostPort);
+  }
+
+  private void write(Object stompMessage, HostPort hostPort) {
     if (!hasSession(hostPort)) {
       log.error("No session for {}, cannot send message {}", hostPort, stompMessage);
       return;
@@ -156,7 +201,7 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
 
     IoSession session = getSession(hostPort);
     if (session.isConnected() && !session.isClosing()) {
-      session.write(stompMessage);
+      throttle.write(hostPort, session, stompMessage);
       log.trace("Sent message {} to {}", stompMessage, hostPort);
     } else {
       log.error("Session is not active for {}, cannot send message {}", hostPort, stompMessage);
@@ -199,6 +244,30 @@ public class StampyServiceAdapter extends MinaServiceAdapter {
    */
   public void setGateway(AbstractStampyMinaMessageGateway gateway) {
     this.gateway = gateway;
+    throttle.setGateway(gateway);
+  }
+
+  /**
+   * Gets the outbound throttle.
+   * 
+   * @return the throttle
+   */
+  public MinaOutboundThrottle getThrottle() {
+    return throttle;
+  }
+
+  /**
+   * Sets the outbound throttle, applying the
+   * {@link asia.stampy.common.gateway.SlowConsumerPolicy} to sessions which
+   * are not writable. Defaults to a {@link MinaOutboundThrottle} with
+   * {@link asia.stampy.common.gateway.SlowConsumerPolicy#BLOCK}.
+   * 
+   * @param throttle
+   *          the new throttle
+   */
+  public void setThrottle(MinaOutboundThrottle throttle) {
+    this.throttle = throttle;
+    throttle.setGateway(getGateway());
   }
 
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.mina;
+
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.message.AbstractMessageHeader;
+
+/**
+ * {@link CumulativeProtocolDecoder} which splits the received bytes into STOMP
+ * frames.<br>
+ * <br>
+ * The header block of each frame is scanned once; should a content-length
+ * header be present the decoder jumps straight to the end of the body, allowing
+ * binary bodies containing NUL bytes. Otherwise the body is scanned for the
+ * terminating NUL byte. The scan position is held per session across partial
+ * reads, so that large frames arriving in many chunks are scanned only once and
+ * are accumulated by MINA rather than by string concatenation. Frames are
+ * emitted as {@link ByteBuffer}s including the terminating NUL, and heartbeats
+ * as one or two byte buffers. Instances hold no state of their own and may be
+ * shared between sessions.
+ */
+@StampyLibrary(libraryName = "stampy-MINA-client-server-RI")
+public class StompFrameDecoder extends CumulativeProtocolDecoder {
+
+  private static final AttributeKey CONTEXT = new AttributeKey(StompFrameDecoder.class, "context");
+
+  private static final byte NUL = 0;
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+
+  private static final byte[] CONTENT_LENGTH = (AbstractMessageHeader.CONTENT_LENGTH + ":").getBytes();
+
+  /** Maximum length of a frame we're willing to decode. */
+  private final int maxLength;
+  /** Whether or not to fail as soon as we exceed maxLength. */
+  private final boolean failFast;
+
+  /**
+   * Creates a new decoder.
+   * 
+   * @param maxLength
+   *          the maximum length of the decoded frame. A
+   *          {@link ProtocolDecoderException} is fired if the length of the
+   *          frame exceeds this value.
+   */
+  public StompFrameDecoder(int maxLength) {
+    this(maxLength, false);
+  }
+
+  /**
+   * Creates a new decoder.
+   * 
+   * @param maxLength
+   *          the maximum length of the decoded frame. A
+   *          {@link ProtocolDecoderException} is fired if the length of the
+   *          frame exceeds this value.
+   * @param failFast
+   *          If <tt>true</tt>, the exception is fired as soon as the decoder
+   *          notices the length of the frame will exceed <tt>maxLength</tt>
+   *          regardless of whether the entire frame has been read. If
+   *          <tt>false</tt>, the exception is fired after the entire frame has
+   *          been read and discarded.
+   */
+  public StompFrameDecoder(int maxLength, boolean failFast) {
+    this.maxLength = maxLength;
+    this.failFast = failFast;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.apache.mina.filter.codec.CumulativeProtocolDecoder#doDecode(org.apache
+   * .mina.core.session.IoSession, org.apache.mina.core.buffer.IoBuffer,
+   * org.apache.mina.filter.codec.ProtocolDecoderOutput)
+   */
+  @Override
+  protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+    Context ctx = getContext(session);
+
+    if (ctx.discarding) return discard(session, ctx, in);
+
+    int rIdx = in.position();
+    int readable = in.remaining();
+
+    if (ctx.scanned == 0) {
+      byte b = in.get(rIdx);
+      if (b == LF) return emit(in, 1, out);
+      if (b == CR) {
+        if (readable < 2) return false;
+        if (in.get(rIdx + 1) == LF) return emit(in, 2, out);
+      }
+    }
+
+    if (ctx.headerLength == -1 && ctx.frameEnd == -1 && !findEndOfHeaders(ctx, in)) {
+      return readable > maxLength && tooLong(session, ctx, in, -1);
+    }
+
+    if (ctx.frameEnd == -1 && ctx.contentLength >= 0) {
+      long length = (long) ctx.headerLength + ctx.contentLength;
+      if (length > maxLength) return tooLong(session, ctx, in, length + 1);
+
+      if (readable <= length) return false;
+
+      ctx.frameEnd = (int) length;
+    }
+
+    if (ctx.frameEnd == -1 && !findEndOfMessage(ctx, in)) {
+      return readable > maxLength && tooLong(session, ctx, in, -1);
+    }
+
+    if (ctx.frameEnd > maxLength) return tooLong(session, ctx, in, ctx.frameEnd + 1);
+
+    int length = in.get(rIdx + ctx.frameEnd) == NUL ? ctx.frameEnd + 1 : ctx.frameEnd;
+    ctx.reset();
+
+    return emit(in, length, out);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.apache.mina.filter.codec.CumulativeProtocolDecoder#dispose(org.apache
+   * .mina.core.session.IoSession)
+   */
+  @Override
+  public void dispose(IoSession session) throws Exception {
+    super.dispose(session);
+    session.removeAttribute(CONTEXT);
+  }
+
+  /**
+   * Copies the frame out of the accumulation buffer, which MINA compacts and
+   * reuses.
+   */
+  private boolean emit(IoBuffer in, int length, ProtocolDecoderOutput out) {
+    byte[] frame = new byte[length];
+    in.get(frame);
+    out.write(ByteBuffer.wrap(frame));
+
+    return true;
+  }
+
+  /**
+   * Scans the header block from where the last scan finished. Returns true if
+   * the end of the headers, or a premature NUL, has been found.
+   */
+  private boolean findEndOfHeaders(Context ctx, IoBuffer in) {
+    int rIdx = in.position();
+    int wIdx = in.limit();
+
+    for (int i = rIdx + ctx.scanned; i < wIdx; i++) {
+      byte b = in.get(i);
+      if (b == NUL) {
+        ctx.frameEnd = i - rIdx;
+        return true;
+      }
+
+      if (b != LF) continue;
+
+      int start = rIdx + ctx.lineStart;
+      int end = i > start && in.get(i - 1) == CR ? i - 1 : i;
+      if (end == start && ctx.lineStart > 0) {
+        ctx.headerLength = i + 1 - rIdx;
+        ctx.scanned = ctx.headerLength;
+        return true;
+      }
+
+      if (ctx.contentLength == -1) ctx.contentLength = parseContentLength(in, start, end);
+      ctx.lineStart = i + 1 - rIdx;
+    }
+
+    ctx.scanned = wIdx - rIdx;
+    return false;
+  }
+
+  /**
+   * Scans the body for the terminating NUL from where the last scan finished.
+   */
+  private boolean findEndOfMessage(Context ctx, IoBuffer in) {
+    int rIdx = in.position();
+
+    int idx = indexOfNul(in, rIdx + ctx.scanned);
+    if (idx == -1) {
+      ctx.scanned = in.limit() - rIdx;
+      return false;
+    }
+
+    ctx.frameEnd = idx - rIdx;
+    return true;
+  }
+
+  private static int indexOfNul(IoBuffer in, int from) {
+    int wIdx = in.limit();
+    for (int i = from; i < wIdx; i++) {
+      if (in.get(i) == NUL) return i;
+    }
+
+    return -1;
+  }
+
+  private static int parseContentLength(IoBuffer in, int start, int end) {
+    if (end - start <= CONTENT_LENGTH.length) return -1;
+
+    for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+      if (in.get(start + i) != CONTENT_LENGTH[i]) return -1;
+    }
+
+    long length = 0;
+    for (int i = start + CONTENT_LENGTH.length; i < end; i++) {
+      byte b = in.get(i);
+      if (b == ' ') continue;
+      if (b < '0' || b > '9') return -1;
+
+      length = length * 10 + (b - '0');
+      if (length > Integer.MAX_VALUE) return Integer.MAX_VALUE;
+    }
+
+    return (int) length;
+  }
+
+  private boolean tooLong(IoSession session, Context ctx, IoBuffer in, long frameLength) {
+    String msg = frameLength >= 0 ? frameLength + " bytes" : in.remaining() + " bytes buffered already";
+
+    ctx.discarding = true;
+    if (frameLength >= 0) {
+      ctx.discardRemaining = frameLength;
+    } else {
+      ctx.discardRemaining = -1;
+      in.skip(Math.min(ctx.scanned, in.remaining()));
+    }
+
+    if (failFast) fail(session, msg);
+
+    discard(session, ctx, in);
+
+    return true;
+  }
+
+  private boolean discard(IoSession session, Context ctx, IoBuffer in) {
+    if (ctx.discardRemaining >= 0) {
+      int skip = (int) Math.min(ctx.discardRemaining, in.remaining());
+      in.skip(skip);
+      ctx.discardRemaining -= skip;
+      if (ctx.discardRemaining > 0) return true;
+    } else {
+      int idx = indexOfNul(in, in.position());
+      if (idx == -1) {
+        in.skip(in.remaining());
+        return true;
+      }
+
+      in.position(idx + 1);
+    }
+
+    ctx.discarding = false;
+    ctx.reset();
+    if (!failFast) fail(session, "over " + maxLength + " bytes");
+
+    return true;
+  }
+
+  private void fail(IoSession session, String msg) {
+    session.getFilterChain().fireExceptionCaught(
+        new ProtocolDecoderException("Frame length exceeds " + maxLength + " (" + msg + ')'));
+  }
+
+  private Context getContext(IoSession session) {
+    Context ctx = (Context) session.getAttribute(CONTEXT);
+    if (ctx == null) {
+      ctx = new Context();
+      session.setAttribute(CONTEXT, ctx);
+    }
+
+    return ctx;
+  }
+
+  /**
+   * The decoding state of a session.
+   */
+  private static class Context {
+    /** True if we're discarding input because we're already over maxLength. */
+    boolean discarding;
+
+    /** Bytes remaining to discard, -1 if discarding up to the next NUL. */
+    long discardRemaining;
+
+    /** Bytes of the current frame already scanned, relative to the position. */
+    int scanned;
+
+    /** Start of the current header line, relative to the position. */
+    int lineStart;
+
+    /** Length of the command and header block including the blank line. */
+    int headerLength = -1;
+
+    /** Value of the first content-length header of the current frame. */
+    int contentLength = -1;
+
+    /** Index of the terminating NUL, relative to the position. */
+    int frameEnd = -1;
+
+    void reset() {
+      scanned = 0;
+      lineStart = 0;
+      headerLength = -1;
+      contentLength = -1;
+      frameEnd = -1;
+    }
+  }
+
+}
@@ -20,6 +20,7 @@ package asia.stampy.server.mina;
 
 import java.lang.invoke.MethodHandles;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import javax.annotation.Resource;
 
@@ -37,6 +38,7 @@ import asia.stampy.common.StampyLibrary;
 import asia.stampy.common.gateway.HostPort;
 import asia.stampy.common.message.interceptor.InterceptException;
 import asia.stampy.common.mina.AbstractStampyMinaMessageGateway;
+import asia.stampy.common.mina.StampyMinaHandler;
 
 /**
  * This class is the reference implementation of a Stampy <a
@@ -149,11 +151,58 @@ public class ServerMinaMessageGateway extends AbstractStampyMinaMessageGateway {
 
     interceptOutgoingMessage(message);
 
+    broadcast(StampyMinaHandler.CHARSET.encode(message));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#sendMessage(java
+   * .nio.ByteBuffer, asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public void sendMessage(ByteBuffer message, HostPort hostPort) throws InterceptException {
+    if (!isConnected(hostPort)) {
+      log.warn("Attempting to send message to {} when the acceptor is not active", hostPort);
+      throw new IllegalStateException("The acceptor is not active, cannot send message");
+    }
+
+    interceptOutgoingMessage(message);
+
+    getHandler().getHeartbeatContainer().reset(hostPort);
+    serviceAdapter.sendMessage(getHandler().toIoBuffer(message), hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#broadcastMessage
+   * (java.nio.ByteBuffer)
+   */
+  @Override
+  public void broadcastMessage(ByteBuffer message) throws InterceptException {
+    if (!acceptor.isActive()) {
+      log.warn("Attempting to broadcast when the acceptor is not active");
+      throw new IllegalStateException("The acceptor is not active, cannot send message");
+    }
+
+    interceptOutgoingMessage(message);
+
+    broadcast(message);
+  }
+
+  /**
+   * Encodes the message once; each session is written a duplicate of a
+   * read-only view of the resulting buffer.
+   */
+  private void broadcast(ByteBuffer message) {
     for (HostPort hostPort : serviceAdapter.getHostPorts()) {
       getHandler().getHeartbeatContainer().reset(hostPort);
     }
 
-    acceptor.broadcast(message);
+    acceptor.broadcast(getHandler().toIoBuffer(message).asReadOnlyBuffer());
   }
 
   /*
@@ -183,6 +232,7 @@ public class ServerMinaMessageGateway extends AbstractStampyMinaMessageGateway {
     log.info("shutdown() invoked, disposing the acceptor");
     serviceAdapter.closeAllSessions();
     acceptor.dispose(false);
+    notifyShutdownListeners();
   }
 
   /*
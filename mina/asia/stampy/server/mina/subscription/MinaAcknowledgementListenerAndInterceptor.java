@@ -55,9 +55,9 @@ public class MinaAcknowledgementListenerAndInterceptor extends
       @Override
       public void sessionDestroyed(IoSession session) throws Exception {
         HostPort hostPort = new HostPort((InetSocketAddress) session.getRemoteAddress());
-        if (messages.containsKey(hostPort)) {
+        if (messages.containsKey(hostPort) || clientSubscriptions.containsKey(hostPort)) {
           log.debug("{} session terminated, cleaning up message interceptor", hostPort);
-          messages.remove(hostPort);
+          cleanup(hostPort);
         }
       }
     });
@@ -95,12 +95,14 @@ public class ClientNettyMessageGateway extends AbstractStampyNettyMessageGateway
    */
   @Override
   public void shutdown() throws Exception {
-    if (client == null || !client.isConnected()) return;
+    if (client != null && client.isConnected()) {
+      ChannelFuture cf = client.close();
+      cf.awaitUninterruptibly();
+      client = null;
+      log.info("Client has been shut down");
+    }
 
-    ChannelFuture cf = client.close();
-    cf.awaitUninterruptibly();
-    client = null;
-    log.info("Client has been shut down");
+    notifyShutdownListeners();
   }
 
   /**
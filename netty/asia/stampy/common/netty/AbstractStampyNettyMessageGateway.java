@@ -18,18 +18,21 @@
  */
 package asia.stampy.common.netty;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 import org.jboss.netty.bootstrap.Bootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.DefaultChannelPipeline;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
-import org.jboss.netty.handler.codec.string.StringDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
 
 import asia.stampy.common.StampyLibrary;
@@ -51,6 +54,12 @@ public abstract class AbstractStampyNettyMessageGateway extends AbstractStampyMe
   private List<ChannelHandler> handlers = new ArrayList<ChannelHandler>();
 
   protected void initializeChannel(final Bootstrap bootstrap) {
+    if (getHandler() != null) {
+      String prefix = bootstrap instanceof ServerBootstrap ? "child." : "";
+      bootstrap.setOption(prefix + "writeBufferHighWaterMark", getHandler().getThrottle().getHighWaterMark());
+      bootstrap.setOption(prefix + "writeBufferLowWaterMark", getHandler().getThrottle().getLowWaterMark());
+    }
+
     ChannelPipelineFactory factory = new ChannelPipelineFactory() {
 
       @Override
@@ -88,6 +97,30 @@ public abstract class AbstractStampyNettyMessageGateway extends AbstractStampyMe
     getHandler().sendMessage(stompMessage, hostPort);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#broadcastMessage
+   * (java.nio.ByteBuffer)
+   */
+  @Override
+  public void broadcastMessage(ByteBuffer stompMessage) throws InterceptException {
+    getHandler().broadcastMessage(ChannelBuffers.wrappedBuffer(stompMessage));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#sendMessage(java
+   * .nio.ByteBuffer, asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public void sendMessage(ByteBuffer stompMessage, HostPort hostPort) throws InterceptException {
+    getHandler().sendMessage(ChannelBuffers.wrappedBuffer(stompMessage), hostPort);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -100,6 +133,18 @@ public abstract class AbstractStampyNettyMessageGateway extends AbstractStampyMe
     return getHandler().isConnected(hostPort);
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#isWritable(asia
+   * .stampy.common.gateway.HostPort)
+   */
+  @Override
+  public boolean isWritable(HostPort hostPort) {
+    return getHandler().isWritable(hostPort);
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -154,7 +199,10 @@ public abstract class AbstractStampyNettyMessageGateway extends AbstractStampyMe
   }
 
   /**
-   * Setup channel pipeline.
+   * Setup channel pipeline. Frames are passed to the
+   * {@link StampyNettyChannelHandler} as the {@link ChannelBuffer} slices
+   * produced by the {@link StompBasedFrameDecoder} and parsed directly from
+   * their bytes.
    * 
    * @param pipeline
    *          the pipeline
@@ -165,12 +213,10 @@ public abstract class AbstractStampyNettyMessageGateway extends AbstractStampyMe
     addHandlers(pipeline);
 
     StringEncoder encoder = new StringEncoder(CHARSET);
-    StringDecoder decoder = new StringDecoder(CHARSET);
 
     StompBasedFrameDecoder stomp = new StompBasedFrameDecoder(maxLength);
 
     pipeline.addLast("stompDecoder", stomp);
-    pipeline.addLast("stringDecoder", decoder);
     pipeline.addLast("stringEncoder", encoder);
     pipeline.addLast("stampyChannelHandler", getHandler());
   }
@@ -22,11 +22,13 @@ import java.lang.invoke.MethodHandles;
 import java.net.InetSocketAddress;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
@@ -43,7 +45,10 @@ import asia.stampy.common.gateway.AbstractStampyMessageGateway;
 import asia.stampy.common.gateway.DefaultUnparseableMessageHandler;
 import asia.stampy.common.gateway.HostPort;
 import asia.stampy.common.gateway.MessageListenerHaltException;
+import asia.stampy.common.gateway.OrderedExecutor;
+import asia.stampy.common.gateway.SlowConsumerPolicy;
 import asia.stampy.common.gateway.StampyHandlerHelper;
+import asia.stampy.common.gateway.StampyShutdownListener;
 import asia.stampy.common.gateway.UnparseableMessageHandler;
 import asia.stampy.common.heartbeat.StampyHeartbeatContainer;
 import asia.stampy.common.message.StampyMessage;
@@ -66,7 +71,7 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
 
   private static final String ILLEGAL_ACCESS_ATTEMPT = "Illegal access attempt";
 
-  private Executor executor = Executors.newSingleThreadExecutor();
+  private Executor executor = new OrderedExecutor();
 
   private UnparseableMessageHandler unparseableMessageHandler = new DefaultUnparseableMessageHandler();
 
@@ -74,6 +79,8 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
 
   private StampyHandlerHelper helper = new StampyHandlerHelper();
 
+  private NettyOutboundThrottle throttle = new NettyOutboundThrottle();
+
   /*
    * (non-Javadoc)
    * 
@@ -88,6 +95,11 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
 
     helper.resetHeartbeat(hostPort);
 
+    if (e.getMessage() instanceof ChannelBuffer) {
+      frameReceived(hostPort, (ChannelBuffer) e.getMessage());
+      return;
+    }
+
     if (!helper.isValidObject(e.getMessage())) {
       log.error("Object {} is not a valid STOMP message, closing connection {}", e.getMessage(), hostPort);
       illegalAccess(ctx);
@@ -109,7 +121,36 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
       }
     };
 
-    getExecutor().execute(runnable);
+    OrderedExecutor.execute(getExecutor(), hostPort, runnable);
+  }
+
+  private void frameReceived(final HostPort hostPort, final ChannelBuffer frame) {
+    if (isHeartbeat(frame)) {
+      log.trace("Received heartbeat");
+      return;
+    }
+
+    Runnable runnable = new Runnable() {
+
+      @Override
+      public void run() {
+        asyncProcessing(hostPort, frame);
+      }
+    };
+
+    OrderedExecutor.execute(getExecutor(), hostPort, runnable);
+  }
+
+  private boolean isHeartbeat(ChannelBuffer frame) {
+    int idx = frame.readerIndex();
+    switch (frame.readableBytes()) {
+    case 1:
+      return frame.getByte(idx) == '\n';
+    case 2:
+      return frame.getByte(idx) == '\r' && frame.getByte(idx + 1) == '\n';
+    default:
+      return false;
+    }
   }
 
   /**
@@ -157,6 +198,23 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
   public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
     HostPort hostPort = createHostPort(ctx);
     sessions.remove(hostPort);
+    throttle.remove(hostPort);
+    ctx.sendUpstream(e);
+  }
+
+  /**
+   * Invoked when the writability of a {@link Channel} has changed, writing
+   * messages held by the {@link NettyOutboundThrottle}.
+   * 
+   * @param ctx
+   *          the ctx
+   * @param e
+   *          the e
+   * @throws Exception
+   *           the exception
+   */
+  public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    throttle.writabilityChanged(createHostPort(ctx), ctx.getChannel());
     ctx.sendUpstream(e);
   }
 
@@ -181,14 +239,39 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
   }
 
   /**
-   * Broadcast message.
+   * Checks if the channel of the specified {@link HostPort} is writable.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return true, if is writable
+   */
+  public boolean isWritable(HostPort hostPort) {
+    Channel channel = sessions.get(hostPort);
+    return channel != null && channel.isWritable();
+  }
+
+  /**
+   * Broadcast message. The message is encoded once rather than per channel.
    * 
    * @param message
    *          the message
    */
   public void broadcastMessage(String message) {
-    for (Channel channel : sessions.values()) {
-      sendMessage(message, null, channel);
+    broadcastMessage(ChannelBuffers.copiedBuffer(message, AbstractStampyNettyMessageGateway.CHARSET));
+  }
+
+  /**
+   * Broadcasts the pre-encoded message. Each channel is written a duplicate of
+   * a read-only view of the buffer, sharing its content without copying and
+   * bypassing the string encoder.
+   * 
+   * @param message
+   *          the message
+   */
+  public void broadcastMessage(ChannelBuffer message) {
+    ChannelBuffer shared = ChannelBuffers.unmodifiableBuffer(message);
+    for (Entry<HostPort, Channel> session : sessions.entrySet()) {
+      sendMessage(shared.duplicate(), session.getKey(), session.getValue());
     }
   }
 
@@ -204,7 +287,19 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
     sendMessage(message, hostPort, sessions.get(hostPort));
   }
 
-  private synchronized void sendMessage(String message, HostPort hostPort, Channel channel) {
+  /**
+   * Sends the pre-encoded message, bypassing the string encoder.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   */
+  public void sendMessage(ChannelBuffer message, HostPort hostPort) {
+    sendMessage(message, hostPort, sessions.get(hostPort));
+  }
+
+  private void sendMessage(Object message, HostPort hostPort, Channel channel) {
     if (channel == null || !channel.isConnected()) {
       log.error("Channel is not connected, cannot send message {}", message);
       return;
@@ -213,7 +308,7 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
     if (hostPort == null) hostPort = new HostPort((InetSocketAddress) channel.getRemoteAddress());
     helper.resetHeartbeat(hostPort);
 
-    channel.write(message);
+    throttle.write(hostPort, channel, message);
   }
 
   /**
@@ -236,9 +331,9 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
 
   /**
    * Once simple validation has been performed on the received message a
-   * Runnable is executed by a single thread executor. This pulls the messages
-   * off the thread NETTY uses and ensures the messages are processed in the
-   * order they are received.
+   * Runnable is executed by the {@link OrderedExecutor}. This pulls the
+   * messages off the thread NETTY uses and ensures the messages from each
+   * connection are processed in the order they are received.
    * 
    * @param hostPort
    *          the host port
@@ -260,6 +355,31 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
     }
   }
 
+  /**
+   * Parses a frame emitted by the {@link StompBasedFrameDecoder} directly from
+   * its bytes, avoiding the intermediate string. Executed by the executor as
+   * per {@link #asyncProcessing(HostPort, String)}.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param frame
+   *          the frame
+   */
+  protected void asyncProcessing(HostPort hostPort, ChannelBuffer frame) {
+    StampyMessage<?> sm = null;
+    try {
+      sm = getParser().parseMessage(frame.toByteBuffer());
+
+      getGateway().notifyMessageListeners(sm, hostPort);
+    } catch (UnparseableException e) {
+      helper.handleUnparseableMessage(hostPort, frame.toString(AbstractStampyNettyMessageGateway.CHARSET), e);
+    } catch (MessageListenerHaltException e) {
+      // halting
+    } catch (Exception e) {
+      helper.handleUnexpectedError(hostPort, frame.toString(AbstractStampyNettyMessageGateway.CHARSET), sm, e);
+    }
+  }
+
   /**
    * Illegal access.
    * 
@@ -331,6 +451,15 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
   public void setGateway(AbstractStampyMessageGateway gateway) {
     this.gateway = gateway;
     helper.setGateway(gateway);
+    throttle.setGateway(gateway);
+
+    gateway.addShutdownListener(new StampyShutdownListener() {
+
+      @Override
+      public void gatewayShutdown() {
+        OrderedExecutor.shutdown(getExecutor());
+      }
+    });
   }
 
   /**
@@ -366,6 +495,28 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
     log.error("Unexpected Netty exception for {}", hostPort, e.getCause());
   }
 
+  /**
+   * Gets the outbound throttle.
+   * 
+   * @return the throttle
+   */
+  public NettyOutboundThrottle getThrottle() {
+    return throttle;
+  }
+
+  /**
+   * Sets the outbound throttle, applying the {@link SlowConsumerPolicy} to
+   * channels which are not writable. Defaults to a {@link NettyOutboundThrottle}
+   * with {@link SlowConsumerPolicy#BLOCK}.
+   * 
+   * @param throttle
+   *          the new throttle
+   */
+  public void setThrottle(NettyOutboundThrottle throttle) {
+    this.throttle = throttle;
+    throttle.setGateway(getGateway());
+  }
+
   /**
    * Gets the executor.
    * 
@@ -376,7 +527,9 @@ public abstract class StampyNettyChannelHandler extends SimpleChannelUpstreamHan
   }
 
   /**
-   * Sets the executor.
+   * Sets the executor. Defaults to an {@link OrderedExecutor}; other
+   * executors do not preserve the order of messages from a connection unless
+   * single threaded. An {@link OrderedExecutor} is shut down with the gateway.
    * 
    * @param executor
    *          the new executor
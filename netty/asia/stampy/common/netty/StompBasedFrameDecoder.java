@@ -20,7 +20,6 @@ package asia.stampy.common.netty;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
@@ -28,17 +27,32 @@ import org.jboss.netty.handler.codec.frame.LineBasedFrameDecoder;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 
 import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.message.AbstractMessageHeader;
 
 /**
- * {@link LineBasedFrameDecoder} converted to be STOMP message aware.
+ * {@link LineBasedFrameDecoder} converted to be STOMP message aware.<br>
+ * <br>
+ * The header block of each frame is scanned once; should a content-length
+ * header be present the decoder jumps straight to the end of the body, allowing
+ * binary bodies containing NUL bytes. Otherwise the body is scanned for the
+ * terminating NUL byte. The scan position is remembered across partial reads so
+ * that large frames arriving in many chunks are scanned only once. Frames are
+ * emitted as slices of the received buffer, including the terminating NUL, and
+ * heartbeats as one or two byte slices. Instances hold per-connection state and
+ * must not be shared between channels.
  * 
  * @author burton
  * 
  */
-@Sharable
 @StampyLibrary(libraryName = "stampy-NETTY-client-server-RI")
 public class StompBasedFrameDecoder extends FrameDecoder {
 
+  private static final byte NUL = 0;
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+
+  private static final byte[] CONTENT_LENGTH = (AbstractMessageHeader.CONTENT_LENGTH + ":").getBytes();
+
   /** Maximum length of a frame we're willing to decode. */
   private final int maxLength;
   /** Whether or not to throw an exception as soon as we exceed maxLength. */
@@ -47,6 +61,24 @@ public class StompBasedFrameDecoder extends FrameDecoder {
   /** True if we're discarding input because we're already over maxLength. */
   private boolean discarding;
 
+  /** Bytes remaining to discard, -1 if discarding up to the next NUL. */
+  private long discardRemaining;
+
+  /** Bytes of the current frame already scanned, relative to the reader index. */
+  private int scanned;
+
+  /** Start of the current header line, relative to the reader index. */
+  private int lineStart;
+
+  /** Length of the command and header block including the blank line. */
+  private int headerLength = -1;
+
+  /** Value of the first content-length header of the current frame. */
+  private int contentLength = -1;
+
+  /** Index of the terminating NUL, relative to the reader index. */
+  private int frameEnd = -1;
+
   /**
    * Creates a new decoder.
    * 
@@ -80,69 +112,176 @@ public class StompBasedFrameDecoder extends FrameDecoder {
   }
 
   @Override
-  protected Object decode(final ChannelHandlerContext ctx, final Channel channel,
-      final ChannelBuffer buffer) throws Exception {
-    final int eol = findEndOfMessage(buffer);
-    if (eol != -1) {
-      final ChannelBuffer frame;
-      final int length = eol - buffer.readerIndex();
-      assert length >= 0 : "Invalid length=" + length;
-      if (discarding) {
-        frame = null;
-        buffer.skipBytes(length);
-        if (!failFast) {
-          fail(ctx, "over " + (maxLength + length) + " bytes");
-        }
-      } else {
-        int delimLength;
-        final byte delim = buffer.getByte(buffer.readerIndex() + length);
-        if (delim == '\r') {
-          delimLength = 2; // Skip the \r\n.
-        } else {
-          delimLength = 1;
-        }
-        frame = extractFrame(buffer, buffer.readerIndex(), length + delimLength);
-        buffer.skipBytes(length + delimLength);
+  protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer buffer)
+      throws Exception {
+    if (discarding) {
+      discard(ctx, buffer);
+      return null;
+    }
+
+    final int rIdx = buffer.readerIndex();
+    final int readable = buffer.readableBytes();
+
+    if (scanned == 0) {
+      final byte b = buffer.getByte(rIdx);
+      if (b == LF) return buffer.readSlice(1);
+      if (b == CR) {
+        if (readable < 2) return null;
+        if (buffer.getByte(rIdx + 1) == LF) return buffer.readSlice(2);
       }
-      return frame;
     }
 
-    final int buffered = buffer.readableBytes();
-    if (!discarding && buffered > maxLength) {
-      discarding = true;
-      if (failFast) {
-        fail(ctx, buffered + " bytes buffered already");
+    if (headerLength == -1 && frameEnd == -1 && !findEndOfHeaders(buffer)) {
+      if (readable > maxLength) tooLong(ctx, buffer, -1);
+      return null;
+    }
+
+    if (frameEnd == -1 && contentLength >= 0) {
+      final long length = (long) headerLength + contentLength;
+      if (length > maxLength) {
+        tooLong(ctx, buffer, length + 1);
+        return null;
       }
+
+      if (readable <= length) return null;
+
+      frameEnd = (int) length;
     }
-    if (discarding) {
-      buffer.skipBytes(buffer.readableBytes());
+
+    if (frameEnd == -1 && !findEndOfMessage(buffer)) {
+      if (readable > maxLength) tooLong(ctx, buffer, -1);
+      return null;
     }
-    return null;
-  }
 
-  private void fail(final ChannelHandlerContext ctx, final String msg) {
-    Channels.fireExceptionCaught(ctx.getChannel(), new TooLongFrameException("Frame length exceeds " + maxLength + " ("
-        + msg + ')'));
+    if (frameEnd > maxLength) {
+      tooLong(ctx, buffer, frameEnd + 1);
+      return null;
+    }
+
+    final int length = buffer.getByte(rIdx + frameEnd) == NUL ? frameEnd + 1 : frameEnd;
+    reset();
+
+    return buffer.readSlice(length);
   }
 
   /**
-   * Returns the index in the buffer of the end of line found. Returns -1 if no
-   * end of line was found in the buffer.
+   * Scans the header block from where the last scan finished. Returns true if
+   * the end of the headers, or a premature NUL, has been found.
    */
-  private static int findEndOfMessage(final ChannelBuffer buffer) {
+  private boolean findEndOfHeaders(final ChannelBuffer buffer) {
+    final int rIdx = buffer.readerIndex();
     final int wIdx = buffer.writerIndex();
+
+    for (int i = rIdx + scanned; i < wIdx; i++) {
+      final byte b = buffer.getByte(i);
+      if (b == NUL) {
+        frameEnd = i - rIdx;
+        return true;
+      }
+
+      if (b != LF) continue;
+
+      final int start = rIdx + lineStart;
+      final int end = i > start && buffer.getByte(i - 1) == CR ? i - 1 : i;
+      if (end == start && lineStart > 0) {
+        headerLength = i + 1 - rIdx;
+        scanned = headerLength;
+        return true;
+      }
+
+      if (contentLength == -1) contentLength = parseContentLength(buffer, start, end);
+      lineStart = i + 1 - rIdx;
+    }
+
+    scanned = wIdx - rIdx;
+    return false;
+  }
+
+  /**
+   * Scans the body for the terminating NUL from where the last scan finished.
+   */
+  private boolean findEndOfMessage(final ChannelBuffer buffer) {
     final int rIdx = buffer.readerIndex();
-    for (int i = buffer.readerIndex(); i < wIdx; i++) {
+    final int wIdx = buffer.writerIndex();
+
+    final int idx = buffer.indexOf(rIdx + scanned, wIdx, NUL);
+    if (idx == -1) {
+      scanned = wIdx - rIdx;
+      return false;
+    }
+
+    frameEnd = idx - rIdx;
+    return true;
+  }
+
+  private static int parseContentLength(final ChannelBuffer buffer, final int start, final int end) {
+    if (end - start <= CONTENT_LENGTH.length) return -1;
+
+    for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+      if (buffer.getByte(start + i) != CONTENT_LENGTH[i]) return -1;
+    }
+
+    long length = 0;
+    for (int i = start + CONTENT_LENGTH.length; i < end; i++) {
       final byte b = buffer.getByte(i);
-      if (b == 0) {
-        return i;
-      } else if (wIdx - rIdx == 2 && b == '\r' && i < wIdx - 1 && buffer.getByte(i + 1) == '\n') {
-        return i; // \r\n
-      } else if (wIdx - rIdx == 1 && b == '\n') {
-        return i;
+      if (b == ' ') continue;
+      if (b < '0' || b > '9') return -1;
+
+      length = length * 10 + (b - '0');
+      if (length > Integer.MAX_VALUE) return Integer.MAX_VALUE;
+    }
+
+    return (int) length;
+  }
+
+  private void tooLong(final ChannelHandlerContext ctx, final ChannelBuffer buffer, final long frameLength) {
+    final String msg = frameLength >= 0 ? frameLength + " bytes" : buffer.readableBytes() + " bytes buffered already";
+
+    discarding = true;
+    if (frameLength >= 0) {
+      discardRemaining = frameLength;
+    } else {
+      discardRemaining = -1;
+      buffer.skipBytes(Math.min(scanned, buffer.readableBytes()));
+    }
+
+    if (failFast) fail(ctx, msg);
+
+    discard(ctx, buffer);
+  }
+
+  private void discard(final ChannelHandlerContext ctx, final ChannelBuffer buffer) {
+    if (discardRemaining >= 0) {
+      final int skip = (int) Math.min(discardRemaining, buffer.readableBytes());
+      buffer.skipBytes(skip);
+      discardRemaining -= skip;
+      if (discardRemaining > 0) return;
+    } else {
+      final int idx = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), NUL);
+      if (idx == -1) {
+        buffer.skipBytes(buffer.readableBytes());
+        return;
       }
+
+      buffer.skipBytes(idx + 1 - buffer.readerIndex());
     }
-    return -1; // Not found.
+
+    discarding = false;
+    reset();
+    if (!failFast) fail(ctx, "over " + maxLength + " bytes");
+  }
+
+  private void reset() {
+    scanned = 0;
+    lineStart = 0;
+    headerLength = -1;
+    contentLength = -1;
+    frameEnd = -1;
+  }
+
+  private void fail(final ChannelHandlerContext ctx, final String msg) {
+    Channels.fireExceptionCaught(ctx.getChannel(), new TooLongFrameException("Frame length exceeds " + maxLength + " ("
+        + msg + ')'));
   }
 
 }
@@ -91,11 +91,14 @@ public class ServerNettyMessageGateway extends AbstractStampyNettyMessageGateway
    */
   @Override
   public void shutdown() throws Exception {
-    if (server == null || !server.isConnected()) return;
-    ChannelFuture cf = server.close();
-    cf.awaitUninterruptibly();
-    server = null;
-    log.info("Server has been shut down");
+    if (server != null && server.isConnected()) {
+      ChannelFuture cf = server.close();
+      cf.awaitUninterruptibly();
+      server = null;
+      log.info("Server has been shut down");
+    }
+
+    notifyShutdownListeners();
   }
 
 }
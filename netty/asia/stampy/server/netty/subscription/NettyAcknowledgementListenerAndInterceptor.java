@@ -60,9 +60,9 @@ public class NettyAcknowledgementListenerAndInterceptor extends
     getGateway().addHandler(new SimpleChannelUpstreamHandler() {
       public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         HostPort hostPort = new HostPort((InetSocketAddress) ctx.getChannel().getRemoteAddress());
-        if (messages.containsKey(hostPort)) {
+        if (messages.containsKey(hostPort) || clientSubscriptions.containsKey(hostPort)) {
           log.debug("{} session terminated, cleaning up message interceptor", hostPort);
-          messages.remove(hostPort);
+          cleanup(hostPort);
         }
       }
     });
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.client.netty4;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+
+import java.lang.invoke.MethodHandles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.netty4.AbstractStampyNetty4MessageGateway;
+
+/**
+ * The Class ClientNetty4MessageGateway.
+ */
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class ClientNetty4MessageGateway extends AbstractStampyNetty4MessageGateway {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final Runnable NOOP = new Runnable() {
+
+    @Override
+    public void run() {
+    }
+  };
+
+  private EventLoopGroup group;
+
+  private String host;
+
+  private Channel client;
+
+  private Bootstrap init() {
+    if (group == null) group = createEventLoopGroup(getIoThreads() == 0 ? 1 : getIoThreads());
+
+    Bootstrap bootstrap = new Bootstrap();
+    bootstrap.group(group).channel(getChannelClass());
+    initializeChannel(bootstrap);
+
+    return bootstrap;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#closeConnection
+   * (asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public void closeConnection(HostPort hostPort) {
+    getHandler().close(hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.gateway.AbstractStampyMessageGateway#connect()
+   */
+  @Override
+  public void connect() throws Exception {
+    if (client == null) {
+      Bootstrap bootstrap = init();
+      ChannelFuture cf = bootstrap.connect(getHost(), getPort());
+      cf.await();
+      if (cf.isSuccess()) {
+        client = cf.channel();
+        // the connect future completes before channelActive is fired on the
+        // event loop; wait for it so that the session is registered on return
+        client.eventLoop().submit(NOOP).await();
+        log.info("Connected to {}:{}", getHost(), getPort());
+      } else {
+        log.error("Could not connect to {}:{}", getHost(), getPort());
+      }
+    } else if (client.isActive()) {
+      log.warn("Already connected");
+    } else {
+      log.error("Connector in unrecognized state: isOpen {}, isActive {}, ", client.isOpen(), client.isActive());
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.gateway.AbstractStampyMessageGateway#shutdown()
+   */
+  @Override
+  public void shutdown() throws Exception {
+    if (group != null) {
+      if (client != null) {
+        ChannelFuture cf = client.close();
+        cf.awaitUninterruptibly();
+        client = null;
+      }
+
+      group.shutdownGracefully().awaitUninterruptibly();
+      group = null;
+      log.info("Client has been shut down");
+    }
+
+    notifyShutdownListeners();
+  }
+
+  /**
+   * Gets the host.
+   * 
+   * @return the host
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Sets the host.
+   * 
+   * @param host
+   *          the new host
+   */
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+}
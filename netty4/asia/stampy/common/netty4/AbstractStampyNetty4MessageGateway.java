@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.AbstractStampyMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.message.StampyMessage;
+import asia.stampy.common.message.interceptor.InterceptException;
+
+/**
+ * The Class AbstractStampyNetty4MessageGateway. Channels are created on the
+ * native epoll transport when it is available and enabled, otherwise on NIO,
+ * and allocate their buffers from the {@link PooledByteBufAllocator}.
+ */
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public abstract class AbstractStampyNetty4MessageGateway extends AbstractStampyMessageGateway {
+
+  /** <i>The default encoding for STOMP is UTF-8</i>. */
+  public static Charset CHARSET = Charset.forName("UTF-8");
+
+  private static final StompFrameEncoder ENCODER = new StompFrameEncoder();
+
+  private static final StampyMessageEncoder MESSAGE_ENCODER = new StampyMessageEncoder();
+
+  private StampyNetty4ChannelHandler handler;
+
+  private List<ChannelHandler> handlers = new ArrayList<ChannelHandler>();
+
+  private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+  private boolean nativeTransport = true;
+
+  private int ioThreads;
+
+  /**
+   * Initializes the server bootstrap, applying the options to the accepted
+   * channels.
+   * 
+   * @param bootstrap
+   *          the bootstrap
+   */
+  protected void initializeChannel(ServerBootstrap bootstrap) {
+    bootstrap.childOption(ChannelOption.ALLOCATOR, getAllocator());
+    if (getHandler() != null) bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, createWaterMark());
+
+    bootstrap.option(ChannelOption.ALLOCATOR, getAllocator());
+    bootstrap.childHandler(createInitializer());
+  }
+
+  /**
+   * Initializes the client bootstrap.
+   * 
+   * @param bootstrap
+   *          the bootstrap
+   */
+  protected void initializeChannel(Bootstrap bootstrap) {
+    bootstrap.option(ChannelOption.ALLOCATOR, getAllocator());
+    if (getHandler() != null) bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, createWaterMark());
+
+    bootstrap.handler(createInitializer());
+  }
+
+  private WriteBufferWaterMark createWaterMark() {
+    Netty4OutboundThrottle throttle = getHandler().getThrottle();
+    return new WriteBufferWaterMark(throttle.getLowWaterMark(), throttle.getHighWaterMark());
+  }
+
+  private ChannelInitializer<Channel> createInitializer() {
+    return new ChannelInitializer<Channel>() {
+
+      @Override
+      protected void initChannel(Channel ch) throws Exception {
+        setupChannelPipeline(ch.pipeline(), getMaxMessageSize());
+      }
+    };
+  }
+
+  /**
+   * Checks if the native epoll transport is to be used ie. it has been enabled
+   * and is available on this platform.
+   * 
+   * @return true, if epoll
+   */
+  protected boolean isEpoll() {
+    return isNativeTransport() && Epoll.isAvailable();
+  }
+
+  /**
+   * Creates an event loop group for the transport in use.
+   * 
+   * @param threads
+   *          the number of threads, 0 for Netty's default
+   * @return the event loop group
+   */
+  protected EventLoopGroup createEventLoopGroup(int threads) {
+    return isEpoll() ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+  }
+
+  /**
+   * Gets the server channel class for the transport in use.
+   * 
+   * @return the server channel class
+   */
+  protected Class<? extends ServerChannel> getServerChannelClass() {
+    return isEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+  }
+
+  /**
+   * Gets the client channel class for the transport in use.
+   * 
+   * @return the channel class
+   */
+  protected Class<? extends Channel> getChannelClass() {
+    return isEpoll() ? EpollSocketChannel.class : NioSocketChannel.class;
+  }
+
+  /**
+   * Broadcasts the message, validated and encoded once into a buffer from the
+   * {@link #getAllocator()} shared by all channels.
+   * 
+   * @param message
+   *          the message
+   * @throws InterceptException
+   *           the intercept exception
+   */
+  @Override
+  public void broadcastMessage(StampyMessage<?> message) throws InterceptException {
+    interceptOutgoingMessage(message);
+    message.validate();
+    getHandler().broadcastMessage(StampyMessageEncoder.encode(getAllocator(), message));
+  }
+
+  /**
+   * Sends the message, validated before being passed to the channel and
+   * written directly into a pooled buffer by the {@link StampyMessageEncoder}.
+   * The message must not be modified once sent.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   * @throws InterceptException
+   *           the intercept exception
+   */
+  @Override
+  public void sendMessage(StampyMessage<?> message, HostPort hostPort) throws InterceptException {
+    interceptOutgoingMessage(message, hostPort);
+    message.validate();
+    getHandler().sendMessage(message, hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#broadcastMessage
+   * (java.lang.String)
+   */
+  @Override
+  public void broadcastMessage(String stompMessage) throws InterceptException {
+    getHandler().broadcastMessage(stompMessage);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#sendMessage(java
+   * .lang.String, asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public void sendMessage(String stompMessage, HostPort hostPort) throws InterceptException {
+    getHandler().sendMessage(stompMessage, hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#broadcastMessage
+   * (java.nio.ByteBuffer)
+   */
+  @Override
+  public void broadcastMessage(ByteBuffer stompMessage) throws InterceptException {
+    getHandler().broadcastMessage(Unpooled.wrappedBuffer(stompMessage));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#sendMessage(java
+   * .nio.ByteBuffer, asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public void sendMessage(ByteBuffer stompMessage, HostPort hostPort) throws InterceptException {
+    getHandler().sendMessage(Unpooled.wrappedBuffer(stompMessage), hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#isConnected(asia
+   * .stampy.common.gateway.HostPort)
+   */
+  @Override
+  public boolean isConnected(HostPort hostPort) {
+    return getHandler().isConnected(hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#isWritable(asia
+   * .stampy.common.gateway.HostPort)
+   */
+  @Override
+  public boolean isWritable(HostPort hostPort) {
+    return getHandler().isWritable(hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#getConnectedHostPorts
+   * ()
+   */
+  @Override
+  public Set<HostPort> getConnectedHostPorts() {
+    return getHandler().getConnectedHostPorts();
+  }
+
+  /**
+   * Gets the stampy channel handler.
+   * 
+   * @return the stampy channel handler
+   */
+  public StampyNetty4ChannelHandler getHandler() {
+    return handler;
+  }
+
+  /**
+   * Sets the stampy channel handler.
+   * 
+   * @param channelHandler
+   *          the new stampy channel handler
+   */
+  public void setHandler(StampyNetty4ChannelHandler channelHandler) {
+    this.handler = channelHandler;
+  }
+
+  /**
+   * Adds the Channel Handler for inclusion in the created Channel. Note that on
+   * the server the handler will be shared across all connections, and as such
+   * must be {@link ChannelHandler.Sharable} ie. no
+   * {@link ByteToMessageDecoder}s here.
+   * 
+   * @param handler
+   *          the handler
+   */
+  public void addHandler(ChannelHandler handler) {
+    handlers.add(handler);
+  }
+
+  /**
+   * Removes the handler.
+   * 
+   * @param handler
+   *          the handler
+   */
+  public void removeHandler(ChannelHandler handler) {
+    handlers.remove(handler);
+  }
+
+  /**
+   * Gets the buffer allocator.
+   * 
+   * @return the allocator
+   */
+  public ByteBufAllocator getAllocator() {
+    return allocator;
+  }
+
+  /**
+   * Sets the buffer allocator of the created channels. Defaults to
+   * {@link PooledByteBufAllocator#DEFAULT}.
+   * 
+   * @param allocator
+   *          the new allocator
+   */
+  public void setAllocator(ByteBufAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  /**
+   * Checks if the native epoll transport is to be used when available.
+   * 
+   * @return true, if native transport
+   */
+  public boolean isNativeTransport() {
+    return nativeTransport;
+  }
+
+  /**
+   * Sets whether the native epoll transport is to be used when available.
+   * Defaults to true; NIO is used otherwise.
+   * 
+   * @param nativeTransport
+   *          the new native transport
+   */
+  public void setNativeTransport(boolean nativeTransport) {
+    this.nativeTransport = nativeTransport;
+  }
+
+  /**
+   * Gets the number of I/O threads.
+   * 
+   * @return the io threads
+   */
+  public int getIoThreads() {
+    return ioThreads;
+  }
+
+  /**
+   * Sets the number of I/O threads servicing the channels. Defaults to 0, for
+   * Netty's default of twice the number of processors.
+   * 
+   * @param ioThreads
+   *          the new io threads
+   */
+  public void setIoThreads(int ioThreads) {
+    this.ioThreads = ioThreads;
+  }
+
+  /**
+   * Setup channel pipeline. Frames are passed to the
+   * {@link StampyNetty4ChannelHandler} as the {@link io.netty.buffer.ByteBuf}
+   * slices produced by the {@link StompFrameDecoder} and parsed directly from
+   * their bytes. Outbound messages are encoded by the
+   * {@link StampyMessageEncoder} and strings by the {@link StompFrameEncoder}.
+   * 
+   * @param pipeline
+   *          the pipeline
+   * @param maxLength
+   *          the max length
+   */
+  protected void setupChannelPipeline(ChannelPipeline pipeline, int maxLength) {
+    addHandlers(pipeline);
+
+    pipeline.addLast("stompDecoder", new StompFrameDecoder(maxLength));
+    pipeline.addLast("stompEncoder", ENCODER);
+    pipeline.addLast("stampyEncoder", MESSAGE_ENCODER);
+    pipeline.addLast("stampyChannelHandler", getHandler());
+  }
+
+  /*
+   * Adds the handlers.
+   * 
+   * @param pipeline the pipeline
+   */
+  private void addHandlers(ChannelPipeline pipeline) {
+    for (ChannelHandler handler : handlers) {
+      pipeline.addLast(handler.toString(), handler);
+    }
+  }
+
+}
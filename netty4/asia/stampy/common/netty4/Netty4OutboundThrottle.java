@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.AbstractOutboundThrottle;
+
+/**
+ * Throttles writes to Netty 4 {@link Channel}s by their writability, as
+ * determined by the channels' write buffer water marks. Reference counted
+ * messages which are discarded are released.
+ */
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class Netty4OutboundThrottle extends AbstractOutboundThrottle<Channel> {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#isWritable(java.lang
+   * .Object)
+   */
+  @Override
+  protected boolean isWritable(Channel connection) {
+    return connection.isWritable();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#write(java.lang.Object,
+   * java.lang.Object)
+   */
+  @Override
+  protected void write(Channel connection, Object message) {
+    connection.writeAndFlush(message, connection.voidPromise());
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#close(java.lang.Object)
+   */
+  @Override
+  protected void close(Channel connection) {
+    connection.close();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractOutboundThrottle#discarded(java.lang.
+   * Object)
+   */
+  @Override
+  protected void discarded(Object message) {
+    ReferenceCountUtil.release(message);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import java.nio.ByteBuffer;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.message.StampyMessage;
+
+/**
+ * {@link MessageToByteEncoder} writing {@link StampyMessage}s directly into a
+ * buffer from the channel's allocator, sized exactly by
+ * {@link StampyMessage#getEncodedLength()}, without an intermediate string or
+ * heap copy. The body encoded when sizing the buffer is reused for writing. Messages are validated by the gateway before being written and
+ * must not be modified once sent. Stateless, and so may be shared between
+ * channels.
+ */
+@Sharable
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class StampyMessageEncoder extends MessageToByteEncoder<StampyMessage<?>> {
+
+  /**
+   * Encodes the message into a buffer from the specified allocator, for
+   * messages written to several channels.
+   * 
+   * @param allocator
+   *          the allocator
+   * @param message
+   *          the message
+   * @return the buffer, owned by the caller
+   */
+  public static ByteBuf encode(ByteBufAllocator allocator, StampyMessage<?> message) {
+    ByteBuf buffer = allocator.ioBuffer(message.getEncodedLength());
+    try {
+      write(message, buffer);
+    } catch (RuntimeException e) {
+      buffer.release();
+      throw e;
+    }
+
+    return buffer;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.handler.codec.MessageToByteEncoder#allocateBuffer(io.netty.channel
+   * .ChannelHandlerContext, java.lang.Object, boolean)
+   */
+  @Override
+  protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, StampyMessage<?> msg, boolean preferDirect)
+      throws Exception {
+    int size = msg.getEncodedLength();
+    return preferDirect ? ctx.alloc().ioBuffer(size) : ctx.alloc().heapBuffer(size);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.handler.codec.MessageToByteEncoder#encode(io.netty.channel.
+   * ChannelHandlerContext, java.lang.Object, io.netty.buffer.ByteBuf)
+   */
+  @Override
+  protected void encode(ChannelHandlerContext ctx, StampyMessage<?> msg, ByteBuf out) throws Exception {
+    write(msg, out);
+  }
+
+  /**
+   * Writes the message into the writable bytes of the buffer, which must have
+   * been allocated with at least {@link StampyMessage#getEncodedLength()}.
+   */
+  private static void write(StampyMessage<?> message, ByteBuf out) {
+    int writerIndex = out.writerIndex();
+    ByteBuffer nio = out.nioBuffer(writerIndex, out.writableBytes());
+    int start = nio.position();
+
+    message.writeTo(nio, false);
+
+    out.writerIndex(writerIndex + nio.position() - start);
+  }
+
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+import java.lang.invoke.MethodHandles;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.AbstractStampyMessageGateway;
+import asia.stampy.common.gateway.DefaultUnparseableMessageHandler;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.gateway.MessageListenerHaltException;
+import asia.stampy.common.gateway.OrderedExecutor;
+import asia.stampy.common.gateway.SlowConsumerPolicy;
+import asia.stampy.common.gateway.StampyHandlerHelper;
+import asia.stampy.common.gateway.StampyShutdownListener;
+import asia.stampy.common.gateway.UnparseableMessageHandler;
+import asia.stampy.common.heartbeat.StampyHeartbeatContainer;
+import asia.stampy.common.message.StampyMessage;
+import asia.stampy.common.parsing.StompMessageParser;
+import asia.stampy.common.parsing.UnparseableException;
+
+/**
+ * The Class StampyNetty4ChannelHandler. Receives the frames emitted by the
+ * {@link StompFrameDecoder}, parsing them directly from their bytes on the
+ * executor before releasing them.
+ */
+@Sharable
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public abstract class StampyNetty4ChannelHandler extends ChannelInboundHandlerAdapter {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private StompMessageParser parser = new StompMessageParser();
+
+  private StampyHeartbeatContainer heartbeatContainer;
+
+  private AbstractStampyMessageGateway gateway;
+
+  private static final String ILLEGAL_ACCESS_ATTEMPT = "Illegal access attempt";
+
+  private Executor executor = new OrderedExecutor();
+
+  private UnparseableMessageHandler unparseableMessageHandler = new DefaultUnparseableMessageHandler();
+
+  private Map<HostPort, Channel> sessions = new ConcurrentHashMap<HostPort, Channel>();
+
+  private StampyHandlerHelper helper = new StampyHandlerHelper();
+
+  private Netty4OutboundThrottle throttle = new Netty4OutboundThrottle();
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.channel.ChannelInboundHandlerAdapter#channelRead(io.netty.channel
+   * .ChannelHandlerContext, java.lang.Object)
+   */
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    final HostPort hostPort = createHostPort(ctx);
+    log.debug("Received raw message {} from {}", msg, hostPort);
+
+    helper.resetHeartbeat(hostPort);
+
+    if (!(msg instanceof ByteBuf)) {
+      log.error("Object {} is not a valid STOMP message, closing connection {}", msg, hostPort);
+      ReferenceCountUtil.release(msg);
+      illegalAccess(ctx);
+      return;
+    }
+
+    final ByteBuf frame = (ByteBuf) msg;
+    if (isHeartbeat(frame)) {
+      log.trace("Received heartbeat");
+      frame.release();
+      return;
+    }
+
+    Runnable runnable = new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          asyncProcessing(hostPort, frame);
+        } finally {
+          frame.release();
+        }
+      }
+    };
+
+    OrderedExecutor.execute(getExecutor(), hostPort, runnable);
+  }
+
+  private boolean isHeartbeat(ByteBuf frame) {
+    int idx = frame.readerIndex();
+    switch (frame.readableBytes()) {
+    case 1:
+      return frame.getByte(idx) == '\n';
+    case 2:
+      return frame.getByte(idx) == '\r' && frame.getByte(idx + 1) == '\n';
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Creates the host port.
+   * 
+   * @param ctx
+   *          the ctx
+   * @return the host port
+   */
+  protected HostPort createHostPort(ChannelHandlerContext ctx) {
+    return new HostPort((InetSocketAddress) ctx.channel().remoteAddress());
+  }
+
+  /**
+   * Invoked when a {@link Channel} is connected to its remote peer.
+   * 
+   * @param ctx
+   *          the ctx
+   * @throws Exception
+   *           the exception
+   */
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    HostPort hostPort = createHostPort(ctx);
+    sessions.put(hostPort, ctx.channel());
+    ctx.fireChannelActive();
+  }
+
+  /**
+   * Invoked when a {@link Channel} was disconnected from its remote peer.
+   * 
+   * @param ctx
+   *          the ctx
+   * @throws Exception
+   *           the exception
+   */
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    HostPort hostPort = createHostPort(ctx);
+    sessions.remove(hostPort);
+    throttle.remove(hostPort);
+    ctx.fireChannelInactive();
+  }
+
+  /**
+   * Invoked when the writability of a {@link Channel} has changed, writing
+   * messages held by the {@link Netty4OutboundThrottle}.
+   * 
+   * @param ctx
+   *          the ctx
+   * @throws Exception
+   *           the exception
+   */
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    throttle.writabilityChanged(createHostPort(ctx), ctx.channel());
+    ctx.fireChannelWritabilityChanged();
+  }
+
+  /**
+   * Gets the connected host ports.
+   * 
+   * @return the connected host ports
+   */
+  public Set<HostPort> getConnectedHostPorts() {
+    return Collections.unmodifiableSet(sessions.keySet());
+  }
+
+  /**
+   * Checks if is connected.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return true, if is connected
+   */
+  public boolean isConnected(HostPort hostPort) {
+    return sessions.containsKey(hostPort);
+  }
+
+  /**
+   * Checks if the channel of the specified {@link HostPort} is writable.
+   * 
+   * @param hostPort
+   *          the host port
+   * @return true, if is writable
+   */
+  public boolean isWritable(HostPort hostPort) {
+    Channel channel = sessions.get(hostPort);
+    return channel != null && channel.isWritable();
+  }
+
+  /**
+   * Broadcast message. The message is encoded once into a pooled buffer rather
+   * than per channel.
+   * 
+   * @param message
+   *          the message
+   */
+  public void broadcastMessage(String message) {
+    broadcastMessage(ByteBufUtil.writeUtf8(PooledByteBufAllocator.DEFAULT, message));
+  }
+
+  /**
+   * Broadcasts the pre-encoded message. Each channel is written a retained
+   * duplicate of the buffer, sharing its content without copying and bypassing
+   * the encoder. Ownership of the buffer passes to this method.
+   * 
+   * @param message
+   *          the message
+   */
+  public void broadcastMessage(ByteBuf message) {
+    try {
+      for (Entry<HostPort, Channel> session : sessions.entrySet()) {
+        sendMessage(message.retainedDuplicate(), session.getKey(), session.getValue());
+      }
+    } finally {
+      message.release();
+    }
+  }
+
+  /**
+   * Send message.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   */
+  public void sendMessage(String message, HostPort hostPort) {
+    sendMessage(message, hostPort, sessions.get(hostPort));
+  }
+
+  /**
+   * Sends the message, encoded by the {@link StampyMessageEncoder} once it
+   * reaches the channel's pipeline.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   */
+  public void sendMessage(StampyMessage<?> message, HostPort hostPort) {
+    sendMessage(message, hostPort, sessions.get(hostPort));
+  }
+
+  /**
+   * Sends the pre-encoded message, bypassing the encoder. Ownership of the
+   * buffer passes to this method.
+   * 
+   * @param message
+   *          the message
+   * @param hostPort
+   *          the host port
+   */
+  public void sendMessage(ByteBuf message, HostPort hostPort) {
+    sendMessage(message, hostPort, sessions.get(hostPort));
+  }
+
+  private void sendMessage(Object message, HostPort hostPort, Channel channel) {
+    if (channel == null || !channel.isActive()) {
+      log.error("Channel is not connected, cannot send message {}", message);
+      ReferenceCountUtil.release(message);
+      return;
+    }
+
+    if (hostPort == null) hostPort = new HostPort((InetSocketAddress) channel.remoteAddress());
+    helper.resetHeartbeat(hostPort);
+
+    throttle.write(hostPort, channel, message);
+  }
+
+  /**
+   * Close.
+   * 
+   * @param hostPort
+   *          the host port
+   */
+  public void close(HostPort hostPort) {
+    if (!isConnected(hostPort)) {
+      log.warn("{} is already closed", hostPort);
+      return;
+    }
+
+    Channel channel = sessions.get(hostPort);
+    ChannelFuture cf = channel.close();
+    cf.awaitUninterruptibly();
+    log.info("Session for {} has been closed", hostPort);
+  }
+
+  /**
+   * Parses a frame emitted by the {@link StompFrameDecoder} directly from its
+   * bytes. Once simple validation has been performed on the received message a
+   * Runnable is executed by the {@link OrderedExecutor}. This pulls the
+   * messages off the event loop and ensures the messages from each connection
+   * are processed in the order they are received. The frame is released once
+   * this method returns.
+   * 
+   * @param hostPort
+   *          the host port
+   * @param frame
+   *          the frame
+   */
+  protected void asyncProcessing(HostPort hostPort, ByteBuf frame) {
+    StampyMessage<?> sm = null;
+    try {
+      sm = getParser().parseMessage(frame.nioBuffer());
+
+      getGateway().notifyMessageListeners(sm, hostPort);
+    } catch (UnparseableException e) {
+      helper.handleUnparseableMessage(hostPort, frame.toString(AbstractStampyNetty4MessageGateway.CHARSET), e);
+    } catch (MessageListenerHaltException e) {
+      // halting
+    } catch (Exception e) {
+      helper.handleUnexpectedError(hostPort, frame.toString(AbstractStampyNetty4MessageGateway.CHARSET), sm, e);
+    }
+  }
+
+  /**
+   * Illegal access.
+   * 
+   * @param ctx
+   *          the ctx
+   */
+  protected void illegalAccess(ChannelHandlerContext ctx) {
+    ChannelFuture cf = ctx.writeAndFlush(ILLEGAL_ACCESS_ATTEMPT);
+    cf.awaitUninterruptibly();
+    cf = ctx.channel().close();
+    cf.awaitUninterruptibly();
+  }
+
+  /**
+   * Gets the parser.
+   * 
+   * @return the parser
+   */
+  public StompMessageParser getParser() {
+    return parser;
+  }
+
+  /**
+   * Sets the parser.
+   * 
+   * @param parser
+   *          the new parser
+   */
+  public void setParser(StompMessageParser parser) {
+    this.parser = parser;
+    helper.setParser(parser);
+  }
+
+  /**
+   * Gets the heartbeat container.
+   * 
+   * @return the heartbeat container
+   */
+  public StampyHeartbeatContainer getHeartbeatContainer() {
+    return heartbeatContainer;
+  }
+
+  /**
+   * Sets the heartbeat container.
+   * 
+   * @param heartbeatContainer
+   *          the new heartbeat container
+   */
+  public void setHeartbeatContainer(StampyHeartbeatContainer heartbeatContainer) {
+    this.heartbeatContainer = heartbeatContainer;
+    helper.setHeartbeatContainer(heartbeatContainer);
+  }
+
+  /**
+   * Gets the gateway.
+   * 
+   * @return the gateway
+   */
+  public AbstractStampyMessageGateway getGateway() {
+    return gateway;
+  }
+
+  /**
+   * Sets the gateway.
+   * 
+   * @param gateway
+   *          the new gateway
+   */
+  public void setGateway(AbstractStampyMessageGateway gateway) {
+    this.gateway = gateway;
+    helper.setGateway(gateway);
+    throttle.setGateway(gateway);
+
+    gateway.addShutdownListener(new StampyShutdownListener() {
+
+      @Override
+      public void gatewayShutdown() {
+        OrderedExecutor.shutdown(getExecutor());
+      }
+    });
+  }
+
+  /**
+   * Gets the unparseable message handler.
+   * 
+   * @return the unparseable message handler
+   */
+  public UnparseableMessageHandler getUnparseableMessageHandler() {
+    return unparseableMessageHandler;
+  }
+
+  /**
+   * Sets the unparseable message handler.
+   * 
+   * @param unparseableMessageHandler
+   *          the new unparseable message handler
+   */
+  public void setUnparseableMessageHandler(UnparseableMessageHandler unparseableMessageHandler) {
+    this.unparseableMessageHandler = unparseableMessageHandler;
+    helper.setUnparseableMessageHandler(unparseableMessageHandler);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.channel.ChannelInboundHandlerAdapter#exceptionCaught(io.netty.
+   * channel.ChannelHandlerContext, java.lang.Throwable)
+   */
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    HostPort hostPort = createHostPort(ctx);
+    log.error("Unexpected Netty exception for {}", hostPort, cause);
+  }
+
+  /**
+   * Gets the outbound throttle.
+   * 
+   * @return the throttle
+   */
+  public Netty4OutboundThrottle getThrottle() {
+    return throttle;
+  }
+
+  /**
+   * Sets the outbound throttle, applying the {@link SlowConsumerPolicy} to
+   * channels which are not writable. Defaults to a
+   * {@link Netty4OutboundThrottle} with {@link SlowConsumerPolicy#BLOCK}.
+   * 
+   * @param throttle
+   *          the new throttle
+   */
+  public void setThrottle(Netty4OutboundThrottle throttle) {
+    this.throttle = throttle;
+    throttle.setGateway(getGateway());
+  }
+
+  /**
+   * Gets the executor.
+   * 
+   * @return the executor
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Sets the executor. Defaults to an {@link OrderedExecutor}; other executors
+   * do not preserve the order of messages from a connection unless single
+   * threaded. An {@link OrderedExecutor} is shut down with the gateway.
+   * 
+   * @param executor
+   *          the new executor
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetSocketAddress;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+
+/**
+ * Shareable handler notified when a session terminates, for listeners to clean
+ * up the state held for the {@link HostPort}. Added to the channels via
+ * {@link AbstractStampyNetty4MessageGateway#addHandler(io.netty.channel.ChannelHandler)}
+ * ; subclasses inherit the {@link Sharable} annotation.
+ */
+@Sharable
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public abstract class StampyNetty4SessionHandler extends ChannelInboundHandlerAdapter {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.channel.ChannelInboundHandlerAdapter#channelInactive(io.netty.channel
+   * .ChannelHandlerContext)
+   */
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    sessionTerminated(new HostPort((InetSocketAddress) ctx.channel().remoteAddress()));
+    ctx.fireChannelInactive();
+  }
+
+  /**
+   * Invoked when the session for the specified {@link HostPort} has
+   * terminated.
+   * 
+   * @param hostPort
+   *          the host port
+   * @throws Exception
+   *           the exception
+   */
+  protected abstract void sessionTerminated(HostPort hostPort) throws Exception;
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.List;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.message.AbstractMessageHeader;
+
+/**
+ * {@link ByteToMessageDecoder} which splits the received bytes into STOMP
+ * frames.<br>
+ * <br>
+ * The header block of each frame is scanned once; should a content-length
+ * header be present the decoder jumps straight to the end of the body, allowing
+ * binary bodies containing NUL bytes. Otherwise the body is scanned for the
+ * terminating NUL byte. The scan position is remembered across partial reads so
+ * that large frames arriving in many chunks are scanned only once. Frames are
+ * emitted as retained slices of the cumulation buffer, including the
+ * terminating NUL, and heartbeats as one or two byte slices; the consumer is
+ * responsible for releasing them. Instances hold per-connection state and must
+ * not be shared between channels.
+ */
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class StompFrameDecoder extends ByteToMessageDecoder {
+
+  private static final byte NUL = 0;
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+
+  private static final byte[] CONTENT_LENGTH = (AbstractMessageHeader.CONTENT_LENGTH + ":").getBytes();
+
+  /** Maximum length of a frame we're willing to decode. */
+  private final int maxLength;
+  /** Whether or not to throw an exception as soon as we exceed maxLength. */
+  private final boolean failFast;
+
+  /** True if we're discarding input because we're already over maxLength. */
+  private boolean discarding;
+
+  /** Bytes remaining to discard, -1 if discarding up to the next NUL. */
+  private long discardRemaining;
+
+  /** Bytes of the current frame already scanned, relative to the reader index. */
+  private int scanned;
+
+  /** Start of the current header line, relative to the reader index. */
+  private int lineStart;
+
+  /** Length of the command and header block including the blank line. */
+  private int headerLength = -1;
+
+  /** Value of the first content-length header of the current frame. */
+  private int contentLength = -1;
+
+  /** Index of the terminating NUL, relative to the reader index. */
+  private int frameEnd = -1;
+
+  /**
+   * Creates a new decoder.
+   * 
+   * @param maxLength
+   *          the maximum length of the decoded frame. A
+   *          {@link TooLongFrameException} is fired if the length of the frame
+   *          exceeds this value.
+   */
+  public StompFrameDecoder(final int maxLength) {
+    this(maxLength, false);
+  }
+
+  /**
+   * Creates a new decoder.
+   * 
+   * @param maxLength
+   *          the maximum length of the decoded frame. A
+   *          {@link TooLongFrameException} is fired if the length of the frame
+   *          exceeds this value.
+   * @param failFast
+   *          If <tt>true</tt>, a {@link TooLongFrameException} is fired as soon
+   *          as the decoder notices the length of the frame will exceed
+   *          <tt>maxFrameLength</tt> regardless of whether the entire frame has
+   *          been read. If <tt>false</tt>, a {@link TooLongFrameException} is
+   *          fired after the entire frame that exceeds <tt>maxFrameLength</tt>
+   *          has been read.
+   */
+  public StompFrameDecoder(final int maxLength, final boolean failFast) {
+    this.maxLength = maxLength;
+    this.failFast = failFast;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.handler.codec.ByteToMessageDecoder#decode(io.netty.channel.
+   * ChannelHandlerContext, io.netty.buffer.ByteBuf, java.util.List)
+   */
+  @Override
+  protected void decode(final ChannelHandlerContext ctx, final ByteBuf buffer, final List<Object> out)
+      throws Exception {
+    if (discarding) {
+      discard(ctx, buffer);
+      return;
+    }
+
+    final int rIdx = buffer.readerIndex();
+    final int readable = buffer.readableBytes();
+
+    if (scanned == 0) {
+      final byte b = buffer.getByte(rIdx);
+      if (b == LF) {
+        out.add(buffer.readRetainedSlice(1));
+        return;
+      }
+      if (b == CR) {
+        if (readable < 2) return;
+        if (buffer.getByte(rIdx + 1) == LF) {
+          out.add(buffer.readRetainedSlice(2));
+          return;
+        }
+      }
+    }
+
+    if (headerLength == -1 && frameEnd == -1 && !findEndOfHeaders(buffer)) {
+      if (readable > maxLength) tooLong(ctx, buffer, -1);
+      return;
+    }
+
+    if (frameEnd == -1 && contentLength >= 0) {
+      final long length = (long) headerLength + contentLength;
+      if (length > maxLength) {
+        tooLong(ctx, buffer, length + 1);
+        return;
+      }
+
+      if (readable <= length) return;
+
+      frameEnd = (int) length;
+    }
+
+    if (frameEnd == -1 && !findEndOfMessage(buffer)) {
+      if (readable > maxLength) tooLong(ctx, buffer, -1);
+      return;
+    }
+
+    if (frameEnd > maxLength) {
+      tooLong(ctx, buffer, frameEnd + 1);
+      return;
+    }
+
+    final int length = buffer.getByte(rIdx + frameEnd) == NUL ? frameEnd + 1 : frameEnd;
+    reset();
+
+    out.add(buffer.readRetainedSlice(length));
+  }
+
+  /**
+   * Scans the header block from where the last scan finished. Returns true if
+   * the end of the headers, or a premature NUL, has been found.
+   */
+  private boolean findEndOfHeaders(final ByteBuf buffer) {
+    final int rIdx = buffer.readerIndex();
+    final int wIdx = buffer.writerIndex();
+
+    for (int i = rIdx + scanned; i < wIdx; i++) {
+      final byte b = buffer.getByte(i);
+      if (b == NUL) {
+        frameEnd = i - rIdx;
+        return true;
+      }
+
+      if (b != LF) continue;
+
+      final int start = rIdx + lineStart;
+      final int end = i > start && buffer.getByte(i - 1) == CR ? i - 1 : i;
+      if (end == start && lineStart > 0) {
+        headerLength = i + 1 - rIdx;
+        scanned = headerLength;
+        return true;
+      }
+
+      if (contentLength == -1) contentLength = parseContentLength(buffer, start, end);
+      lineStart = i + 1 - rIdx;
+    }
+
+    scanned = wIdx - rIdx;
+    return false;
+  }
+
+  /**
+   * Scans the body for the terminating NUL from where the last scan finished.
+   */
+  private boolean findEndOfMessage(final ByteBuf buffer) {
+    final int rIdx = buffer.readerIndex();
+    final int wIdx = buffer.writerIndex();
+
+    final int idx = buffer.indexOf(rIdx + scanned, wIdx, NUL);
+    if (idx == -1) {
+      scanned = wIdx - rIdx;
+      return false;
+    }
+
+    frameEnd = idx - rIdx;
+    return true;
+  }
+
+  private static int parseContentLength(final ByteBuf buffer, final int start, final int end) {
+    if (end - start <= CONTENT_LENGTH.length) return -1;
+
+    for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+      if (buffer.getByte(start + i) != CONTENT_LENGTH[i]) return -1;
+    }
+
+    long length = 0;
+    for (int i = start + CONTENT_LENGTH.length; i < end; i++) {
+      final byte b = buffer.getByte(i);
+      if (b == ' ') continue;
+      if (b < '0' || b > '9') return -1;
+
+      length = length * 10 + (b - '0');
+      if (length > Integer.MAX_VALUE) return Integer.MAX_VALUE;
+    }
+
+    return (int) length;
+  }
+
+  private void tooLong(final ChannelHandlerContext ctx, final ByteBuf buffer, final long frameLength) {
+    final String msg = frameLength >= 0 ? frameLength + " bytes" : buffer.readableBytes() + " bytes buffered already";
+
+    discarding = true;
+    if (frameLength >= 0) {
+      discardRemaining = frameLength;
+    } else {
+      discardRemaining = -1;
+      buffer.skipBytes(Math.min(scanned, buffer.readableBytes()));
+    }
+
+    if (failFast) fail(ctx, msg);
+
+    discard(ctx, buffer);
+  }
+
+  private void discard(final ChannelHandlerContext ctx, final ByteBuf buffer) {
+    if (discardRemaining >= 0) {
+      final int skip = (int) Math.min(discardRemaining, buffer.readableBytes());
+      buffer.skipBytes(skip);
+      discardRemaining -= skip;
+      if (discardRemaining > 0) return;
+    } else {
+      final int idx = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), NUL);
+      if (idx == -1) {
+        buffer.skipBytes(buffer.readableBytes());
+        return;
+      }
+
+      buffer.skipBytes(idx + 1 - buffer.readerIndex());
+    }
+
+    discarding = false;
+    reset();
+    if (!failFast) fail(ctx, "over " + maxLength + " bytes");
+  }
+
+  private void reset() {
+    scanned = 0;
+    lineStart = 0;
+    headerLength = -1;
+    contentLength = -1;
+    frameEnd = -1;
+  }
+
+  private void fail(final ChannelHandlerContext ctx, final String msg) {
+    ctx.fireExceptionCaught(new TooLongFrameException("Frame length exceeds " + maxLength + " (" + msg + ')'));
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * {@link MessageToByteEncoder} writing STOMP frames supplied as strings
+ * directly into a buffer from the channel's allocator as UTF-8, sized for the
+ * worst case to avoid resizing. Pre-encoded {@link ByteBuf}s are passed through
+ * untouched. Stateless, and so may be shared between channels.
+ */
+@Sharable
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class StompFrameEncoder extends MessageToByteEncoder<CharSequence> {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.handler.codec.MessageToByteEncoder#allocateBuffer(io.netty.channel
+   * .ChannelHandlerContext, java.lang.Object, boolean)
+   */
+  @Override
+  protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, CharSequence msg, boolean preferDirect)
+      throws Exception {
+    int size = ByteBufUtil.utf8MaxBytes(msg);
+    return preferDirect ? ctx.alloc().ioBuffer(size) : ctx.alloc().heapBuffer(size);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * io.netty.handler.codec.MessageToByteEncoder#encode(io.netty.channel.
+   * ChannelHandlerContext, java.lang.Object, io.netty.buffer.ByteBuf)
+   */
+  @Override
+  protected void encode(ChannelHandlerContext ctx, CharSequence msg, ByteBuf out) throws Exception {
+    ByteBufUtil.writeUtf8(out, msg);
+  }
+
+}
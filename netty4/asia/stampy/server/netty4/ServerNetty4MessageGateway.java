@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.netty4;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+
+import java.lang.invoke.MethodHandles;
+
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.netty4.AbstractStampyNetty4MessageGateway;
+
+/**
+ * The Class ServerNetty4MessageGateway.
+ */
+@Resource
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class ServerNetty4MessageGateway extends AbstractStampyNetty4MessageGateway {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private EventLoopGroup bossGroup;
+  private EventLoopGroup workerGroup;
+
+  private Channel server;
+
+  private ServerBootstrap init() {
+    bossGroup = createEventLoopGroup(1);
+    workerGroup = createEventLoopGroup(getIoThreads());
+
+    ServerBootstrap bootstrap = new ServerBootstrap();
+    bootstrap.group(bossGroup, workerGroup).channel(getServerChannelClass());
+    initializeChannel(bootstrap);
+
+    return bootstrap;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.gateway.AbstractStampyMessageGateway#closeConnection
+   * (asia.stampy.common.gateway.HostPort)
+   */
+  @Override
+  public void closeConnection(HostPort hostPort) {
+    getHandler().close(hostPort);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.gateway.AbstractStampyMessageGateway#connect()
+   */
+  @Override
+  public void connect() throws Exception {
+    if (server == null) {
+      ServerBootstrap bootstrap = init();
+      server = bootstrap.bind(getPort()).sync().channel();
+      log.info("Bound to {} using {}", getPort(), server.getClass().getSimpleName());
+    } else if (server.isActive()) {
+      log.warn("Already connected");
+    } else {
+      log.error("Acceptor in unrecognized state: isOpen {}, isActive {}, ", server.isOpen(), server.isActive());
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.gateway.AbstractStampyMessageGateway#shutdown()
+   */
+  @Override
+  public void shutdown() throws Exception {
+    if (server != null) {
+      ChannelFuture cf = server.close();
+      cf.awaitUninterruptibly();
+      server = null;
+
+      workerGroup.shutdownGracefully().awaitUninterruptibly();
+      bossGroup.shutdownGracefully().awaitUninterruptibly();
+      log.info("Server has been shut down");
+    }
+
+    notifyShutdownListeners();
+  }
+
+}
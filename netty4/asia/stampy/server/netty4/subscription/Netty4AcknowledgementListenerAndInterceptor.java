@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.netty4.subscription;
+
+import java.lang.invoke.MethodHandles;
+
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.netty4.StampyNetty4SessionHandler;
+import asia.stampy.common.message.StompMessageType;
+import asia.stampy.server.listener.subscription.AbstractAcknowledgementListenerAndInterceptor;
+import asia.stampy.server.listener.subscription.StampyAcknowledgementHandler;
+import asia.stampy.server.netty4.ServerNetty4MessageGateway;
+
+/**
+ * This class assists in the publication of {@link StompMessageType#MESSAGE}
+ * messages for a subscription. If confirmation of the publication is requested
+ * a timer is created to await receipt of the confirmation, and the appropriate
+ * methods of the {@link StampyAcknowledgementHandler} implementation are
+ * invoked.
+ */
+@Resource
+@StampyLibrary(libraryName = "stampy-NETTY4-client-server-RI")
+public class Netty4AcknowledgementListenerAndInterceptor extends
+    AbstractAcknowledgementListenerAndInterceptor<ServerNetty4MessageGateway> {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.server.listener.subscription.
+   * AbstractAcknowledgementListenerAndInterceptor#ensureCleanup()
+   */
+  @Override
+  protected void ensureCleanup() {
+    getGateway().addHandler(new StampyNetty4SessionHandler() {
+
+      @Override
+      protected void sessionTerminated(HostPort hostPort) throws Exception {
+        if (messages.containsKey(hostPort) || clientSubscriptions.containsKey(hostPort)) {
+          log.debug("{} session terminated, cleaning up message interceptor", hostPort);
+          cleanup(hostPort);
+        }
+      }
+    });
+  }
+
+}
@@ -20,17 +20,27 @@ package asia.stampy.common.message;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.Charset;
 
 import org.apache.commons.lang.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import asia.stampy.common.StampyLibrary;
+import asia.stampy.common.serialization.BodyCodec;
+import asia.stampy.common.serialization.BodyCodecRegistry;
+import asia.stampy.common.serialization.JavaBase64BodyCodec;
 import asia.stampy.common.serialization.SerializationUtils;
 
 /**
- * Abstract class representing STOMP messages with a body. Binary bodies are
- * catered for, provided they are Java objects.
+ * Abstract class representing STOMP messages with a body. Non-text bodies are
+ * encoded by the {@link BodyCodec} registered for the
+ * {@link #getBodyEncoding()}, which defaults to Base64 encoded Java
+ * serialization. Setting the body encoding to
+ * {@link asia.stampy.common.serialization.ByteArrayBodyCodec#OCTET_STREAM_MIME_TYPE}
+ * or {@link asia.stampy.common.serialization.BinaryBodyCodec#BINARY_MIME_TYPE}
+ * writes the body as raw bytes; such messages must be sent as bytes ie.
+ * {@link #toStompBuffer(boolean)}.
  * 
  * @param <HDR>
  *          the generic type
@@ -41,8 +51,10 @@ public abstract class AbstractBodyMessage<HDR extends AbstractBodyMessageHeader>
 
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
   /** The Constant JAVA_BASE64_MIME_TYPE. */
-  public static final String JAVA_BASE64_MIME_TYPE = "java/base64";
+  public static final String JAVA_BASE64_MIME_TYPE = JavaBase64BodyCodec.JAVA_BASE64_MIME_TYPE;
 
   private String bodyEncoding = JAVA_BASE64_MIME_TYPE;
 
@@ -80,6 +92,7 @@ public abstract class AbstractBodyMessage<HDR extends AbstractBodyMessageHeader>
    */
   public <O extends Object> void setBody(O body) {
     this.body = body;
+    resetEncodedBody();
   }
 
   /**
@@ -90,6 +103,7 @@ public abstract class AbstractBodyMessage<HDR extends AbstractBodyMessageHeader>
    */
   public void setMimeType(String mimeType) {
     getHeader().setContentType(mimeType);
+    resetEncodedBody();
   }
 
   /**
@@ -132,10 +146,7 @@ public abstract class AbstractBodyMessage<HDR extends AbstractBodyMessageHeader>
       try {
         String encoded = getBodyEncoding().equals(JAVA_BASE64_MIME_TYPE) ? getObjectArrayAsBase64(getBody())
             : getObjectArrayAsString(getBody());
-        getHeader().removeHeader(AbstractBodyMessageHeader.CONTENT_TYPE);
-        getHeader().removeHeader(AbstractMessageHeader.CONTENT_LENGTH);
-        getHeader().setContentLength(encoded.length());
-        getHeader().setContentType(getBodyEncoding());
+        setBodyHeaders(encoded.length());
         return encoded;
       } catch (IOException e) {
         throw new RuntimeException(e);
@@ -143,19 +154,80 @@ public abstract class AbstractBodyMessage<HDR extends AbstractBodyMessageHeader>
     }
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.message.AbstractMessage#postHeaderBinary()
+   */
+  @Override
+  protected byte[] postHeaderBinary() {
+    if (getBody() == null || isText()) return null;
+
+    BodyCodec codec = getBodyCodec(getBodyEncoding());
+    if (codec == null || !codec.isBinary()) return null;
+
+    try {
+      byte[] encoded = codec.encode(getBody());
+      setBodyHeaders(encoded.length);
+      return encoded;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void setBodyHeaders(int length) {
+    getHeader().removeHeader(AbstractBodyMessageHeader.CONTENT_TYPE);
+    getHeader().removeHeader(AbstractMessageHeader.CONTENT_LENGTH);
+    getHeader().setContentLength(length);
+    getHeader().setContentType(getBodyEncoding());
+  }
+
   /**
    * Should the {@link AbstractBodyMessage#getBodyEncoding()} return a value
    * other than {@link AbstractBodyMessage#JAVA_BASE64_MIME_TYPE}, this method
-   * will be invoked. The default implementation throws a
-   * NotImplementedException. Override as necessary.
+   * will be invoked. The default implementation uses the non-binary
+   * {@link BodyCodec} registered for the encoding, throwing a
+   * NotImplementedException should there be none. Override as necessary.
    * 
    * @param body
    *          the body
    * @return the object array as string
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  protected String getObjectArrayAsString(Object body) throws IOException {
+    BodyCodec codec = getBodyCodec(getBodyEncoding());
+    if (codec == null) {
+      throw new NotImplementedException("Register a BodyCodec or subclass the abstract body message and override "
+          + "getObjectArrayAsString for " + getBodyEncoding() + " encoding");
+    }
+
+    return new String(codec.encode(body), US_ASCII);
+  }
+
+  /**
+   * Returns the {@link BodyCodec} for the specified encoding from the
+   * {@link BodyCodecRegistry#getDefault()} registry. Override to use another
+   * registry.
+   * 
+   * @param encoding
+   *          the encoding
+   * @return the body codec, or null if none is registered
+   */
+  protected BodyCodec getBodyCodec(String encoding) {
+    return BodyCodecRegistry.getDefault().getCodec(encoding);
+  }
+
+  /**
+   * Registers the codec in the {@link BodyCodecRegistry#getDefault()} registry,
+   * making it available to all messages and, unless overridden,
+   * {@link asia.stampy.common.parsing.StompMessageParser}s.
+   * 
+   * @param codec
+   *          the codec
    */
-  protected String getObjectArrayAsString(Object body) {
-    throw new NotImplementedException("Subclass the abstract body message and override getObjectArrayAsString for "
-        + getBodyEncoding() + " encoding");
+  public static void registerBodyCodec(BodyCodec codec) {
+    BodyCodecRegistry.getDefault().register(codec);
   }
 
   /**
@@ -190,6 +262,7 @@ public abstract class AbstractBodyMessage<HDR extends AbstractBodyMessageHeader>
    */
   public void setBodyEncoding(String bodyEncoding) {
     this.bodyEncoding = bodyEncoding;
+    resetEncodedBody();
   }
 
 }
@@ -18,6 +18,8 @@
  */
 package asia.stampy.common.message;
 
+import java.nio.ByteBuffer;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -40,6 +42,8 @@ public abstract class AbstractMessage<HDR extends StampyMessageHeader> implement
   private HDR header;
   private final StompMessageType messageType;
 
+  private transient volatile EncodedBody encodedBody;
+
   /**
    * Instantiates a new abstract message.
    * 
@@ -87,6 +91,11 @@ public abstract class AbstractMessage<HDR extends StampyMessageHeader> implement
   public final String toStompMessage(boolean validate) {
     if (validate) validate();
 
+    if (postHeaderBinary() != null) {
+      throw new IllegalStateException("The binary body of a " + getMessageType()
+          + " message cannot be represented as a string, use toStompBuffer");
+    }
+
     StringBuilder builder = new StringBuilder();
 
     String body = postHeader();
@@ -105,6 +114,99 @@ public abstract class AbstractMessage<HDR extends StampyMessageHeader> implement
     return builder.toString();
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.message.StampyMessage#toStompBuffer(boolean)
+   */
+  @Override
+  public final ByteBuffer toStompBuffer(boolean validate) {
+    if (validate) validate();
+
+    EncodedBody body = takeEncodedBody();
+
+    int length = getEncodedLength(body);
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    writeTo(buffer, body);
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * asia.stampy.common.message.StampyMessage#writeTo(java.nio.ByteBuffer,
+   * boolean)
+   */
+  @Override
+  public final void writeTo(ByteBuffer buffer, boolean validate) {
+    if (validate) validate();
+
+    writeTo(buffer, takeEncodedBody());
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.message.StampyMessage#getEncodedLength()
+   */
+  @Override
+  public final int getEncodedLength() {
+    EncodedBody body = encodeBody();
+    encodedBody = body;
+
+    return getEncodedLength(body);
+  }
+
+  /**
+   * Discards the body encoded by {@link #getEncodedLength()}, to be called
+   * should the body change before the message is written.
+   */
+  protected void resetEncodedBody() {
+    encodedBody = null;
+  }
+
+  private EncodedBody encodeBody() {
+    byte[] binary = postHeaderBinary();
+
+    return new EncodedBody(binary == null ? postHeader() : null, binary);
+  }
+
+  /**
+   * Returns the body encoded by the preceding {@link #getEncodedLength()}, so
+   * that sizing and writing a frame encode the body once, else encodes it.
+   */
+  private EncodedBody takeEncodedBody() {
+    EncodedBody body = encodedBody;
+    if (body == null) return encodeBody();
+
+    encodedBody = null;
+    return body;
+  }
+
+  private int getEncodedLength(EncodedBody body) {
+    int length = getMessageType().name().length() + getHeader().getEncodedLength() + 3;
+
+    if (body.binary != null) return length + body.binary.length;
+
+    return body.text == null ? length : length + Utf8.length(body.text);
+  }
+
+  private void writeTo(ByteBuffer buffer, EncodedBody body) {
+    Utf8.put(buffer, getMessageType().name());
+    buffer.put((byte) '\n');
+    getHeader().writeTo(buffer);
+    buffer.put((byte) '\n');
+    if (body.binary != null) {
+      buffer.put(body.binary);
+    } else if (body.text != null) {
+      Utf8.put(buffer, body.text);
+    }
+    buffer.put((byte) 0);
+  }
+
   /**
    * Validates the message should {@link AbstractMessage#toStompMessage(true)}
    * be called.
@@ -122,6 +224,20 @@ public abstract class AbstractMessage<HDR extends StampyMessageHeader> implement
     return null;
   }
 
+  /**
+   * This method is used to create the body of the message as bytes, for bodies
+   * which cannot be represented as a string. If a value is returned it is
+   * written in place of {@link #postHeader()}, and the message can only be
+   * created with {@link #toStompBuffer(boolean)} or
+   * {@link #writeTo(ByteBuffer, boolean)}. The default implementation returns
+   * null.
+   * 
+   * @return the bytes
+   */
+  protected byte[] postHeaderBinary() {
+    return null;
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -152,4 +268,14 @@ public abstract class AbstractMessage<HDR extends StampyMessageHeader> implement
     return ToStringBuilder.reflectionToString(this);
   }
 
+  private static class EncodedBody {
+    private final String text;
+    private final byte[] binary;
+
+    EncodedBody(String text, byte[] binary) {
+      this.text = text;
+      this.binary = binary;
+    }
+  }
+
 }
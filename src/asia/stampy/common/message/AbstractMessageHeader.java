@@ -18,29 +18,115 @@
  */
 package asia.stampy.common.message;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import asia.stampy.common.StampyLibrary;
 
 /**
- * Abstract implementation of a {@link StampyMessageHeader}.
+ * Abstract implementation of a {@link StampyMessageHeader}.<br>
+ * <br>
+ * Headers are held as key/value pairs in a single array, in the order added.
+ * Frames carry a handful of headers, for which a scan of the array is cheaper
+ * than hashing and allocates no map entries or per key lists. Repeated headers
+ * keep their relative order.<br>
+ * <br>
+ * Headers may also be added as the raw bytes of their header line, see
+ * {@link #addRawHeader(byte[], int, int, int, String)}. Their keys and values
+ * are decoded on first access, and they are written as the original bytes,
+ * allowing a frame's headers to be forwarded without being decoded.
  */
 @StampyLibrary(libraryName = "stampy-core")
 public abstract class AbstractMessageHeader implements StampyMessageHeader {
 
-  private static final long serialVersionUID = 4570408820942642173L;
+  private static final long serialVersionUID = -2353092466372004434L;
 
   /** The Constant CONTENT_LENGTH. */
   public static final String CONTENT_LENGTH = "content-length";
 
-  private Map<String, List<String>> headers = new HashMap<String, List<String>>();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The keys of the STOMP headers. Parsed keys matching one of these are
+   * replaced by the constant, which is shared with the key constants of the
+   * header classes.
+   */
+  private static final String[] WELL_KNOWN_KEYS = { "destination", "message-id", "subscription", "ack", "receipt",
+      CONTENT_LENGTH, "content-type", "transaction", "id", "receipt-id", "message", "accept-version", "host",
+      "login", "passcode", "heart-beat", "version", "session", "server" };
+
+  private static final byte[][] WELL_KNOWN_KEY_BYTES = new byte[WELL_KNOWN_KEYS.length][];
+
+  static {
+    for (int i = 0; i < WELL_KNOWN_KEYS.length; i++) {
+      WELL_KNOWN_KEY_BYTES[i] = WELL_KNOWN_KEYS[i].getBytes(UTF_8);
+    }
+  }
+
+  private static final String[] EMPTY = new String[0];
+
+  /** Keys at even indices, each followed by its value. */
+  private String[] entries = EMPTY;
+
+  private int size;
+
+  /** The header lines of raw headers by entry, null until one is added. */
+  private byte[][] raws;
+
+  /** The start, colon and end indices of the header lines of raw headers. */
+  private int[] offsets;
+
+  /**
+   * Returns the well known header key constant equal to the specified key, or
+   * the key itself.
+   * 
+   * @param key
+   *          the key
+   * @return the key
+   */
+  public static String internKey(String key) {
+    for (String known : WELL_KNOWN_KEYS) {
+      if (known.equals(key)) return known;
+    }
+
+    return key;
+  }
+
+  /**
+   * Returns the well known header key constant whose UTF-8 bytes are between
+   * the specified indices of the buffer, allowing parsers to skip decoding the
+   * key.
+   * 
+   * @param buffer
+   *          the buffer
+   * @param from
+   *          the index of the first byte of the key
+   * @param to
+   *          the index after the last byte of the key
+   * @return the key constant, or null if not a well known key
+   */
+  public static String getWellKnownKey(ByteBuffer buffer, int from, int to) {
+    int length = to - from;
+    for (int i = 0; i < WELL_KNOWN_KEY_BYTES.length; i++) {
+      byte[] known = WELL_KNOWN_KEY_BYTES[i];
+      if (known.length == length && matches(buffer, from, known)) return WELL_KNOWN_KEYS[i];
+    }
+
+    return null;
+  }
+
+  private static boolean matches(ByteBuffer buffer, int from, byte[] known) {
+    for (int i = 0; i < known.length; i++) {
+      if (buffer.get(from + i) != known[i]) return false;
+    }
+
+    return true;
+  }
 
   /**
    * Sets the content length.
@@ -76,12 +162,116 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
    */
   @Override
   public void addHeader(String key, String value) {
-    getList(key).add(value);
+    insert(size, key, value, null, 0, 0, 0);
+  }
+
+  /**
+   * Adds a header from the UTF-8 bytes of its header line, without decoding
+   * it. The key and value are decoded on first access. Until then, lookups by
+   * key compare the bytes. The header is written as the original bytes. The
+   * bytes must not be modified once added; they may be shared by the headers
+   * of a frame.
+   * 
+   * @param raw
+   *          the bytes containing the header line
+   * @param start
+   *          the index of the start of the key
+   * @param colon
+   *          the index of the colon separating the key from the value
+   * @param end
+   *          the index after the end of the value
+   * @param key
+   *          the key if already known, for instance from
+   *          {@link #getWellKnownKey(ByteBuffer, int, int)}, otherwise null
+   */
+  public void addRawHeader(byte[] raw, int start, int colon, int end, String key) {
+    insert(size, key, null, raw, start, colon, end);
   }
 
+  /**
+   * Adds the header at the specified index of another header, without decoding
+   * it should it have been added as raw bytes.
+   * 
+   * @param header
+   *          the header to copy from
+   * @param idx
+   *          the index of the header, less than {@link #getHeaderCount()}
+   */
+  public void addHeader(AbstractMessageHeader header, int idx) {
+    header.checkIndex(idx);
+
+    String key = header.entries[idx << 1];
+    String value = header.entries[(idx << 1) + 1];
+    if (!header.isRaw(idx)) {
+      insert(size, key, value, null, 0, 0, 0);
+    } else {
+      int o = idx * 3;
+      insert(size, key, value, header.raws[idx], header.offsets[o], header.offsets[o + 1], header.offsets[o + 2]);
+    }
+  }
+
+  /**
+   * Adds the value at the specified index of the values of the key. The value
+   * is inserted before the existing value at the index, or after the last
+   * value should the index equal the number of values.
+   * 
+   * @throws IndexOutOfBoundsException
+   *           if the index is negative or exceeds the number of values
+   */
   @Override
   public void addHeader(String key, String value, int idx) {
-    getList(key).add(idx, value);
+    if (idx < 0) throw new IndexOutOfBoundsException("Index: " + idx);
+
+    int count = 0;
+    int last = -1;
+    for (int i = 0; i < size; i++) {
+      if (!isKey(i, key)) continue;
+
+      if (count++ == idx) {
+        insert(i, key, value, null, 0, 0, 0);
+        return;
+      }
+      last = i;
+    }
+
+    if (idx != count) throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + count);
+
+    insert(last == -1 ? size : last + 1, key, value, null, 0, 0, 0);
+  }
+
+  private void insert(int pos, String key, String value, byte[] raw, int start, int colon, int end) {
+    if (size << 1 == entries.length) grow();
+    if (raw != null && raws == null) {
+      raws = new byte[entries.length >> 1][];
+      offsets = new int[(entries.length >> 1) * 3];
+    }
+
+    if (pos < size) {
+      System.arraycopy(entries, pos << 1, entries, (pos + 1) << 1, (size - pos) << 1);
+      if (raws != null) {
+        System.arraycopy(raws, pos, raws, pos + 1, size - pos);
+        System.arraycopy(offsets, pos * 3, offsets, (pos + 1) * 3, (size - pos) * 3);
+      }
+    }
+
+    entries[pos << 1] = key;
+    entries[(pos << 1) + 1] = value;
+    if (raws != null) {
+      raws[pos] = raw;
+      offsets[pos * 3] = start;
+      offsets[pos * 3 + 1] = colon;
+      offsets[pos * 3 + 2] = end;
+    }
+    size++;
+  }
+
+  private void grow() {
+    int capacity = Math.max(4, size << 1);
+    entries = Arrays.copyOf(entries, capacity << 1);
+    if (raws != null) {
+      raws = Arrays.copyOf(raws, capacity);
+      offsets = Arrays.copyOf(offsets, capacity * 3);
+    }
   }
 
   /*
@@ -93,7 +283,24 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
    */
   @Override
   public void removeHeader(String key) {
-    headers.remove(key);
+    int retained = 0;
+    for (int i = 0; i < size; i++) {
+      if (isKey(i, key)) continue;
+
+      if (retained != i) {
+        entries[retained << 1] = entries[i << 1];
+        entries[(retained << 1) + 1] = entries[(i << 1) + 1];
+        if (raws != null) {
+          raws[retained] = raws[i];
+          System.arraycopy(offsets, i * 3, offsets, retained * 3, 3);
+        }
+      }
+      retained++;
+    }
+
+    Arrays.fill(entries, retained << 1, size << 1, null);
+    if (raws != null) Arrays.fill(raws, retained, size, null);
+    size = retained;
   }
 
   /*
@@ -105,13 +312,18 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
    */
   @Override
   public String getHeaderValue(String key) {
-    List<String> list = getList(key);
-    return list.isEmpty() ? null : list.get(0);
+    int idx = indexOf(key);
+    return idx == -1 ? null : getHeaderValue(idx);
   }
 
   @Override
   public List<String> getHeaderValues(String key) {
-    return new ArrayList<String>(getList(key));
+    List<String> values = new ArrayList<String>(1);
+    for (int i = 0; i < size; i++) {
+      if (isKey(i, key)) values.add(getHeaderValue(i));
+    }
+
+    return values;
   }
 
   /*
@@ -122,17 +334,106 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
    */
   @Override
   public boolean hasHeader(String key) {
-    return headers.containsKey(key) && !getList(key).isEmpty();
+    return indexOf(key) != -1;
+  }
+
+  /**
+   * Gets the number of headers, counting each value of repeated headers.
+   * 
+   * @return the header count
+   */
+  public int getHeaderCount() {
+    return size;
+  }
+
+  /**
+   * Gets the key of the header at the specified index, in the order added.
+   * Together with {@link #getHeaderValue(int)} allows the headers to be
+   * iterated without the copy made by {@link #getHeaders()}.
+   * 
+   * @param idx
+   *          the index, less than {@link #getHeaderCount()}
+   * @return the header key
+   */
+  public String getHeaderKey(int idx) {
+    checkIndex(idx);
+
+    String key = entries[idx << 1];
+    if (key == null && isRaw(idx)) {
+      key = internKey(new String(raws[idx], offsets[idx * 3], offsets[idx * 3 + 1] - offsets[idx * 3], UTF_8));
+      entries[idx << 1] = key;
+    }
+
+    return key;
+  }
+
+  /**
+   * Gets the value of the header at the specified index, in the order added.
+   * 
+   * @param idx
+   *          the index, less than {@link #getHeaderCount()}
+   * @return the header value
+   */
+  public String getHeaderValue(int idx) {
+    checkIndex(idx);
+
+    String value = entries[(idx << 1) + 1];
+    if (value == null && isRaw(idx)) {
+      int colon = offsets[idx * 3 + 1];
+      value = new String(raws[idx], colon + 1, offsets[idx * 3 + 2] - colon - 1, UTF_8);
+      entries[(idx << 1) + 1] = value;
+    }
+
+    return value;
+  }
+
+  /**
+   * Checks if the key of the header at the specified index is the specified
+   * key. Unlike {@link #getHeaderKey(int)} the key of a raw header is not
+   * decoded, provided the specified key is ASCII.
+   * 
+   * @param idx
+   *          the index, less than {@link #getHeaderCount()}
+   * @param key
+   *          the key
+   * @return true, if the header has the key
+   */
+  public boolean isHeaderKey(int idx, String key) {
+    checkIndex(idx);
+    return isKey(idx, key);
+  }
+
+  private boolean isRaw(int idx) {
+    return raws != null && raws[idx] != null;
+  }
+
+  private void checkIndex(int idx) {
+    if (idx < 0 || idx >= size) throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + size);
   }
 
-  private List<String> getList(String key) {
-    List<String> list = headers.get(key);
-    if (list == null) {
-      list = new ArrayList<String>();
-      headers.put(key, list);
+  private int indexOf(String key) {
+    for (int i = 0; i < size; i++) {
+      if (isKey(i, key)) return i;
     }
 
-    return list;
+    return -1;
+  }
+
+  private boolean isKey(int idx, String key) {
+    String k = entries[idx << 1];
+    if (k != null || !isRaw(idx)) return k == key || (k != null && k.equals(key));
+    if (key == null) return false;
+
+    byte[] raw = raws[idx];
+    int start = offsets[idx * 3];
+    int length = offsets[idx * 3 + 1] - start;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c >= 0x80) return key.equals(getHeaderKey(idx));
+      if (i >= length || raw[start + i] != c) return false;
+    }
+
+    return key.length() == length;
   }
 
   /*
@@ -142,21 +443,13 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
    */
   @Override
   public final String toMessageHeader() {
-    boolean first = true;
-
     StringBuilder builder = new StringBuilder();
-    for (Entry<String, List<String>> entry : headers.entrySet()) {
-      if (entry.getValue() == null || entry.getValue().isEmpty()) continue;
-
-      for (String value : entry.getValue()) {
-        if (!first) builder.append("\n");
-
-        builder.append(entry.getKey());
-        builder.append(":");
-        builder.append(value);
+    for (int i = 0; i < size; i++) {
+      if (i > 0) builder.append("\n");
 
-        first = false;
-      }
+      builder.append(getHeaderKey(i));
+      builder.append(":");
+      builder.append(getHeaderValue(i));
     }
 
     return builder.toString();
@@ -165,21 +458,75 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
   /*
    * (non-Javadoc)
    * 
-   * @see asia.stampy.common.message.StampyMessageHeader#getHeaders()
+   * @see asia.stampy.common.message.StampyMessageHeader#getEncodedLength()
    */
   @Override
-  public Map<String, List<String>> getHeaders() {
-    return new HashMap<String, List<String>>(headers);
+  public final int getEncodedLength() {
+    int length = 0;
+    for (int i = 0; i < size; i++) {
+      if (isRaw(i)) {
+        length += offsets[i * 3 + 2] - offsets[i * 3] + 1;
+      } else {
+        length += Utf8.length(entries[i << 1]) + Utf8.length(String.valueOf(entries[(i << 1) + 1])) + 2;
+      }
+    }
+
+    return length;
   }
 
   /*
    * (non-Javadoc)
    * 
-   * @see java.lang.Object#equals(java.lang.Object)
+   * @see
+   * asia.stampy.common.message.StampyMessageHeader#writeTo(java.nio.ByteBuffer)
+   */
+  @Override
+  public final void writeTo(ByteBuffer buffer) {
+    for (int i = 0; i < size; i++) {
+      if (isRaw(i)) {
+        buffer.put(raws[i], offsets[i * 3], offsets[i * 3 + 2] - offsets[i * 3]);
+      } else {
+        Utf8.put(buffer, entries[i << 1]);
+        buffer.put((byte) ':');
+        Utf8.put(buffer, String.valueOf(entries[(i << 1) + 1]));
+      }
+      buffer.put((byte) '\n');
+    }
+  }
+
+  /**
+   * Returns a copy of the headers, keyed in the order first added. Use
+   * {@link #getHeaderCount()}, {@link #getHeaderKey(int)} and
+   * {@link #getHeaderValue(int)} to iterate the headers without copying.
+   */
+  @Override
+  public Map<String, List<String>> getHeaders() {
+    Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    for (int i = 0; i < size; i++) {
+      String key = getHeaderKey(i);
+      List<String> values = headers.get(key);
+      if (values == null) {
+        values = new ArrayList<String>(1);
+        headers.put(key, values);
+      }
+      values.add(getHeaderValue(i));
+    }
+
+    return headers;
+  }
+
+  /**
+   * Headers are equal if they have the same values for each key in the same
+   * order; the order of different keys is not significant.
    */
   @Override
   public boolean equals(Object o) {
-    return EqualsBuilder.reflectionEquals(this, o);
+    if (o == this) return true;
+    if (o == null || o.getClass() != getClass()) return false;
+
+    AbstractMessageHeader other = (AbstractMessageHeader) o;
+
+    return size == other.size && getHeaders().equals(other.getHeaders());
   }
 
   /*
@@ -189,7 +536,7 @@ public abstract class AbstractMessageHeader implements StampyMessageHeader {
    */
   @Override
   public int hashCode() {
-    return HashCodeBuilder.reflectionHashCode(this);
+    return getHeaders().hashCode();
   }
 
   /*
@@ -19,6 +19,7 @@
 package asia.stampy.common.message;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import asia.stampy.common.StampyLibrary;
 
@@ -44,9 +45,46 @@ public interface StampyMessage<HDR extends StampyMessageHeader> extends Serializ
    * @param validate
    *          if true message validation is executed
    * @return the string
+   * @throws IllegalStateException
+   *           if the message has a binary body, which can only be written as
+   *           bytes
    */
   String toStompMessage(boolean validate);
 
+  /**
+   * Returns the STOMP frame encoded as UTF-8 in an exactly sized buffer, ready
+   * for reading. Avoids building the intermediate string of
+   * {@link #toStompMessage(boolean)} and its subsequent charset encoding.
+   * 
+   * @param validate
+   *          if true message validation is executed
+   * @return the buffer
+   */
+  ByteBuffer toStompBuffer(boolean validate);
+
+  /**
+   * Writes the STOMP frame encoded as UTF-8 to the buffer, starting at its
+   * current position.
+   * 
+   * @param buffer
+   *          the buffer
+   * @param validate
+   *          if true message validation is executed
+   * @throws java.nio.BufferOverflowException
+   *           if the buffer has insufficient space remaining
+   */
+  void writeTo(ByteBuffer buffer, boolean validate);
+
+  /**
+   * Gets the number of bytes {@link #writeTo(ByteBuffer, boolean)} writes, for
+   * sizing buffers. The body is encoded to determine its length and kept for
+   * the next {@link #writeTo(ByteBuffer, boolean)} or
+   * {@link #toStompBuffer(boolean)}, which therefore do not encode it again.
+   * 
+   * @return the encoded length
+   */
+  int getEncodedLength();
+
   /**
    * Gets the message type.
    * 
@@ -19,6 +19,7 @@
 package asia.stampy.common.message;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -37,6 +38,26 @@ public interface StampyMessageHeader extends Serializable {
    */
   String toMessageHeader();
 
+  /**
+   * Gets the number of bytes written by
+   * {@link StampyMessageHeader#writeTo(ByteBuffer)}.
+   * 
+   * @return the encoded length
+   */
+  int getEncodedLength();
+
+  /**
+   * Writes the headers to the buffer as UTF-8 encoded <i>key:value</i> lines,
+   * each terminated by a newline.
+   * 
+   * @param buffer
+   *          the buffer
+   * @throws java.nio.BufferOverflowException
+   *           if the buffer has fewer than {@link #getEncodedLength()} bytes
+   *           remaining
+   */
+  void writeTo(ByteBuffer buffer);
+
   /**
    * Adds the header.
    * 
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes strings as UTF-8 directly into a {@link ByteBuffer}, producing the
+ * same bytes as {@link String#getBytes(java.nio.charset.Charset)} without the
+ * intermediate array. Unpaired surrogates are replaced with '?'.
+ */
+final class Utf8 {
+
+  private static final byte REPLACEMENT = '?';
+
+  private Utf8() {
+  }
+
+  /**
+   * Returns the number of bytes the specified string occupies when encoded.
+   * 
+   * @param s
+   *          the string
+   * @return the encoded length
+   */
+  static int length(String s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) continue;
+
+      if (c < 0x800) {
+        bytes++;
+      } else if (Character.isSurrogate(c)) {
+        if (isSurrogatePair(s, i)) {
+          bytes += 2;
+          i++;
+        }
+      } else {
+        bytes += 2;
+      }
+    }
+
+    return bytes;
+  }
+
+  /**
+   * Writes the specified string to the buffer.
+   * 
+   * @param buffer
+   *          the buffer
+   * @param s
+   *          the string
+   * @throws java.nio.BufferOverflowException
+   *           if the buffer has insufficient space remaining
+   */
+  static void put(ByteBuffer buffer, String s) {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        if (isSurrogatePair(s, i)) {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          buffer.put((byte) (0xF0 | (cp >> 18)));
+          buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+          buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (cp & 0x3F)));
+        } else {
+          buffer.put(REPLACEMENT);
+        }
+      } else {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  private static boolean isSurrogatePair(String s, int i) {
+    return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1));
+  }
+}
@@ -22,6 +22,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -45,9 +47,11 @@ import asia.stampy.client.message.unsubscribe.UnsubscribeMessage;
 import asia.stampy.common.StampyLibrary;
 import asia.stampy.common.message.AbstractBodyMessage;
 import asia.stampy.common.message.AbstractBodyMessageHeader;
+import asia.stampy.common.message.AbstractMessageHeader;
 import asia.stampy.common.message.StampyMessage;
 import asia.stampy.common.message.StompMessageType;
-import asia.stampy.common.serialization.SerializationUtils;
+import asia.stampy.common.serialization.BodyCodec;
+import asia.stampy.common.serialization.BodyCodecRegistry;
 import asia.stampy.server.message.connected.ConnectedMessage;
 import asia.stampy.server.message.error.ErrorMessage;
 import asia.stampy.server.message.message.MessageMessage;
@@ -63,6 +67,27 @@ public class StompMessageParser {
   /** The Constant EOM. */
   public static final String EOM = "\000";
 
+  /** <i>The default encoding for STOMP is UTF-8</i>. */
+  public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final byte NUL = 0;
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+  private static final byte COLON = ':';
+
+  private static final StompMessageType[] TYPES = StompMessageType.values();
+  private static final byte[][] TYPE_BYTES = new byte[TYPES.length][];
+
+  static {
+    for (int i = 0; i < TYPES.length; i++) {
+      TYPE_BYTES[i] = TYPES[i].name().getBytes(UTF_8);
+    }
+  }
+
+  private BodyCodecRegistry codecs = new BodyCodecRegistry(BodyCodecRegistry.getDefault());
+
+  private boolean lazyHeaders;
+
   /**
    * Parses the message.
    * 
@@ -114,9 +139,179 @@ public class StompMessageParser {
     }
   }
 
+  /**
+   * Parses the STOMP frame between the buffer's position and limit in a single
+   * pass over the bytes. Only header values and unknown header keys are
+   * materialized as strings, well known keys being replaced by their constants;
+   * text bodies are decoded once using the charset specified in the
+   * content-type header (UTF-8 by default), and non-text bodies are handed to
+   * {@link #convertToObject(byte[], String)} as raw bytes. If a
+   * content-length header is present the body is read by length, allowing
+   * bodies which contain NUL bytes or newlines. The buffer's position and limit
+   * are not modified.
+   * 
+   * @param <MSG>
+   *          the generic type
+   * @param buffer
+   *          the buffer containing a single STOMP frame, with or without the
+   *          terminating NUL byte
+   * @return the msg
+   * @throws UnparseableException
+   *           the unparseable exception
+   */
+  public <MSG extends StampyMessage<?>> MSG parseMessage(ByteBuffer buffer) throws UnparseableException {
+    try {
+      int limit = buffer.limit();
+      int pos = skipEndOfLines(buffer, buffer.position(), limit);
+
+      int eol = indexOf(buffer, pos, limit, LF);
+      if (eol == -1) throw new UnparseableException("No STOMP command found");
+
+      StompMessageType type = toMessageType(buffer, pos, trimCR(buffer, pos, eol));
+      MSG msg = createStampyMessage(type);
+
+      pos = eol + 1;
+
+      AbstractMessageHeader lazy = null;
+      byte[] block = null;
+      int blockStart = pos;
+      if (isLazyHeaders() && msg.getHeader() instanceof AbstractMessageHeader) {
+        lazy = (AbstractMessageHeader) msg.getHeader();
+        block = toBytes(buffer, pos, endOfHeaders(buffer, pos, limit));
+      }
+
+      String contentType = null;
+      int contentLength = -1;
+      while (pos < limit) {
+        eol = indexOf(buffer, pos, limit, LF);
+        int end = eol == -1 ? endOfFrame(buffer, pos, limit) : trimCR(buffer, pos, eol);
+        if (end == pos) {
+          pos = eol == -1 ? limit : eol + 1;
+          break;
+        }
+
+        int colon = indexOf(buffer, pos, end, COLON);
+        if (colon <= pos) {
+          String header = decode(buffer, pos, end, UTF_8);
+          log.error("Cannot parse STOMP header {}", header);
+          throw new UnparseableException("Cannot parse STOMP header " + header);
+        }
+
+        String key = AbstractMessageHeader.getWellKnownKey(buffer, pos, colon);
+        if (lazy != null && !isBodyHeader(key)) {
+          lazy.addRawHeader(block, pos - blockStart, colon - blockStart, end - blockStart, key);
+          pos = eol == -1 ? limit : eol + 1;
+          continue;
+        }
+
+        if (key == null) key = decode(buffer, pos, colon, UTF_8);
+        String value = decode(buffer, colon + 1, end, UTF_8);
+        msg.getHeader().addHeader(key, value);
+
+        if (contentLength == -1 && AbstractMessageHeader.CONTENT_LENGTH.equals(key)) {
+          contentLength = Integer.parseInt(value.trim());
+        } else if (contentType == null && AbstractBodyMessageHeader.CONTENT_TYPE.equals(key)) {
+          contentType = value;
+        }
+
+        pos = eol == -1 ? limit : eol + 1;
+      }
+
+      int bodyEnd;
+      if (contentLength >= 0) {
+        bodyEnd = pos + contentLength;
+        if (bodyEnd > limit) {
+          throw new UnparseableException("Frame truncated, expected " + contentLength + " body bytes but only "
+              + (limit - pos) + " available");
+        }
+      } else {
+        bodyEnd = endOfFrame(buffer, pos, limit);
+      }
+
+      if (bodyEnd > pos && msg instanceof AbstractBodyMessage<?>) {
+        AbstractBodyMessage<?> abm = (AbstractBodyMessage<?>) msg;
+        if (isText(contentType)) {
+          abm.setBody(decode(buffer, pos, bodyEnd, getCharset(contentType)));
+        } else {
+          abm.setBody(convertToObject(toBytes(buffer, pos, bodyEnd), contentType));
+        }
+      }
+
+      return msg;
+    } catch (UnparseableException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new UnparseableException("The message supplied cannot be parsed as a STOMP message", decode(buffer,
+          buffer.position(), buffer.limit(), UTF_8), e);
+    }
+  }
+
+  /**
+   * Checks if lazy header decoding is enabled.
+   * 
+   * @return true, if lazy headers
+   */
+  public boolean isLazyHeaders() {
+    return lazyHeaders;
+  }
+
+  /**
+   * Enables lazy header decoding in {@link #parseMessage(ByteBuffer)}, for
+   * brokers and other intermediaries which route by a few headers and forward
+   * the rest. The header block is copied once and each header is indexed by
+   * offset; keys and values are only decoded to strings when accessed, and
+   * headers copied to another message with
+   * {@link AbstractMessageHeader#addHeader(AbstractMessageHeader, int)} are
+   * written as the original bytes. The content-length and content-type headers
+   * are always decoded. Defaults to false.
+   * 
+   * @param lazyHeaders
+   *          the new lazy headers
+   */
+  public void setLazyHeaders(boolean lazyHeaders) {
+    this.lazyHeaders = lazyHeaders;
+  }
+
+  private static boolean isBodyHeader(String key) {
+    return AbstractMessageHeader.CONTENT_LENGTH.equals(key) || AbstractBodyMessageHeader.CONTENT_TYPE.equals(key);
+  }
+
+  /**
+   * Converts the specified bytes to an object based upon the specified content
+   * type. The default implementation decodes the bytes using the
+   * {@link BodyCodec} registered for the content type, otherwise decodes the
+   * bytes as a UTF-8 string and delegates to
+   * {@link #convertToObject(String, String)}.
+   * 
+   * @param body
+   *          the body
+   * @param contentType
+   *          the content type
+   * @return the object
+   * @throws IllegalObjectException
+   *           the illegal object exception
+   * @throws ClassNotFoundException
+   *           the class not found exception
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  protected Object convertToObject(byte[] body, String contentType) throws IllegalObjectException,
+      ClassNotFoundException, IOException {
+    BodyCodec codec = getBodyCodec(contentType);
+    if (codec == null) return convertToObject(new String(body, UTF_8), contentType);
+
+    Object o = codec.decode(body);
+
+    illegalObjectCheck(o);
+
+    return o;
+  }
+
   /**
    * Converts the specified string to an object based upon the specified content
-   * type. Only base64 encoding is supported for Java objects.
+   * type, using the {@link BodyCodec} registered for the content type. Binary
+   * bodies are not reliably represented as strings; use
+   * {@link #parseMessage(ByteBuffer)} for these.
    * 
    * @param body
    *          the body
@@ -132,18 +327,53 @@ public class StompMessageParser {
    */
   protected Object convertToObject(String body, String contentType) throws IllegalObjectException,
       ClassNotFoundException, IOException {
-    if (!AbstractBodyMessage.JAVA_BASE64_MIME_TYPE.equals(contentType)) {
-      throw new NotImplementedException(
-          "Subclass this class and override convertToObject to enable conversion using mime type " + contentType);
+    BodyCodec codec = getBodyCodec(contentType);
+    if (codec == null) {
+      throw new NotImplementedException("Register a BodyCodec or subclass this class and override convertToObject "
+          + "to enable conversion using mime type " + contentType);
     }
 
-    Object o = SerializationUtils.deserializeBase64(body);
+    Object o = codec.decode(body.getBytes(UTF_8));
 
     illegalObjectCheck(o);
 
     return o;
   }
 
+  /**
+   * Returns the {@link BodyCodec} registered for the specified content type.
+   * 
+   * @param contentType
+   *          the content type
+   * @return the body codec, or null if none is registered
+   */
+  protected BodyCodec getBodyCodec(String contentType) {
+    return codecs.getCodec(contentType);
+  }
+
+  /**
+   * Registers the codec with this parser only. Codecs registered in the
+   * {@link BodyCodecRegistry#getDefault()} registry, for instance via
+   * {@link AbstractBodyMessage#registerBodyCodec(BodyCodec)}, are available to
+   * all parsers.
+   * 
+   * @param codec
+   *          the codec
+   */
+  public void registerBodyCodec(BodyCodec codec) {
+    codecs.register(codec);
+  }
+
+  /**
+   * Gets the body codec registry of this parser, whose parent is the
+   * {@link BodyCodecRegistry#getDefault()} registry.
+   * 
+   * @return the body codec registry
+   */
+  public BodyCodecRegistry getBodyCodecRegistry() {
+    return codecs;
+  }
+
   /**
    * Blank implementation; override to add any object checking logic.
    * 
@@ -176,6 +406,38 @@ public class StompMessageParser {
     return !content || (content && text);
   }
 
+  /**
+   * Checks if the specified content type is text. A missing content type is
+   * assumed to be text.
+   * 
+   * @param contentType
+   *          the content type
+   * @return true, if is text
+   */
+  protected boolean isText(String contentType) {
+    return contentType == null || contentType.contains("text/");
+  }
+
+  /**
+   * Returns the charset specified in the content type, defaulting to UTF-8.
+   * 
+   * @param contentType
+   *          the content type
+   * @return the charset
+   */
+  protected Charset getCharset(String contentType) {
+    if (contentType == null) return UTF_8;
+
+    int idx = contentType.indexOf("charset=");
+    if (idx == -1) return UTF_8;
+
+    String charset = contentType.substring(idx + "charset=".length()).trim();
+    int end = charset.indexOf(';');
+    if (end != -1) charset = charset.substring(0, end).trim();
+
+    return Charset.isSupported(charset) ? Charset.forName(charset) : UTF_8;
+  }
+
   /**
    * Creates the stampy message.
    * 
@@ -189,10 +451,30 @@ public class StompMessageParser {
    * @throws UnparseableException
    *           the unparseable exception
    */
-  @SuppressWarnings("unchecked")
   protected <MSG extends StampyMessage<?>> MSG createStampyMessage(StompMessageType type, List<String> headers)
       throws UnparseableException {
 
+    MSG message = createStampyMessage(type);
+
+    addHeaders(message, headers);
+
+    return message;
+  }
+
+  /**
+   * Creates an empty stampy message of the specified type.
+   * 
+   * @param <MSG>
+   *          the generic type
+   * @param type
+   *          the type
+   * @return the msg
+   * @throws UnparseableException
+   *           the unparseable exception
+   */
+  @SuppressWarnings("unchecked")
+  protected <MSG extends StampyMessage<?>> MSG createStampyMessage(StompMessageType type) throws UnparseableException {
+
     MSG message = null;
 
     switch (type) {
@@ -252,8 +534,6 @@ public class StompMessageParser {
 
     message.getHeader();
 
-    addHeaders(message, headers);
-
     return message;
   }
 
@@ -269,7 +549,7 @@ public class StompMessageParser {
       String key = st.nextToken();
       String value = header.substring(key.length() + 1);
 
-      message.getHeader().addHeader(key, value);
+      message.getHeader().addHeader(AbstractMessageHeader.internKey(key), value);
     }
   }
 
@@ -313,4 +593,82 @@ public class StompMessageParser {
 
     return trimmed;
   }
+
+  private StompMessageType toMessageType(ByteBuffer buffer, int from, int to) throws UnparseableException {
+    int length = to - from;
+    for (int i = 0; i < TYPE_BYTES.length; i++) {
+      byte[] name = TYPE_BYTES[i];
+      if (name.length != length) continue;
+
+      int j = 0;
+      while (j < length && buffer.get(from + j) == name[j]) {
+        j++;
+      }
+
+      if (j == length) return TYPES[i];
+    }
+
+    throw new UnparseableException("Unknown STOMP command " + decode(buffer, from, to, UTF_8));
+  }
+
+  /**
+   * Returns the index after the last header line, ie. of the blank line
+   * separating the headers from the body.
+   */
+  private static int endOfHeaders(ByteBuffer buffer, int from, int to) {
+    int pos = from;
+    while (pos < to) {
+      int eol = indexOf(buffer, pos, to, LF);
+      int end = eol == -1 ? endOfFrame(buffer, pos, to) : trimCR(buffer, pos, eol);
+      if (end == pos || eol == -1) return end;
+
+      pos = eol + 1;
+    }
+
+    return pos;
+  }
+
+  private static int skipEndOfLines(ByteBuffer buffer, int from, int to) {
+    int i = from;
+    while (i < to) {
+      byte b = buffer.get(i);
+      if (b != LF && b != CR) break;
+      i++;
+    }
+
+    return i;
+  }
+
+  private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) == b) return i;
+    }
+
+    return -1;
+  }
+
+  private static int endOfFrame(ByteBuffer buffer, int from, int to) {
+    int idx = indexOf(buffer, from, to, NUL);
+    return idx == -1 ? to : idx;
+  }
+
+  private static int trimCR(ByteBuffer buffer, int from, int eol) {
+    return eol > from && buffer.get(eol - 1) == CR ? eol - 1 : eol;
+  }
+
+  private static String decode(ByteBuffer buffer, int from, int to, Charset charset) {
+    if (buffer.hasArray()) return new String(buffer.array(), buffer.arrayOffset() + from, to - from, charset);
+
+    return new String(toBytes(buffer, from, to), charset);
+  }
+
+  private static byte[] toBytes(ByteBuffer buffer, int from, int to) {
+    byte[] bytes = new byte[to - from];
+    ByteBuffer dup = buffer.duplicate();
+    dup.limit(to);
+    dup.position(from);
+    dup.get(bytes);
+
+    return bytes;
+  }
 }
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.serialization;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Compact binary codec for bodies composed of the common value types, an
+ * alternative to Java serialization which requires neither class metadata in
+ * the frame nor the {@link java.io.ObjectOutputStream} machinery.<br>
+ * <br>
+ * Each value is written as a one byte tag followed by its data. Integers and
+ * longs are written as zigzag varints, strings as UTF-8 bytes and byte arrays
+ * as is, both prefixed by their length as a varint. Lists, sets, maps and
+ * object arrays are prefixed by their size and contain any of the supported
+ * types, including null. Lists decode as {@link ArrayList}s, sets as
+ * {@link LinkedHashSet}s and maps as {@link LinkedHashMap}s.
+ */
+@StampyLibrary(libraryName = "stampy-core")
+public class BinaryBodyCodec implements BodyCodec {
+
+  /** The Constant BINARY_MIME_TYPE. */
+  public static final String BINARY_MIME_TYPE = "application/x-stampy-binary";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int MAX_DEPTH = 64;
+
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte BYTE = 3;
+  private static final byte SHORT = 4;
+  private static final byte CHAR = 5;
+  private static final byte INT = 6;
+  private static final byte LONG = 7;
+  private static final byte FLOAT = 8;
+  private static final byte DOUBLE = 9;
+  private static final byte STRING = 10;
+  private static final byte BYTES = 11;
+  private static final byte LIST = 12;
+  private static final byte SET = 13;
+  private static final byte MAP = 14;
+  private static final byte ARRAY = 15;
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#getContentType()
+   */
+  @Override
+  public String getContentType() {
+    return BINARY_MIME_TYPE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#isBinary()
+   */
+  @Override
+  public boolean isBinary() {
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#encode(java.lang.Object)
+   */
+  @Override
+  public byte[] encode(Object body) throws IOException {
+    Writer writer = new Writer();
+    write(writer, body, 0);
+
+    return writer.toByteArray();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#decode(byte[])
+   */
+  @Override
+  public Object decode(byte[] body) throws IOException {
+    Reader reader = new Reader(body);
+    Object o = read(reader, 0);
+    if (reader.pos != body.length) {
+      throw new StreamCorruptedException((body.length - reader.pos) + " bytes remaining after decoding");
+    }
+
+    return o;
+  }
+
+  private void write(Writer writer, Object o, int depth) throws IOException {
+    if (depth > MAX_DEPTH) throw new NotSerializableException("Nesting exceeds " + MAX_DEPTH + " levels");
+
+    if (o == null) {
+      writer.write(NULL);
+    } else if (o instanceof String) {
+      writer.write(STRING);
+      writer.writeBytes(((String) o).getBytes(UTF_8));
+    } else if (o instanceof Integer) {
+      writer.write(INT);
+      writer.writeVarLong(zigzag((Integer) o));
+    } else if (o instanceof Long) {
+      writer.write(LONG);
+      writer.writeVarLong(zigzag((Long) o));
+    } else if (o instanceof Boolean) {
+      writer.write((Boolean) o ? TRUE : FALSE);
+    } else if (o instanceof byte[]) {
+      writer.write(BYTES);
+      writer.writeBytes((byte[]) o);
+    } else if (o instanceof Double) {
+      writer.write(DOUBLE);
+      writer.writeFixed(Double.doubleToLongBits((Double) o), 8);
+    } else if (o instanceof Float) {
+      writer.write(FLOAT);
+      writer.writeFixed(Float.floatToIntBits((Float) o), 4);
+    } else if (o instanceof Byte) {
+      writer.write(BYTE);
+      writer.write((Byte) o);
+    } else if (o instanceof Short) {
+      writer.write(SHORT);
+      writer.writeVarLong(zigzag((Short) o));
+    } else if (o instanceof Character) {
+      writer.write(CHAR);
+      writer.writeVarLong((Character) o);
+    } else if (o instanceof Map<?, ?>) {
+      Map<?, ?> map = (Map<?, ?>) o;
+      writer.write(MAP);
+      writer.writeVarLong(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        write(writer, entry.getKey(), depth + 1);
+        write(writer, entry.getValue(), depth + 1);
+      }
+    } else if (o instanceof Set<?>) {
+      writeAll(writer, SET, (Set<?>) o, depth);
+    } else if (o instanceof List<?>) {
+      writeAll(writer, LIST, (List<?>) o, depth);
+    } else if (o instanceof Object[]) {
+      writeAll(writer, ARRAY, Arrays.asList((Object[]) o), depth);
+    } else {
+      throw new NotSerializableException(o.getClass().getName() + " is not supported by the binary codec");
+    }
+  }
+
+  private void writeAll(Writer writer, byte tag, Collection<?> c, int depth) throws IOException {
+    writer.write(tag);
+    writer.writeVarLong(c.size());
+    for (Object o : c) {
+      write(writer, o, depth + 1);
+    }
+  }
+
+  private Object read(Reader reader, int depth) throws IOException {
+    if (depth > MAX_DEPTH) throw new StreamCorruptedException("Nesting exceeds " + MAX_DEPTH + " levels");
+
+    byte tag = reader.read();
+    switch (tag) {
+    case NULL:
+      return null;
+    case FALSE:
+      return Boolean.FALSE;
+    case TRUE:
+      return Boolean.TRUE;
+    case BYTE:
+      return reader.read();
+    case SHORT:
+      return (short) unzigzag(reader.readVarLong());
+    case CHAR:
+      return (char) reader.readVarLong();
+    case INT:
+      return (int) unzigzag(reader.readVarLong());
+    case LONG:
+      return unzigzag(reader.readVarLong());
+    case FLOAT:
+      return Float.intBitsToFloat((int) reader.readFixed(4));
+    case DOUBLE:
+      return Double.longBitsToDouble(reader.readFixed(8));
+    case STRING:
+      return new String(reader.readBytes(), UTF_8);
+    case BYTES:
+      return reader.readBytes();
+    case LIST:
+      return readAll(reader, new ArrayList<Object>(), depth);
+    case SET:
+      return readAll(reader, new LinkedHashSet<Object>(), depth);
+    case ARRAY:
+      return readAll(reader, new ArrayList<Object>(), depth).toArray();
+    case MAP:
+      int size = reader.readSize();
+      Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+      for (int i = 0; i < size; i++) {
+        map.put(read(reader, depth + 1), read(reader, depth + 1));
+      }
+      return map;
+    default:
+      throw new StreamCorruptedException("Unknown tag " + tag);
+    }
+  }
+
+  private <C extends Collection<Object>> C readAll(Reader reader, C c, int depth) throws IOException {
+    int size = reader.readSize();
+    for (int i = 0; i < size; i++) {
+      c.add(read(reader, depth + 1));
+    }
+
+    return c;
+  }
+
+  private static long zigzag(long l) {
+    return (l << 1) ^ (l >> 63);
+  }
+
+  private static long unzigzag(long l) {
+    return (l >>> 1) ^ -(l & 1);
+  }
+
+  /**
+   * Growable byte array; unlike {@link java.io.ByteArrayOutputStream} it is
+   * unsynchronized.
+   */
+  private static class Writer {
+    private byte[] bytes = new byte[64];
+    private int count;
+
+    void write(byte b) {
+      ensureCapacity(1);
+      bytes[count++] = b;
+    }
+
+    void writeVarLong(long l) {
+      ensureCapacity(10);
+      while ((l & ~0x7FL) != 0) {
+        bytes[count++] = (byte) ((l & 0x7F) | 0x80);
+        l >>>= 7;
+      }
+      bytes[count++] = (byte) l;
+    }
+
+    void writeFixed(long l, int length) {
+      ensureCapacity(length);
+      for (int i = length - 1; i >= 0; i--) {
+        bytes[count++] = (byte) (l >>> (i * 8));
+      }
+    }
+
+    void writeBytes(byte[] b) {
+      writeVarLong(b.length);
+      ensureCapacity(b.length);
+      System.arraycopy(b, 0, bytes, count, b.length);
+      count += b.length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, count);
+    }
+
+    private void ensureCapacity(int length) {
+      if (count + length <= bytes.length) return;
+
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, count + length));
+    }
+  }
+
+  /**
+   * Reads from the encoded bytes, checking lengths against the bytes
+   * remaining.
+   */
+  private static class Reader {
+    private final byte[] bytes;
+    private int pos;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    byte read() throws EOFException {
+      if (pos >= bytes.length) throw new EOFException();
+
+      return bytes[pos++];
+    }
+
+    long readVarLong() throws IOException {
+      long l = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = read();
+        l |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return l;
+      }
+
+      throw new StreamCorruptedException("Malformed varint");
+    }
+
+    long readFixed(int length) throws EOFException {
+      if (bytes.length - pos < length) throw new EOFException();
+
+      long l = 0;
+      for (int i = 0; i < length; i++) {
+        l = (l << 8) | (bytes[pos++] & 0xFF);
+      }
+
+      return l;
+    }
+
+    /**
+     * Reads a length or size, which cannot exceed the bytes remaining as every
+     * element occupies at least one byte.
+     */
+    int readSize() throws IOException {
+      long size = readVarLong();
+      if (size < 0 || size > bytes.length - pos) {
+        throw new EOFException("Size " + size + " exceeds the bytes remaining");
+      }
+
+      return (int) size;
+    }
+
+    byte[] readBytes() throws IOException {
+      int length = readSize();
+      byte[] b = Arrays.copyOfRange(bytes, pos, pos + length);
+      pos += length;
+
+      return b;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.serialization;
+
+import java.io.IOException;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Encodes and decodes the bodies of non-text messages for a content type.
+ * Codecs are registered in a {@link BodyCodecRegistry} and selected by the
+ * body encoding of outgoing messages and by the content-type header of
+ * incoming messages. Implementations must be thread safe.
+ */
+@StampyLibrary(libraryName = "stampy-core")
+public interface BodyCodec {
+
+  /**
+   * Gets the content type this codec is registered for, without parameters.
+   * 
+   * @return the content type
+   */
+  String getContentType();
+
+  /**
+   * Checks if the encoded bytes can take any value. Binary bodies can only be
+   * written in frames created as bytes, with a content-length header; bodies
+   * which are 7 bit ASCII can also be carried as a string.
+   * 
+   * @return true, if binary
+   */
+  boolean isBinary();
+
+  /**
+   * Encodes the body.
+   * 
+   * @param body
+   *          the body
+   * @return the encoded bytes
+   * @throws IOException
+   *           Signals that an I/O exception has occurred, including the body
+   *           not being encodable by this codec.
+   */
+  byte[] encode(Object body) throws IOException;
+
+  /**
+   * Decodes the body.
+   * 
+   * @param body
+   *          the encoded bytes
+   * @return the body
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   * @throws ClassNotFoundException
+   *           the class not found exception
+   */
+  Object decode(byte[] body) throws IOException, ClassNotFoundException;
+}
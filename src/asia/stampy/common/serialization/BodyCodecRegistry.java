@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.serialization;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Registry of {@link BodyCodec}s keyed by content type. Parameters such as
+ * charset are ignored when looking up a codec. A registry may be created with
+ * a parent, which is consulted should no codec be registered in the registry
+ * itself.<br>
+ * <br>
+ * The {@link #getDefault()} registry contains the {@link ByteArrayBodyCodec},
+ * the {@link BinaryBodyCodec} and the {@link JavaBase64BodyCodec}.
+ */
+@StampyLibrary(libraryName = "stampy-core")
+public class BodyCodecRegistry {
+
+  private static final BodyCodecRegistry DEFAULT = new BodyCodecRegistry();
+
+  static {
+    DEFAULT.register(new ByteArrayBodyCodec());
+    DEFAULT.register(new BinaryBodyCodec());
+    DEFAULT.register(new JavaBase64BodyCodec());
+  }
+
+  private Map<String, BodyCodec> codecs = new ConcurrentHashMap<String, BodyCodec>();
+
+  private final BodyCodecRegistry parent;
+
+  /**
+   * Instantiates a new body codec registry.
+   */
+  public BodyCodecRegistry() {
+    this(null);
+  }
+
+  /**
+   * Instantiates a new body codec registry.
+   * 
+   * @param parent
+   *          the registry to consult for unregistered content types, may be
+   *          null
+   */
+  public BodyCodecRegistry(BodyCodecRegistry parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * Gets the default registry, shared by all messages and parsers.
+   * 
+   * @return the default registry
+   */
+  public static BodyCodecRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Registers the codec for its content type, replacing any codec already
+   * registered.
+   * 
+   * @param codec
+   *          the codec
+   */
+  public void register(BodyCodec codec) {
+    if (codec == null) throw new NullPointerException("Codec cannot be null");
+
+    codecs.put(toKey(codec.getContentType()), codec);
+  }
+
+  /**
+   * Removes the codec for the specified content type.
+   * 
+   * @param contentType
+   *          the content type
+   * @return the codec removed, or null
+   */
+  public BodyCodec unregister(String contentType) {
+    return contentType == null ? null : codecs.remove(toKey(contentType));
+  }
+
+  /**
+   * Gets the codec for the specified content type.
+   * 
+   * @param contentType
+   *          the content type
+   * @return the codec, or null if none is registered
+   */
+  public BodyCodec getCodec(String contentType) {
+    if (contentType == null) return null;
+
+    BodyCodec codec = codecs.get(toKey(contentType));
+
+    return codec == null && parent != null ? parent.getCodec(contentType) : codec;
+  }
+
+  private static String toKey(String contentType) {
+    int idx = contentType.indexOf(';');
+    String key = idx == -1 ? contentType : contentType.substring(0, idx);
+
+    return key.trim().toLowerCase(Locale.ENGLISH);
+  }
+}
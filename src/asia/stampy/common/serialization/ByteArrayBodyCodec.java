@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.serialization;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * Codec for raw <i>application/octet-stream</i> bodies. Byte arrays, and the
+ * remaining bytes of {@link ByteBuffer}s, are written to the frame as is and
+ * decoded as byte arrays.
+ */
+@StampyLibrary(libraryName = "stampy-core")
+public class ByteArrayBodyCodec implements BodyCodec {
+
+  /** The Constant OCTET_STREAM_MIME_TYPE. */
+  public static final String OCTET_STREAM_MIME_TYPE = "application/octet-stream";
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#getContentType()
+   */
+  @Override
+  public String getContentType() {
+    return OCTET_STREAM_MIME_TYPE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#isBinary()
+   */
+  @Override
+  public boolean isBinary() {
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#encode(java.lang.Object)
+   */
+  @Override
+  public byte[] encode(Object body) throws IOException {
+    if (body instanceof byte[]) return (byte[]) body;
+
+    if (body instanceof ByteBuffer) {
+      ByteBuffer buffer = ((ByteBuffer) body).duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    }
+
+    throw new NotSerializableException(body.getClass().getName() + " is not a byte array or byte buffer");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#decode(byte[])
+   */
+  @Override
+  public Object decode(byte[] body) throws IOException {
+    return body;
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.serialization;
+
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import asia.stampy.common.StampyLibrary;
+
+/**
+ * The legacy <i>java/base64</i> codec, writing Base64 encoded Java serialized
+ * objects. Byte arrays are Base64 encoded without serialization, and are
+ * decoded as byte arrays should the decoded bytes not start with the Java
+ * serialization stream header. Retained for compatibility with peers using the
+ * default body encoding of earlier releases.
+ * 
+ * @see SerializationUtils
+ */
+@StampyLibrary(libraryName = "stampy-core")
+public class JavaBase64BodyCodec implements BodyCodec {
+
+  /** The Constant JAVA_BASE64_MIME_TYPE. */
+  public static final String JAVA_BASE64_MIME_TYPE = "java/base64";
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#getContentType()
+   */
+  @Override
+  public String getContentType() {
+    return JAVA_BASE64_MIME_TYPE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#isBinary()
+   */
+  @Override
+  public boolean isBinary() {
+    return false;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#encode(java.lang.Object)
+   */
+  @Override
+  public byte[] encode(Object body) throws IOException {
+    return SerializationUtils.serializeBase64Bytes(body);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see asia.stampy.common.serialization.BodyCodec#decode(byte[])
+   */
+  @Override
+  public Object decode(byte[] body) throws IOException, ClassNotFoundException {
+    byte[] bytes = Base64.decodeBase64(body);
+
+    return SerializationUtils.isSerialized(bytes) ? SerializationUtils.deserialize(bytes) : bytes;
+  }
+
+}
@@ -19,25 +19,47 @@
 package asia.stampy.common.serialization;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
 
 import asia.stampy.common.StampyLibrary;
 
 /**
- * Convenience class to encapsulate the serialize/deserialize functionality.
+ * Convenience class to encapsulate the serialize/deserialize functionality.<br>
+ * <br>
+ * The methods are lock free and may be called concurrently. Objects are
+ * serialized into a buffer confined to the calling thread and reused across
+ * calls, and Base64 encoded from there in a single pass. Buffers which have
+ * grown beyond 64k are not retained.
  */
 @StampyLibrary(libraryName="stampy-core")
 public class SerializationUtils {
 
-  private static Lock SERIALIZE_LOCK = new ReentrantLock(true);
-  private static Lock DESERIALIZE_LOCK = new ReentrantLock(true);
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private static final int INITIAL_SIZE = 1024;
+  private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+  private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+      .getBytes(US_ASCII);
+  private static final byte PAD = '=';
+
+  private static final ThreadLocal<ThreadBuffer> BUFFERS = new ThreadLocal<ThreadBuffer>() {
+
+    @Override
+    protected ThreadBuffer initialValue() {
+      return new ThreadBuffer();
+    }
+  };
 
   /**
    * Serialize base64.
@@ -49,19 +71,86 @@ public class SerializationUtils {
    *           Signals that an I/O exception has occurred.
    */
   public static String serializeBase64(Object o) throws IOException {
-    SERIALIZE_LOCK.lock();
+    return new String(serializeBase64Bytes(o), US_ASCII);
+  }
+
+  /**
+   * Serializes the object as per {@link #serializeBase64(Object)}, returning
+   * the Base64 encoded ASCII bytes.
+   * 
+   * @param o
+   *          the o
+   * @return the bytes
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public static byte[] serializeBase64Bytes(Object o) throws IOException {
+    if (o instanceof byte[]) return encodeBase64((byte[]) o, 0, ((byte[]) o).length);
+
+    ThreadBuffer buffer = acquire();
     try {
-      if (o instanceof byte[]) return Base64.encodeBase64String((byte[]) o);
+      writeObject(o, buffer);
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      return encodeBase64(buffer.bytes, 0, buffer.count);
+    } finally {
+      buffer.release();
+    }
+  }
 
+  /**
+   * Streaming variant of {@link #serializeBase64(Object)}, Base64 encoding the
+   * object straight into the stream as it is serialized, without an
+   * intermediate buffer. The stream is not closed.
+   * 
+   * @param o
+   *          the o
+   * @param out
+   *          the out
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public static void serializeBase64(Object o, OutputStream out) throws IOException {
+    OutputStream base64 = new Base64OutputStream(new UnclosableOutputStream(out), true, 0, null);
+    if (o instanceof byte[]) {
+      base64.write((byte[]) o);
+    } else {
+      ObjectOutputStream oos = new ObjectOutputStream(base64);
       oos.writeObject(o);
+      oos.flush();
+    }
 
-      return Base64.encodeBase64String(baos.toByteArray());
-    } finally {
-      SERIALIZE_LOCK.unlock();
+    base64.close();
+  }
+
+  /**
+   * Streaming variant of {@link #serializeBase64(Object)}, Base64 encoding the
+   * object straight into the buffer at its current position.
+   * 
+   * @param o
+   *          the o
+   * @param buffer
+   *          the buffer
+   * @return the number of bytes written
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   * @throws java.nio.BufferOverflowException
+   *           if the buffer has insufficient space remaining
+   */
+  public static int serializeBase64(Object o, ByteBuffer buffer) throws IOException {
+    int start = buffer.position();
+    if (o instanceof byte[]) {
+      encodeBase64((byte[]) o, 0, ((byte[]) o).length, buffer);
+    } else {
+      ThreadBuffer tb = acquire();
+      try {
+        writeObject(o, tb);
+        encodeBase64(tb.bytes, 0, tb.count, buffer);
+      } finally {
+        tb.release();
+      }
     }
+
+    return buffer.position() - start;
   }
 
   /**
@@ -76,15 +165,168 @@ public class SerializationUtils {
    *           the class not found exception
    */
   public static Object deserializeBase64(String s) throws IOException, ClassNotFoundException {
-    DESERIALIZE_LOCK.lock();
-    try {
-      byte[] bytes = Base64.decodeBase64(s);
+    return deserialize(Base64.decodeBase64(s));
+  }
 
-      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+  /**
+   * Serializes the object using Java serialization.
+   * 
+   * @param o
+   *          the o
+   * @return the bytes
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public static byte[] serialize(Object o) throws IOException {
+    ThreadBuffer buffer = acquire();
+    try {
+      writeObject(o, buffer);
 
-      return ois.readObject();
+      return Arrays.copyOf(buffer.bytes, buffer.count);
     } finally {
-      DESERIALIZE_LOCK.unlock();
+      buffer.release();
+    }
+  }
+
+  /**
+   * Deserializes the Java serialized bytes.
+   * 
+   * @param bytes
+   *          the bytes
+   * @return the object
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   * @throws ClassNotFoundException
+   *           the class not found exception
+   */
+  public static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+    return ois.readObject();
+  }
+
+  /**
+   * Checks if the bytes start with the Java serialization stream header.
+   * 
+   * @param bytes
+   *          the bytes
+   * @return true, if serialized
+   */
+  public static boolean isSerialized(byte[] bytes) {
+    return bytes.length >= 4 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED && bytes[2] == 0
+        && bytes[3] == 5;
+  }
+
+  /**
+   * Returns the length of the Base64 encoding of the specified number of
+   * bytes.
+   * 
+   * @param length
+   *          the length
+   * @return the encoded length
+   */
+  public static int getBase64Length(int length) {
+    return ((length + 2) / 3) * 4;
+  }
+
+  private static void writeObject(Object o, ThreadBuffer buffer) throws IOException {
+    ObjectOutputStream oos = new ObjectOutputStream(buffer);
+    oos.writeObject(o);
+    oos.flush();
+  }
+
+  /**
+   * Returns the calling thread's buffer, or a new buffer should it be in use
+   * ie. an object's writeObject method is serializing via this class.
+   */
+  private static ThreadBuffer acquire() {
+    ThreadBuffer buffer = BUFFERS.get();
+    if (buffer.inUse) return new ThreadBuffer();
+
+    buffer.inUse = true;
+    return buffer;
+  }
+
+  private static byte[] encodeBase64(byte[] src, int off, int len) {
+    byte[] encoded = new byte[getBase64Length(len)];
+    encodeBase64(src, off, len, ByteBuffer.wrap(encoded));
+
+    return encoded;
+  }
+
+  private static void encodeBase64(byte[] src, int off, int len, ByteBuffer dst) {
+    int end = off + len;
+    int i = off;
+    for (; i + 2 < end; i += 3) {
+      int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+      dst.put(ALPHABET[bits >>> 18]);
+      dst.put(ALPHABET[(bits >>> 12) & 0x3F]);
+      dst.put(ALPHABET[(bits >>> 6) & 0x3F]);
+      dst.put(ALPHABET[bits & 0x3F]);
+    }
+
+    int remaining = end - i;
+    if (remaining == 0) return;
+
+    int bits = (src[i] & 0xFF) << 16 | (remaining == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+    dst.put(ALPHABET[bits >>> 18]);
+    dst.put(ALPHABET[(bits >>> 12) & 0x3F]);
+    dst.put(remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : PAD);
+    dst.put(PAD);
+  }
+
+  /**
+   * Unsynchronized, reusable byte array output stream.
+   */
+  private static class ThreadBuffer extends OutputStream {
+    byte[] bytes = new byte[INITIAL_SIZE];
+    int count;
+    boolean inUse;
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, bytes, count, len);
+      count += len;
+    }
+
+    void release() {
+      count = 0;
+      inUse = false;
+      if (bytes.length > MAX_RETAINED_SIZE) bytes = new byte[INITIAL_SIZE];
+    }
+
+    private void ensureCapacity(int length) {
+      if (count + length <= bytes.length) return;
+
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, count + length));
+    }
+  }
+
+  /**
+   * Leaves the stream open when the Base64 encoding stream is closed to write
+   * the final padding.
+   */
+  private static class UnclosableOutputStream extends FilterOutputStream {
+
+    UnclosableOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
     }
   }
 
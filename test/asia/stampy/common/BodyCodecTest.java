@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.message.AbstractBodyMessage;
+import asia.stampy.common.parsing.StompMessageParser;
+import asia.stampy.common.serialization.BinaryBodyCodec;
+import asia.stampy.common.serialization.BodyCodec;
+import asia.stampy.common.serialization.ByteArrayBodyCodec;
+import asia.stampy.common.serialization.JavaBase64BodyCodec;
+
+/**
+ * Tests the encoding and decoding of message bodies by the registered
+ * {@link BodyCodec}s.
+ */
+public class BodyCodecTest {
+
+  private StompMessageParser parser = new StompMessageParser();
+
+  /**
+   * Test raw byte array bodies, containing NUL bytes and newlines, written
+   * without Base64 encoding.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testByteArrayBody() throws Exception {
+    byte[] body = { 1, 0, '\n', 0, '\r', '\n', (byte) 0xFF, 0 };
+
+    SendMessage message = createMessage(ByteArrayBodyCodec.OCTET_STREAM_MIME_TYPE, body);
+    ByteBuffer buffer = message.toStompBuffer(true);
+
+    assertEquals(Integer.toString(body.length), message.getHeader().getHeaderValue("content-length"));
+
+    SendMessage parsed = parser.parseMessage(buffer);
+    assertTrue(Arrays.equals(body, (byte[]) parsed.getBody()));
+    assertEquals(ByteArrayBodyCodec.OCTET_STREAM_MIME_TYPE, parsed.getHeader().getContentType());
+  }
+
+  /**
+   * Test binary bodies cannot be created as strings.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBinaryBodyAsString() throws Exception {
+    SendMessage message = createMessage(ByteArrayBodyCodec.OCTET_STREAM_MIME_TYPE, new byte[] { 1, 2, 3 });
+
+    try {
+      message.toStompMessage(true);
+      fail("Binary body created as a string");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test the compact binary codec round trips the supported types.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBinaryCodec() throws Exception {
+    Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    map.put("string", "éè and some text");
+    map.put("int", Integer.MIN_VALUE);
+    map.put("long", Long.MAX_VALUE);
+    map.put("negative", -1L);
+    map.put("short", (short) -300);
+    map.put("byte", (byte) 7);
+    map.put("char", 'ü');
+    map.put("float", 1.5f);
+    map.put("double", Math.PI);
+    map.put("boolean", Boolean.TRUE);
+    map.put("null", null);
+    map.put(42, Arrays.asList("a", null, 3));
+    map.put("set", new LinkedHashSet<Object>(Arrays.asList(1, 2, 3)));
+
+    List<Object> list = new ArrayList<Object>();
+    list.add(map);
+    list.add(new byte[0]);
+
+    BodyCodec codec = new BinaryBodyCodec();
+    @SuppressWarnings("unchecked")
+    List<Object> decoded = (List<Object>) codec.decode(codec.encode(list));
+
+    assertEquals(map, decoded.get(0));
+    assertEquals(0, ((byte[]) decoded.get(1)).length);
+
+    Object[] array = (Object[]) codec.decode(codec.encode(new Object[] { "x", 1 }));
+    assertTrue(Arrays.equals(new Object[] { "x", 1 }, array));
+
+    SendMessage message = createMessage(BinaryBodyCodec.BINARY_MIME_TYPE, map);
+    SendMessage parsed = parser.parseMessage(message.toStompBuffer(true));
+    assertEquals(map, parsed.getBody());
+  }
+
+  /**
+   * Test the compact binary codec is smaller than Java serialization plus
+   * Base64 encoding.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBinaryCodecSize() throws Exception {
+    Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    for (int i = 0; i < 10; i++) {
+      map.put("key" + i, i);
+    }
+
+    int binary = new BinaryBodyCodec().encode(map).length;
+    int base64 = new JavaBase64BodyCodec().encode(map).length;
+
+    assertTrue(binary + " >= " + base64, binary * 3 < base64);
+  }
+
+  /**
+   * Test the compact binary codec rejects unsupported types and corrupt input.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBinaryCodecErrors() throws Exception {
+    BodyCodec codec = new BinaryBodyCodec();
+
+    try {
+      codec.encode(new HostPort("burt.alexander", 1234));
+      fail("Unsupported type encoded");
+    } catch (NotSerializableException e) {
+      // expected
+    }
+
+    byte[] encoded = codec.encode("a string");
+    try {
+      codec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+      fail("Truncated body decoded");
+    } catch (IOException e) {
+      // expected
+    }
+
+    try {
+      codec.decode(new byte[] { 12, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F });
+      fail("Oversized list decoded");
+    } catch (IOException e) {
+      // expected
+    }
+
+    try {
+      codec.decode(new byte[] { 99 });
+      fail("Unknown tag decoded");
+    } catch (StreamCorruptedException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test the legacy Java serialization and Base64 encoding, the default.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testJavaBase64Body() throws Exception {
+    HostPort hostPort = new HostPort("burt.alexander", 1234);
+
+    SendMessage message = new SendMessage("over/there", "receiptId");
+    message.setMimeType("application/jpeg");
+    message.setBody(hostPort);
+
+    assertEquals(AbstractBodyMessage.JAVA_BASE64_MIME_TYPE, message.getBodyEncoding());
+
+    SendMessage parsed = parser.parseMessage(message.toStompMessage(true));
+    assertEquals(hostPort, parsed.getBody());
+
+    parsed = parser.parseMessage(message.toStompBuffer(true));
+    assertEquals(hostPort, parsed.getBody());
+
+    byte[] bytes = { 1, 2, 3 };
+    message.setBody(bytes);
+    parsed = parser.parseMessage(message.toStompBuffer(true));
+    assertTrue(Arrays.equals(bytes, (byte[]) parsed.getBody()));
+  }
+
+  /**
+   * Test a codec registered with a parser.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testRegisteredCodec() throws Exception {
+    BodyCodec reversed = new BodyCodec() {
+
+      @Override
+      public String getContentType() {
+        return "application/x-reversed";
+      }
+
+      @Override
+      public boolean isBinary() {
+        return false;
+      }
+
+      @Override
+      public byte[] encode(Object body) throws IOException {
+        return new StringBuilder((String) body).reverse().toString().getBytes("US-ASCII");
+      }
+
+      @Override
+      public Object decode(byte[] body) throws IOException {
+        return new StringBuilder(new String(body, "US-ASCII")).reverse().toString();
+      }
+    };
+
+    String frame = "SEND\ndestination:over/there\ncontent-type:application/x-reversed;charset=US-ASCII\n\n"
+        + "dlrow olleh\000";
+    ByteBuffer buffer = ByteBuffer.wrap(frame.getBytes("US-ASCII"));
+
+    try {
+      parser.parseMessage(buffer);
+      fail("Unregistered content type parsed");
+    } catch (Exception e) {
+      // expected
+    }
+
+    parser.registerBodyCodec(reversed);
+    SendMessage parsed = parser.parseMessage(buffer);
+    assertEquals("hello world", parsed.getBody());
+
+    assertEquals(null, new StompMessageParser().getBodyCodecRegistry().getCodec("application/x-reversed"));
+  }
+
+  private SendMessage createMessage(String encoding, Object body) {
+    SendMessage message = new SendMessage("over/there", "receiptId");
+    message.setMimeType(encoding);
+    message.setBodyEncoding(encoding);
+    message.setBody(body);
+
+    return message;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import asia.stampy.client.message.ack.AckMessage;
+import asia.stampy.client.message.connect.ConnectMessage;
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.message.AbstractMessage;
+import asia.stampy.common.parsing.IllegalObjectException;
+import asia.stampy.common.parsing.StompMessageParser;
+import asia.stampy.common.parsing.UnparseableException;
+import asia.stampy.server.message.message.MessageMessage;
+
+/**
+ * Tests parsing STOMP frames directly from bytes.
+ */
+public class ByteBufferMessageParserTest {
+  private static final String OCTET_STREAM = "application/octet-stream";
+
+  private StompMessageParser parser = new StompMessageParser() {
+
+    @Override
+    protected Object convertToObject(byte[] body, String contentType) throws IllegalObjectException,
+        ClassNotFoundException, IOException {
+      if (OCTET_STREAM.equals(contentType)) return body;
+
+      return super.convertToObject(body, contentType);
+    }
+  };
+
+  /**
+   * Test messages without bodies.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testNoBody() throws Exception {
+    testEquals(new ConnectMessage("1.2", "burt.alexander"));
+    testEquals(new SubscribeMessage("over/there", "12345"));
+    testEquals(new AckMessage("12345"));
+  }
+
+  /**
+   * Test text bodies.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testTextBody() throws Exception {
+    SendMessage message = new SendMessage("over/there", "receiptId");
+    message.setMimeType("text/plain", "UTF-8");
+    message.setBody("The body éè");
+    testEquals(message);
+
+    MessageMessage mm = new MessageMessage("over/there", "12345", "54321");
+    mm.setBody("This is the body");
+    testEquals(mm);
+  }
+
+  /**
+   * Test serialized object bodies.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testObjectBody() throws Exception {
+    SendMessage message = new SendMessage("over/there", "receiptId");
+    message.setMimeType("application/jpeg", "UTF-8");
+    message.setBody(new HostPort("burt.alexander", 1234));
+
+    SendMessage parsed = parse(message.toStompMessage(true), false);
+
+    assertEquals(message.<HostPort> getBody(), parsed.<HostPort> getBody());
+  }
+
+  /**
+   * Test a binary body containing NUL bytes and newlines, read using the
+   * content-length header.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBinaryBody() throws Exception {
+    byte[] body = { 1, 0, '\n', 0, '\r', '\n', 2, 0 };
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(("SEND\ndestination:over/there\ncontent-type:" + OCTET_STREAM + "\ncontent-length:" + body.length + "\n\n")
+        .getBytes("UTF-8"));
+    baos.write(body);
+    baos.write(0);
+
+    byte[] frame = baos.toByteArray();
+
+    SendMessage parsed = parser.parseMessage(ByteBuffer.wrap(frame));
+    assertTrue(Arrays.equals(body, (byte[]) parsed.getBody()));
+    assertEquals("over/there", parsed.getHeader().getDestination());
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+    direct.put(frame);
+    direct.flip();
+
+    parsed = parser.parseMessage(direct);
+    assertTrue(Arrays.equals(body, (byte[]) parsed.getBody()));
+    assertEquals(0, direct.position());
+    assertEquals(frame.length, direct.limit());
+  }
+
+  /**
+   * Test CRLF line endings, leading heartbeats and header values containing
+   * colons.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testLineEndings() throws Exception {
+    String frame = "\r\n\nMESSAGE\r\ndestination:over/there\r\nmessage-id:1:2:3\r\nsubscription:54321\r\n\r\nbody\000";
+
+    MessageMessage parsed = parser.parseMessage(ByteBuffer.wrap(frame.getBytes("UTF-8")));
+
+    assertEquals("over/there", parsed.getHeader().getDestination());
+    assertEquals("1:2:3", parsed.getHeader().getMessageId());
+    assertEquals("body", parsed.getBody());
+  }
+
+  /**
+   * Test unparseable frames.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testUnparseable() throws Exception {
+    String[] frames = { "NOT_A_COMMAND\n\n\000", "SEND\ndestination\n\n\000",
+        "SEND\ncontent-length:10\n\nshort\000" };
+
+    for (String frame : frames) {
+      try {
+        parser.parseMessage(ByteBuffer.wrap(frame.getBytes("UTF-8")));
+        fail("Should have thrown unparseable exception for " + frame);
+      } catch (UnparseableException e) {
+        // expected
+      }
+    }
+  }
+
+  private void testEquals(AbstractMessage<?> message) throws Exception {
+    String stomp = message.toStompMessage(true);
+
+    AbstractMessage<?> parsed = parse(stomp, true);
+
+    assertEquals(stomp, parsed.toStompMessage(true));
+  }
+
+  private <MSG extends AbstractMessage<?>> MSG parse(String stomp, boolean direct) throws Exception {
+    byte[] bytes = stomp.getBytes("UTF-8");
+    if (!direct) return parser.parseMessage(ByteBuffer.wrap(bytes));
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.flip();
+
+    return parser.parseMessage(buffer);
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import asia.stampy.client.message.connect.ConnectMessage;
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.message.AbstractMessage;
+import asia.stampy.common.parsing.StompMessageParser;
+import asia.stampy.server.message.message.MessageMessage;
+
+/**
+ * Tests encoding STOMP frames directly to bytes.
+ */
+public class MessageEncodingTest {
+
+  private StompMessageParser parser = new StompMessageParser();
+
+  /**
+   * Test messages with bodies, encoded to the same bytes as the string
+   * representation.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBodies() throws Exception {
+    SendMessage message = new SendMessage("over/there", "receiptId");
+    message.setMimeType("text/plain", "UTF-8");
+    message.setBody("The body éè € 😀");
+    message.getHeader().addHeader("custom", "über 中文");
+    testEquals(message);
+
+    MessageMessage mm = new MessageMessage("over/there", "12345", "54321");
+    mm.setBody("This is the body");
+    testEquals(mm);
+
+    SendMessage object = new SendMessage("over/there", "receiptId");
+    object.setMimeType("application/jpeg", "UTF-8");
+    object.setBody(new HostPort("burt.alexander", 1234));
+    testEquals(object);
+  }
+
+  /**
+   * Test messages without bodies are written with an empty body.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testNoBody() throws Exception {
+    ConnectMessage message = new ConnectMessage("1.2", "burt.alexander");
+
+    ByteBuffer buffer = message.toStompBuffer(true);
+
+    String frame = StompMessageParser.UTF_8.decode(buffer.duplicate()).toString();
+    assertEquals(message.toStompMessage(true).replace("\n\nnull", "\n\n"), frame);
+    assertEquals(message, parser.parseMessage(buffer));
+
+    SubscribeMessage subscribe = new SubscribeMessage("over/there", "12345");
+    assertEquals(subscribe, parser.parseMessage(subscribe.toStompBuffer(true)));
+  }
+
+  /**
+   * Test writing to a direct buffer at an offset, and to a buffer too small.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testWriteTo() throws Exception {
+    MessageMessage message = new MessageMessage("over/there", "12345", "54321");
+    message.setBody("This is the body");
+
+    byte[] expected = message.toStompMessage(true).getBytes(StompMessageParser.UTF_8);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length + 10);
+    buffer.position(5);
+    message.writeTo(buffer, true);
+
+    assertEquals(expected.length + 5, buffer.position());
+
+    buffer.flip();
+    buffer.position(5);
+    byte[] written = new byte[buffer.remaining()];
+    buffer.get(written);
+    assertTrue(Arrays.equals(expected, written));
+
+    try {
+      message.writeTo(ByteBuffer.allocate(expected.length - 1), true);
+      fail("Buffer overflow expected");
+    } catch (BufferOverflowException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test the body encoded when sizing a frame is reused to write it, and
+   * encoded again once the body changes.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBodyEncodedOnce() throws Exception {
+    final int[] encoded = new int[1];
+    SendMessage message = new SendMessage("over/there", "receiptId") {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected String postHeader() {
+        encoded[0]++;
+        return super.postHeader();
+      }
+    };
+    message.setMimeType("application/jpeg", "UTF-8");
+    message.setBody(new HostPort("burt.alexander", 1234));
+
+    ByteBuffer buffer = ByteBuffer.allocate(message.getEncodedLength());
+    message.writeTo(buffer, true);
+
+    assertEquals(1, encoded[0]);
+    assertEquals(0, buffer.remaining());
+
+    message.getEncodedLength();
+    message.setBody(new HostPort("burt.alexander", 4321));
+    buffer = message.toStompBuffer(true);
+
+    assertEquals(3, encoded[0]);
+    SendMessage parsed = parser.parseMessage(buffer);
+    assertEquals(new HostPort("burt.alexander", 4321), parsed.<HostPort> getBody());
+  }
+
+  private void testEquals(AbstractMessage<?> message) throws Exception {
+    byte[] expected = message.toStompMessage(true).getBytes(StompMessageParser.UTF_8);
+
+    ByteBuffer buffer = message.toStompBuffer(true);
+
+    assertEquals(0, buffer.position());
+    assertEquals(expected.length, buffer.capacity());
+    assertEquals(expected.length, message.getEncodedLength());
+    assertTrue(Arrays.equals(expected, buffer.array()));
+  }
+}
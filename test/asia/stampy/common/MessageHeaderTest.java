@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import asia.stampy.client.message.send.SendHeader;
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.message.AbstractMessageHeader;
+import asia.stampy.common.parsing.StompMessageParser;
+import asia.stampy.server.message.message.MessageMessage;
+
+/**
+ * Tests the header storage of {@link AbstractMessageHeader}.
+ */
+public class MessageHeaderTest {
+
+  /**
+   * Test repeated headers keep their order, the first value being returned.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testRepeatedHeaders() throws Exception {
+    SendHeader header = new SendHeader();
+    header.addHeader("foo", "1");
+    header.setDestination("over/there");
+    header.addHeader("foo", "2");
+    header.addHeader("foo", "0", 0);
+    header.addHeader("foo", "3", 3);
+
+    assertEquals("0", header.getHeaderValue("foo"));
+    assertEquals(Arrays.asList("0", "1", "2", "3"), header.getHeaderValues("foo"));
+    assertEquals("foo:0\nfoo:1\ndestination:over/there\nfoo:2\nfoo:3", header.toMessageHeader());
+
+    try {
+      header.addHeader("foo", "5", 5);
+      fail("Value added beyond the values of the key");
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+
+    header.removeHeader("foo");
+    assertFalse(header.hasHeader("foo"));
+    assertEquals(1, header.getHeaderCount());
+    assertEquals("over/there", header.getDestination());
+  }
+
+  /**
+   * Test looking up absent headers leaves the headers unchanged.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testMissingHeaders() throws Exception {
+    SendHeader header = new SendHeader();
+
+    assertNull(header.getHeaderValue("foo"));
+    assertFalse(header.hasHeader("foo"));
+    assertTrue(header.getHeaderValues("foo").isEmpty());
+
+    assertEquals(0, header.getHeaderCount());
+    assertTrue(header.getHeaders().isEmpty());
+    assertEquals(new SendHeader(), header);
+  }
+
+  /**
+   * Test parsed well known keys are the header constants.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testInternedKeys() throws Exception {
+    SendMessage message = new SendMessage("over/there", "receiptId");
+    message.getHeader().addHeader("custom", "value");
+
+    SendMessage parsed = new StompMessageParser().parseMessage(message.toStompBuffer(true));
+
+    AbstractMessageHeader header = parsed.getHeader();
+    for (int i = 0; i < header.getHeaderCount(); i++) {
+      String key = header.getHeaderKey(i);
+      if (!"custom".equals(key)) assertSame(key, AbstractMessageHeader.internKey(new String(key)));
+    }
+
+    assertSame(SendHeader.DESTINATION, AbstractMessageHeader.getWellKnownKey(ByteBuffer.wrap("destination".getBytes()),
+        0, 11));
+    assertNull(AbstractMessageHeader.getWellKnownKey(ByteBuffer.wrap("custom".getBytes()), 0, 6));
+    assertEquals(message, parsed);
+  }
+
+  /**
+   * Test lazily parsed headers are decoded on access and forwarded as their
+   * original bytes.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testLazyHeaders() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write("SEND\ndestination:over/there\n".getBytes("UTF-8"));
+    for (int i = 0; i < 20; i++) {
+      baos.write(("x-trace-" + i + ":" + i + "\r\n").getBytes("UTF-8"));
+    }
+    baos.write("clé:valeur\nx-raw:".getBytes("UTF-8"));
+    baos.write(new byte[] { (byte) 0xC3, 'x' });
+    baos.write("\ncontent-type:text/plain\n\nThe body\000".getBytes("UTF-8"));
+
+    StompMessageParser parser = new StompMessageParser();
+    parser.setLazyHeaders(true);
+
+    SendMessage lazy = parser.parseMessage(ByteBuffer.wrap(baos.toByteArray()));
+    SendHeader header = lazy.getHeader();
+
+    assertEquals(24, header.getHeaderCount());
+    assertEquals("over/there", header.getDestination());
+    assertEquals("7", header.getHeaderValue("x-trace-7"));
+    assertEquals("valeur", header.getHeaderValue("clé"));
+    assertTrue(header.isHeaderKey(22, "x-raw"));
+    assertFalse(header.isHeaderKey(22, "x-ra"));
+    assertEquals("The body", lazy.getBody());
+
+    MessageMessage forwarded = new MessageMessage("over/there", "12345", "54321");
+    for (int i = 0; i < header.getHeaderCount(); i++) {
+      if (!header.isHeaderKey(i, SendHeader.DESTINATION)) forwarded.getHeader().addHeader(header, i);
+    }
+    forwarded.setBody(lazy.getBody());
+
+    byte[] frame = toBytes(forwarded.toStompBuffer(true));
+    String text = new String(frame, "ISO-8859-1");
+    assertTrue(text.contains("x-trace-19:19\n"));
+    assertTrue(text.contains("x-raw:\u00C3x\n"));
+
+    MessageMessage parsed = new StompMessageParser().parseMessage(ByteBuffer.wrap(frame));
+    assertEquals("19", parsed.getHeader().getHeaderValue("x-trace-19"));
+    assertEquals("valeur", parsed.getHeader().getHeaderValue("clé"));
+    assertEquals("The body", parsed.getBody());
+
+    assertEquals(new StompMessageParser().parseMessage(ByteBuffer.wrap(baos.toByteArray())), lazy);
+  }
+
+  private byte[] toBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.serialization.SerializationUtils;
+
+/**
+ * Tests the lock free {@link SerializationUtils}.
+ */
+public class SerializationUtilsTest {
+
+  /**
+   * Test the Base64 encoding matches commons-codec for all padding lengths.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testBase64Encoding() throws Exception {
+    Random random = new Random(1);
+    for (int i = 0; i < 10; i++) {
+      byte[] bytes = new byte[i];
+      random.nextBytes(bytes);
+
+      assertEquals(Base64.encodeBase64String(bytes), SerializationUtils.serializeBase64(bytes));
+    }
+
+    HostPort hostPort = new HostPort("burt.alexander", 1234);
+    String encoded = SerializationUtils.serializeBase64(hostPort);
+    assertEquals(Base64.encodeBase64String(SerializationUtils.serialize(hostPort)), encoded);
+    assertEquals(hostPort, SerializationUtils.deserializeBase64(encoded));
+  }
+
+  /**
+   * Test the streaming variants write the same bytes.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testStreaming() throws Exception {
+    List<Object> list = new ArrayList<Object>();
+    for (int i = 0; i < 1000; i++) {
+      list.add(new HostPort("host" + i, i));
+    }
+
+    String encoded = SerializationUtils.serializeBase64(list);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    SerializationUtils.serializeBase64(list, baos);
+    assertEquals(encoded, new String(baos.toByteArray(), "US-ASCII"));
+
+    ByteBuffer buffer = ByteBuffer.allocate(encoded.length() + 1);
+    buffer.put((byte) 'x');
+    assertEquals(encoded.length(), SerializationUtils.serializeBase64(list, buffer));
+    assertEquals(encoded, new String(buffer.array(), 1, encoded.length(), "US-ASCII"));
+
+    assertEquals(list, SerializationUtils.deserializeBase64(encoded));
+  }
+
+  /**
+   * Test serialization from within an object's writeObject method.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testNestedSerialization() throws Exception {
+    Nested nested = new Nested();
+    nested.hostPort = new HostPort("burt.alexander", 1234);
+
+    Nested deserialized = (Nested) SerializationUtils.deserializeBase64(SerializationUtils.serializeBase64(nested));
+
+    assertEquals(nested.hostPort, deserialized.hostPort);
+  }
+
+  /**
+   * Test concurrent serialization.
+   * 
+   * @throws Exception
+   *           the exception
+   */
+  @Test
+  public void testConcurrentSerialization() throws Exception {
+    ExecutorService svc = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 8; i++) {
+        final int thread = i;
+        futures.add(svc.submit(new Callable<Boolean>() {
+
+          @Override
+          public Boolean call() throws Exception {
+            for (int j = 0; j < 500; j++) {
+              HostPort hostPort = new HostPort("host" + thread, j);
+              Object o = SerializationUtils.deserializeBase64(SerializationUtils.serializeBase64(hostPort));
+              if (!hostPort.equals(o)) return false;
+            }
+
+            return true;
+          }
+        }));
+      }
+
+      for (Future<Boolean> future : futures) {
+        assertTrue(future.get());
+      }
+    } finally {
+      svc.shutdown();
+    }
+  }
+
+  private static class Nested implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private transient HostPort hostPort;
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.writeUTF(SerializationUtils.serializeBase64(hostPort));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      hostPort = (HostPort) SerializationUtils.deserializeBase64(in.readUTF());
+    }
+  }
+}
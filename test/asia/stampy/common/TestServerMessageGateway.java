@@ -56,8 +56,7 @@ public class TestServerMessageGateway extends AbstractStampyMessageGateway {
 
   @Override
   public void shutdown() throws Exception {
-    // TODO Auto-generated method stub
-
+    notifyShutdownListeners();
   }
 
   @Override
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.ack.AckMessage;
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.common.message.StampyMessage;
+import asia.stampy.common.message.StompMessageType;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MessageListenerDispatchTest {
+  private TestServerMessageGateway gateway = new TestServerMessageGateway();
+
+  private HostPort hostPort = new HostPort("burt.alexander", 9999);
+
+  @Mock
+  private SecurityMessageListener security;
+
+  @Mock
+  private StampyMessageListener send;
+
+  @Mock
+  private StampyMessageListener sendAndAck;
+
+  @Before
+  public void before() throws Exception {
+    when(security.getMessageTypes()).thenReturn(StompMessageType.values());
+    when(send.getMessageTypes()).thenReturn(new StompMessageType[] { StompMessageType.SEND });
+    when(sendAndAck.getMessageTypes()).thenReturn(
+        new StompMessageType[] { StompMessageType.ACK, StompMessageType.SEND, StompMessageType.ACK });
+
+    when(security.isForMessage(any(StampyMessage.class))).thenReturn(true);
+    when(send.isForMessage(any(StampyMessage.class))).thenReturn(true);
+    when(sendAndAck.isForMessage(any(StampyMessage.class))).thenReturn(true);
+  }
+
+  @Test
+  public void testSecurityFirst() throws Exception {
+    try {
+      gateway.addMessageListener(send);
+      fail("Should have thrown security exception");
+    } catch (StampySecurityException e) {
+      // expected
+    }
+
+    gateway.addMessageListener(security);
+
+    try {
+      gateway.addMessageListener(send, 0);
+      fail("Should have thrown security exception");
+    } catch (StampySecurityException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDispatch() throws Exception {
+    gateway.addMessageListener(security);
+    gateway.addMessageListener(sendAndAck);
+    gateway.addMessageListener(send, 1);
+
+    SendMessage sendMessage = new SendMessage("destination", "receiptId");
+    AckMessage ackMessage = new AckMessage("id");
+
+    gateway.notifyMessageListeners(sendMessage, hostPort);
+    gateway.notifyMessageListeners(ackMessage, hostPort);
+
+    InOrder inOrder = inOrder(security, send, sendAndAck);
+    inOrder.verify(security).messageReceived(sendMessage, hostPort);
+    inOrder.verify(send).messageReceived(sendMessage, hostPort);
+    inOrder.verify(sendAndAck).messageReceived(sendMessage, hostPort);
+    inOrder.verify(security).messageReceived(ackMessage, hostPort);
+    inOrder.verify(sendAndAck).messageReceived(ackMessage, hostPort);
+
+    verify(send, never()).messageReceived(ackMessage, hostPort);
+    verify(sendAndAck, times(1)).messageReceived(ackMessage, hostPort);
+  }
+
+  @Test
+  public void testDispatchAfter() throws Exception {
+    gateway.addMessageListener(security);
+    gateway.addMessageListener(send);
+    gateway.addMessageListener(sendAndAck);
+
+    SendMessage sendMessage = new SendMessage("destination", "receiptId");
+    gateway.notifyMessageListeners(sendMessage, hostPort, send);
+
+    verify(security, never()).messageReceived(sendMessage, hostPort);
+    verify(send, never()).messageReceived(sendMessage, hostPort);
+    verify(sendAndAck).messageReceived(sendMessage, hostPort);
+  }
+
+  @Test
+  public void testConsumed() throws Exception {
+    StampyConsumingMessageListener consumer = mock(StampyConsumingMessageListener.class);
+    when(consumer.getMessageTypes()).thenReturn(new StompMessageType[] { StompMessageType.SEND });
+    when(consumer.isForMessage(any(StampyMessage.class))).thenReturn(true);
+
+    gateway.addMessageListener(security);
+    gateway.addMessageListener(consumer);
+    gateway.addMessageListener(send);
+
+    SendMessage consumed = new SendMessage("destination", "receiptId");
+    SendMessage notConsumed = new SendMessage("destination", "receiptId2");
+    when(consumer.consume(consumed, hostPort)).thenReturn(true);
+
+    gateway.notifyMessageListeners(consumed, hostPort);
+    gateway.notifyMessageListeners(notConsumed, hostPort);
+
+    verify(consumer, never()).messageReceived(any(StampyMessage.class), any(HostPort.class));
+    verify(send, never()).messageReceived(consumed, hostPort);
+    verify(send).messageReceived(notConsumed, hostPort);
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    gateway.addMessageListener(security);
+    gateway.addMessageListener(send);
+    gateway.removeMessageListener(send);
+
+    SendMessage sendMessage = new SendMessage("destination", "receiptId");
+    gateway.notifyMessageListeners(sendMessage, hostPort);
+
+    verify(security).messageReceived(sendMessage, hostPort);
+    verify(send, never()).messageReceived(sendMessage, hostPort);
+
+    gateway.clearMessageListeners();
+    gateway.notifyMessageListeners(sendMessage, hostPort);
+
+    verify(security, times(1)).messageReceived(sendMessage, hostPort);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OrderedExecutorTest {
+  private static final int COUNT = 1000;
+
+  private ExecutorService pool = Executors.newFixedThreadPool(4);
+
+  private OrderedExecutor executor = new OrderedExecutor(pool, 8);
+
+  @After
+  public void after() throws Exception {
+    executor.shutdown();
+  }
+
+  @Test
+  public void testOrderPerHostPort() throws Exception {
+    HostPort[] hostPorts = new HostPort[] { new HostPort("burt.alexander", 9999), new HostPort("burt.alexander", 9998),
+        new HostPort("localhost", 1234) };
+
+    List<List<Integer>> received = new ArrayList<List<Integer>>();
+    final CountDownLatch latch = new CountDownLatch(COUNT * hostPorts.length);
+    for (int i = 0; i < hostPorts.length; i++) {
+      received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+
+    for (int i = 0; i < COUNT; i++) {
+      for (int j = 0; j < hostPorts.length; j++) {
+        final List<Integer> list = received.get(j);
+        final int value = i;
+        executor.execute(hostPorts[j], new Runnable() {
+
+          @Override
+          public void run() {
+            list.add(value);
+            latch.countDown();
+          }
+        });
+      }
+    }
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+    for (List<Integer> list : received) {
+      assertEquals(COUNT, list.size());
+      for (int i = 0; i < COUNT; i++) {
+        assertEquals(i, list.get(i).intValue());
+      }
+    }
+  }
+
+  @Test
+  public void testExceptionDoesNotStallQueue() throws Exception {
+    HostPort hostPort = new HostPort("burt.alexander", 9999);
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    executor.execute(hostPort, new Runnable() {
+
+      @Override
+      public void run() {
+        throw new IllegalStateException("Expected");
+      }
+    });
+
+    executor.execute(hostPort, new Runnable() {
+
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    });
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+  }
+}
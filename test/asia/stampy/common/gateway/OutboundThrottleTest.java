@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import asia.stampy.common.heartbeat.StampyHeartbeatContainer;
+
+public class OutboundThrottleTest {
+  private HostPort hostPort = new HostPort("burt.alexander", 9999);
+
+  private TestConnection connection = new TestConnection();
+
+  private TestThrottle throttle = new TestThrottle();
+
+  private AbstractStampyMessageGateway gateway = mock(AbstractStampyMessageGateway.class);
+
+  @Before
+  public void before() {
+    throttle.setGateway(gateway);
+    throttle.setMaxHeldMessages(2);
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    throttle.setPolicy(SlowConsumerPolicy.DROP_OLDEST);
+
+    throttle.write(hostPort, connection, "1");
+    connection.writable = false;
+    throttle.write(hostPort, connection, "2");
+    throttle.write(hostPort, connection, "3");
+    throttle.write(hostPort, connection, "4");
+
+    verify(gateway).notifyWritabilityListeners(hostPort, false);
+    assertEquals(Arrays.asList("1"), connection.written);
+    assertEquals(2, throttle.getHeldMessages(hostPort));
+    assertEquals(1, throttle.getDroppedMessages());
+
+    connection.writable = true;
+    throttle.writabilityChanged(hostPort, connection);
+
+    verify(gateway).notifyWritabilityListeners(hostPort, true);
+    assertEquals(Arrays.asList("1", "3", "4"), connection.written);
+    assertEquals(0, throttle.getHeldMessages(hostPort));
+  }
+
+  @Test
+  public void testDropNewest() throws Exception {
+    throttle.setPolicy(hostPort, SlowConsumerPolicy.DROP_NEWEST);
+
+    connection.writable = false;
+    throttle.write(hostPort, connection, "1");
+    throttle.write(hostPort, connection, "2");
+    throttle.write(hostPort, connection, "3");
+
+    connection.writable = true;
+    throttle.write(hostPort, connection, "4");
+
+    assertEquals(Arrays.asList("1", "2", "4"), connection.written);
+    assertEquals(1, throttle.getDroppedMessages());
+  }
+
+  @Test
+  public void testDisconnect() throws Exception {
+    throttle.setPolicy(SlowConsumerPolicy.DISCONNECT);
+
+    connection.writable = false;
+    throttle.write(hostPort, connection, "1");
+
+    assertTrue(connection.closed);
+    assertTrue(connection.written.isEmpty());
+  }
+
+  @Test
+  public void testBlock() throws Exception {
+    assertEquals(SlowConsumerPolicy.BLOCK, throttle.getPolicy());
+    connection.writable = false;
+
+    final CountDownLatch sent = new CountDownLatch(1);
+    Thread sender = new Thread() {
+      public void run() {
+        throttle.write(hostPort, connection, "1");
+        sent.countDown();
+      }
+    };
+    sender.start();
+
+    assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+
+    connection.writable = true;
+    throttle.writabilityChanged(hostPort, connection);
+
+    assertTrue(sent.await(1, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("1"), connection.written);
+    assertFalse(connection.closed);
+  }
+
+  @Test
+  public void testBlockTimeout() throws Exception {
+    throttle.setBlockTimeoutMillis(50);
+    connection.writable = false;
+
+    throttle.write(hostPort, connection, "1");
+
+    assertTrue(connection.closed);
+    assertTrue(connection.written.isEmpty());
+  }
+
+  @Test
+  public void testHeartbeat() throws Exception {
+    connection.writable = false;
+    throttle.write(hostPort, connection, StampyHeartbeatContainer.HB1);
+
+    assertEquals(Arrays.asList(StampyHeartbeatContainer.HB1), connection.written);
+    assertFalse(connection.closed);
+  }
+
+  private static class TestConnection {
+    private volatile boolean writable = true;
+    private volatile boolean closed;
+    private List<Object> written = new ArrayList<Object>();
+  }
+
+  private static class TestThrottle extends AbstractOutboundThrottle<TestConnection> {
+
+    @Override
+    protected boolean isWritable(TestConnection connection) {
+      return connection.writable;
+    }
+
+    @Override
+    protected void write(TestConnection connection, Object message) {
+      connection.written.add(message);
+    }
+
+    @Override
+    protected void close(TestConnection connection) {
+      connection.closed = true;
+    }
+  }
+}
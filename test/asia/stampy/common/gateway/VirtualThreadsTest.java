@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.gateway;
+
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+  @Test
+  public void testOrderedExecutor() throws Exception {
+    if (!VirtualThreads.isAvailable()) {
+      try {
+        OrderedExecutor.newVirtualThreadExecutor();
+        fail("Virtual threads should not be available");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      return;
+    }
+
+    OrderedExecutor executor = OrderedExecutor.newVirtualThreadExecutor();
+    final CountDownLatch latch = new CountDownLatch(1);
+    try {
+      executor.execute(new HostPort("burt.alexander", 9999), new Runnable() {
+
+        @Override
+        public void run() {
+          if (Thread.currentThread().getName().startsWith("Stampy Dispatch-")) latch.countDown();
+        }
+      });
+
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.heartbeat;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.gateway.StampyShutdownListener;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HeartbeatContainerTest {
+  @Mock
+  private TestServerMessageGateway gateway;
+
+  private HostPort hostPort = new HostPort("burt.alexander", 1234);
+
+  private HeartbeatContainer container = new HeartbeatContainer();
+
+  @Before
+  public void before() throws Exception {
+    container.setWheel(new HeartbeatWheel(5, 16));
+    when(gateway.isConnected(hostPort)).thenReturn(true);
+  }
+
+  @After
+  public void after() throws Exception {
+    container.remove(hostPort);
+  }
+
+  @Test
+  public void testHeartbeatThenClose() throws Exception {
+    container.start(hostPort, gateway, 50);
+
+    verify(gateway, timeout(1000).times(2)).sendMessage(StampyHeartbeatContainer.HB1, hostPort);
+    verify(gateway, timeout(1000)).closeConnection(hostPort);
+  }
+
+  @Test
+  public void testHeartbeatOnExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    container.setExecutor(executor);
+    try {
+      container.start(hostPort, gateway, 50);
+
+      verify(gateway, timeout(1000).times(2)).sendMessage(StampyHeartbeatContainer.HB1, hostPort);
+      verify(gateway, timeout(1000)).closeConnection(hostPort);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testReset() throws Exception {
+    container.start(hostPort, gateway, 200);
+
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(50);
+      container.reset(hostPort);
+    }
+
+    verify(gateway, never()).sendMessage(StampyHeartbeatContainer.HB1, hostPort);
+    verify(gateway, timeout(1000)).sendMessage(StampyHeartbeatContainer.HB1, hostPort);
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    container.start(hostPort, gateway, 50);
+    container.stop(hostPort);
+
+    Thread.sleep(200);
+
+    verify(gateway, never()).sendMessage(StampyHeartbeatContainer.HB1, hostPort);
+  }
+
+  @Test
+  public void testGatewayShutdown() throws Exception {
+    container.start(hostPort, gateway, 50);
+    container.start(new HostPort("burt.alexander", 4321), gateway, 50);
+
+    ArgumentCaptor<StampyShutdownListener> listener = ArgumentCaptor.forClass(StampyShutdownListener.class);
+    verify(gateway).addShutdownListener(listener.capture());
+    assertTrue(container.getWheel().isRunning());
+
+    listener.getValue().gatewayShutdown();
+
+    assertFalse(container.getWheel().isRunning());
+  }
+}
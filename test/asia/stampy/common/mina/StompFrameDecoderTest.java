@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.mina;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.DefaultTransportMetadata;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSessionConfig;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecSession;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Class StompFrameDecoderTest.
+ */
+public class StompFrameDecoderTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String FRAME = "SEND\ndestination:/queue/test\n\nhello\0";
+
+  private StompFrameDecoder decoder = new StompFrameDecoder(64);
+
+  private ProtocolCodecSession session = new ProtocolCodecSession();
+
+  private Throwable caught;
+
+  @Before
+  public void before() throws Exception {
+    // fragmented like a socket transport, so that split buffers are accumulated
+    session.setTransportMetadata(new DefaultTransportMetadata("mina", "dummy", false, true, SocketAddress.class,
+        IoSessionConfig.class, Object.class));
+    session.setHandler(new IoHandlerAdapter() {
+
+      @Override
+      public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        caught = cause;
+      }
+    });
+  }
+
+  @Test
+  public void testFrames() throws Exception {
+    decode(FRAME + "\n" + FRAME);
+
+    assertEquals(FRAME, readFrame());
+    assertEquals("\n", readFrame());
+    assertEquals(FRAME, readFrame());
+    assertNull(session.getDecoderOutputQueue().poll());
+  }
+
+  @Test
+  public void testSplitBuffers() throws Exception {
+    for (int i = 0; i < FRAME.length() - 1; i++) {
+      decode(FRAME.substring(i, i + 1));
+      assertNull(session.getDecoderOutputQueue().poll());
+    }
+
+    decode("\0\r");
+    assertEquals(FRAME, readFrame());
+
+    decode("\n");
+    assertEquals("\r\n", readFrame());
+  }
+
+  @Test
+  public void testContentLength() throws Exception {
+    String frame = "SEND\ncontent-length:5\n\nab\0cd\0";
+
+    decode(frame.substring(0, 26));
+    assertNull(session.getDecoderOutputQueue().poll());
+
+    decode(frame.substring(26) + FRAME);
+    assertEquals(frame, readFrame());
+    assertEquals(FRAME, readFrame());
+  }
+
+  @Test
+  public void testOversize() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      body.append('x');
+    }
+
+    decode("SEND\n\n" + body.substring(0, 70));
+    decode(body.substring(70) + "\0");
+    assertTrue(caught instanceof ProtocolDecoderException);
+    assertNull(session.getDecoderOutputQueue().poll());
+
+    caught = null;
+    decode("SEND\ncontent-length:100\n\n" + body.substring(0, 20));
+    decode(body.substring(20) + "\0" + FRAME);
+    assertTrue(caught instanceof ProtocolDecoderException);
+    assertEquals(FRAME, readFrame());
+  }
+
+  private void decode(String s) throws Exception {
+    decoder.decode(session, IoBuffer.wrap(s.getBytes(UTF_8)), session.getDecoderOutput());
+  }
+
+  private String readFrame() {
+    ByteBuffer frame = (ByteBuffer) session.getDecoderOutputQueue().poll();
+
+    return UTF_8.decode(frame).toString();
+  }
+}
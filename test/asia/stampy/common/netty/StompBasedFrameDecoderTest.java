@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.junit.Test;
+
+/**
+ * The Class StompBasedFrameDecoderTest.
+ */
+public class StompBasedFrameDecoderTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String FRAME = "SEND\ndestination:/queue/test\n\nhello\0";
+
+  private DecoderEmbedder<ChannelBuffer> embedder = new DecoderEmbedder<ChannelBuffer>(new StompBasedFrameDecoder(64));
+
+  @Test
+  public void testFrames() throws Exception {
+    assertTrue(offer(FRAME + "\n" + FRAME));
+
+    assertEquals(FRAME, readFrame());
+    assertEquals("\n", readFrame());
+    assertEquals(FRAME, readFrame());
+    assertNull(embedder.poll());
+  }
+
+  @Test
+  public void testPartialReads() throws Exception {
+    for (int i = 0; i < FRAME.length() - 1; i++) {
+      assertFalse(offer(FRAME.substring(i, i + 1)));
+    }
+
+    offer("\0\r");
+    assertEquals(FRAME, readFrame());
+
+    offer("\n");
+    assertEquals("\r\n", readFrame());
+  }
+
+  @Test
+  public void testContentLength() throws Exception {
+    String frame = "SEND\ncontent-length:5\n\nab\0cd\0";
+
+    assertFalse(offer(frame.substring(0, 26)));
+
+    offer(frame.substring(26) + FRAME);
+    assertEquals(frame, readFrame());
+    assertEquals(FRAME, readFrame());
+  }
+
+  @Test
+  public void testOversize() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      body.append('x');
+    }
+
+    offer("SEND\ncontent-length:100\n\n" + body.substring(0, 20));
+    try {
+      offer(body.substring(20) + "\0");
+      fail("Frame exceeding the maximum length decoded");
+    } catch (CodecEmbedderException e) {
+      assertTrue(e.getCause() instanceof TooLongFrameException);
+    }
+    assertNull(embedder.poll());
+
+    offer(FRAME);
+    assertEquals(FRAME, readFrame());
+  }
+
+  private boolean offer(String s) {
+    return embedder.offer(ChannelBuffers.copiedBuffer(s, UTF_8));
+  }
+
+  private String readFrame() {
+    return embedder.poll().toString(UTF_8);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import static junit.framework.Assert.assertEquals;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import asia.stampy.client.message.send.SendMessage;
+
+/**
+ * The Class StampyMessageEncoderTest.
+ */
+public class StampyMessageEncoderTest {
+
+  @Test
+  public void testEncode() throws Exception {
+    EmbeddedChannel channel = new EmbeddedChannel(new StampyMessageEncoder());
+
+    SendMessage message = new SendMessage("/queue/test", null);
+    message.setBody("h\u00e9llo");
+
+    channel.writeOutbound(message);
+
+    ByteBuf encoded = channel.readOutbound();
+    try {
+      assertEquals(message.getEncodedLength(), encoded.readableBytes());
+      assertEquals(message.toStompMessage(false), encoded.toString(CharsetUtil.UTF_8));
+    } finally {
+      encoded.release();
+      channel.finishAndReleaseAll();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.netty4;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The Class StompFrameDecoderTest.
+ */
+public class StompFrameDecoderTest {
+  private static final String FRAME = "SEND\ndestination:/queue/test\n\nhello\0";
+
+  private EmbeddedChannel channel = new EmbeddedChannel(new StompFrameDecoder(64));
+
+  @After
+  public void after() throws Exception {
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void testFrames() throws Exception {
+    channel.writeInbound(buffer(FRAME + "\n" + FRAME));
+
+    assertEquals(FRAME, readFrame());
+    assertEquals("\n", readFrame());
+    assertEquals(FRAME, readFrame());
+    assertNull(channel.readInbound());
+  }
+
+  @Test
+  public void testPartialReads() throws Exception {
+    for (int i = 0; i < FRAME.length() - 1; i++) {
+      channel.writeInbound(buffer(FRAME.substring(i, i + 1)));
+      assertNull(channel.readInbound());
+    }
+
+    channel.writeInbound(buffer("\0\r"));
+    assertEquals(FRAME, readFrame());
+
+    channel.writeInbound(buffer("\n"));
+    assertEquals("\r\n", readFrame());
+  }
+
+  @Test
+  public void testContentLength() throws Exception {
+    String frame = "SEND\ncontent-length:5\n\nab\0cd\0";
+
+    channel.writeInbound(buffer(frame.substring(0, 26)));
+    assertNull(channel.readInbound());
+
+    channel.writeInbound(buffer(frame.substring(26) + FRAME));
+    assertEquals(frame, readFrame());
+    assertEquals(FRAME, readFrame());
+  }
+
+  @Test
+  public void testOversize() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      body.append('x');
+    }
+
+    try {
+      channel.writeInbound(buffer("SEND\n\n" + body + "\0"));
+      fail("Frame exceeding the maximum length decoded");
+    } catch (TooLongFrameException expected) {
+    }
+    assertNull(channel.readInbound());
+
+    channel.writeInbound(buffer("SEND\ncontent-length:100\n\n" + body.substring(0, 20)));
+    try {
+      channel.writeInbound(buffer(body.substring(20) + "\0" + FRAME));
+      fail("Frame exceeding the maximum length decoded");
+    } catch (TooLongFrameException expected) {
+    }
+    assertEquals(FRAME, readFrame());
+  }
+
+  private ByteBuf buffer(String s) {
+    return Unpooled.copiedBuffer(s, CharsetUtil.UTF_8);
+  }
+
+  private String readFrame() {
+    ByteBuf frame = channel.readInbound();
+    try {
+      return frame.toString(CharsetUtil.UTF_8);
+    } finally {
+      frame.release();
+    }
+  }
+}
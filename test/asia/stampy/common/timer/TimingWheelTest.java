@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.common.timer;
+
+import static junit.framework.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimingWheelTest {
+  private TimingWheel wheel = new TimingWheel("Test Wheel", 5, 16);
+
+  @After
+  public void after() throws Exception {
+    wheel.stop();
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    CountingTask task = new CountingTask(20);
+    wheel.schedule(task);
+
+    assertTrue(task.latch.await(1, TimeUnit.SECONDS));
+    assertEquals(1, task.count.get());
+  }
+
+  @Test
+  public void testStopDiscardsTasks() throws Exception {
+    CountingTask task = new CountingTask(50);
+    wheel.schedule(task);
+    assertTrue(wheel.isRunning());
+
+    wheel.stop();
+    assertFalse(wheel.isRunning());
+
+    Thread.sleep(100);
+    assertEquals(0, task.count.get());
+  }
+
+  @Test
+  public void testRestart() throws Exception {
+    wheel.schedule(new CountingTask(1000));
+    wheel.stop();
+
+    CountingTask task = new CountingTask(20);
+    wheel.schedule(task);
+
+    assertTrue(wheel.isRunning());
+    assertTrue(task.latch.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testStopFromTask() throws Exception {
+    final CountDownLatch stopped = new CountDownLatch(1);
+    wheel.schedule(new CountingTask(10) {
+
+      @Override
+      public boolean expire() {
+        wheel.stop();
+        stopped.countDown();
+        return super.expire();
+      }
+    });
+
+    assertTrue(stopped.await(1, TimeUnit.SECONDS));
+    assertFalse(wheel.isRunning());
+  }
+
+  private static class CountingTask implements TimingWheelTask {
+    final long deadline;
+    final AtomicInteger count = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    CountingTask(long delay) {
+      deadline = System.currentTimeMillis() + delay;
+    }
+
+    @Override
+    public long getDeadline() {
+      return deadline;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean expire() {
+      count.incrementAndGet();
+      latch.countDown();
+      return false;
+    }
+  }
+}
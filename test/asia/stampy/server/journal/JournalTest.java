@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.journal;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private File directory;
+
+  private Journal journal;
+
+  @Before
+  public void before() throws Exception {
+    directory = File.createTempFile("stampy", "journal");
+    directory.delete();
+    journal = new Journal(directory, 1024);
+  }
+
+  @After
+  public void after() throws Exception {
+    journal.close();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testAppendAndRead() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, journal.append(encode("record " + i)));
+    }
+
+    journal.commit(9);
+    assertEquals(9, journal.getDurableSequence());
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("record " + i, decode(journal.read(i)));
+    }
+
+    assertNull(journal.read(10));
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      journal.append(encode("record " + i));
+    }
+    journal.close();
+
+    journal = new Journal(directory, 1024);
+    assertTrue(journal.getSegmentCount() > 1);
+    assertEquals(100, journal.getNextSequence());
+    assertEquals(0, journal.getFirstSequence());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("record " + i, decode(journal.read(i)));
+    }
+
+    assertEquals(100, journal.append(encode("record 100")));
+  }
+
+  @Test
+  public void testReleaseDeletesSegments() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      journal.append(encode("record " + i));
+    }
+    int segments = journal.getSegmentCount();
+    assertTrue(segments > 1);
+
+    for (int i = 0; i < 100; i++) {
+      journal.release(i);
+    }
+
+    assertEquals(1, journal.getSegmentCount());
+    assertEquals(1, directory.listFiles().length);
+    assertNull(journal.read(0));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    for (int i = 0; i < 300; i++) {
+      journal.append(encode("record " + i));
+    }
+    assertTrue(journal.getSegmentCount() > 3);
+
+    for (int i = 1; i < 300; i++) {
+      if (i != 150) journal.release(i);
+    }
+    assertEquals(3, journal.getSegmentCount());
+
+    final Map<Long, Long> moved = new HashMap<Long, Long>();
+    assertEquals(2, journal.compact(new JournalRelocationListener() {
+
+      @Override
+      public void relocated(long from, long to) {
+        assertTrue(journal.getDurableSequence() >= to);
+        moved.put(from, to);
+      }
+    }));
+
+    assertEquals(1, journal.getSegmentCount());
+    assertNull(journal.read(0));
+    assertEquals("record 0", decode(journal.read(moved.get(0L))));
+    assertEquals("record 150", decode(journal.read(moved.get(150L))));
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    final int threads = 8;
+    final CountDownLatch latch = new CountDownLatch(threads);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++) {
+              long sequence = journal.append(encode(thread + ":" + j));
+              journal.commit(sequence);
+              assertTrue(journal.getDurableSequence() >= sequence);
+            }
+          } catch (Exception e) {
+            failure.set(e);
+          } finally {
+            latch.countDown();
+          }
+        }
+      }.start();
+    }
+
+    latch.await();
+    assertNull(failure.get());
+    assertEquals(80, journal.getNextSequence());
+  }
+
+  private ByteBuffer encode(String s) {
+    return ByteBuffer.wrap(s.getBytes(UTF_8));
+  }
+
+  private String decode(ByteBuffer buffer) {
+    return UTF_8.decode(buffer).toString();
+  }
+}
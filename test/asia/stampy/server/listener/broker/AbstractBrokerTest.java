@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.mockito.ArgumentCaptor;
+
+import asia.stampy.common.AbstractListenerTest;
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.server.message.message.MessageMessage;
+
+public abstract class AbstractBrokerTest extends AbstractListenerTest {
+  protected AbstractBrokerListener<TestServerMessageGateway> broker = newBroker();
+
+  protected HostPort other = new HostPort("burt.alexander", 9998);
+
+  @Before
+  public void beforeBroker() throws Exception {
+    broker.setGateway(serverGateway);
+  }
+
+  protected AbstractBrokerListener<TestServerMessageGateway> newBroker() {
+    return new AbstractBrokerListener<TestServerMessageGateway>() {
+
+      @Override
+      protected void ensureCleanup() {
+      }
+    };
+  }
+
+  protected List<MessageMessage> getAllSent(HostPort hostPort, int count) throws Exception {
+    ArgumentCaptor<MessageMessage> captor = ArgumentCaptor.forClass(MessageMessage.class);
+    verify(serverGateway, times(count)).sendMessage(captor.capture(), eq(hostPort));
+
+    return captor.getAllValues();
+  }
+
+  protected MessageMessage getSent(HostPort hostPort) throws Exception {
+    List<MessageMessage> values = getAllSent(hostPort, 1);
+    assertEquals(1, values.size());
+
+    return values.get(0);
+  }
+}
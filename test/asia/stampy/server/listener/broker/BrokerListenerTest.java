@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.client.message.unsubscribe.UnsubscribeMessage;
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.message.StompMessageType;
+import asia.stampy.server.journal.Journal;
+import asia.stampy.server.message.message.MessageHeader;
+import asia.stampy.server.message.message.MessageMessage;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BrokerListenerTest extends AbstractBrokerTest {
+  @Test
+  public void testTypes() throws Exception {
+    testTypes(broker, new StompMessageType[] { StompMessageType.SEND, StompMessageType.SUBSCRIBE,
+        StompMessageType.UNSUBSCRIBE });
+  }
+
+  @Test
+  public void testRouting() throws Exception {
+    broker.messageReceived(new SubscribeMessage("/topic/test", "sub1"), hostPort);
+
+    SubscribeMessage subscribe = new SubscribeMessage("/topic/test", "sub2");
+    subscribe.getHeader().setAck(Ack.client);
+    broker.messageReceived(subscribe, other);
+
+    broker.messageReceived(new SubscribeMessage("/topic/other", "sub3"), hostPort);
+
+    SendMessage send = new SendMessage("/topic/test", "receipt");
+    send.getHeader().setTransaction("transaction");
+    send.getHeader().addHeader("custom", "value");
+    send.setBody("body");
+    broker.messageReceived(send, hostPort);
+
+    MessageMessage msg = getSent(hostPort);
+    assertEquals("/topic/test", msg.getHeader().getDestination());
+    assertEquals("sub1", msg.getHeader().getSubscription());
+    assertEquals("value", msg.getHeader().getHeaderValue("custom"));
+    assertEquals("body", msg.getBody());
+    assertNull(msg.getHeader().getAck());
+    assertNull(msg.getHeader().getHeaderValue("receipt"));
+    assertNull(msg.getHeader().getHeaderValue("transaction"));
+
+    msg = getSent(other);
+    assertEquals("sub2", msg.getHeader().getSubscription());
+    assertEquals(msg.getHeader().getMessageId(), msg.getHeader().getAck());
+  }
+
+  @Test
+  public void testServerHeaders() throws Exception {
+    SubscribeMessage subscribe = new SubscribeMessage("/topic/test", "sub1");
+    subscribe.getHeader().setAck(Ack.clientIndividual);
+    broker.messageReceived(subscribe, hostPort);
+
+    SendMessage send = new SendMessage("/topic/test", null);
+    send.getHeader().addHeader(MessageHeader.ACK, "spoofed");
+    send.getHeader().addHeader(MessageHeader.MESSAGE_ID, "spoofed");
+    send.getHeader().addHeader(MessageHeader.SUBSCRIPTION, "spoofed");
+    broker.messageReceived(send, other);
+
+    MessageMessage msg = getSent(hostPort);
+    String messageId = msg.getHeader().getMessageId();
+    assertFalse("spoofed".equals(messageId));
+    assertEquals(messageId, msg.getHeader().getAck());
+    assertEquals("sub1", msg.getHeader().getSubscription());
+    assertEquals(1, msg.getHeader().getHeaderValues(MessageHeader.ACK).size());
+    assertEquals(1, msg.getHeader().getHeaderValues(MessageHeader.MESSAGE_ID).size());
+    assertEquals(1, msg.getHeader().getHeaderValues(MessageHeader.SUBSCRIPTION).size());
+  }
+
+  @Test
+  public void testUnsubscribeAndCleanup() throws Exception {
+    broker.messageReceived(new SubscribeMessage("/topic/test", "sub1"), hostPort);
+    broker.messageReceived(new SubscribeMessage("/topic/test", "sub2"), hostPort);
+    broker.messageReceived(new SubscribeMessage("/topic/test", "sub1"), other);
+
+    assertEquals(3, broker.getRegistry().getSubscribers("/topic/test").length);
+
+    broker.messageReceived(new UnsubscribeMessage("sub1"), hostPort);
+    assertEquals(2, broker.getRegistry().getSubscribers("/topic/test").length);
+
+    broker.getRegistry().remove(hostPort);
+    Subscription[] subscribers = broker.getRegistry().getSubscribers("/topic/test");
+    assertEquals(1, subscribers.length);
+    assertEquals(other, subscribers[0].getHostPort());
+
+    broker.getRegistry().remove(other);
+    assertEquals(0, broker.getRegistry().getSubscribers("/topic/test").length);
+
+    broker.messageReceived(new SendMessage("/topic/test", null), hostPort);
+    verify(serverGateway, never()).sendMessage(any(MessageMessage.class), any(HostPort.class));
+  }
+
+  @Test
+  public void testPersistentMessage() throws Exception {
+    File directory = File.createTempFile("stampy", "journal");
+    directory.delete();
+    Journal journal = new Journal(directory, 4096);
+    broker.setJournal(journal);
+    try {
+      SubscribeMessage subscribe = new SubscribeMessage("/topic/test", "sub1");
+      subscribe.getHeader().setAck(Ack.clientIndividual);
+      broker.messageReceived(subscribe, hostPort);
+      broker.messageReceived(new SubscribeMessage("/topic/test", "sub2"), other);
+
+      SendMessage send = new SendMessage("/topic/test", null);
+      send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+      send.setBody("body");
+      broker.messageReceived(send, other);
+
+      assertEquals(0, journal.getDurableSequence());
+
+      String messageId = getSent(hostPort).getHeader().getMessageId();
+      assertNotNull(broker.getJournaledMessage(messageId));
+      assertNull(broker.getJournaledMessage(getSent(other).getHeader().getMessageId()));
+
+      new BrokerAcknowledgementHandler(broker, null).ackReceived(messageId, null, null);
+      assertNull(broker.getJournaledMessage(messageId));
+    } finally {
+      journal.close();
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void testPersistentRedelivery() throws Exception {
+    File directory = File.createTempFile("stampy", "journal");
+    directory.delete();
+    Journal journal = new Journal(directory, 4096);
+    broker.setJournal(journal);
+    broker.getRedeliveryPolicy().setInitialDelayMillis(0);
+    try {
+      SubscribeMessage subscribe = new SubscribeMessage("/queue/test", "sub1");
+      subscribe.getHeader().setAck(Ack.clientIndividual);
+      broker.messageReceived(subscribe, hostPort);
+
+      SendMessage send = new SendMessage("/queue/test", null);
+      send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+      send.setBody("body");
+      broker.messageReceived(send, other);
+
+      String messageId = getSent(hostPort).getHeader().getMessageId();
+      new BrokerAcknowledgementHandler(broker, null).nackReceived(messageId, null, null);
+
+      ArgumentCaptor<MessageMessage> captor = ArgumentCaptor.forClass(MessageMessage.class);
+      verify(serverGateway, times(2)).sendMessage(captor.capture(), eq(hostPort));
+
+      MessageMessage redelivered = captor.getAllValues().get(1);
+      assertEquals("body", redelivered.getBody());
+      assertEquals("2", redelivered.getHeader().getHeaderValue(AbstractBrokerListener.DELIVERY_COUNT));
+      assertNotNull(broker.getJournaledMessage(redelivered.getHeader().getMessageId()));
+    } finally {
+      journal.close();
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void testRetainedMessageReplay() throws Exception {
+    File directory = File.createTempFile("stampy", "journal");
+    directory.delete();
+    Journal journal = new Journal(directory, 4096);
+    broker.setJournal(journal);
+    try {
+      SendMessage send = new SendMessage("/queue/test", null);
+      send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+      send.setBody("body");
+      broker.messageReceived(send, other);
+      verify(serverGateway, never()).sendMessage(any(MessageMessage.class), any(HostPort.class));
+
+      SubscribeMessage subscribe = new SubscribeMessage("/queue/test", "sub1");
+      subscribe.getHeader().setAck(Ack.clientIndividual);
+      broker.messageReceived(subscribe, hostPort);
+      assertEquals("body", getSent(hostPort).getBody());
+
+      journal.close();
+      journal = new Journal(directory, 4096);
+
+      AbstractBrokerListener<TestServerMessageGateway> restarted = newBroker();
+      restarted.setGateway(serverGateway);
+      restarted.setJournal(journal);
+
+      restarted.messageReceived(subscribe, other);
+      MessageMessage replayed = getSent(other);
+      assertEquals("body", replayed.getBody());
+      assertEquals("true", replayed.getHeader().getHeaderValue(AbstractBrokerListener.PERSISTENT));
+
+      String messageId = replayed.getHeader().getMessageId();
+      assertNotNull(restarted.getJournaledMessage(messageId));
+      new BrokerAcknowledgementHandler(restarted, null).ackReceived(messageId, null, null);
+      assertNull(restarted.getJournaledMessage(messageId));
+    } finally {
+      journal.close();
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    broker.setMaxPrefetch(10);
+
+    SubscribeMessage subscribe = new SubscribeMessage("/topic/test", "sub1");
+    subscribe.getHeader().setAck(Ack.clientIndividual);
+    subscribe.getHeader().addHeader(AbstractBrokerListener.PREFETCH, "2");
+    broker.messageReceived(subscribe, hostPort);
+
+    subscribe = new SubscribeMessage("/topic/test", "sub2");
+    subscribe.getHeader().setAck(Ack.clientIndividual);
+    broker.messageReceived(subscribe, other);
+
+    assertEquals(2, broker.getRegistry().getSubscribers("/topic/test")[0].getPrefetch());
+    assertEquals(10, broker.getRegistry().getSubscribers("/topic/test")[1].getPrefetch());
+
+    for (int i = 0; i < 5; i++) {
+      broker.messageReceived(new SendMessage("/topic/test", null), other);
+    }
+
+    List<MessageMessage> sent = getAllSent(hostPort, 2);
+    verify(serverGateway, times(5)).sendMessage(any(MessageMessage.class), eq(other));
+
+    BrokerAcknowledgementHandler handler = new BrokerAcknowledgementHandler(broker, null);
+    handler.ackReceived(sent.get(0).getHeader().getMessageId(), null, null);
+    sent = getAllSent(hostPort, 3);
+
+    handler.nackReceived(sent.get(1).getHeader().getMessageId(), null, null);
+    handler.noAcknowledgementReceived(sent.get(2).getHeader().getMessageId());
+    sent = getAllSent(hostPort, 5);
+
+    handler.ackReceived(sent.get(3).getHeader().getMessageId(), null, null);
+    getAllSent(hostPort, 5);
+
+    broker.messageReceived(new UnsubscribeMessage("sub1"), hostPort);
+    handler.ackReceived(sent.get(4).getHeader().getMessageId(), null, null);
+    getAllSent(hostPort, 5);
+  }
+
+  @Test
+  public void testPrefetchCleanup() throws Exception {
+    broker.setPrefetch(1);
+
+    SubscribeMessage subscribe = new SubscribeMessage("/topic/test", "sub1");
+    subscribe.getHeader().setAck(Ack.client);
+    broker.messageReceived(subscribe, hostPort);
+
+    broker.messageReceived(new SendMessage("/topic/test", null), other);
+    broker.messageReceived(new SendMessage("/topic/test", null), other);
+
+    String messageId = getSent(hostPort).getHeader().getMessageId();
+
+    broker.cleanup(hostPort);
+    assertEquals(0, broker.getRegistry().getSubscribers("/topic/test").length);
+
+    broker.acknowledged(messageId);
+    getSent(hostPort);
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.server.message.message.MessageMessage;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueueDispatchTest extends AbstractBrokerTest {
+  private static final String QUEUE = "/queue/work";
+
+  private BrokerAcknowledgementHandler handler = new BrokerAcknowledgementHandler(broker, null);
+
+  private HostPort third = new HostPort("burt.alexander", 9997);
+
+  @Before
+  public void before() throws Exception {
+    broker.getRedeliveryPolicy().setInitialDelayMillis(0);
+  }
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    subscribe(hostPort, null);
+    subscribe(other, null);
+    subscribe(third, null);
+
+    send(6, null);
+
+    getAllSent(hostPort, 2);
+    getAllSent(other, 2);
+    getAllSent(third, 2);
+  }
+
+  @Test
+  public void testTopicBroadcast() throws Exception {
+    broker.messageReceived(new SubscribeMessage("/topic/work", "sub1"), hostPort);
+    broker.messageReceived(new SubscribeMessage("/topic/work", "sub1"), other);
+
+    broker.messageReceived(new SendMessage("/topic/work", null), third);
+
+    getAllSent(hostPort, 1);
+    getAllSent(other, 1);
+  }
+
+  @Test
+  public void testLeastOutstanding() throws Exception {
+    broker.setDispatchStrategy(new LeastOutstandingDispatchStrategy());
+    subscribe(hostPort, Ack.clientIndividual);
+    subscribe(other, Ack.clientIndividual);
+
+    send(4, null);
+
+    List<MessageMessage> sent = getAllSent(hostPort, 2);
+    getAllSent(other, 2);
+
+    for (MessageMessage msg : sent) {
+      handler.ackReceived(msg.getHeader().getMessageId(), null, null);
+    }
+    assertEquals(0, broker.getOutstanding(broker.getRegistry().getSubscribers(QUEUE)[0]));
+
+    send(2, null);
+
+    getAllSent(hostPort, 4);
+    getAllSent(other, 2);
+  }
+
+  @Test
+  public void testMessageGroup() throws Exception {
+    broker.setDispatchStrategy(new MessageGroupDispatchStrategy());
+    subscribe(hostPort, null);
+    subscribe(other, null);
+
+    send(3, "a");
+    send(3, "b");
+
+    List<MessageMessage> sent = getAllSent(hostPort, 3);
+    getAllSent(other, 3);
+
+    String group = sent.get(0).getHeader().getHeaderValue(MessageGroupDispatchStrategy.MESSAGE_GROUP);
+    for (MessageMessage msg : sent) {
+      assertEquals(group, msg.getHeader().getHeaderValue(MessageGroupDispatchStrategy.MESSAGE_GROUP));
+    }
+  }
+
+  @Test
+  public void testHeldUntilCredit() throws Exception {
+    subscribe(hostPort, Ack.clientIndividual, 1);
+    subscribe(other, Ack.clientIndividual, 1);
+
+    send(3, null);
+
+    MessageMessage first = getAllSent(hostPort, 1).get(0);
+    getAllSent(other, 1);
+
+    handler.ackReceived(first.getHeader().getMessageId(), null, null);
+
+    getAllSent(hostPort, 2);
+    getAllSent(other, 1);
+  }
+
+  @Test
+  public void testMessageGroupHeldForOwner() throws Exception {
+    broker.setDispatchStrategy(new MessageGroupDispatchStrategy());
+    subscribe(hostPort, Ack.clientIndividual, 1);
+    subscribe(other, Ack.clientIndividual, 1);
+
+    send(2, "a");
+
+    MessageMessage first = getAllSent(hostPort, 1).get(0);
+    verify(serverGateway, never()).sendMessage(any(MessageMessage.class), eq(other));
+
+    handler.ackReceived(first.getHeader().getMessageId(), null, null);
+
+    getAllSent(hostPort, 2);
+    verify(serverGateway, never()).sendMessage(any(MessageMessage.class), eq(other));
+  }
+
+  @Test
+  public void testMessageGroupEviction() throws Exception {
+    MessageGroupDispatchStrategy strategy = new MessageGroupDispatchStrategy();
+    broker.setDispatchStrategy(strategy);
+    subscribe(hostPort, null, 0);
+    subscribe(other, null, 0);
+
+    send(1, "a");
+    send(1, "b");
+    assertEquals(2, strategy.getGroupCount());
+
+    broker.cleanup(hostPort);
+    assertEquals(1, strategy.getGroupCount());
+
+    send(1, "a");
+    getAllSent(other, 2);
+
+    strategy.setMaxGroups(2);
+    send(1, "c");
+    assertEquals(2, strategy.getGroupCount());
+  }
+
+  @Test
+  public void testNackRedelivery() throws Exception {
+    subscribe(hostPort, Ack.clientIndividual);
+    subscribe(other, Ack.clientIndividual);
+
+    send(1, null);
+
+    String messageId = getAllSent(hostPort, 1).get(0).getHeader().getMessageId();
+    verify(serverGateway, never()).sendMessage(any(MessageMessage.class), eq(other));
+
+    handler.nackReceived(messageId, null, null);
+
+    MessageMessage redelivered = getAllSent(other, 1).get(0);
+    assertFalse(messageId.equals(redelivered.getHeader().getMessageId()));
+
+    handler.noAcknowledgementReceived(redelivered.getHeader().getMessageId());
+    getAllSent(hostPort, 2);
+  }
+
+  @Test
+  public void testDisconnectRedelivery() throws Exception {
+    subscribe(hostPort, Ack.client);
+
+    send(2, null);
+    getAllSent(hostPort, 2);
+
+    subscribe(other, Ack.client);
+    broker.cleanup(hostPort);
+
+    List<MessageMessage> sent = getAllSent(other, 2);
+    handler.acksReceived(Arrays.asList(sent.get(0).getHeader().getMessageId(), sent.get(1).getHeader().getMessageId()),
+        null, null);
+
+    broker.cleanup(other);
+    getAllSent(hostPort, 2);
+    getAllSent(other, 2);
+  }
+
+  private void subscribe(HostPort hostPort, Ack ack) throws Exception {
+    subscribe(hostPort, ack, 0);
+  }
+
+  private void subscribe(HostPort hostPort, Ack ack, int prefetch) throws Exception {
+    SubscribeMessage subscribe = new SubscribeMessage(QUEUE, "sub1");
+    if (ack != null) subscribe.getHeader().setAck(ack);
+    if (prefetch > 0) subscribe.getHeader().addHeader(AbstractBrokerListener.PREFETCH, Integer.toString(prefetch));
+    broker.messageReceived(subscribe, hostPort);
+  }
+
+  private void send(int count, String group) throws Exception {
+    for (int i = 0; i < count; i++) {
+      SendMessage send = new SendMessage(QUEUE, null);
+      if (group != null) send.getHeader().addHeader(MessageGroupDispatchStrategy.MESSAGE_GROUP, group);
+      broker.messageReceived(send, third);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.server.message.message.MessageMessage;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RedeliveryTest extends AbstractBrokerTest {
+  private BrokerAcknowledgementHandler handler = new BrokerAcknowledgementHandler(broker, null);
+
+  @Test
+  public void testBackoff() throws Exception {
+    RedeliveryPolicy policy = new RedeliveryPolicy();
+    policy.setInitialDelayMillis(100);
+    policy.setMaxDelayMillis(1000);
+
+    assertEquals(100, policy.getDelay(1));
+    assertEquals(200, policy.getDelay(2));
+    assertEquals(800, policy.getDelay(4));
+    assertEquals(1000, policy.getDelay(5));
+
+    assertFalse(policy.isExhausted(100));
+    policy.setMaxDeliveries(3);
+    assertFalse(policy.isExhausted(2));
+    assertTrue(policy.isExhausted(3));
+  }
+
+  @Test
+  public void testDelayedRedelivery() throws Exception {
+    broker.getRedeliveryPolicy().setInitialDelayMillis(200);
+    subscribe("/topic/test", hostPort);
+
+    broker.messageReceived(new SendMessage("/topic/test", null), other);
+    MessageMessage first = getAllSent(hostPort, 1).get(0);
+    assertNull(first.getHeader().getHeaderValue(AbstractBrokerListener.DELIVERY_COUNT));
+
+    handler.nackReceived(first.getHeader().getMessageId(), null, null);
+    getAllSent(hostPort, 1);
+
+    verify(serverGateway, timeout(2000).times(2)).sendMessage(any(MessageMessage.class), eq(hostPort));
+
+    MessageMessage second = getAllSent(hostPort, 2).get(1);
+    assertEquals("2", second.getHeader().getHeaderValue(AbstractBrokerListener.DELIVERY_COUNT));
+    assertFalse(first.getHeader().getMessageId().equals(second.getHeader().getMessageId()));
+  }
+
+  @Test
+  public void testDeadLetter() throws Exception {
+    broker.getRedeliveryPolicy().setInitialDelayMillis(0);
+    broker.getRedeliveryPolicy().setMaxDeliveries(2);
+    broker.getRedeliveryPolicy().setDeadLetterDestination("/queue/DLQ");
+
+    subscribe("/queue/test", hostPort);
+    broker.messageReceived(new SubscribeMessage("/queue/DLQ", "dlq"), other);
+
+    SendMessage send = new SendMessage("/queue/test", null);
+    send.getHeader().addHeader("custom", "value");
+    send.setBody("poison");
+    broker.messageReceived(send, other);
+
+    handler.nackReceived(getAllSent(hostPort, 1).get(0).getHeader().getMessageId(), null, null);
+    handler.nackReceived(getAllSent(hostPort, 2).get(1).getHeader().getMessageId(), null, null);
+    getAllSent(hostPort, 2);
+
+    MessageMessage dead = getAllSent(other, 1).get(0);
+    assertEquals("/queue/DLQ", dead.getHeader().getDestination());
+    assertEquals("/queue/test", dead.getHeader().getHeaderValue(AbstractBrokerListener.ORIGINAL_DESTINATION));
+    assertEquals("2", dead.getHeader().getHeaderValue(AbstractBrokerListener.DELIVERY_COUNT));
+    assertEquals("value", dead.getHeader().getHeaderValue("custom"));
+    assertEquals("poison", dead.getBody());
+  }
+
+  @Test
+  public void testDiscard() throws Exception {
+    broker.getRedeliveryPolicy().setMaxDeliveries(1);
+    subscribe("/topic/test", hostPort);
+
+    broker.messageReceived(new SendMessage("/topic/test", null), other);
+    handler.noAcknowledgementReceived(getAllSent(hostPort, 1).get(0).getHeader().getMessageId());
+
+    getAllSent(hostPort, 1);
+    assertEquals(0, broker.getOutstanding(broker.getRegistry().getSubscribers("/topic/test")[0]));
+  }
+
+  private void subscribe(String destination, HostPort hostPort) throws Exception {
+    SubscribeMessage subscribe = new SubscribeMessage(destination, "sub1");
+    subscribe.getHeader().setAck(Ack.clientIndividual);
+    broker.messageReceived(subscribe, hostPort);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.broker;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import asia.stampy.common.gateway.HostPort;
+
+public class TopicTrieTest {
+  private HostPort hostPort = new HostPort("burt.alexander", 9999);
+
+  private SubscriptionRegistry registry = new SubscriptionRegistry();
+
+  @Test
+  public void testIsPattern() throws Exception {
+    assertTrue(TopicTrie.isPattern("/topic/prices.*.EUR"));
+    assertTrue(TopicTrie.isPattern("/topic/orders.#"));
+    assertFalse(TopicTrie.isPattern("/topic/prices.FX.EUR"));
+    assertFalse(TopicTrie.isPattern("/topic/prices*"));
+  }
+
+  @Test
+  public void testMatching() throws Exception {
+    Subscription one = subscribe("one", "/topic/prices.*.EUR");
+    Subscription any = subscribe("any", "/topic/orders.#");
+    Subscription middle = subscribe("middle", "/topic.#.EUR");
+    Subscription exact = subscribe("exact", "/topic/prices.FX.EUR");
+
+    assertSubscribers("/topic/prices.FX.EUR", one, exact);
+    assertSubscribers("/topic/prices.FX.USD");
+    assertSubscribers("/topic/prices.EUR");
+    assertSubscribers("/topic/orders", any);
+    assertSubscribers("/topic/orders.new.42", any);
+    assertSubscribers("/topic.EUR", middle);
+    assertSubscribers("/topic.a.b.EUR", middle);
+  }
+
+  @Test
+  public void testCacheInvalidation() throws Exception {
+    Subscription one = subscribe("one", "/topic/prices.*.EUR");
+    assertSubscribers("/topic/prices.FX.EUR", one);
+
+    Subscription any = subscribe("any", "/topic/prices.#");
+    assertSubscribers("/topic/prices.FX.EUR", one, any);
+
+    registry.unsubscribe(hostPort, "one");
+    assertSubscribers("/topic/prices.FX.EUR", any);
+
+    registry.remove(hostPort);
+    assertSubscribers("/topic/prices.FX.EUR");
+  }
+
+  @Test
+  public void testPruning() throws Exception {
+    TopicTrie trie = new TopicTrie();
+    Subscription subscription = new Subscription(hostPort, "one", "/topic/a.*.b.#", null);
+
+    trie.add(subscription);
+    assertFalse(trie.isEmpty());
+
+    assertTrue(trie.remove(subscription));
+    assertFalse(trie.remove(subscription));
+    assertTrue(trie.isEmpty());
+  }
+
+  private Subscription subscribe(String id, String destination) {
+    Subscription subscription = new Subscription(hostPort, id, destination, null);
+    registry.subscribe(subscription);
+
+    return subscription;
+  }
+
+  private void assertSubscribers(String destination, Subscription... expecteds) {
+    Set<Subscription> actuals = new HashSet<Subscription>(Arrays.asList(registry.getSubscribers(destination)));
+
+    assertEquals(destination, new HashSet<Subscription>(Arrays.asList(expecteds)), actuals);
+    assertEquals(destination, expecteds.length, registry.getSubscribers(destination).length);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.receipt;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.server.journal.Journal;
+import asia.stampy.server.listener.broker.AbstractBrokerListener;
+import asia.stampy.server.listener.broker.AbstractBrokerTest;
+import asia.stampy.server.message.receipt.ReceiptMessage;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReceiptBatcherTest extends AbstractBrokerTest {
+  private AbstractReceiptListener<TestServerMessageGateway> receipt = new AbstractReceiptListener<TestServerMessageGateway>() {
+  };
+
+  private File directory;
+
+  private Journal journal;
+
+  private ReceiptBatcher batcher;
+
+  @Before
+  public void before() throws Exception {
+    directory = File.createTempFile("stampy", "journal");
+    directory.delete();
+    journal = new Journal(directory, 64 * 1024);
+
+    batcher = new ReceiptBatcher(journal);
+    batcher.setMaxBatchSize(25);
+    batcher.setMaxLingerMillis(10000);
+
+    broker.setJournal(journal);
+    broker.setReceiptBatcher(batcher);
+
+    receipt.setGateway(serverGateway);
+  }
+
+  @After
+  public void after() throws Exception {
+    journal.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testDeferredReceipts() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      if (i == 24) {
+        assertEquals(-1, journal.getDurableSequence());
+        verify(serverGateway, never()).sendMessage(any(ReceiptMessage.class), eq(hostPort));
+      }
+
+      SendMessage send = new SendMessage("/queue/test", "receipt" + i);
+      send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+      received(send);
+    }
+
+    verify(serverGateway, timeout(2000).times(25)).sendMessage(any(ReceiptMessage.class), eq(hostPort));
+    assertEquals(24, journal.getDurableSequence());
+  }
+
+  @Test
+  public void testCommitWithoutReceipt() throws Exception {
+    batcher.setMaxLingerMillis(10);
+
+    SendMessage send = new SendMessage("/queue/test", null);
+    send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+    received(send);
+
+    for (int i = 0; i < 100 && journal.getDurableSequence() < 0; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, journal.getDurableSequence());
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      SendMessage send = new SendMessage("/queue/test", "receipt" + i);
+      send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+      received(send);
+    }
+
+    batcher.shutdown();
+
+    verify(serverGateway, times(5)).sendMessage(any(ReceiptMessage.class), eq(hostPort));
+    assertEquals(4, journal.getDurableSequence());
+  }
+
+  @Test
+  public void testReceiptSentOnce() throws Exception {
+    batcher.setMaxBatchSize(1);
+
+    SendMessage send = new SendMessage("/queue/test", "receipt");
+    send.getHeader().addHeader(AbstractBrokerListener.PERSISTENT, "true");
+    received(send);
+
+    verify(serverGateway, timeout(2000)).sendMessage(any(ReceiptMessage.class), eq(hostPort));
+
+    verify(serverGateway, times(1)).sendMessage(any(ReceiptMessage.class), eq(hostPort));
+  }
+
+  @Test
+  public void testImmediateReceipt() throws Exception {
+    SendMessage send = new SendMessage("/queue/test", "receipt");
+    received(send);
+
+    verify(serverGateway).sendMessage(any(ReceiptMessage.class), eq(hostPort));
+  }
+
+  private void received(SendMessage send) throws Exception {
+    broker.messageReceived(send, hostPort);
+    if (receipt.isForMessage(send)) receipt.messageReceived(send, hostPort);
+  }
+}
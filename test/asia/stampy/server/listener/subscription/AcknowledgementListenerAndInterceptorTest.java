@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.subscription;
+
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.ack.AckMessage;
+import asia.stampy.client.message.nack.NackMessage;
+import asia.stampy.client.message.subscribe.SubscribeHeader.Ack;
+import asia.stampy.client.message.subscribe.SubscribeMessage;
+import asia.stampy.common.AbstractListenerTest;
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.gateway.StampyMessageListener;
+import asia.stampy.common.message.StompMessageType;
+import asia.stampy.server.message.message.MessageMessage;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AcknowledgementListenerAndInterceptorTest extends AbstractListenerTest {
+  private AbstractAcknowledgementListenerAndInterceptor<TestServerMessageGateway> acknowledgement = new AbstractAcknowledgementListenerAndInterceptor<TestServerMessageGateway>() {
+
+    @Override
+    protected void ensureCleanup() {
+    }
+  };
+
+  @Mock
+  private StampyAcknowledgementHandler handler;
+
+  @Before
+  public void before() throws Exception {
+    acknowledgement.setGateway(serverGateway);
+    acknowledgement.setHandler(handler);
+  }
+
+  @Test
+  public void testTypes() throws Exception {
+    testTypes((StampyMessageListener) acknowledgement, new StompMessageType[] { StompMessageType.ACK,
+        StompMessageType.NACK, StompMessageType.MESSAGE, StompMessageType.SUBSCRIBE, StompMessageType.UNSUBSCRIBE });
+  }
+
+  @Test
+  public void testAck() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      acknowledgement.interceptMessage(createMessage("ack" + i), hostPort);
+    }
+
+    acknowledgement.messageReceived(new AckMessage("ack500"), hostPort);
+    acknowledgement.messageReceived(new NackMessage("ack501"), hostPort);
+
+    verify(handler).ackReceived("ack500", null, null);
+    verify(handler).nackReceived("ack501", null, null);
+
+    try {
+      acknowledgement.messageReceived(new AckMessage("ack500"), hostPort);
+      fail("Should have thrown unexpected acknowledgement exception");
+    } catch (UnexpectedAcknowledgementException e) {
+      // expected
+    }
+
+    try {
+      acknowledgement.messageReceived(new AckMessage("ack1"), new HostPort("burt.alexander", 1234));
+      fail("Should have thrown unexpected acknowledgement exception");
+    } catch (UnexpectedAcknowledgementException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    acknowledgement.setAckTimeoutMillis(200);
+
+    acknowledgement.interceptMessage(createMessage("expires"), hostPort);
+    acknowledgement.interceptMessage(createMessage("acked"), hostPort);
+    acknowledgement.messageReceived(new AckMessage("acked"), hostPort);
+
+    verify(handler, timeout(2000)).noAcknowledgementReceived("expires");
+
+    Thread.sleep(300);
+    verify(handler, never()).noAcknowledgementReceived("acked");
+
+    try {
+      acknowledgement.messageReceived(new AckMessage("expires"), hostPort);
+      fail("Should have thrown unexpected acknowledgement exception");
+    } catch (UnexpectedAcknowledgementException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCumulativeAck() throws Exception {
+    subscribe("subscription", Ack.client);
+    subscribe("individual", Ack.clientIndividual);
+
+    for (int i = 0; i < 10; i++) {
+      acknowledgement.interceptMessage(createMessage("ack" + i), hostPort);
+      acknowledgement.interceptMessage(createMessage("individual" + i, "individual"), hostPort);
+    }
+
+    acknowledgement.messageReceived(new NackMessage("ack2"), hostPort);
+    acknowledgement.messageReceived(new AckMessage("ack4"), hostPort);
+
+    verify(handler).nackReceived("ack2", null, null);
+    for (String id : new String[] { "ack0", "ack1", "ack3", "ack4" }) {
+      verify(handler).ackReceived(id, null, null);
+    }
+    verify(handler, times(4)).ackReceived(anyString(), anyString(), anyString());
+
+    try {
+      acknowledgement.messageReceived(new AckMessage("ack3"), hostPort);
+      fail("Should have thrown unexpected acknowledgement exception");
+    } catch (UnexpectedAcknowledgementException e) {
+      // expected
+    }
+
+    acknowledgement.messageReceived(new AckMessage("individual5"), hostPort);
+    acknowledgement.messageReceived(new AckMessage("individual4"), hostPort);
+
+    verify(handler).ackReceived("individual5", null, null);
+    verify(handler).ackReceived("individual4", null, null);
+  }
+
+  @Test
+  public void testBulkAck() throws Exception {
+    StampyBulkAcknowledgementHandler bulk = mock(StampyBulkAcknowledgementHandler.class);
+    acknowledgement.setHandler(bulk);
+
+    subscribe("subscription", Ack.client);
+
+    for (int i = 0; i < 10; i++) {
+      acknowledgement.interceptMessage(createMessage("ack" + i), hostPort);
+    }
+
+    acknowledgement.messageReceived(new AckMessage("ack6"), hostPort);
+    acknowledgement.messageReceived(new AckMessage("ack9"), hostPort);
+
+    verify(bulk).acksReceived(Arrays.asList("ack0", "ack1", "ack2", "ack3", "ack4", "ack5", "ack6"), null, null);
+    verify(bulk).acksReceived(Arrays.asList("ack7", "ack8", "ack9"), null, null);
+    verify(bulk, never()).ackReceived(anyString(), anyString(), anyString());
+  }
+
+  private void subscribe(String id, Ack ack) throws Exception {
+    SubscribeMessage message = new SubscribeMessage("destination", id);
+    message.getHeader().setAck(ack);
+
+    if (acknowledgement.isForMessage(message)) acknowledgement.messageReceived(message, hostPort);
+  }
+
+  private MessageMessage createMessage(String ack) {
+    return createMessage(ack, "subscription");
+  }
+
+  private MessageMessage createMessage(String ack, String subscription) {
+    MessageMessage message = new MessageMessage("destination", ack, subscription);
+    message.getHeader().setAck(ack);
+
+    return message;
+  }
+}
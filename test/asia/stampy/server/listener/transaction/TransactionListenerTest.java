@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Burton Alexander
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * 
+ */
+package asia.stampy.server.listener.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import asia.stampy.client.message.abort.AbortMessage;
+import asia.stampy.client.message.ack.AckMessage;
+import asia.stampy.client.message.begin.BeginMessage;
+import asia.stampy.client.message.commit.CommitMessage;
+import asia.stampy.client.message.send.SendMessage;
+import asia.stampy.common.AbstractListenerTest;
+import asia.stampy.common.TestServerMessageGateway;
+import asia.stampy.common.gateway.HostPort;
+import asia.stampy.common.gateway.StampyMessageListener;
+import asia.stampy.common.message.StampyMessage;
+import asia.stampy.common.message.StompMessageType;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TransactionListenerTest extends AbstractListenerTest {
+  private AbstractTransactionListener<TestServerMessageGateway> transaction = new AbstractTransactionListener<TestServerMessageGateway>() {
+
+    @Override
+    protected void ensureCleanup() {
+    }
+  };
+
+  @Mock
+  private StampyTransactionHandler handler;
+
+  @Before
+  public void before() throws Exception {
+    transaction.setGateway(serverGateway);
+    transaction.setHandler(handler);
+  }
+
+  @Test
+  public void testTypes() throws Exception {
+    testTypes(transaction, new StompMessageType[] { StompMessageType.ABORT, StompMessageType.BEGIN,
+        StompMessageType.COMMIT, StompMessageType.DISCONNECT, StompMessageType.SEND, StompMessageType.ACK,
+        StompMessageType.NACK });
+
+    assertFalse(transaction.isForMessage(new SendMessage("destination", null)));
+    assertTrue(transaction.isForMessage(createSend("transaction")));
+  }
+
+  @Test
+  public void testCommit() throws Exception {
+    transaction.consume(new BeginMessage("tx"), hostPort);
+
+    SendMessage send = createSend("tx");
+    AckMessage ack = new AckMessage("id");
+    ack.getHeader().setTransaction("tx");
+
+    assertTrue(transaction.consume(send, hostPort));
+    assertTrue(transaction.consume(ack, hostPort));
+    verify(serverGateway, never()).notifyMessageListeners(any(StampyMessage.class), any(HostPort.class),
+        any(StampyMessageListener.class));
+
+    CommitMessage commit = new CommitMessage("tx");
+    assertFalse(transaction.consume(commit, hostPort));
+
+    List<StampyMessage<?>> expected = Arrays.<StampyMessage<?>> asList(send, ack);
+    InOrder inOrder = inOrder(handler, serverGateway);
+    inOrder.verify(handler).committing(commit, expected, hostPort);
+    inOrder.verify(serverGateway).notifyMessageListeners(send, hostPort, transaction);
+    inOrder.verify(serverGateway).notifyMessageListeners(ack, hostPort, transaction);
+
+    assertEquals(0, transaction.activeTransactions.get(hostPort).getBufferedBytes());
+
+    try {
+      transaction.consume(new CommitMessage("tx"), hostPort);
+      fail("Transaction should have been removed");
+    } catch (TransactionNotStartedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testAbort() throws Exception {
+    transaction.consume(new BeginMessage("tx"), hostPort);
+    transaction.consume(createSend("tx"), hostPort);
+    transaction.consume(new AbortMessage("tx"), hostPort);
+
+    verifyZeroInteractions(handler);
+    verify(serverGateway, never()).notifyMessageListeners(any(StampyMessage.class), any(HostPort.class),
+        any(StampyMessageListener.class));
+    assertEquals(0, transaction.activeTransactions.get(hostPort).getBufferedBytes());
+  }
+
+  @Test
+  public void testNotStarted() throws Exception {
+    try {
+      transaction.consume(createSend("tx"), hostPort);
+      fail("Transaction not started");
+    } catch (TransactionNotStartedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBufferExceeded() throws Exception {
+    transaction.setMaxBufferedBytes(100);
+    transaction.consume(new BeginMessage("tx"), hostPort);
+
+    SendMessage send = createSend("tx");
+    send.setBody("0123456789012345678901234567890123456789012345678901234567890123456789");
+    try {
+      transaction.consume(send, hostPort);
+      fail("Buffer should have been exceeded");
+    } catch (TransactionBufferExceededException e) {
+      // expected
+    }
+
+    try {
+      transaction.consume(new CommitMessage("tx"), hostPort);
+      fail("Transaction should have been aborted");
+    } catch (TransactionNotStartedException e) {
+      // expected
+    }
+  }
+
+  private SendMessage createSend(String tx) {
+    SendMessage send = new SendMessage("destination", null);
+    send.getHeader().setTransaction(tx);
+
+    return send;
+  }
+}